@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------------------------------------------------
+// Offline decoder of the flight recorder ring file (see FlightRecorder.h). Prints the events as
+// a timeline, oldest first, then a summary: frames produced and presented, produce-to-present
+// latency, time blocked in swaps, swap failures and errors.
+//
+//   adb exec-out run-as com.example.castremotedisplay.ndk cat files/flight_recorder.bin > fr.bin
+//   build/flight_recorder_decode fr.bin
+//
+// Times are CLOCK_MONOTONIC of the device, in milliseconds since the first event, and the wall
+// clock derived from it. Events of processes that ran before the last reboot get a wrong wall
+// clock.
+//--------------------------------------------------------------------------------
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <algorithm>
+#include <map>
+#include <vector>
+
+#include "FlightRecorder.h"
+
+struct decoded_event {
+    // Events recorded after this one, the ring wraps around the sequence numbers
+    uint32_t age;
+    flight_event event;
+};
+
+struct summary {
+    int32_t processes;
+    int32_t sessions;
+    int32_t framesProduced;
+    int32_t framesPresented;
+    int32_t swapFailures;
+    int32_t glErrors;
+    int32_t eglErrors;
+    int32_t noFreeSlot;
+    std::vector<int64_t> latencies;
+    // Microseconds
+    std::vector<int64_t> swapTimes;
+};
+
+static const char* eventName(uint16_t type) {
+    switch (type) {
+        case FLIGHT_RECORDER_OPENED: return "recorder opened";
+        case FLIGHT_SESSION_STARTED: return "session started";
+        case FLIGHT_SESSION_ENDED: return "session ended";
+        case FLIGHT_FRAME_PRODUCED: return "frame produced";
+        case FLIGHT_FRAME_PRESENTED: return "frame presented";
+        case FLIGHT_SLOT_LOCKED: return "slot locked";
+        case FLIGHT_SLOT_UNLOCKED: return "slot unlocked";
+        case FLIGHT_SWAP: return "swap";
+        case FLIGHT_GL_ERROR: return "GL error";
+        case FLIGHT_EGL_ERROR: return "EGL error";
+        case FLIGHT_RD_THREAD_STARTED: return "RD thread started";
+        case FLIGHT_RD_THREAD_FINISHED: return "RD thread finished";
+        case FLIGHT_HEADLESS_ATTACHED: return "headless attached";
+        case FLIGHT_HEADLESS_DETACHED: return "headless detached";
+        case FLIGHT_FRAME_LATCHED: return "frame latched";
+        case FLIGHT_NO_FREE_SLOT: return "no free slot";
+        default: return "unknown";
+    }
+}
+
+static const char* sourceName(int32_t source) {
+    return source == FLIGHT_SOURCE_RD_THREAD ? "RD thread" : "native";
+}
+
+static void printDetails(const flight_event& event) {
+    const int32_t* args = event.args;
+    switch (event.type) {
+        case FLIGHT_RECORDER_OPENED:
+            printf("pid %d", args[0]);
+            break;
+        case FLIGHT_SESSION_STARTED:
+            printf("%dx%d", args[0], args[1]);
+            break;
+        case FLIGHT_FRAME_PRODUCED:
+        case FLIGHT_FRAME_PRESENTED:
+        case FLIGHT_FRAME_LATCHED:
+            printf("frame %d, texture %d", args[0], args[1]);
+            break;
+        case FLIGHT_SLOT_LOCKED:
+            printf("slot %d, texture %d, frame %d", args[0], args[1], args[2]);
+            break;
+        case FLIGHT_SLOT_UNLOCKED:
+            printf("slot %d, texture %d", args[0], args[1]);
+            break;
+        case FLIGHT_SWAP:
+            printf("%s, %d us", args[0] ? "ok" : "FAILED", args[1]);
+            break;
+        case FLIGHT_GL_ERROR:
+        case FLIGHT_EGL_ERROR:
+            printf("0x%x from %s", args[0], sourceName(args[1]));
+            break;
+        case FLIGHT_RD_THREAD_STARTED:
+            printf("surface %dx%d", args[0], args[1]);
+            break;
+        default:
+            break;
+    }
+}
+
+static int64_t percentile(std::vector<int64_t>& values, int32_t percent) {
+    if (values.empty()) {
+        return 0;
+    }
+    std::sort(values.begin(), values.end());
+    return values[(values.size() - 1) * percent / 100];
+}
+
+int main(int argc, char** argv) {
+    if (argc != 2) {
+        fprintf(stderr, "Usage: %s <flight_recorder.bin>\n", argv[0]);
+        return 2;
+    }
+    FILE* file = fopen(argv[1], "rb");
+    if (!file) {
+        fprintf(stderr, "Could not open %s\n", argv[1]);
+        return 1;
+    }
+    flight_recorder_header header;
+    if (fread(&header, sizeof(header), 1, file) != 1 || header.magic != FLIGHT_RECORDER_MAGIC) {
+        fprintf(stderr, "%s is not a flight recorder file\n", argv[1]);
+        fclose(file);
+        return 1;
+    }
+    if (header.version != FLIGHT_RECORDER_VERSION || header.eventSize != sizeof(flight_event)) {
+        fprintf(stderr, "Unsupported version %u, event size %u\n", header.version,
+                header.eventSize);
+        fclose(file);
+        return 1;
+    }
+    std::vector<flight_event> ring(header.capacity);
+    size_t read = fread(ring.data(), sizeof(flight_event), header.capacity, file);
+    fclose(file);
+
+    // Uncommitted events were being written when the process died
+    std::vector<decoded_event> events;
+    for (size_t i = 0; i < read; i++) {
+        if (ring[i].commit) {
+            decoded_event decoded = { header.next - ring[i].commit, ring[i] };
+            events.push_back(decoded);
+        }
+    }
+    std::sort(events.begin(), events.end(), [](const decoded_event& a, const decoded_event& b) {
+        return a.age > b.age;
+    });
+    if (events.empty()) {
+        printf("No events\n");
+        return 0;
+    }
+
+    summary stats = summary();
+    // Frame IDs restart with every process
+    std::map<int32_t, int64_t> produced;
+    int64_t firstTime = events[0].event.timeNanos;
+    // Wall clock minus monotonic clock, as of the last process until one opens in the timeline
+    int64_t wallClockOffset = header.wallClockOffsetNanos;
+
+    printf("%10s  %-12s  %-18s  %s\n", "ms", "wall clock", "event", "details");
+    for (size_t i = 0; i < events.size(); i++) {
+        const flight_event& event = events[i].event;
+        if (event.type == FLIGHT_RECORDER_OPENED) {
+            wallClockOffset = (int64_t) event.args[1] * 1000000000 + event.args[2]
+                              - event.timeNanos;
+            produced.clear();
+            stats.processes++;
+        }
+
+        char wallClock[16];
+        int64_t wallNanos = event.timeNanos + wallClockOffset;
+        time_t seconds = (time_t) (wallNanos / 1000000000);
+        struct tm local;
+        localtime_r(&seconds, &local);
+        snprintf(wallClock, sizeof(wallClock), "%02d:%02d:%02d.%03d", local.tm_hour,
+                 local.tm_min, local.tm_sec, (int) (wallNanos / 1000000 % 1000));
+        printf("%10.3f  %-12s  %-18s  ", (event.timeNanos - firstTime) / 1e6, wallClock,
+               eventName(event.type));
+        printDetails(event);
+        printf("\n");
+
+        switch (event.type) {
+            case FLIGHT_SESSION_STARTED:
+                stats.sessions++;
+                break;
+            case FLIGHT_FRAME_PRODUCED:
+                stats.framesProduced++;
+                produced[event.args[0]] = event.timeNanos;
+                break;
+            case FLIGHT_FRAME_PRESENTED: {
+                stats.framesPresented++;
+                std::map<int32_t, int64_t>::iterator frame = produced.find(event.args[0]);
+                if (frame != produced.end()) {
+                    stats.latencies.push_back(event.timeNanos - frame->second);
+                    produced.erase(frame);
+                }
+                break;
+            }
+            case FLIGHT_SWAP:
+                if (!event.args[0]) {
+                    stats.swapFailures++;
+                }
+                stats.swapTimes.push_back(event.args[1]);
+                break;
+            case FLIGHT_GL_ERROR:
+                stats.glErrors++;
+                break;
+            case FLIGHT_EGL_ERROR:
+                stats.eglErrors++;
+                break;
+            case FLIGHT_NO_FREE_SLOT:
+                stats.noFreeSlot++;
+                break;
+            default:
+                break;
+        }
+    }
+
+    printf("\n%zu events over %.3f s, %d processes started, %d sessions, last pid %d\n",
+           events.size(), (events.back().event.timeNanos - firstTime) / 1e9, stats.processes,
+           stats.sessions, header.pid);
+    printf("Frames: %d produced, %d presented, %d without a free slot\n", stats.framesProduced,
+           stats.framesPresented, stats.noFreeSlot);
+    if (!stats.latencies.empty()) {
+        printf("Produce to present: p50 %.2f ms, p95 %.2f ms, max %.2f ms\n",
+               percentile(stats.latencies, 50) / 1e6, percentile(stats.latencies, 95) / 1e6,
+               percentile(stats.latencies, 100) / 1e6);
+    }
+    if (!stats.swapTimes.empty()) {
+        printf("Blocked in swap: p50 %.2f ms, p95 %.2f ms, max %.2f ms\n",
+               percentile(stats.swapTimes, 50) / 1e3, percentile(stats.swapTimes, 95) / 1e3,
+               percentile(stats.swapTimes, 100) / 1e3);
+    }
+    printf("Swap failures %d, GL errors %d, EGL errors %d\n", stats.swapFailures, stats.glErrors,
+           stats.eglErrors);
+    return 0;
+}
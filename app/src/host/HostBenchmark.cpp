@@ -0,0 +1,384 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------------------------------------------------
+// Desktop benchmark of the native renderer. Runs the frame pipeline of the app on a headless
+// EGL context (Mesa surfaceless platform, llvmpipe works) and reports the CPU time, draw calls
+// and heap allocations of the local and remote passes, per frame and summarized.
+//
+// There is no RD thread: remote frames are released as soon as they are rendered, as if
+// presented instantly. The GPU work of a frame is finished before the next one starts, outside
+// of the measurements.
+//--------------------------------------------------------------------------------
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <algorithm>
+#include <new>
+#include <vector>
+
+#include <EGL/egl.h>
+#include <EGL/eglext.h>
+#include <GLES2/gl2.h>
+
+#include "FramePipeline.h"
+#include "JobSystem.h"
+
+#ifndef EGL_OPENGL_ES3_BIT_KHR
+#define EGL_OPENGL_ES3_BIT_KHR 0x00000040
+#endif
+#ifndef EGL_PLATFORM_SURFACELESS_MESA
+#define EGL_PLATFORM_SURFACELESS_MESA 0x31DD
+#endif
+
+struct benchmark_options {
+    int32_t frames;
+    int32_t warmupFrames;
+    int32_t cubes;
+    int32_t localWidth, localHeight;
+    int32_t remoteWidth, remoteHeight;
+    // Job workers besides the GL thread, JOB_DEFAULT_WORKERS for one per core
+    int32_t workers;
+    bool csv;
+};
+
+//--------------------------------------------------------------------------------
+// Heap allocation counting. Covers the C++ allocations of the renderer, not the ones the GL
+// driver makes internally.
+//--------------------------------------------------------------------------------
+static int64_t gAllocations = 0;
+
+void* operator new(size_t size) {
+    __sync_fetch_and_add(&gAllocations, 1);
+    void* p = malloc(size ? size : 1);
+    if (!p) {
+        throw std::bad_alloc();
+    }
+    return p;
+}
+
+void operator delete(void* p) throw() {
+    free(p);
+}
+
+static int64_t getAllocationCount() {
+    return __sync_fetch_and_add(&gAllocations, 0);
+}
+
+//--------------------------------------------------------------------------------
+// Stands in for the RemoteDisplayPresentation
+//--------------------------------------------------------------------------------
+class BenchmarkListener : public FramePipelineListener {
+public:
+    int32_t remoteFrames;
+    int32_t glErrors;
+
+    BenchmarkListener() : remoteFrames(0), glErrors(0) {}
+
+    virtual void OnRemoteFrame(GLuint texture, int32_t frameId, int64_t frameTimeNanos,
+                               const damage_rect& damage) {
+        remoteFrames++;
+        PipelineRemoteFrameDone(texture);
+    }
+
+    virtual void OnGlError(const char* op, GLenum error) {
+        fprintf(stderr, "GL error 0x%x after %s\n", error, op);
+        glErrors++;
+    }
+};
+
+//--------------------------------------------------------------------------------
+// Headless EGL context
+//--------------------------------------------------------------------------------
+static EGLDisplay getDisplay() {
+    // Client extensions, NULL without EGL_EXT_client_extensions
+    const char* extensions = eglQueryString(EGL_NO_DISPLAY, EGL_EXTENSIONS);
+    if (extensions && strstr(extensions, "EGL_MESA_platform_surfaceless")) {
+        PFNEGLGETPLATFORMDISPLAYEXTPROC getPlatformDisplay =
+                (PFNEGLGETPLATFORMDISPLAYEXTPROC) eglGetProcAddress("eglGetPlatformDisplayEXT");
+        if (getPlatformDisplay) {
+            return getPlatformDisplay(EGL_PLATFORM_SURFACELESS_MESA, EGL_DEFAULT_DISPLAY, NULL);
+        }
+    }
+    return eglGetDisplay(EGL_DEFAULT_DISPLAY);
+}
+
+static EGLContext createContext(EGLDisplay display, EGLConfig* config) {
+    // Highest version first, as GlContextManager does on the device
+    for (EGLint version = 3; version >= 2; version--) {
+        const EGLint configSpec[] = {
+                EGL_RED_SIZE, 8,
+                EGL_GREEN_SIZE, 8,
+                EGL_BLUE_SIZE, 8,
+                EGL_RENDERABLE_TYPE, version == 3 ? EGL_OPENGL_ES3_BIT_KHR : EGL_OPENGL_ES2_BIT,
+                // Any surface type, the context is used surfaceless
+                EGL_SURFACE_TYPE, 0,
+                EGL_NONE
+        };
+        EGLint numConfigs = 0;
+        if (!eglChooseConfig(display, configSpec, config, 1, &numConfigs) || !numConfigs) {
+            continue;
+        }
+        const EGLint contextAttribs[] = {
+                EGL_CONTEXT_CLIENT_VERSION, version,
+                EGL_NONE
+        };
+        EGLContext context = eglCreateContext(display, *config, EGL_NO_CONTEXT, contextAttribs);
+        if (context != EGL_NO_CONTEXT) {
+            return context;
+        }
+    }
+    return EGL_NO_CONTEXT;
+}
+
+static bool makeCurrent(EGLDisplay display, EGLConfig config, EGLContext context,
+                        EGLSurface* surface) {
+    const char* extensions = eglQueryString(display, EGL_EXTENSIONS);
+    *surface = EGL_NO_SURFACE;
+    if (!extensions || !strstr(extensions, "EGL_KHR_surfaceless_context")) {
+        const EGLint pbufferAttribs[] = {
+                EGL_WIDTH, 1,
+                EGL_HEIGHT, 1,
+                EGL_NONE
+        };
+        *surface = eglCreatePbufferSurface(display, config, pbufferAttribs);
+        if (*surface == EGL_NO_SURFACE) {
+            return false;
+        }
+    }
+    return eglMakeCurrent(display, *surface, *surface, context) == EGL_TRUE;
+}
+
+// Framebuffer standing in for the window surface of the view
+static GLuint createLocalFramebuffer(int32_t width, int32_t height) {
+    GLuint renderBuffers[2];
+    glGenRenderbuffers(2, renderBuffers);
+    glBindRenderbuffer(GL_RENDERBUFFER, renderBuffers[0]);
+    glRenderbufferStorage(GL_RENDERBUFFER, GL_RGB565, width, height);
+    glBindRenderbuffer(GL_RENDERBUFFER, renderBuffers[1]);
+    glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT16, width, height);
+    glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+    GLuint frameBuffer;
+    glGenFramebuffers(1, &frameBuffer);
+    glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer);
+    glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER,
+                              renderBuffers[0]);
+    glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER,
+                              renderBuffers[1]);
+    if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+        glDeleteFramebuffers(1, &frameBuffer);
+        return 0;
+    }
+    return frameBuffer;
+}
+
+//--------------------------------------------------------------------------------
+// Reporting
+//--------------------------------------------------------------------------------
+static double percentile(std::vector<double> values, double fraction) {
+    if (values.empty()) {
+        return 0.0;
+    }
+    std::sort(values.begin(), values.end());
+    size_t index = (size_t) (fraction * (values.size() - 1) + 0.5);
+    return values[index];
+}
+
+static void printPass(const char* name, const std::vector<frame_stats>& frames,
+                      pass_stats frame_stats::*pass) {
+    std::vector<double> cpuTimes;
+    double cpuTimeSum = 0.0;
+    int64_t drawCalls = 0, allocations = 0, savedPixels = 0;
+    int64_t stateCallsIssued = 0, stateCallsFiltered = 0;
+    for (size_t i = 0; i < frames.size(); i++) {
+        const pass_stats& stats = frames[i].*pass;
+        cpuTimes.push_back(stats.cpuTime * 1000.0);
+        cpuTimeSum += stats.cpuTime * 1000.0;
+        drawCalls += stats.drawCalls;
+        allocations += stats.allocations;
+        savedPixels += stats.savedPixels;
+        stateCallsIssued += stats.stateCallsIssued;
+        stateCallsFiltered += stats.stateCallsFiltered;
+    }
+    double count = frames.empty() ? 1.0 : (double) frames.size();
+    printf("%-7s cpu ms mean %.3f p50 %.3f p95 %.3f max %.3f, draw calls %.1f, "
+           "allocations %.2f (total %lld), saved pixels %.0f, state calls %.1f issued "
+           "%.1f filtered\n",
+           name, cpuTimeSum / count, percentile(cpuTimes, 0.5), percentile(cpuTimes, 0.95),
+           percentile(cpuTimes, 1.0), drawCalls / count, allocations / count,
+           (long long) allocations, savedPixels / count, stateCallsIssued / count,
+           stateCallsFiltered / count);
+}
+
+static bool parseInt(const char* value, int32_t* out) {
+    char* end;
+    long parsed = value ? strtol(value, &end, 10) : 0;
+    if (!value || *end || parsed < 0) {
+        return false;
+    }
+    *out = (int32_t) parsed;
+    return true;
+}
+
+static bool parseSize(const char* value, int32_t* width, int32_t* height) {
+    return value && sscanf(value, "%dx%d", width, height) == 2 && *width >= 0 && *height >= 0;
+}
+
+static void printUsage(const char* program) {
+    fprintf(stderr,
+            "Usage: %s [--frames N] [--warmup N] [--cubes N] [--local WxH] [--remote WxH] "
+            "[--workers N] [--csv]\n"
+            "  --cubes 0 renders the regular single cube scene\n"
+            "  --remote 0x0 disables the remote pass\n"
+            "  --workers sets the job threads besides the GL thread, one per core by default\n"
+            "  --csv prints the stats of every frame\n", program);
+}
+
+static bool parseOptions(int argc, char** argv, benchmark_options* options) {
+    for (int i = 1; i < argc; i++) {
+        const char* value = i + 1 < argc ? argv[i + 1] : NULL;
+        bool valid;
+        if (!strcmp(argv[i], "--frames")) {
+            valid = parseInt(value, &options->frames);
+        } else if (!strcmp(argv[i], "--warmup")) {
+            valid = parseInt(value, &options->warmupFrames);
+        } else if (!strcmp(argv[i], "--cubes")) {
+            valid = parseInt(value, &options->cubes);
+        } else if (!strcmp(argv[i], "--local")) {
+            valid = parseSize(value, &options->localWidth, &options->localHeight)
+                    && options->localWidth && options->localHeight;
+        } else if (!strcmp(argv[i], "--remote")) {
+            valid = parseSize(value, &options->remoteWidth, &options->remoteHeight);
+        } else if (!strcmp(argv[i], "--workers")) {
+            valid = parseInt(value, &options->workers);
+        } else if (!strcmp(argv[i], "--csv")) {
+            options->csv = true;
+            continue;
+        } else {
+            valid = false;
+        }
+        if (!valid) {
+            return false;
+        }
+        i++;
+    }
+    return true;
+}
+
+int main(int argc, char** argv) {
+    benchmark_options options;
+    options.frames = 600;
+    options.warmupFrames = 60;
+    options.cubes = 0;
+    options.localWidth = 1920;
+    options.localHeight = 1080;
+    options.remoteWidth = 1280;
+    options.remoteHeight = 720;
+    options.workers = JOB_DEFAULT_WORKERS;
+    options.csv = false;
+    if (!parseOptions(argc, argv, &options)) {
+        printUsage(argv[0]);
+        return 2;
+    }
+
+    EGLDisplay display = getDisplay();
+    EGLint major, minor;
+    if (display == EGL_NO_DISPLAY || !eglInitialize(display, &major, &minor)) {
+        fprintf(stderr, "eglInitialize failed: 0x%x\n", eglGetError());
+        return 1;
+    }
+    eglBindAPI(EGL_OPENGL_ES_API);
+
+    EGLConfig config;
+    EGLContext context = createContext(display, &config);
+    EGLSurface surface;
+    if (context == EGL_NO_CONTEXT || !makeCurrent(display, config, context, &surface)) {
+        fprintf(stderr, "Could not create an OpenGL ES context: 0x%x\n", eglGetError());
+        eglTerminate(display);
+        return 1;
+    }
+
+    GLuint localFrameBuffer = createLocalFramebuffer(options.localWidth, options.localHeight);
+    if (!localFrameBuffer) {
+        fprintf(stderr, "Could not create the local framebuffer\n");
+        return 1;
+    }
+
+    BenchmarkListener listener;
+    PipelineSetAllocationCounter(getAllocationCount);
+    PipelineSetBenchmarkCubeCount(options.cubes);
+    // Before the pipeline starts it with the default
+    JobSystemStart(options.workers);
+    PipelineInitContext(false);
+    PipelineInitSurface(options.localWidth, options.localHeight, localFrameBuffer);
+    if (options.remoteWidth && options.remoteHeight) {
+        PipelineStartRemote(&listener, options.remoteWidth, options.remoteHeight);
+    }
+
+    std::vector<frame_stats> frames;
+    frames.reserve(options.frames);
+    if (options.csv) {
+        printf("frame,update_ms,local_ms,remote_ms,local_draw_calls,remote_draw_calls,"
+               "update_allocations,local_allocations,remote_allocations,remote_saved_pixels,"
+               "local_state_calls_issued,local_state_calls_filtered,"
+               "remote_state_calls_issued,remote_state_calls_filtered\n");
+    }
+    for (int32_t i = 0; i < options.warmupFrames + options.frames; i++) {
+        PipelineRenderFrame(true);
+        const frame_stats& stats = PipelineGetFrameStats();
+        glFinish();
+        if (i < options.warmupFrames) {
+            continue;
+        }
+        frames.push_back(stats);
+        if (options.csv) {
+            printf("%d,%.4f,%.4f,%.4f,%d,%d,%lld,%lld,%lld,%lld,%d,%d,%d,%d\n",
+                   i - options.warmupFrames,
+                   stats.update.cpuTime * 1000.0, stats.localPass.cpuTime * 1000.0,
+                   stats.remotePass.cpuTime * 1000.0, stats.localPass.drawCalls,
+                   stats.remotePass.drawCalls, (long long) stats.update.allocations,
+                   (long long) stats.localPass.allocations,
+                   (long long) stats.remotePass.allocations,
+                   (long long) stats.remotePass.savedPixels,
+                   stats.localPass.stateCallsIssued, stats.localPass.stateCallsFiltered,
+                   stats.remotePass.stateCallsIssued, stats.remotePass.stateCallsFiltered);
+        }
+    }
+
+    printf("%s, %d frames, %d cubes, %d job threads, local %dx%d, remote %dx%d, "
+           "%d remote frames, %d GL errors\n",
+           (const char*) glGetString(GL_RENDERER), (int) frames.size(), options.cubes,
+           JobSystemGetThreadCount(),
+           options.localWidth, options.localHeight, options.remoteWidth, options.remoteHeight,
+           listener.remoteFrames, listener.glErrors);
+    printPass("update", frames, &frame_stats::update);
+    printPass("local", frames, &frame_stats::localPass);
+    printPass("remote", frames, &frame_stats::remotePass);
+
+    if (options.remoteWidth && options.remoteHeight) {
+        PipelineStopRemote();
+    }
+    glDeleteFramebuffers(1, &localFrameBuffer);
+    eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+    if (surface != EGL_NO_SURFACE) {
+        eglDestroySurface(display, surface);
+    }
+    eglDestroyContext(display, context);
+    eglTerminate(display);
+    return 0;
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_HOST_ANDROID_API_LEVEL_H
+#define REMOTEDISPLAYNDK_HOST_ANDROID_API_LEVEL_H
+
+//--------------------------------------------------------------------------------
+// Host stand-in for the NDK API level header. __ANDROID_API__ is left undefined, so gl3stub.h
+// resolves the OpenGL ES 3 entry points at runtime as it does up to API 19.
+//--------------------------------------------------------------------------------
+
+#endif //REMOTEDISPLAYNDK_HOST_ANDROID_API_LEVEL_H
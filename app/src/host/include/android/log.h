@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_HOST_ANDROID_LOG_H
+#define REMOTEDISPLAYNDK_HOST_ANDROID_LOG_H
+
+//--------------------------------------------------------------------------------
+// Host stand-in for the NDK log API, the renderer logs to stderr
+//--------------------------------------------------------------------------------
+#include <stdarg.h>
+#include <stdio.h>
+
+typedef enum android_LogPriority {
+    ANDROID_LOG_UNKNOWN = 0,
+    ANDROID_LOG_DEFAULT,
+    ANDROID_LOG_VERBOSE,
+    ANDROID_LOG_DEBUG,
+    ANDROID_LOG_INFO,
+    ANDROID_LOG_WARN,
+    ANDROID_LOG_ERROR,
+    ANDROID_LOG_FATAL,
+    ANDROID_LOG_SILENT,
+} android_LogPriority;
+
+static inline int __android_log_print(int prio, const char* tag, const char* fmt, ...)
+        __attribute__((format(printf, 3, 4)));
+
+static inline int __android_log_print(int prio, const char* tag, const char* fmt, ...) {
+    static const char PRIORITIES[] = "??VDIWEFS";
+    va_list args;
+    va_start(args, fmt);
+    fprintf(stderr, "%c/%s: ", PRIORITIES[prio & 7], tag);
+    int written = vfprintf(stderr, fmt, args);
+    fputc('\n', stderr);
+    va_end(args);
+    return written;
+}
+
+#endif //REMOTEDISPLAYNDK_HOST_ANDROID_LOG_H
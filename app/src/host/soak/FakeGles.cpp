@@ -0,0 +1,430 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------------------------------------------------
+// Fake EGL and OpenGL ES 2 for the session churn soak harness. Implements exactly the entry
+// points the native renderer calls, without drawing anything, and keeps track of:
+// - the live objects of every kind, so leaks show up across start/stop cycles
+// - GL calls made on a thread without a current context
+// - draws sampling a texture that was already deleted
+// It also provides a trace sink, checking the sections of the native renderer balance.
+// All contexts share one object namespace, like the contexts of the app do. Reports as an
+// OpenGL ES 2.0 implementation without extensions, so only the ES 2 paths run.
+//
+// The harness controls contexts and reads the counters through FakeGles.java.
+//--------------------------------------------------------------------------------
+#include <jni.h>
+#include <stdio.h>
+#include <string.h>
+
+#include <mutex>
+#include <set>
+
+#include <EGL/egl.h>
+#include <GLES2/gl2.h>
+
+#include "RenderTrace.h"
+
+// Must be kept in sync with FakeGles.java
+enum fake_object_type {
+    OBJECT_CONTEXT,
+    OBJECT_TEXTURE,
+    OBJECT_BUFFER,
+    OBJECT_FRAMEBUFFER,
+    OBJECT_RENDERBUFFER,
+    OBJECT_PROGRAM,
+    OBJECT_SHADER,
+    OBJECT_TYPE_COUNT
+};
+
+static std::mutex gObjectsMutex;
+static std::set<GLuint> gLiveObjects[OBJECT_TYPE_COUNT];
+static GLuint gNextName = 1;
+
+static int64_t gCallsWithoutContext = 0;
+static int64_t gDeletedTextureDraws = 0;
+
+static thread_local GLuint tCurrentContext = 0;
+
+// Counts the calls, and the ones that would be undefined behavior on a real driver
+#define FAKE_GL_CALL() \
+    do { \
+        if (!tCurrentContext) __sync_fetch_and_add(&gCallsWithoutContext, 1); \
+    } while (0)
+
+static GLuint createObject(fake_object_type type) {
+    std::lock_guard<std::mutex> lock(gObjectsMutex);
+    GLuint name = gNextName++;
+    gLiveObjects[type].insert(name);
+    return name;
+}
+
+static void genObjects(fake_object_type type, GLsizei n, GLuint* names) {
+    FAKE_GL_CALL();
+    for (GLsizei i = 0; i < n; i++) {
+        names[i] = createObject(type);
+    }
+}
+
+static void deleteObjects(fake_object_type type, GLsizei n, const GLuint* names) {
+    FAKE_GL_CALL();
+    std::lock_guard<std::mutex> lock(gObjectsMutex);
+    for (GLsizei i = 0; i < n; i++) {
+        // Deleting 0 or an unknown name is silently ignored, as in GL
+        gLiveObjects[type].erase(names[i]);
+    }
+}
+
+static bool isLive(fake_object_type type, GLuint name) {
+    std::lock_guard<std::mutex> lock(gObjectsMutex);
+    return gLiveObjects[type].count(name) != 0;
+}
+
+//--------------------------------------------------------------------------------
+// Trace sink, installed in place of ATrace. Sections must be ended on the thread that began
+// them, and the native renderer must leave none open after a frame.
+//--------------------------------------------------------------------------------
+static thread_local int32_t tTraceDepth = 0;
+static int64_t gUnbalancedTraceEnds = 0;
+static int64_t gAsyncTraceBegins = 0;
+static int64_t gAsyncTraceEnds = 0;
+
+static void soakTraceBegin(const char* name) {
+    tTraceDepth++;
+}
+
+static void soakTraceEnd() {
+    if (tTraceDepth == 0) {
+        __sync_fetch_and_add(&gUnbalancedTraceEnds, 1);
+    } else {
+        tTraceDepth--;
+    }
+}
+
+static void soakTraceBeginAsync(const char* name, int32_t cookie) {
+    __sync_fetch_and_add(&gAsyncTraceBegins, 1);
+}
+
+// The RD thread stand-in does not trace: only frames the native renderer dropped end here
+static void soakTraceEndAsync(const char* name, int32_t cookie) {
+    __sync_fetch_and_add(&gAsyncTraceEnds, 1);
+}
+
+static const trace_sink gSoakTraceSink = {
+        soakTraceBegin, soakTraceEnd, soakTraceBeginAsync, soakTraceEndAsync
+};
+
+extern "C" {
+
+//--------------------------------------------------------------------------------
+// EGL
+//--------------------------------------------------------------------------------
+__eglMustCastToProperFunctionPointerType eglGetProcAddress(const char* procname) {
+    // No extension or ES 3 entry point
+    return NULL;
+}
+
+EGLDisplay eglGetCurrentDisplay(void) {
+    return EGL_NO_DISPLAY;
+}
+
+const char* eglQueryString(EGLDisplay dpy, EGLint name) {
+    return NULL;
+}
+
+//--------------------------------------------------------------------------------
+// Objects
+//--------------------------------------------------------------------------------
+void glGenTextures(GLsizei n, GLuint* textures) { genObjects(OBJECT_TEXTURE, n, textures); }
+void glDeleteTextures(GLsizei n, const GLuint* textures) {
+    deleteObjects(OBJECT_TEXTURE, n, textures);
+}
+void glGenBuffers(GLsizei n, GLuint* buffers) { genObjects(OBJECT_BUFFER, n, buffers); }
+void glDeleteBuffers(GLsizei n, const GLuint* buffers) {
+    deleteObjects(OBJECT_BUFFER, n, buffers);
+}
+void glGenFramebuffers(GLsizei n, GLuint* framebuffers) {
+    genObjects(OBJECT_FRAMEBUFFER, n, framebuffers);
+}
+void glDeleteFramebuffers(GLsizei n, const GLuint* framebuffers) {
+    deleteObjects(OBJECT_FRAMEBUFFER, n, framebuffers);
+}
+void glGenRenderbuffers(GLsizei n, GLuint* renderbuffers) {
+    genObjects(OBJECT_RENDERBUFFER, n, renderbuffers);
+}
+void glDeleteRenderbuffers(GLsizei n, const GLuint* renderbuffers) {
+    deleteObjects(OBJECT_RENDERBUFFER, n, renderbuffers);
+}
+GLuint glCreateProgram(void) {
+    FAKE_GL_CALL();
+    return createObject(OBJECT_PROGRAM);
+}
+void glDeleteProgram(GLuint program) { deleteObjects(OBJECT_PROGRAM, 1, &program); }
+GLuint glCreateShader(GLenum type) {
+    FAKE_GL_CALL();
+    return createObject(OBJECT_SHADER);
+}
+void glDeleteShader(GLuint shader) { deleteObjects(OBJECT_SHADER, 1, &shader); }
+
+//--------------------------------------------------------------------------------
+// Queries, answering as a complete ES 2 implementation where everything succeeds
+//--------------------------------------------------------------------------------
+GLenum glGetError(void) {
+    FAKE_GL_CALL();
+    return GL_NO_ERROR;
+}
+
+const GLubyte* glGetString(GLenum name) {
+    FAKE_GL_CALL();
+    switch (name) {
+        case GL_VENDOR:
+        case GL_RENDERER:
+            return (const GLubyte*) "Fake";
+        case GL_VERSION:
+            return (const GLubyte*) "OpenGL ES 2.0 Fake";
+        case GL_SHADING_LANGUAGE_VERSION:
+            return (const GLubyte*) "OpenGL ES GLSL ES 1.00";
+        default:
+            return (const GLubyte*) "";
+    }
+}
+
+void glGetIntegerv(GLenum pname, GLint* data) {
+    FAKE_GL_CALL();
+    switch (pname) {
+        case GL_DEPTH_BITS:
+            *data = 24;
+            break;
+        case GL_MAX_TEXTURE_SIZE:
+        case GL_MAX_RENDERBUFFER_SIZE:
+            *data = 4096;
+            break;
+        default:
+            *data = 0;
+            break;
+    }
+}
+
+GLenum glCheckFramebufferStatus(GLenum target) {
+    FAKE_GL_CALL();
+    return GL_FRAMEBUFFER_COMPLETE;
+}
+
+void glGetShaderiv(GLuint shader, GLenum pname, GLint* params) {
+    FAKE_GL_CALL();
+    *params = pname == GL_COMPILE_STATUS ? GL_TRUE : 0;
+}
+
+void glGetProgramiv(GLuint program, GLenum pname, GLint* params) {
+    FAKE_GL_CALL();
+    *params = pname == GL_LINK_STATUS || pname == GL_VALIDATE_STATUS ? GL_TRUE : 0;
+}
+
+void glGetShaderInfoLog(GLuint shader, GLsizei bufSize, GLsizei* length, GLchar* infoLog) {
+    FAKE_GL_CALL();
+    if (length) *length = 0;
+    if (bufSize > 0) infoLog[0] = '\0';
+}
+
+void glGetProgramInfoLog(GLuint program, GLsizei bufSize, GLsizei* length, GLchar* infoLog) {
+    FAKE_GL_CALL();
+    if (length) *length = 0;
+    if (bufSize > 0) infoLog[0] = '\0';
+}
+
+void glBindAttribLocation(GLuint program, GLuint index, const GLchar* name) {
+    FAKE_GL_CALL();
+}
+
+GLint glGetAttribLocation(GLuint program, const GLchar* name) {
+    FAKE_GL_CALL();
+    return 0;
+}
+
+GLint glGetUniformLocation(GLuint program, const GLchar* name) {
+    FAKE_GL_CALL();
+    return 0;
+}
+
+void glReadPixels(GLint x, GLint y, GLsizei width, GLsizei height, GLenum format, GLenum type,
+                  void* pixels) {
+    FAKE_GL_CALL();
+    // Only RGBA bytes are read, and never into a pack buffer on ES 2
+    if (pixels) {
+        memset(pixels, 0, (size_t) width * height * 4);
+    }
+}
+
+//--------------------------------------------------------------------------------
+// Everything else only needs a current context
+//--------------------------------------------------------------------------------
+void glActiveTexture(GLenum texture) { FAKE_GL_CALL(); }
+void glAttachShader(GLuint program, GLuint shader) { FAKE_GL_CALL(); }
+void glBindBuffer(GLenum target, GLuint buffer) { FAKE_GL_CALL(); }
+void glBindFramebuffer(GLenum target, GLuint framebuffer) { FAKE_GL_CALL(); }
+void glBindRenderbuffer(GLenum target, GLuint renderbuffer) { FAKE_GL_CALL(); }
+void glBindTexture(GLenum target, GLuint texture) { FAKE_GL_CALL(); }
+void glBlendFunc(GLenum sfactor, GLenum dfactor) { FAKE_GL_CALL(); }
+void glBufferData(GLenum target, GLsizeiptr size, const void* data, GLenum usage) {
+    FAKE_GL_CALL();
+}
+void glBufferSubData(GLenum target, GLintptr offset, GLsizeiptr size, const void* data) {
+    FAKE_GL_CALL();
+}
+void glClear(GLbitfield mask) { FAKE_GL_CALL(); }
+void glClearColor(GLfloat red, GLfloat green, GLfloat blue, GLfloat alpha) { FAKE_GL_CALL(); }
+void glCompileShader(GLuint shader) { FAKE_GL_CALL(); }
+void glCullFace(GLenum mode) { FAKE_GL_CALL(); }
+void glDepthFunc(GLenum func) { FAKE_GL_CALL(); }
+void glDisable(GLenum cap) { FAKE_GL_CALL(); }
+void glDisableVertexAttribArray(GLuint index) { FAKE_GL_CALL(); }
+void glDrawArrays(GLenum mode, GLint first, GLsizei count) { FAKE_GL_CALL(); }
+void glDrawElements(GLenum mode, GLsizei count, GLenum type, const void* indices) {
+    FAKE_GL_CALL();
+}
+void glEnable(GLenum cap) { FAKE_GL_CALL(); }
+void glEnableVertexAttribArray(GLuint index) { FAKE_GL_CALL(); }
+void glFinish(void) { FAKE_GL_CALL(); }
+void glFlush(void) { FAKE_GL_CALL(); }
+void glFramebufferRenderbuffer(GLenum target, GLenum attachment, GLenum renderbuffertarget,
+                               GLuint renderbuffer) {
+    FAKE_GL_CALL();
+}
+void glFramebufferTexture2D(GLenum target, GLenum attachment, GLenum textarget, GLuint texture,
+                            GLint level) {
+    FAKE_GL_CALL();
+}
+void glFrontFace(GLenum mode) { FAKE_GL_CALL(); }
+void glLinkProgram(GLuint program) { FAKE_GL_CALL(); }
+void glRenderbufferStorage(GLenum target, GLenum internalformat, GLsizei width, GLsizei height) {
+    FAKE_GL_CALL();
+}
+void glScissor(GLint x, GLint y, GLsizei width, GLsizei height) { FAKE_GL_CALL(); }
+void glShaderSource(GLuint shader, GLsizei count, const GLchar* const* string,
+                    const GLint* length) {
+    FAKE_GL_CALL();
+}
+void glTexImage2D(GLenum target, GLint level, GLint internalformat, GLsizei width,
+                  GLsizei height, GLint border, GLenum format, GLenum type, const void* pixels) {
+    FAKE_GL_CALL();
+}
+void glTexParameteri(GLenum target, GLenum pname, GLint param) { FAKE_GL_CALL(); }
+void glUniform1i(GLint location, GLint v0) { FAKE_GL_CALL(); }
+void glUniformMatrix4fv(GLint location, GLsizei count, GLboolean transpose,
+                        const GLfloat* value) {
+    FAKE_GL_CALL();
+}
+void glUseProgram(GLuint program) { FAKE_GL_CALL(); }
+void glValidateProgram(GLuint program) { FAKE_GL_CALL(); }
+void glVertexAttribPointer(GLuint index, GLint size, GLenum type, GLboolean normalized,
+                           GLsizei stride, const void* pointer) {
+    FAKE_GL_CALL();
+}
+void glViewport(GLint x, GLint y, GLsizei width, GLsizei height) { FAKE_GL_CALL(); }
+
+//--------------------------------------------------------------------------------
+// Harness controls, see FakeGles.java
+//--------------------------------------------------------------------------------
+JNIEXPORT jint JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_createContext(JNIEnv* env, jclass type) {
+    return (jint) createObject(OBJECT_CONTEXT);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_destroyContext(JNIEnv* env, jclass type,
+                                                                     jint context) {
+    GLuint name = (GLuint) context;
+    std::lock_guard<std::mutex> lock(gObjectsMutex);
+    gLiveObjects[OBJECT_CONTEXT].erase(name);
+}
+
+// 0 releases the current context of the calling thread
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_makeCurrent(JNIEnv* env, jclass type,
+                                                                  jint context) {
+    tCurrentContext = (GLuint) context;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getCurrentContext(JNIEnv* env,
+                                                                        jclass type) {
+    return (jint) tCurrentContext;
+}
+
+// What the RD thread stand-in does with a remote frame: sample its texture over the whole surface
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_drawTexture(JNIEnv* env, jclass type,
+                                                                  jint texture) {
+    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+    if (!isLive(OBJECT_TEXTURE, (GLuint) texture)) {
+        __sync_fetch_and_add(&gDeletedTextureDraws, 1);
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_installTraceSink(JNIEnv* env, jclass type) {
+    TraceSetSink(&gSoakTraceSink);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getTraceDepth(JNIEnv* env, jclass type) {
+    return (jint) tTraceDepth;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getUnbalancedTraceEnds(JNIEnv* env,
+                                                                             jclass type) {
+    return (jlong) __sync_fetch_and_add(&gUnbalancedTraceEnds, 0);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getAsyncTraceBegins(JNIEnv* env,
+                                                                          jclass type) {
+    return (jlong) __sync_fetch_and_add(&gAsyncTraceBegins, 0);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getAsyncTraceEnds(JNIEnv* env,
+                                                                        jclass type) {
+    return (jlong) __sync_fetch_and_add(&gAsyncTraceEnds, 0);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getLiveObjects(JNIEnv* env, jclass type,
+                                                                     jintArray counts) {
+    jint live[OBJECT_TYPE_COUNT];
+    {
+        std::lock_guard<std::mutex> lock(gObjectsMutex);
+        for (int i = 0; i < OBJECT_TYPE_COUNT; i++) {
+            live[i] = (jint) gLiveObjects[i].size();
+        }
+    }
+    env->SetIntArrayRegion(counts, 0, OBJECT_TYPE_COUNT, live);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getCallsWithoutContext(JNIEnv* env,
+                                                                             jclass type) {
+    return (jlong) __sync_fetch_and_add(&gCallsWithoutContext, 0);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getDeletedTextureDraws(JNIEnv* env,
+                                                                             jclass type) {
+    return (jlong) __sync_fetch_and_add(&gDeletedTextureDraws, 0);
+}
+
+}
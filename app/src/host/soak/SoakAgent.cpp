@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+//--------------------------------------------------------------------------------
+// JNI global reference counting for the session churn soak harness. When the library is
+// loaded, the JNI function table of the VM is swapped through JVMTI for one counting the
+// global references created and deleted, by the renderer as well as by the VM itself.
+//--------------------------------------------------------------------------------
+#include <jni.h>
+#include <jvmti.h>
+#include <stdint.h>
+#include <stdio.h>
+
+static jniNativeInterface* gOriginalFunctions = NULL;
+static int64_t gGlobalRefs = 0;
+
+static jobject JNICALL countingNewGlobalRef(JNIEnv* env, jobject obj) {
+    jobject ref = gOriginalFunctions->NewGlobalRef(env, obj);
+    if (ref != NULL) {
+        __sync_fetch_and_add(&gGlobalRefs, 1);
+    }
+    return ref;
+}
+
+static void JNICALL countingDeleteGlobalRef(JNIEnv* env, jobject globalRef) {
+    if (globalRef != NULL) {
+        __sync_fetch_and_sub(&gGlobalRefs, 1);
+    }
+    gOriginalFunctions->DeleteGlobalRef(env, globalRef);
+}
+
+extern "C" {
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
+    jvmtiEnv* jvmti;
+    if (vm->GetEnv((void**) &jvmti, JVMTI_VERSION_1_0) != JNI_OK) {
+        fprintf(stderr, "No JVMTI, global references are not counted\n");
+        return JNI_VERSION_1_6;
+    }
+    if (jvmti->GetJNIFunctionTable(&gOriginalFunctions) != JVMTI_ERROR_NONE) {
+        fprintf(stderr, "No JNI function table, global references are not counted\n");
+        return JNI_VERSION_1_6;
+    }
+    // The copy is never released, the original table stays in use by the counting functions
+    jniNativeInterface* counting;
+    jvmti->GetJNIFunctionTable(&counting);
+    counting->NewGlobalRef = countingNewGlobalRef;
+    counting->DeleteGlobalRef = countingDeleteGlobalRef;
+    jvmti->SetJNIFunctionTable(counting);
+    return JNI_VERSION_1_6;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_soak_FakeGles_getGlobalRefs(JNIEnv* env, jclass type) {
+    return (jlong) __sync_fetch_and_add(&gGlobalRefs, 0);
+}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.soak;
+
+/**
+ * Controls the fake EGL and OpenGL ES the native renderer is linked against in the soak
+ * harness, see FakeGles.cpp. A context is only a name: making it current lets the calling thread
+ * make GL calls without them being counted as made without a context.
+ */
+final class FakeGles {
+
+    static {
+        System.loadLibrary("native");
+    }
+
+    // Must be kept in sync with FakeGles.cpp
+    static final int OBJECT_CONTEXT = 0;
+    static final int OBJECT_TEXTURE = 1;
+    static final int OBJECT_BUFFER = 2;
+    static final int OBJECT_FRAMEBUFFER = 3;
+    static final int OBJECT_RENDERBUFFER = 4;
+    static final int OBJECT_PROGRAM = 5;
+    static final int OBJECT_SHADER = 6;
+    static final int OBJECT_TYPE_COUNT = 7;
+
+    static final String[] OBJECT_NAMES = {
+            "contexts", "textures", "buffers", "framebuffers", "renderbuffers", "programs",
+            "shaders"
+    };
+
+    private FakeGles() {
+    }
+
+    static native int createContext();
+
+    static native void destroyContext(int context);
+
+    /**
+     * @param context the context to make current on the calling thread, 0 for none
+     */
+    static native void makeCurrent(int context);
+
+    static native int getCurrentContext();
+
+    /**
+     * Samples texture over the whole surface, like the RD thread presenting a remote frame.
+     */
+    static native void drawTexture(int texture);
+
+    /**
+     * Replaces the ATrace sink of the native renderer with one checking how its sections nest.
+     * Call before the first frame.
+     */
+    static native void installTraceSink();
+
+    /**
+     * Number of trace sections the calling thread began and did not end yet.
+     */
+    static native int getTraceDepth();
+
+    /**
+     * Number of trace sections ended, over all threads, while none was open.
+     */
+    static native long getUnbalancedTraceEnds();
+
+    /**
+     * Number of async trace sections begun so far, one per remote frame handed over.
+     */
+    static native long getAsyncTraceBegins();
+
+    /**
+     * Number of async trace sections ended so far by the native renderer, one per remote frame
+     * rendered for a session that ended before it could be handed over.
+     */
+    static native long getAsyncTraceEnds();
+
+    /**
+     * @param counts receives the number of live objects of every type, OBJECT_TYPE_COUNT long
+     */
+    static native void getLiveObjects(int[] counts);
+
+    /**
+     * Number of GL calls made so far on a thread without a current context.
+     */
+    static native long getCallsWithoutContext();
+
+    /**
+     * Number of draws so far sampling a texture that was already deleted.
+     */
+    static native long getDeletedTextureDraws();
+
+    /**
+     * Number of JNI global references alive in the VM, counted from when the library was loaded.
+     */
+    static native long getGlobalRefs();
+}
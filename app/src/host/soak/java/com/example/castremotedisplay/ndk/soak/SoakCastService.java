@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.soak;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stands in for the CastRemoteDisplayLocalService: creates the presentation of a session and
+ * dismisses it, on a single UI thread, as the service does from its callbacks.
+ */
+final class SoakCastService {
+
+    private final ExecutorService mUiThread = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "SoakUiThread");
+                }
+            });
+
+    private SoakPresentation mPresentation;
+
+    /**
+     * Starts a session. Returns once the presentation is shown, without waiting for any frame.
+     */
+    SoakPresentation startSession(final int width, final int height,
+                                  final boolean waitForRenderThread) throws Exception {
+        Future<SoakPresentation> shown = mUiThread.submit(new Callable<SoakPresentation>() {
+            @Override
+            public SoakPresentation call() {
+                mPresentation = new SoakPresentation(width, height, waitForRenderThread);
+                mPresentation.show();
+                return mPresentation;
+            }
+        });
+        return shown.get();
+    }
+
+    /**
+     * Stops the session. Returns once the presentation is dismissed.
+     */
+    void stopSession() throws Exception {
+        mUiThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mPresentation != null) {
+                    mPresentation.dismiss();
+                    mPresentation = null;
+                }
+            }
+        }).get();
+    }
+
+    void release() {
+        mUiThread.shutdown();
+    }
+}
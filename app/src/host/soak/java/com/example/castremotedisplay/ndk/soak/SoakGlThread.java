@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.soak;
+
+import com.example.castremotedisplay.ndk.local.NativeRenderer;
+
+/**
+ * Stands in for the GL thread of the GLNativeView: renders frames with the native renderer,
+ * for the whole soak, while Cast sessions come and go. Remote frames are rendered whenever a
+ * session runs, as in the app.
+ */
+final class SoakGlThread extends Thread {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final long mFrameIntervalMs;
+
+    private volatile boolean mFinished;
+    private volatile long mFrames;
+
+    /**
+     * @param frameIntervalMs the time to sleep between frames, 0 to render back to back
+     */
+    SoakGlThread(int width, int height, long frameIntervalMs) {
+        super("SoakGlThread");
+        mWidth = width;
+        mHeight = height;
+        mFrameIntervalMs = frameIntervalMs;
+    }
+
+    long getFrames() {
+        return mFrames;
+    }
+
+    void finish() {
+        mFinished = true;
+    }
+
+    @Override
+    public void run() {
+        int context = FakeGles.createContext();
+        FakeGles.makeCurrent(context);
+        NativeRenderer.initContext(false);
+        NativeRenderer.init(mWidth, mHeight);
+
+        while (!mFinished) {
+            try {
+                NativeRenderer.renderFrame();
+                mFrames++;
+                int traceDepth = FakeGles.getTraceDepth();
+                if (traceDepth != 0) {
+                    SoakHarness.reportError(getName(),
+                            traceDepth + " trace sections left open by frame " + mFrames);
+                }
+            } catch (Throwable t) {
+                // Keep rendering, like the GL thread of the view would for the next frame
+                SoakHarness.reportError(getName(), t);
+            }
+            if (mFrameIntervalMs > 0) {
+                try {
+                    Thread.sleep(mFrameIntervalMs);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+
+        // The renderer has no teardown, its objects stay in the baseline
+        FakeGles.makeCurrent(0);
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.soak;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Session churn soak test of the native renderer. Starts and stops thousands of Cast sessions
+ * in a row, each presenting a few remote frames, while the GL thread keeps rendering, and
+ * reports:
+ * <ul>
+ * <li>threads, JNI global references and GL objects leaked over all the sessions</li>
+ * <li>the latency of every session setup, up to the first presented frame, and teardown</li>
+ * <li>GL calls made without a current context, draws of deleted textures and GL errors</li>
+ * <li>trace sections of the native renderer left open or ended twice, and remote frames handed
+ * over without their async section</li>
+ * <li>crashes of the VM and stalls, with the stack of every thread and the deadlocks found</li>
+ * </ul>
+ * This only soaks the native side of the app: the FramePipeline and its NativeRenderer JNI
+ * binding, with the session lifecycle they go through, running against fake EGL and GL (see
+ * FakeGles.cpp) on a desktop JVM. The Cast service, the presentation and the RD thread are
+ * stand-ins written for the harness: they reproduce the handshake of the app classes without
+ * sharing their code, so the Java side of the app is not soaked. The soak runs in a child VM, so
+ * a native crash is reported rather than taking the harness down.
+ */
+public final class SoakHarness {
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final int EXIT_STALLED = 3;
+
+    private static final String CHILD_FLAG = "--child";
+
+    private static final int LOCAL_WIDTH = 1920;
+    private static final int LOCAL_HEIGHT = 1080;
+    private static final int REMOTE_WIDTH = 1280;
+    private static final int REMOTE_HEIGHT = 720;
+
+    // Errors reported from any thread, only the first ones are kept.
+    private static final int MAX_KEPT_ERRORS = 20;
+    private static final List<String> sErrors = new ArrayList<>();
+    private static int sErrorCount;
+
+    // What the main thread is waiting for, and until when, checked by the watchdog.
+    private static volatile String sPhase = "starting";
+    private static volatile long sPhaseDeadlineMs = Long.MAX_VALUE;
+
+    private int mCycles = 1000;
+    private int mFramesPerCycle = 10;
+    private long mTimeoutMs = 5000;
+    private long mFrameIntervalMs = 2;
+    // "surfaceview", "textureview" or "alternate"
+    private String mBackend = "alternate";
+
+    private SoakHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        SoakHarness harness = new SoakHarness();
+        boolean child = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals(CHILD_FLAG)) {
+                    child = true;
+                } else if (arg.equals("--cycles")) {
+                    harness.mCycles = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--frames-per-cycle")) {
+                    harness.mFramesPerCycle = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--timeout-ms")) {
+                    harness.mTimeoutMs = Long.parseLong(args[++i]);
+                } else if (arg.equals("--frame-interval-ms")) {
+                    harness.mFrameIntervalMs = Long.parseLong(args[++i]);
+                } else if (arg.equals("--backend")) {
+                    harness.mBackend = args[++i];
+                    if (!Arrays.asList("surfaceview", "textureview", "alternate")
+                            .contains(harness.mBackend)) {
+                        throw new IllegalArgumentException(harness.mBackend);
+                    }
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        } catch (RuntimeException ex) {
+            System.err.println("Usage: SoakHarness [--cycles N] [--frames-per-cycle N] "
+                    + "[--timeout-ms MS] [--frame-interval-ms MS] "
+                    + "[--backend surfaceview|textureview|alternate]");
+            System.exit(EXIT_USAGE);
+        }
+
+        if (child) {
+            System.exit(harness.soak());
+        } else {
+            System.exit(runChild(args));
+        }
+    }
+
+    /**
+     * Runs the soak in a new VM with the same class and library paths, and reports how it ended.
+     */
+    private static int runChild(String[] args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+        command.add(SoakHarness.class.getName());
+        command.add(CHILD_FLAG);
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        int exitCode = process.waitFor();
+        switch (exitCode) {
+            case EXIT_OK:
+                System.out.println("PASSED");
+                break;
+            case EXIT_FAILED:
+                System.out.println("FAILED");
+                break;
+            case EXIT_STALLED:
+                System.out.println("FAILED: stalled");
+                break;
+            default:
+                // The VM exits with 128 + the signal number when killed by a signal
+                System.out.println("FAILED: crashed with exit code " + exitCode
+                        + (exitCode > 128 ? " (signal " + (exitCode - 128) + ")" : ""));
+                break;
+        }
+        return exitCode;
+    }
+
+    static void reportError(String source, Throwable t) {
+        reportError(source, t.toString());
+        t.printStackTrace();
+    }
+
+    static synchronized void reportError(String source, String message) {
+        sErrorCount++;
+        if (sErrors.size() < MAX_KEPT_ERRORS) {
+            sErrors.add(source + ": " + message);
+        }
+    }
+
+    private static synchronized int getErrorCount() {
+        return sErrorCount;
+    }
+
+    private static void enterPhase(String phase, long timeoutMs) {
+        sPhase = phase;
+        sPhaseDeadlineMs = System.currentTimeMillis() + timeoutMs;
+    }
+
+    private static void leavePhase() {
+        sPhaseDeadlineMs = Long.MAX_VALUE;
+    }
+
+    /**
+     * Dumps every thread and the deadlocks found, then exits without running any shutdown hook,
+     * which could block on the stalled threads too.
+     */
+    private static void stall() {
+        System.out.println("Stalled while " + sPhase);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] deadlocked = threads.findDeadlockedThreads();
+        if (deadlocked != null) {
+            System.out.println("Deadlocked threads:");
+            for (ThreadInfo info : threads.getThreadInfo(deadlocked, true, true)) {
+                System.out.print(info);
+            }
+        } else {
+            System.out.println("No deadlock found between monitors or locks");
+        }
+        System.out.println("All threads:");
+        for (ThreadInfo info : threads.dumpAllThreads(true, true)) {
+            System.out.print(info);
+        }
+        System.out.flush();
+        Runtime.getRuntime().halt(EXIT_STALLED);
+    }
+
+    private static void startWatchdog() {
+        Thread watchdog = new Thread("SoakWatchdog") {
+            @Override
+            public void run() {
+                while (true) {
+                    if (System.currentTimeMillis() > sPhaseDeadlineMs) {
+                        stall();
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private static class Snapshot {
+        final int[] liveObjects = new int[FakeGles.OBJECT_TYPE_COUNT];
+        final long globalRefs;
+        final int threads;
+        final long callsWithoutContext;
+        final long deletedTextureDraws;
+
+        Snapshot() {
+            FakeGles.getLiveObjects(liveObjects);
+            globalRefs = FakeGles.getGlobalRefs();
+            threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            callsWithoutContext = FakeGles.getCallsWithoutContext();
+            deletedTextureDraws = FakeGles.getDeletedTextureDraws();
+        }
+    }
+
+    private int soak() throws Exception {
+        startWatchdog();
+        SoakGlThread glThread = new SoakGlThread(LOCAL_WIDTH, LOCAL_HEIGHT, mFrameIntervalMs);
+        SoakCastService service = new SoakCastService();
+
+        FakeGles.installTraceSink();
+        // The renderer and the UI thread exist before the first session in the app too
+        enterPhase("waiting for the GL thread", mTimeoutMs);
+        glThread.start();
+        while (glThread.getFrames() < 2) {
+            Thread.sleep(1);
+        }
+        service.stopSession();
+        leavePhase();
+        Snapshot baseline = new Snapshot();
+
+        long[] setupNanos = new long[mCycles];
+        long[] teardownNanos = new long[mCycles];
+        long startMs = System.currentTimeMillis();
+        for (int cycle = 0; cycle < mCycles; cycle++) {
+            boolean surfaceView = mBackend.equals("surfaceview")
+                    || (mBackend.equals("alternate") && cycle % 2 == 0);
+
+            enterPhase("starting session " + cycle, mTimeoutMs);
+            long start = System.nanoTime();
+            SoakPresentation presentation =
+                    service.startSession(REMOTE_WIDTH, REMOTE_HEIGHT, surfaceView);
+            if (!presentation.awaitPresentedFrames(1, mTimeoutMs)) {
+                stall();
+            }
+            setupNanos[cycle] = System.nanoTime() - start;
+
+            enterPhase("presenting session " + cycle, mTimeoutMs);
+            if (!presentation.awaitPresentedFrames(mFramesPerCycle, mTimeoutMs)) {
+                stall();
+            }
+
+            enterPhase("stopping session " + cycle, mTimeoutMs);
+            start = System.nanoTime();
+            service.stopSession();
+            teardownNanos[cycle] = System.nanoTime() - start;
+            leavePhase();
+
+            if ((cycle + 1) % 100 == 0) {
+                System.out.println((cycle + 1) + " cycles, " + getErrorCount() + " errors");
+            }
+        }
+        long elapsedMs = System.currentTimeMillis() - startMs;
+
+        // The RD threads of TextureView sessions may still be finishing
+        enterPhase("waiting for the RD threads to finish", mTimeoutMs);
+        while (SoakRenderThread.getLiveThreads() > 0) {
+            Thread.sleep(1);
+        }
+        // The GL thread releases the targets of the last session at the start of its next frame
+        enterPhase("waiting for the GL thread to release the targets", mTimeoutMs);
+        long frames = glThread.getFrames();
+        while (glThread.getFrames() < frames + 2) {
+            Thread.sleep(1);
+        }
+        leavePhase();
+        Snapshot end = new Snapshot();
+
+        glThread.finish();
+        glThread.join();
+        service.release();
+
+        return report(baseline, end, setupNanos, teardownNanos, elapsedMs);
+    }
+
+    private int report(Snapshot baseline, Snapshot end, long[] setupNanos, long[] teardownNanos,
+                       long elapsedMs) {
+        boolean failed = false;
+        System.out.printf("%d cycles of %d frames in %.1f s, backend %s%n", mCycles,
+                mFramesPerCycle, elapsedMs / 1000.0, mBackend);
+        printLatency("Setup", setupNanos);
+        printLatency("Teardown", teardownNanos);
+
+        System.out.println("Leaks:");
+        int leakedThreads = end.threads - baseline.threads;
+        System.out.printf("  threads          %d%n", leakedThreads);
+        failed |= leakedThreads > 0;
+        long leakedRefs = end.globalRefs - baseline.globalRefs;
+        System.out.printf("  global refs      %d%n", leakedRefs);
+        failed |= leakedRefs > 0;
+        for (int i = 0; i < FakeGles.OBJECT_TYPE_COUNT; i++) {
+            int leaked = end.liveObjects[i] - baseline.liveObjects[i];
+            System.out.printf("  %-16s %d%n", FakeGles.OBJECT_NAMES[i], leaked);
+            failed |= leaked > 0;
+        }
+
+        long callsWithoutContext = end.callsWithoutContext - baseline.callsWithoutContext;
+        System.out.printf("GL calls without a context  %d%n", callsWithoutContext);
+        failed |= callsWithoutContext > 0;
+        long deletedTextureDraws = end.deletedTextureDraws - baseline.deletedTextureDraws;
+        System.out.printf("Draws of deleted textures   %d%n", deletedTextureDraws);
+        failed |= deletedTextureDraws > 0;
+
+        long unbalancedTraceEnds = FakeGles.getUnbalancedTraceEnds();
+        System.out.printf("Unbalanced trace ends       %d%n", unbalancedTraceEnds);
+        failed |= unbalancedTraceEnds > 0;
+        long asyncTraceBegins = FakeGles.getAsyncTraceBegins();
+        long remoteFrames = SoakPresentation.getRemoteFrames();
+        long droppedFrames = FakeGles.getAsyncTraceEnds();
+        System.out.printf("Remote frame traces         %d for %d remote frames, %d dropped%n",
+                asyncTraceBegins, remoteFrames, droppedFrames);
+        failed |= asyncTraceBegins != remoteFrames + droppedFrames;
+
+        synchronized (SoakHarness.class) {
+            System.out.printf("Errors                      %d%n", sErrorCount);
+            for (String error : sErrors) {
+                System.out.println("  " + error);
+            }
+            failed |= sErrorCount > 0;
+        }
+        return failed ? EXIT_FAILED : EXIT_OK;
+    }
+
+    private static void printLatency(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-9s p50 %7.3f ms  p95 %7.3f ms  max %7.3f ms%n", name,
+                percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+                (sorted.length > 0 ? sorted[sorted.length - 1] : 0) / 1e6);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(sorted.length - 1) * percent / 100];
+    }
+}
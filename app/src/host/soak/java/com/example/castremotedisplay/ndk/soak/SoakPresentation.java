@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.soak;
+
+import com.example.castremotedisplay.ndk.local.NativeRenderer;
+import com.google.android.gms.cast.CastPresentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the RemoteDisplayPresentation. Starts and ends the session with the native
+ * renderer on the UI thread, creates the RD thread from the first remote frame on the GL thread
+ * and stops it when the surface goes away, the way the app does, without any more locking than
+ * the app has. The native renderer calls the same methods, with the same signatures.
+ */
+class SoakPresentation extends CastPresentation {
+
+    // Remote frames handed over by the native renderer, over all sessions.
+    private static final AtomicLong sRemoteFrames = new AtomicLong();
+
+    private final int mWidth;
+    private final int mHeight;
+    // Whether the surface is torn down like a SurfaceView's, waiting for the RD thread, or like
+    // a TextureView's, without waiting.
+    private final boolean mWaitForRenderThread;
+
+    private boolean mSurfaceAvailable;
+    private SoakRenderThread mRenderThread;
+
+    private final Object mFramesLock = new Object();
+    private int mPresentedFrames;
+
+    SoakPresentation(int width, int height, boolean waitForRenderThread) {
+        mWidth = width;
+        mHeight = height;
+        mWaitForRenderThread = waitForRenderThread;
+    }
+
+    /**
+     * The surface of the remote display is available. Called on the UI thread.
+     */
+    void show() {
+        mSurfaceAvailable = true;
+        NativeRenderer.castSessionStarted(this, mWidth, mHeight);
+    }
+
+    /**
+     * The surface of the remote display is destroyed. Called on the UI thread.
+     */
+    void dismiss() {
+        NativeRenderer.castSessionEnded(this);
+        mSurfaceAvailable = false;
+
+        if (mRenderThread != null) {
+            mRenderThread.finish();
+            if (mWaitForRenderThread) {
+                try {
+                    mRenderThread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mRenderThread = null;
+        }
+    }
+
+    /**
+     * Blocks until count frames were presented on the remote display, since the session started.
+     *
+     * @return whether they were before the timeout
+     */
+    boolean awaitPresentedFrames(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mFramesLock) {
+            while (mPresentedFrames < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mFramesLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    static long getRemoteFrames() {
+        return sRemoteFrames.get();
+    }
+
+    void onFramePresented() {
+        synchronized (mFramesLock) {
+            mPresentedFrames++;
+            mFramesLock.notifyAll();
+        }
+    }
+
+    public void renderFrameToTexture(int textureId, int frameId, long frameTimeNanos,
+                                     int damageX, int damageY, int damageWidth, int damageHeight) {
+        sRemoteFrames.incrementAndGet();
+        if (mRenderThread == null) {
+            if (!mSurfaceAvailable) {
+                notifyRemoteFrameDone(textureId);
+                return;
+            }
+            // The context of the calling thread is the parent of the RD thread context
+            if (FakeGles.getCurrentContext() == 0) {
+                SoakHarness.reportError("renderFrameToTexture", "no current context");
+                notifyRemoteFrameDone(textureId);
+                return;
+            }
+            mRenderThread = new SoakRenderThread(this);
+            mRenderThread.start();
+        }
+        mRenderThread.renderFrame(textureId);
+    }
+
+    public void notifyRemoteFrameDone(int targetIndex) {
+        NativeRenderer.notifyRemoteFrameDone(targetIndex);
+    }
+
+    public void onGlError(String source, int error, String message) {
+        SoakHarness.reportError(source, message + ": glError 0x" + Integer.toHexString(error));
+    }
+}
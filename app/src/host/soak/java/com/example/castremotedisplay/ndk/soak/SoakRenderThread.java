@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.soak;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for the RemoteDisplayTextureRenderThread, without sharing its code: waits for remote
+ * frames, draws the latest one with its own context and hands the texture back to the native
+ * renderer. Only the handshake with the presentation and the renderer is the one of the app. The
+ * GL calls of the real RD thread are checked by FramePresenterTest.
+ */
+final class SoakRenderThread extends Thread {
+
+    // RD threads started and not finished yet, over all sessions.
+    private static final AtomicInteger sLiveThreads = new AtomicInteger();
+
+    private final SoakPresentation mPresentation;
+
+    // Guarded by this.
+    private int mTextureId;
+    // Texture of the last frame drawn, held until the next one is picked up.
+    private int mDisplayedTextureId = -1;
+    private boolean mNewFrameAvailable;
+    private boolean mFinished;
+
+    SoakRenderThread(SoakPresentation presentation) {
+        super("SoakRenderThread");
+        mPresentation = presentation;
+        sLiveThreads.incrementAndGet();
+    }
+
+    static int getLiveThreads() {
+        return sLiveThreads.get();
+    }
+
+    synchronized void renderFrame(int textureId) {
+        if (mNewFrameAvailable && mTextureId != textureId) {
+            // Superseded before being drawn.
+            mPresentation.notifyRemoteFrameDone(mTextureId);
+        }
+        mTextureId = textureId;
+        mNewFrameAvailable = true;
+        notifyAll();
+    }
+
+    synchronized void finish() {
+        mFinished = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        int context = FakeGles.createContext();
+        FakeGles.makeCurrent(context);
+        try {
+            while (true) {
+                int textureId;
+                int releasedTextureId = -1;
+                synchronized (this) {
+                    while (!mNewFrameAvailable && !mFinished) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    if (mFinished) {
+                        return;
+                    }
+                    mNewFrameAvailable = false;
+                    textureId = mTextureId;
+                    if (textureId != mDisplayedTextureId) {
+                        releasedTextureId = mDisplayedTextureId;
+                        mDisplayedTextureId = textureId;
+                    }
+                }
+                if (releasedTextureId != -1) {
+                    mPresentation.notifyRemoteFrameDone(releasedTextureId);
+                }
+                FakeGles.drawTexture(textureId);
+                mPresentation.onFramePresented();
+            }
+        } catch (Throwable t) {
+            SoakHarness.reportError(getName(), t);
+        } finally {
+            synchronized (this) {
+                // Hands back what this thread holds, as the app does.
+                if (mDisplayedTextureId != -1) {
+                    mPresentation.notifyRemoteFrameDone(mDisplayedTextureId);
+                }
+                if (mNewFrameAvailable && mTextureId != mDisplayedTextureId) {
+                    mPresentation.notifyRemoteFrameDone(mTextureId);
+                }
+            }
+            FakeGles.makeCurrent(0);
+            FakeGles.destroyContext(context);
+            sLiveThreads.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.local;
+
+import com.example.castremotedisplay.ndk.utils.ShaderCompileService;
+
+/**
+ * Programs of the native renderer built by the {@link ShaderCompileService}. The native renderer
+ * draws without them until they are handed over by {@link #poll()}, called before every frame
+ * by whichever of the view and the headless driver renders.
+ */
+final class DeferredPrograms {
+
+    // Guarded by the class.
+    private static ShaderCompileService.ProgramFuture sCubeProgram;
+
+    private DeferredPrograms() {
+    }
+
+    /**
+     * Queues the programs the native renderer deferred in
+     * {@link NativeRenderer#initContext(boolean)}. A program of the previous share group not
+     * handed over yet is forgotten, it goes away with its share group.
+     */
+    static synchronized void request(ShaderCompileService service) {
+        sCubeProgram = service.compile("cube", NativeRenderer.getCubeShaderSource(false),
+                NativeRenderer.getCubeShaderSource(true), NativeRenderer.getCubeAttributes());
+    }
+
+    /**
+     * Hands the programs that are done over to the native renderer. Does not allocate.
+     */
+    static synchronized void poll() {
+        if (sCubeProgram != null && sCubeProgram.isDone()) {
+            NativeRenderer.setCubeProgram(sCubeProgram.getProgram());
+            sCubeProgram = null;
+        }
+    }
+}
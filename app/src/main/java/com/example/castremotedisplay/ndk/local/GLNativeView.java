@@ -18,11 +18,14 @@ package com.example.castremotedisplay.ndk.local;
 
 import android.content.Context;
 import android.graphics.PixelFormat;
+import android.opengl.EGL14;
 import android.opengl.GLSurfaceView;
 import android.util.AttributeSet;
 import android.util.Log;
 
 import com.example.castremotedisplay.ndk.utils.EglConfigChooser;
+import com.example.castremotedisplay.ndk.utils.GlContextManager;
+import com.example.castremotedisplay.ndk.utils.ShaderCompileService;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -32,10 +35,10 @@ import javax.microedition.khronos.opengles.GL10;
 
 /**
  * A simple GLSurfaceView sub-class that demonstrate how to perform
- * OpenGL ES 2.0 rendering into a GL Surface. Note the following important
+ * OpenGL ES 2.0 (3.0 where available) rendering into a GL Surface. Note the following important
  * details:
  *
- * - The class must use a custom context factory to enable 2.0 rendering.
+ * - The class must use a custom context factory to enable 2.0 or 3.0 rendering.
  *   See ContextFactory class definition below.
  *
  * - The class must use a custom EGLConfigChooser to be able to select
@@ -47,11 +50,19 @@ import javax.microedition.khronos.opengles.GL10;
  * - The class must select the surface's format, then choose an EGLConfig
  *   that matches it exactly (with regards to red/green/blue/alpha channels
  *   bit depths). Failure to do so would result in an EGL_BAD_MATCH error.
+ *
+ * - While the view is paused, rendering is handed over to a HeadlessRenderDriver
+ *   so the Remote Display keeps updating. Its context shares objects with the
+ *   view context, which is preserved on pause when the device allows it, so
+ *   nothing needs to be re-created when the view resumes.
  */
 public class GLNativeView extends GLSurfaceView {
     private static String TAG = "GLNativeView";
     private static final boolean DEBUG = false;
 
+    // Created on the GL thread along with each new view context. Null until then.
+    private volatile HeadlessRenderDriver mHeadlessDriver;
+
     public GLNativeView(Context context, AttributeSet attrs) {
         super(context, attrs);
         init(false, 0, 0);
@@ -79,10 +90,11 @@ public class GLNativeView extends GLSurfaceView {
             this.getHolder().setFormat(PixelFormat.TRANSLUCENT);
         }
 
-        /* Setup the context factory for 2.0 rendering.
+        /* Setup the context factory for 2.0 or 3.0 rendering.
          * See ContextFactory class definition below
          */
         setEGLContextFactory(new ContextFactory());
+        setPreserveEGLContextOnPause(true);
 
         /* We need to choose an EGLConfig that matches the format of
          * our surface exactly. This is going to be done in our
@@ -97,15 +109,63 @@ public class GLNativeView extends GLSurfaceView {
         });
 
         /* Set the renderer responsible for frame rendering */
-        setRenderer(new Renderer());
+        setRenderer(new Renderer(this));
+    }
+
+    /**
+     * Pauses the view and lets the headless driver render the Remote Display until
+     * {@link #onResume()}.
+     */
+    @Override
+    public void onPause() {
+        // Returns once the GL thread stopped rendering.
+        super.onPause();
+        HeadlessRenderDriver driver = mHeadlessDriver;
+        if (driver != null) {
+            driver.resume();
+        }
+    }
+
+    @Override
+    public void onResume() {
+        HeadlessRenderDriver driver = mHeadlessDriver;
+        if (driver != null) {
+            driver.pause();
+        }
+        super.onResume();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        HeadlessRenderDriver driver = mHeadlessDriver;
+        if (driver != null) {
+            driver.release();
+            mHeadlessDriver = null;
+        }
+        ShaderCompileService.release();
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Replaces the headless driver by one sharing the current context. Called on the GL thread
+     * whenever the view gets a new context.
+     */
+    private void createHeadlessDriver() {
+        HeadlessRenderDriver driver = mHeadlessDriver;
+        if (driver != null) {
+            driver.release();
+        }
+        driver = new HeadlessRenderDriver(EGL14.eglGetCurrentContext());
+        mHeadlessDriver = driver.start() ? driver : null;
     }
 
     private static class ContextFactory implements GLSurfaceView.EGLContextFactory {
-        private static int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
         public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig eglConfig) {
-            Log.w(TAG, "creating OpenGL ES 2.0 context");
+            // GLSurfaceView only takes EGL10 contexts, the version is the one every other
+            // context of the share group gets.
+            Log.w(TAG, "creating OpenGL ES " + GlContextManager.getGlesVersion() + " context");
             checkEglError("Before eglCreateContext", egl);
-            int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE };
+            int[] attrib_list = GlContextManager.getContextAttributes();
             EGLContext context = egl.eglCreateContext(display, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
             checkEglError("After eglCreateContext", egl);
             return context;
@@ -124,7 +184,14 @@ public class GLNativeView extends GLSurfaceView {
     }
 
     private static class Renderer implements GLSurfaceView.Renderer {
+        private final GLNativeView mView;
+
+        Renderer(GLNativeView view) {
+            mView = view;
+        }
+
         public void onDrawFrame(GL10 gl) {
+            DeferredPrograms.poll();
             NativeRenderer.renderFrame();
         }
 
@@ -133,7 +200,14 @@ public class GLNativeView extends GLSurfaceView {
         }
 
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-            // Do nothing.
+            // Only called for a new context, which does not hold any of our objects yet.
+            // Shaders of the native renderer build in the background, from the service of the
+            // share group of this context.
+            boolean compileService = ShaderCompileService.start(EGL14.eglGetCurrentContext());
+            if (NativeRenderer.initContext(compileService)) {
+                DeferredPrograms.request(ShaderCompileService.get());
+            }
+            mView.createHeadlessDriver();
         }
     }
 }
\ No newline at end of file
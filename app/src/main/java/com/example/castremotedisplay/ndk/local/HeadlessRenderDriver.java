@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.local;
+
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.example.castremotedisplay.ndk.utils.GlContextManager;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drives the native renderer while the {@link GLNativeView} is paused, so the Remote Display
+ * keeps updating when the local UI goes to the background. Only the remote frame is rendered,
+ * the local pass is skipped.
+ * <p>
+ * The driver owns an EGL context on a dedicated thread, sharing its objects with the view
+ * context. It has no window to render to: the context is made current without a surface if
+ * EGL_KHR_surfaceless_context is supported, on a 1x1 pbuffer otherwise. The context is created
+ * up front, while the view context is alive, and keeps the share group alive if the view loses
+ * its context when paused. Frames are paced by the {@link Choreographer} of the driver thread.
+ * </p>
+ */
+class HeadlessRenderDriver implements Choreographer.FrameCallback {
+    private static final String TAG = "HeadlessRenderDriver";
+
+    // How often to check for a Cast session while there is none, in milliseconds.
+    private static final long IDLE_POLL_INTERVAL_MS = 500;
+
+    private final EGLContext mShareContext;
+    private final HandlerThread mThread;
+    private Handler mHandler;
+
+    private GlContextManager.OffscreenContext mContext;
+
+    // Only accessed from the driver thread.
+    private boolean mRunning;
+
+    /**
+     * @param shareContext The context of the view. Objects of the native renderer are shared
+     *     with it.
+     */
+    HeadlessRenderDriver(EGLContext shareContext) {
+        mShareContext = shareContext;
+        mThread = new HandlerThread(TAG);
+    }
+
+    /**
+     * Starts the driver thread and creates its EGL context. Blocks until the context exists, so
+     * the share context must stay alive until this returns.
+     *
+     * @return {@code false} if the context could not be created, the driver is then unusable.
+     */
+    boolean start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        final boolean[] initialized = new boolean[1];
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                initialized[0] = initializeGL();
+            }
+        });
+        return initialized[0];
+    }
+
+    /**
+     * Takes over rendering from the view. The view must be paused and not render anymore.
+     */
+    void resume() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning || mContext == null) {
+                    return;
+                }
+                Log.d(TAG, "Taking over rendering");
+                mContext.makeCurrent();
+                NativeRenderer.headlessAttached();
+                mRunning = true;
+                Choreographer.getInstance().postFrameCallback(HeadlessRenderDriver.this);
+            }
+        });
+    }
+
+    /**
+     * Stops rendering. Blocks until the last frame is done, the view can render again when this
+     * returns.
+     */
+    void pause() {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning) {
+                    return;
+                }
+                Log.d(TAG, "Handing rendering back");
+                mRunning = false;
+                Choreographer.getInstance().removeFrameCallback(HeadlessRenderDriver.this);
+                NativeRenderer.headlessDetached();
+                // Get the pending commands out before the view uses the objects again
+                GLES20.glFinish();
+            }
+        });
+    }
+
+    /**
+     * Stops rendering, destroys the EGL context and terminates the driver thread.
+     */
+    void release() {
+        pause();
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                finishGL();
+            }
+        });
+        mThread.quit();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        DeferredPrograms.poll();
+        if (NativeRenderer.renderRemoteFrame()) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            // Not casting, there is nothing to render until a session starts.
+            Choreographer.getInstance().postFrameCallbackDelayed(this, IDLE_POLL_INTERVAL_MS);
+        }
+    }
+
+    private void runAndWait(final Runnable runnable) {
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean initializeGL() {
+        mContext = GlContextManager.createOffscreenContext(mShareContext);
+        if (mContext == null) {
+            Log.e(TAG, "Initialization failed. Could not create EGL context.");
+            return false;
+        }
+        Log.d(TAG, "Created headless context, "
+                + (mContext.isSurfaceless() ? "surfaceless" : "pbuffer"));
+        return true;
+    }
+
+    private void finishGL() {
+        if (mContext != null) {
+            mContext.release();
+            mContext = null;
+        }
+    }
+}
@@ -31,7 +31,9 @@ import android.view.WindowManager;
 import android.widget.Toast;
 
 import com.example.castremotedisplay.ndk.R;
+import com.example.castremotedisplay.ndk.remote.RemoteDisplayPresentation;
 import com.example.castremotedisplay.ndk.remote.RemoteDisplayService;
+import com.example.castremotedisplay.ndk.utils.FlightRecorder;
 import com.google.android.gms.cast.CastDevice;
 import com.google.android.gms.cast.CastMediaControlIntent;
 import com.google.android.gms.cast.CastRemoteDisplayLocalService;
@@ -45,6 +47,29 @@ public class LocalActivity extends AppCompatActivity {
 
     private static final String TAG = "LocalActivity";
 
+    /**
+     * Optional int extra selecting the number of cubes of the benchmark workload, e.g.
+     * {@code adb shell am start -n <component> --ei benchmark_cube_count 10000}
+     */
+    public static final String EXTRA_BENCHMARK_CUBE_COUNT = "benchmark_cube_count";
+
+    /**
+     * Optional string extra selecting how remote frames are presented, {@code texture_view} (the
+     * default) or {@code surface_view}, e.g.
+     * {@code adb shell am start -n <component> --es presentation_backend surface_view}
+     */
+    public static final String EXTRA_PRESENTATION_BACKEND = "presentation_backend";
+
+    /**
+     * Optional boolean extra enabling the latency probe of the remote frames, e.g.
+     * {@code adb shell am start -n <component> --ez latency_probe true}. Run it once with each
+     * presentation backend to compare them.
+     */
+    public static final String EXTRA_LATENCY_PROBE = "latency_probe";
+
+    private static final String PRESENTATION_BACKEND_SURFACE_VIEW = "surface_view";
+
+    private GLNativeView mGLView;
     private MediaRouter mMediaRouter;
     private MediaRouteSelector mMediaRouteSelector;
     private MediaRouter.Callback mMediaRouterCallback = new MediaRouter.Callback() {
@@ -107,7 +132,18 @@ public class LocalActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // Before anything renders, so the whole session is recorded.
+        FlightRecorder.open(this);
+        NativeRenderer.setBenchmarkCubeCount(
+                getIntent().getIntExtra(EXTRA_BENCHMARK_CUBE_COUNT, 0));
+        RemoteDisplayService.setPresentationBackend(PRESENTATION_BACKEND_SURFACE_VIEW.equals(
+                getIntent().getStringExtra(EXTRA_PRESENTATION_BACKEND))
+                ? RemoteDisplayPresentation.BACKEND_SURFACE_VIEW
+                : RemoteDisplayPresentation.BACKEND_TEXTURE_VIEW);
+        RemoteDisplayService.setLatencyProbeEnabled(
+                getIntent().getBooleanExtra(EXTRA_LATENCY_PROBE, false));
         setContentView(R.layout.activity_local);
+        mGLView = (GLNativeView) findViewById(R.id.glSurfaceView);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
         mMediaRouter = MediaRouter.getInstance(getApplicationContext());
@@ -125,6 +161,19 @@ public class LocalActivity extends AppCompatActivity {
                 MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mGLView.onResume();
+    }
+
+    @Override
+    protected void onPause() {
+        // The Remote Display keeps being rendered while the activity is in the background
+        mGLView.onPause();
+        super.onPause();
+    }
+
     @Override
     protected void onStop() {
         // End media router discovery
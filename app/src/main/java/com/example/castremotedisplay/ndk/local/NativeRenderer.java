@@ -28,7 +28,39 @@ public class NativeRenderer {
     }
 
     /**
-     * Initialize native renderer
+     * Load the shaders and geometry of the native renderer. Must be called whenever the view
+     * gets a new EGL context
+     *
+     * @param deferShaders whether to leave the cube program to {@link #setCubeProgram(int)}
+     *         instead of compiling it now. The cube is not drawn until then
+     * @return whether the cube program was deferred, it is not with the benchmark workload
+     */
+    public static native boolean initContext(boolean deferShaders);
+
+    /**
+     * Returns a shader source of the cube program
+     *
+     * @param fragment whether to return the fragment shader, the vertex shader otherwise
+     */
+    public static native String getCubeShaderSource(boolean fragment);
+
+    /**
+     * Returns the attribute names of the cube program, each must be bound to the location of
+     * its index before linking
+     */
+    public static native String[] getCubeAttributes();
+
+    /**
+     * Hands over the cube program, built from another context of the share group. Must be
+     * called from the thread rendering frames
+     *
+     * @param program the linked program, 0 if it failed to build: it is then built on the
+     *         calling thread
+     */
+    public static native void setCubeProgram(int program);
+
+    /**
+     * Initialize native renderer for the current view size
      *
      * @param width the current view width
      * @param height the current view height
@@ -40,6 +72,26 @@ public class NativeRenderer {
      */
     public static native void renderFrame();
 
+    /**
+     * Renders the Remote Display frame only, skipping the local pass. Used by the headless
+     * driver while the local view is not visible
+     *
+     * @return whether a Cast session is running
+     */
+    public static native boolean renderRemoteFrame();
+
+    /**
+     * Signal that frames are now rendered from the headless driver context, which must share
+     * its objects with the view context and be current on the calling thread
+     */
+    public static native void headlessAttached();
+
+    /**
+     * Signal that the headless driver stops rendering. Must be called with the headless driver
+     * context still current
+     */
+    public static native void headlessDetached();
+
     /**
      * Signal the start of a Cast session
      *
@@ -64,4 +116,33 @@ public class NativeRenderer {
      * @param textureId the textureId that is done rendering
      */
     public static native void notifyRemoteFrameDone(int textureId);
-}
\ No newline at end of file
+
+    /**
+     * Enable or disable stamping remote frames with their frame ID watermark, used to measure
+     * produce-to-present latency on the Remote Display render thread
+     *
+     * @param enabled whether remote frames should carry the watermark
+     */
+    public static native void setLatencyProbeEnabled(boolean enabled);
+
+    /**
+     * Read RGBA pixels of the current framebuffer into the pixel pack buffer bound on the
+     * calling thread's context, at offset 0. Can be called from any thread with a current
+     * OpenGL ES 3 context
+     *
+     * @param x the left of the rectangle to read
+     * @param y the bottom of the rectangle to read
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     */
+    public static native void readPixelsToPackBuffer(int x, int y, int width, int height);
+
+    /**
+     * Replace the single cube scene by the benchmark workload. Takes effect the next time
+     * the renderer is initialized
+     *
+     * @param cubeCount the number of animated cubes to render, between 1 and 100000, or 0 to
+     *         render the regular scene
+     */
+    public static native void setBenchmarkCubeCount(int cubeCount);
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.view.Surface;
+
+/**
+ * A video or camera feed shown on the remote display above the scene. The producer, e.g. a
+ * MediaPlayer, MediaCodec or camera, renders into the {@link Surface} handed to the
+ * {@link Callback}. Its frames are sampled as GL_TEXTURE_EXTERNAL_OES straight from the
+ * SurfaceTexture behind it by the RD thread, in the same pass as the scene: nothing is copied.
+ * Every new frame of the feed wakes the RD thread up to present it.
+ * <p>
+ * The surface only lives as long as the RD thread, i.e. the Cast session: a new one is handed
+ * over for every session. External layers are opaque, drawn in the order they were added, below
+ * the {@link OverlayLayer}s.
+ * </p>
+ */
+public class ExternalLayer extends RemoteLayer {
+
+    /**
+     * Notified on the RD thread.
+     */
+    public interface Callback {
+        /**
+         * The producer can start rendering into surface.
+         */
+        void onSurfaceCreated(ExternalLayer layer, Surface surface);
+
+        /**
+         * The producer must stop rendering into the surface, it is released when this returns.
+         */
+        void onSurfaceDestroyed(ExternalLayer layer);
+    }
+
+    private final int mBufferWidth;
+    private final int mBufferHeight;
+    private final Callback mCallback;
+
+    // Everything below is only used on the RD thread, while attached.
+    private int mTextureId;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mSurface;
+    private final float[] mTexMatrix = new float[16];
+
+    // Set when the producer queued a frame, cleared once it was latched.
+    private volatile boolean mFrameAvailable;
+
+    private final SurfaceTexture.OnFrameAvailableListener mFrameAvailableListener =
+            new SurfaceTexture.OnFrameAvailableListener() {
+                @Override
+                public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                    mFrameAvailable = true;
+                    notifyChanged();
+                }
+            };
+
+    /**
+     * @param bufferWidth the width of the frames the producer renders
+     * @param bufferHeight the height of the frames the producer renders
+     * @param callback notified when the surface to render into comes and goes
+     */
+    public ExternalLayer(int bufferWidth, int bufferHeight, Callback callback) {
+        mBufferWidth = bufferWidth;
+        mBufferHeight = bufferHeight;
+        mCallback = callback;
+    }
+
+    @Override
+    void onAttach() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mTextureId = textures[0];
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+
+        mFrameAvailable = false;
+        mSurfaceTexture = new SurfaceTexture(mTextureId);
+        mSurfaceTexture.setDefaultBufferSize(mBufferWidth, mBufferHeight);
+        // Without a Looper on the RD thread, the callback comes on the main thread.
+        mSurfaceTexture.setOnFrameAvailableListener(mFrameAvailableListener);
+        mSurface = new Surface(mSurfaceTexture);
+        mCallback.onSurfaceCreated(this, mSurface);
+    }
+
+    @Override
+    void onDetach() {
+        mCallback.onSurfaceDestroyed(this);
+        mSurface.release();
+        mSurface = null;
+        mSurfaceTexture.release();
+        mSurfaceTexture = null;
+        GLES20.glDeleteTextures(1, new int[] {mTextureId}, 0);
+        mTextureId = 0;
+    }
+
+    @Override
+    boolean latchContent() {
+        if (!mFrameAvailable) {
+            return false;
+        }
+        mFrameAvailable = false;
+        mSurfaceTexture.updateTexImage();
+        mSurfaceTexture.getTransformMatrix(mTexMatrix);
+        return true;
+    }
+
+    int getTextureId() {
+        return mTextureId;
+    }
+
+    float[] getTexMatrix() {
+        return mTexMatrix;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+/**
+ * Computes vsync-aligned presentation times for the frames handed to the Remote Display render
+ * thread and keeps track of how evenly they get presented.
+ * <p>
+ * The vsync grid is anchored on the first presented frame since the remote (virtual) display does
+ * not expose its vsync phase. This class has no Android or GL dependencies and takes its time
+ * from a {@link Clock}, so it can be driven by a fake clock.
+ * </p>
+ * <p>
+ * The presentation times are only applied in the paced {@link PresentMode}s, FIFO by default.
+ * In the others the pacer only measures how evenly frames are presented.
+ * </p>
+ */
+class FramePacer {
+
+    /**
+     * Source of monotonic time, in nanoseconds. Must share its time base with the frame
+     * timestamps passed to {@link #computePresentationTime(long)}.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    /** Clock using {@link System#nanoTime()}, i.e. CLOCK_MONOTONIC on Android. */
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final float DEFAULT_REFRESH_RATE = 60.0f;
+
+    private final Clock mClock;
+    private final long mRefreshPeriodNanos;
+
+    // Time of a vsync on the grid used to align presentation times. -1 until the first frame.
+    private long mVsyncAnchorNanos = -1;
+    // The presentation time returned for the previous frame.
+    private long mLastPresentationTimeNanos = -1;
+    // The time at which the previous frame was handed to the compositor.
+    private long mLastPresentedNanos = -1;
+
+    // Statistics, reset by #resetStats().
+    private int mPresentedIntervals;
+    private long mJitterSumNanos;
+    private long mMaxJitterNanos;
+    private int mSkippedVsyncs;
+
+    /**
+     * @param clock The clock used to read the current time.
+     * @param refreshRate The refresh rate of the remote display in Hz, as reported by
+     *         {@link android.view.Display#getRefreshRate()}. Falls back to 60Hz if not positive.
+     */
+    FramePacer(Clock clock, float refreshRate) {
+        mClock = clock;
+        if (refreshRate <= 0.0f) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        mRefreshPeriodNanos = (long) (NANOS_PER_SECOND / refreshRate);
+    }
+
+    long getRefreshPeriodNanos() {
+        return mRefreshPeriodNanos;
+    }
+
+    /**
+     * Returns the time at which the frame produced at {@code frameTimeNanos} should be shown: the
+     * first vsync not earlier than both its production time and now, and strictly after the
+     * previous frame's presentation time so frames never share a vsync.
+     */
+    long computePresentationTime(long frameTimeNanos) {
+        long now = mClock.nanoTime();
+        if (mVsyncAnchorNanos < 0) {
+            mVsyncAnchorNanos = now;
+        }
+
+        long presentationTime = alignToVsync(Math.max(frameTimeNanos, now));
+        if (mLastPresentationTimeNanos >= 0 && presentationTime <= mLastPresentationTimeNanos) {
+            presentationTime = mLastPresentationTimeNanos + mRefreshPeriodNanos;
+        }
+        mLastPresentationTimeNanos = presentationTime;
+        return presentationTime;
+    }
+
+    /**
+     * Records that a frame was just handed to the compositor. The distance between two
+     * consecutive presents is compared against the nearest multiple of the refresh period: the
+     * difference is the jitter, and every extra period is a skipped vsync.
+     */
+    void onFramePresented() {
+        long now = mClock.nanoTime();
+        if (mLastPresentedNanos >= 0) {
+            long interval = now - mLastPresentedNanos;
+            long periods = (interval + mRefreshPeriodNanos / 2) / mRefreshPeriodNanos;
+            long jitter = Math.abs(interval - periods * mRefreshPeriodNanos);
+
+            mPresentedIntervals++;
+            mJitterSumNanos += jitter;
+            if (jitter > mMaxJitterNanos) {
+                mMaxJitterNanos = jitter;
+            }
+            if (periods > 1) {
+                mSkippedVsyncs += (int) (periods - 1);
+            }
+        }
+        mLastPresentedNanos = now;
+    }
+
+    int getPresentedIntervals() {
+        return mPresentedIntervals;
+    }
+
+    long getMeanJitterNanos() {
+        return mPresentedIntervals == 0 ? 0 : mJitterSumNanos / mPresentedIntervals;
+    }
+
+    long getMaxJitterNanos() {
+        return mMaxJitterNanos;
+    }
+
+    int getSkippedVsyncs() {
+        return mSkippedVsyncs;
+    }
+
+    /**
+     * Clears the jitter statistics. The vsync grid and the last presentation time are kept.
+     */
+    void resetStats() {
+        mPresentedIntervals = 0;
+        mJitterSumNanos = 0;
+        mMaxJitterNanos = 0;
+        mSkippedVsyncs = 0;
+    }
+
+    private long alignToVsync(long timeNanos) {
+        long sinceAnchor = timeNanos - mVsyncAnchorNanos;
+        if (sinceAnchor <= 0) {
+            return mVsyncAnchorNanos;
+        }
+        long periods = (sinceAnchor + mRefreshPeriodNanos - 1) / mRefreshPeriodNanos;
+        return mVsyncAnchorNanos + periods * mRefreshPeriodNanos;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.example.castremotedisplay.ndk.utils.RenderTrace;
+
+/**
+ * Draws the frames of the native renderer to the remote surface and swaps them, the part of the
+ * RD thread loop issuing GL and EGL calls for every frame. All of them go through a
+ * {@link PresentTarget}. A frame is presented with {@link #beginFrame(int[])}, the layers drawn
+ * by the caller, {@link #endFrame()} and {@link #swap(long, boolean, int)}.
+ * <p>
+ * Each texture of the native renderer gets a slot the first time it shows up: a texture unit it
+ * stays bound to, with its sampling parameters. Drawing another frame then only points the
+ * filter program at the unit of its slot. GL errors stick until read and are checked once per
+ * frame, after the swap. EGL errors are only read when a call fails.
+ * </p>
+ * <p>
+ * Only used from the RD thread, with the context current. Nothing is allocated per frame.
+ * </p>
+ */
+class FramePresenter {
+
+    /**
+     * Told about the errors of the presents.
+     */
+    interface ErrorListener {
+        void onGlError(int error, String operation);
+
+        void onEglError(int error, String operation);
+    }
+
+    // Texture unit of the first frame slot, the others follow. Unit 0 stays the active one,
+    // layers are bound to unit 1.
+    static final int FIRST_SLOT_TEXTURE_UNIT = 2;
+    // As many as the native renderer has targets, RD_TARGET_COUNT in FramePipeline.cpp.
+    static final int MAX_FRAME_SLOTS = 3;
+
+    // The quad covers the whole surface, the previous content never needs to be loaded.
+    private static final int[] INVALIDATE_ATTACHMENTS_BEFORE_DRAW = new int[] {
+            GLES30.GL_COLOR, GLES30.GL_DEPTH
+    };
+    // The window surface depth buffer is never used, it does not need to be stored either.
+    private static final int[] INVALIDATE_ATTACHMENTS_AFTER_DRAW = new int[] {
+            GLES30.GL_DEPTH
+    };
+
+    // Log strings. Cached here to avoid garbage collection problems.
+    private static final String LOG_PRESENT = "present";
+    private static final String LOG_PRESENTATION_TIME = "presentation time";
+    private static final String LOG_SWAP_BUFFERS = "swap buffers";
+
+    // Trace section names.
+    private static final String TRACE_DRAW = "RD draw";
+    private static final String TRACE_SWAP = "RD swap";
+
+    private final PresentTarget mTarget;
+    private final SurfaceDamage mSurfaceDamage;
+    private final boolean mInvalidateFramebuffer;
+    private final boolean mLetterboxed;
+    private final FramePacer.Clock mClock;
+    private final ErrorListener mErrorListener;
+
+    // Texture held by each slot, 0 for a free slot. A slot keeps its texture bound to the unit
+    // FIRST_SLOT_TEXTURE_UNIT + its index. The textures live as long as the session, and so
+    // does the RD thread.
+    private final int[] mSlotTextureIds = new int[MAX_FRAME_SLOTS];
+    // Slot given to the next texture that shows up, the oldest once all are taken.
+    private int mNextSlot;
+    // Location of the sampler of the filter program, and the texture unit it samples: the one of
+    // the slot of the frame drawn.
+    private int mSamplerLocation = -1;
+    private int mSamplerUnit = FIRST_SLOT_TEXTURE_UNIT;
+    // Whether a frame was selected, nothing is drawn before.
+    private boolean mHasFrame;
+
+    // Whether the frame being drawn covers the surface, see SurfaceDamage#isFullRedraw().
+    private boolean mFullRedraw;
+    private long mLastSwapTimeNanos;
+
+    /**
+     * @param target the context and surface to present to
+     * @param surfaceDamage tracks the damage of the frames presented to the target
+     * @param invalidateFramebuffer whether glInvalidateFramebuffer is available
+     * @param letterboxed whether the frames leave bars around them on the surface
+     * @param clock times the swaps
+     * @param errorListener told about GL and EGL errors
+     */
+    FramePresenter(PresentTarget target, SurfaceDamage surfaceDamage,
+                   boolean invalidateFramebuffer, boolean letterboxed, FramePacer.Clock clock,
+                   ErrorListener errorListener) {
+        mTarget = target;
+        mSurfaceDamage = surfaceDamage;
+        mInvalidateFramebuffer = invalidateFramebuffer;
+        mLetterboxed = letterboxed;
+        mClock = clock;
+        mErrorListener = errorListener;
+    }
+
+    /**
+     * Points the sampler of a newly used filter program at the unit of the current frame. The
+     * program must be in use.
+     */
+    void setSamplerLocation(int location) {
+        mSamplerLocation = location;
+        mTarget.uniform1i(mSamplerLocation, mSamplerUnit);
+    }
+
+    /**
+     * Makes the given texture the one drawn. The first time a texture shows up it takes a slot:
+     * it is bound to the unit of the slot with linear sampling and no mipmaps, and stays so.
+     * Afterwards this is a single uniform, or nothing if the frame is in the same slot.
+     * @param textureId The handler of the texture to sample. Must be accessible in the current
+     *         eglContext.
+     */
+    void selectFrameTexture(int textureId) {
+        int slot = 0;
+        while (slot < MAX_FRAME_SLOTS && mSlotTextureIds[slot] != textureId) {
+            slot++;
+        }
+        if (slot == MAX_FRAME_SLOTS) {
+            slot = mNextSlot;
+            mNextSlot = (mNextSlot + 1) % MAX_FRAME_SLOTS;
+            prepareSlot(slot, textureId);
+        }
+        int unit = FIRST_SLOT_TEXTURE_UNIT + slot;
+        if (unit != mSamplerUnit) {
+            mTarget.uniform1i(mSamplerLocation, unit);
+            mSamplerUnit = unit;
+        }
+        mHasFrame = true;
+    }
+
+    /**
+     * Binds a texture to the texture unit of a slot and sets its sampling parameters, once for
+     * the life of the thread.
+     */
+    private void prepareSlot(int slot, int textureId) {
+        mSlotTextureIds[slot] = textureId;
+        mTarget.activeTexture(GLES20.GL_TEXTURE0 + FIRST_SLOT_TEXTURE_UNIT + slot);
+        mTarget.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+
+        mTarget.texParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mTarget.texParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+
+        mTarget.texParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        mTarget.texParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        mTarget.activeTexture(GLES20.GL_TEXTURE0);
+    }
+
+    /**
+     * Starts a frame and draws the selected frame texture over the part of the surface that
+     * needs it. The caller may draw more, e.g. layers, until {@link #endFrame()}.
+     *
+     * @param frameDamage the rectangle of the frame that changed since the previous present
+     */
+    void beginFrame(int[] frameDamage) {
+        RenderTrace.begin(TRACE_DRAW);
+        int[] redraw = mSurfaceDamage.beginFrame(frameDamage);
+        mFullRedraw = mSurfaceDamage.isFullRedraw();
+        if (!mFullRedraw) {
+            // The rest of the back buffer is up to date, keep it and only draw the redraw
+            // rectangle.
+            mTarget.enable(GLES20.GL_SCISSOR_TEST);
+            mTarget.scissor(redraw[0], redraw[1], redraw[2], redraw[3]);
+        } else if (mInvalidateFramebuffer && !mLetterboxed && mHasFrame) {
+            // Skip the clear, the opaque quad overdraws every pixel.
+            mTarget.invalidateFramebuffer(
+                    GLES20.GL_FRAMEBUFFER, INVALIDATE_ATTACHMENTS_BEFORE_DRAW);
+        } else {
+            // Without invalidation the clear is what tells tilers not to load the previous
+            // frame, keep it. It also draws the letterbox bars, and the background before the
+            // first frame.
+            mTarget.clear(GLES20.GL_COLOR_BUFFER_BIT);
+        }
+        if (!mHasFrame) {
+            return;
+        }
+        // Draw the quad. Its vertex attributes are set up once by the RD thread.
+        // 4 vertices with no offset.
+        mTarget.drawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    /**
+     * Ends the drawing started by {@link #beginFrame(int[])}.
+     */
+    void endFrame() {
+        if (!mFullRedraw) {
+            mTarget.disable(GLES20.GL_SCISSOR_TEST);
+        }
+        if (mInvalidateFramebuffer) {
+            mTarget.invalidateFramebuffer(
+                    GLES20.GL_FRAMEBUFFER, INVALIDATE_ATTACHMENTS_AFTER_DRAW);
+        }
+        RenderTrace.end();
+    }
+
+    /**
+     * Swaps the frame drawn, then checks the GL errors of the whole frame.
+     *
+     * @param presentationTimeNanos when the compositor should show the frame, negative to show
+     *         it as soon as possible
+     * @param newFrame whether a new frame of the native renderer was drawn, rather than the
+     *         previous one again. Ends its trace flow.
+     * @param frameId the ID of the frame drawn
+     * @return whether the swap succeeded
+     */
+    boolean swap(long presentationTimeNanos, boolean newFrame, int frameId) {
+        RenderTrace.begin(TRACE_SWAP);
+        if (presentationTimeNanos >= 0 && !mTarget.setPresentationTime(presentationTimeNanos)) {
+            reportEglError(LOG_PRESENTATION_TIME);
+        }
+        long swapStart = mClock.nanoTime();
+        boolean swapped = mSurfaceDamage.swapBuffers();
+        mLastSwapTimeNanos = mClock.nanoTime() - swapStart;
+        if (!swapped) {
+            reportEglError(LOG_SWAP_BUFFERS);
+        }
+        int error = mTarget.getError();
+        if (error != GLES20.GL_NO_ERROR) {
+            mErrorListener.onGlError(error, LOG_PRESENT);
+        }
+        RenderTrace.end();
+        if (newFrame) {
+            RenderTrace.endAsync(RenderTrace.REMOTE_FRAME_FLOW, frameId);
+        }
+        return swapped;
+    }
+
+    /**
+     * Time spent blocked in the last swap.
+     */
+    long getLastSwapTimeNanos() {
+        return mLastSwapTimeNanos;
+    }
+
+    private void reportEglError(String operation) {
+        int error = mTarget.getEglError();
+        if (error != EGL14.EGL_SUCCESS) {
+            mErrorListener.onEglError(error, operation);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the frame ID watermark the native renderer stamps into the bottom-left corner of each
+ * remote frame when the latency probe is enabled. Each bit of the ID is a square block of
+ * BLOCK_SIZE pixels, white for 1 and black for 0, starting with the least significant bit at
+ * x = 0. Must be kept in sync with WATERMARK_* in FramePipeline.cpp.
+ * <p>
+ * Decoding only needs the middle row of the strip, read back as RGBA bytes. The RD thread draws
+ * the frames letterboxed and scaled to the surface, so the row is read from where it lands there,
+ * see {@link #mapReadbackRow(int, int, int[], int[])}.
+ * </p>
+ */
+final class FrameWatermark {
+
+    static final int BITS = 16;
+    static final int BLOCK_SIZE = 8;
+    static final int ID_MASK = (1 << BITS) - 1;
+
+    /** Width, in pixels, of the row to read back. */
+    static final int READBACK_WIDTH = BITS * BLOCK_SIZE;
+    /** Row, from the bottom of the frame, to read back. */
+    static final int READBACK_Y = BLOCK_SIZE / 2;
+    /** Size in bytes of a readback row in RGBA / unsigned byte format. */
+    static final int READBACK_BYTES = READBACK_WIDTH * 4;
+
+    // Channels above this value are treated as a set bit. Tolerates RGB565 and filtering.
+    private static final int THRESHOLD = 127;
+
+    private FrameWatermark() {
+    }
+
+    /**
+     * Computes where the readback row of the frames lands on a surface they are drawn to scaled
+     * to {@code viewport}, see {@link UpscaleFilter#computeViewport}.
+     *
+     * @param viewport x, y, width and height of the frames on the surface
+     * @param rect receives the x, y and width of the row of the surface to read back
+     */
+    static void mapReadbackRow(int frameWidth, int frameHeight, int[] viewport, int[] rect) {
+        rect[0] = viewport[0];
+        rect[1] = viewport[1] + mapCenter(READBACK_Y, frameHeight, viewport[3]);
+        rect[2] = mapCenter(READBACK_WIDTH - 1, frameWidth, viewport[2]) + 1;
+    }
+
+    /**
+     * Returns the column, from the left of the row given by
+     * {@link #mapReadbackRow(int, int, int[], int[])}, showing the center of pixel {@code x} of
+     * the readback row.
+     */
+    static int mapColumn(int x, int frameWidth, int[] viewport) {
+        return mapCenter(x, frameWidth, viewport[2]);
+    }
+
+    // Surface pixel, from the edge of the viewport, covering the center of a frame pixel. Frames
+    // too small for the watermark are clamped to the viewport.
+    private static int mapCenter(int pixel, int frameSize, int viewportSize) {
+        long center = ((2L * pixel + 1) * viewportSize) / (2L * frameSize);
+        return (int) Math.min(center, viewportSize - 1);
+    }
+
+    /**
+     * Decodes the frame ID from a row read back at READBACK_Y. Samples the green channel at the
+     * center of each block.
+     */
+    static int decode(ByteBuffer row) {
+        int id = 0;
+        for (int bit = 0; bit < BITS; bit++) {
+            int x = bit * BLOCK_SIZE + BLOCK_SIZE / 2;
+            int green = row.get(row.position() + x * 4 + 1) & 0xff;
+            if (green > THRESHOLD) {
+                id |= 1 << bit;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Writes the row a renderer would produce for {@code frameId}. Used by software stand-ins of
+     * the GL readback.
+     */
+    static void encode(int frameId, ByteBuffer row) {
+        int base = row.position();
+        for (int x = 0; x < READBACK_WIDTH; x++) {
+            byte value = ((frameId >> (x / BLOCK_SIZE)) & 1) != 0 ? (byte) 0xff : 0;
+            row.put(base + x * 4, value);
+            row.put(base + x * 4 + 1, value);
+            row.put(base + x * 4 + 2, value);
+            row.put(base + x * 4 + 3, (byte) 0xff);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+import android.opengl.EGL14;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.example.castremotedisplay.ndk.utils.GlContextManager;
+
+/**
+ * {@link PresentTarget} on the current GL context and a window surface. The SDK has no binding
+ * for EGL_KHR_partial_update and EGL_KHR_swap_buffers_with_damage, those go through JNI (see
+ * SurfaceDamage.cpp) with the native handles of the display and surface.
+ * <p>
+ * Must be used from the thread the surface is current on.
+ * </p>
+ */
+class GlesPresentTarget implements PresentTarget {
+
+    static {
+        System.loadLibrary("native");
+    }
+
+    // EGL_BUFFER_AGE_EXT, same value as EGL_BUFFER_AGE_KHR.
+    private static final int EGL_BUFFER_AGE = 0x313D;
+
+    private final EGLDisplay mDisplay;
+    private final EGLSurface mSurface;
+    // The same display and surface, as handed to the native damage calls.
+    private final long mNativeDisplay;
+    private final long mNativeSurface;
+    private final int[] mQueryResult = new int[1];
+
+    /**
+     * The surface must be current on the calling thread.
+     */
+    GlesPresentTarget(EGLDisplay display, EGLSurface surface) {
+        mDisplay = display;
+        mSurface = surface;
+        mNativeDisplay = nativeGetCurrentDisplay();
+        mNativeSurface = nativeGetCurrentSurface();
+    }
+
+    @Override
+    public void activeTexture(int texture) {
+        GLES20.glActiveTexture(texture);
+    }
+
+    @Override
+    public void bindTexture(int target, int texture) {
+        GLES20.glBindTexture(target, texture);
+    }
+
+    @Override
+    public void texParameteri(int target, int pname, int param) {
+        GLES20.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public void uniform1i(int location, int x) {
+        GLES20.glUniform1i(location, x);
+    }
+
+    @Override
+    public void enable(int cap) {
+        GLES20.glEnable(cap);
+    }
+
+    @Override
+    public void disable(int cap) {
+        GLES20.glDisable(cap);
+    }
+
+    @Override
+    public void scissor(int x, int y, int width, int height) {
+        GLES20.glScissor(x, y, width, height);
+    }
+
+    @Override
+    public void clear(int mask) {
+        GLES20.glClear(mask);
+    }
+
+    @Override
+    public void drawArrays(int mode, int first, int count) {
+        GLES20.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void invalidateFramebuffer(int target, int[] attachments) {
+        GLES30.glInvalidateFramebuffer(target, attachments.length, attachments, 0);
+    }
+
+    @Override
+    public int getError() {
+        return GLES20.glGetError();
+    }
+
+    @Override
+    public int getSurfaceWidth() {
+        return querySurface(EGL14.EGL_WIDTH);
+    }
+
+    @Override
+    public int getSurfaceHeight() {
+        return querySurface(EGL14.EGL_HEIGHT);
+    }
+
+    @Override
+    public int getDamageFeatures() {
+        int features = 0;
+        if (GlContextManager.hasCapability(GlContextManager.CAPABILITY_PARTIAL_UPDATE)) {
+            features |= SurfaceDamage.FEATURE_PARTIAL_UPDATE;
+        }
+        if (GlContextManager.hasCapability(GlContextManager.CAPABILITY_SWAP_WITH_DAMAGE)) {
+            features |= SurfaceDamage.FEATURE_SWAP_WITH_DAMAGE;
+        }
+        if (GlContextManager.hasCapability(GlContextManager.CAPABILITY_BUFFER_AGE)) {
+            features |= SurfaceDamage.FEATURE_BUFFER_AGE;
+        }
+        return features;
+    }
+
+    @Override
+    public int getBufferAge() {
+        return querySurface(EGL_BUFFER_AGE);
+    }
+
+    @Override
+    public boolean setDamageRegion(int[] rect) {
+        return nativeSetDamageRegion(mNativeDisplay, mNativeSurface, rect);
+    }
+
+    @Override
+    public boolean setPresentationTime(long presentationTimeNanos) {
+        return EGLExt.eglPresentationTimeANDROID(mDisplay, mSurface, presentationTimeNanos);
+    }
+
+    @Override
+    public boolean swapBuffers() {
+        return EGL14.eglSwapBuffers(mDisplay, mSurface);
+    }
+
+    @Override
+    public boolean swapBuffersWithDamage(int[] rect) {
+        return nativeSwapBuffersWithDamage(mNativeDisplay, mNativeSurface, rect);
+    }
+
+    @Override
+    public int getEglError() {
+        return EGL14.eglGetError();
+    }
+
+    // Returns 0 if the query failed.
+    private int querySurface(int attribute) {
+        if (!EGL14.eglQuerySurface(mDisplay, mSurface, attribute, mQueryResult, 0)) {
+            return 0;
+        }
+        return mQueryResult[0];
+    }
+
+    private static native long nativeGetCurrentDisplay();
+
+    private static native long nativeGetCurrentSurface();
+
+    private static native boolean nativeSetDamageRegion(long display, long surface, int[] rect);
+
+    private static native boolean nativeSwapBuffersWithDamage(long display, long surface,
+                                                              int[] rect);
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.example.castremotedisplay.ndk.local.NativeRenderer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link WatermarkReadback} on the current GL context. On OpenGL ES 3 the row is read into a pair
+ * of pixel buffer objects and mapped one frame later, so the read does not stall the pipeline.
+ * On OpenGL ES 2 it falls back to a synchronous glReadPixels.
+ * <p>
+ * The row is read where the frames are drawn on the surface, then sampled back to frame pixels.
+ * </p>
+ */
+class GlesWatermarkReadback implements WatermarkReadback {
+
+    private static final int PBO_COUNT = 2;
+
+    private final boolean mUsePbo;
+    private final int[] mPbos = new int[PBO_COUNT];
+    // Row of the surface read back, its x, y and width.
+    private final int[] mSurfaceRect = new int[3];
+    private final int mSurfaceRowBytes;
+    // Byte offset in the surface row of each pixel of the readback row.
+    private final int[] mColumnOffsets = new int[FrameWatermark.READBACK_WIDTH];
+    // The surface row read synchronously, without PBOs.
+    private final ByteBuffer mSurfaceRow;
+    private final ByteBuffer mRow;
+
+    // Index of the PBO the next readback goes into, and number of started readbacks not polled.
+    private int mNextPbo;
+    private int mPending;
+
+    /**
+     * Must be called on the thread owning the GL context the readbacks happen on.
+     *
+     * @param usePbo whether the current context supports pixel buffer objects, which need
+     *         OpenGL ES 3
+     * @param frameWidth the width of the frames drawn
+     * @param frameHeight the height of the frames drawn
+     * @param viewport x, y, width and height of the frames on the surface
+     */
+    GlesWatermarkReadback(boolean usePbo, int frameWidth, int frameHeight, int[] viewport) {
+        mUsePbo = usePbo;
+        FrameWatermark.mapReadbackRow(frameWidth, frameHeight, viewport, mSurfaceRect);
+        mSurfaceRowBytes = mSurfaceRect[2] * 4;
+        for (int x = 0; x < FrameWatermark.READBACK_WIDTH; x++) {
+            mColumnOffsets[x] = FrameWatermark.mapColumn(x, frameWidth, viewport) * 4;
+        }
+        mRow = ByteBuffer.allocate(FrameWatermark.READBACK_BYTES).order(ByteOrder.nativeOrder());
+        if (mUsePbo) {
+            mSurfaceRow = null;
+            createPbos();
+        } else {
+            mSurfaceRow = ByteBuffer.allocateDirect(mSurfaceRowBytes)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+
+    @Override
+    public boolean start() {
+        if (mUsePbo) {
+            return startAsync();
+        }
+        // The previous row is overwritten if it was not polled.
+        boolean discarded = mPending != 0;
+        mSurfaceRow.position(0);
+        GLES20.glReadPixels(mSurfaceRect[0], mSurfaceRect[1], mSurfaceRect[2], 1,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mSurfaceRow);
+        mPending = 1;
+        return discarded;
+    }
+
+    @Override
+    public int poll() {
+        if (mUsePbo) {
+            return pollAsync();
+        }
+        if (mPending == 0) {
+            return PENDING;
+        }
+        mPending = 0;
+        sampleRow(mSurfaceRow);
+        return READY;
+    }
+
+    @Override
+    public ByteBuffer getRow() {
+        mRow.position(0);
+        return mRow;
+    }
+
+    @Override
+    public void release() {
+        if (mUsePbo) {
+            GLES20.glDeleteBuffers(PBO_COUNT, mPbos, 0);
+        }
+    }
+
+    private void createPbos() {
+        GLES20.glGenBuffers(PBO_COUNT, mPbos, 0);
+        for (int pbo : mPbos) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mSurfaceRowBytes, null,
+                    GLES30.GL_STREAM_READ);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    private boolean startAsync() {
+        boolean discarded = mPending == PBO_COUNT;
+        if (discarded) {
+            // The consumer fell behind; drop the oldest readback.
+            mPending--;
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[mNextPbo]);
+        // The SDK has no binding for glReadPixels into a bound pack buffer, go through JNI.
+        NativeRenderer.readPixelsToPackBuffer(mSurfaceRect[0], mSurfaceRect[1], mSurfaceRect[2], 1);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mNextPbo = (mNextPbo + 1) % PBO_COUNT;
+        mPending++;
+        return discarded;
+    }
+
+    private int pollAsync() {
+        // Only map a readback once a newer one has been queued behind it, giving the GPU a frame
+        // to complete it.
+        if (mPending < PBO_COUNT) {
+            return PENDING;
+        }
+        int oldest = (mNextPbo + PBO_COUNT - mPending) % PBO_COUNT;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[oldest]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                mSurfaceRowBytes, GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            sampleRow(mapped.order(ByteOrder.nativeOrder()));
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mPending--;
+        return mapped != null ? READY : FAILED;
+    }
+
+    /**
+     * Samples the surface row read back at the center of each pixel of the readback row.
+     */
+    private void sampleRow(ByteBuffer surfaceRow) {
+        for (int x = 0; x < FrameWatermark.READBACK_WIDTH; x++) {
+            mRow.putInt(x * 4, surfaceRow.getInt(mColumnOffsets[x]));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+/**
+ * Measures the GPU time of a span of GL commands with EXT_disjoint_timer_query timer queries.
+ * Queries are kept in a ring and read back a few frames later, so measuring never stalls the
+ * pipeline. Only usable when the context has
+ * {@link com.example.castremotedisplay.ndk.utils.GlContextManager#CAPABILITY_TIMER_QUERY}.
+ * <p>
+ * The RD thread times its blit with one when GPU timing is enabled in
+ * {@link RemoteDisplayPresentation}, and reports it along with the frame pacing and the name of
+ * the {@link UpscaleFilter}.
+ * </p>
+ * <p>
+ * Must be used from the thread owning the GL context the queries are created on.
+ * </p>
+ */
+class GpuTimer {
+
+    static {
+        System.loadLibrary("native");
+    }
+
+    private static final int QUERY_COUNT = 4;
+
+    private final int[] mQueries = new int[QUERY_COUNT];
+    private final boolean mValid;
+
+    // Index of the query the next measurement goes into, and number of measurements not polled.
+    private int mNextQuery;
+    private int mPending;
+
+    GpuTimer() {
+        mValid = nativeGenQueries(mQueries);
+    }
+
+    /**
+     * Starts measuring. Spans can not be nested.
+     */
+    void begin() {
+        if (!mValid) {
+            return;
+        }
+        if (mPending == QUERY_COUNT) {
+            // The consumer fell behind; drop the oldest measurement.
+            mPending--;
+        }
+        nativeBeginQuery(mQueries[mNextQuery]);
+    }
+
+    void end() {
+        if (!mValid) {
+            return;
+        }
+        nativeEndQuery();
+        mNextQuery = (mNextQuery + 1) % QUERY_COUNT;
+        mPending++;
+    }
+
+    /**
+     * Returns the GPU time of the oldest completed span in nanoseconds, or -1 if none completed
+     * since the last call. Spans overlapping a disjoint event are dropped.
+     */
+    long poll() {
+        if (!mValid || mPending == 0) {
+            return -1;
+        }
+        int oldest = (mNextQuery + QUERY_COUNT - mPending) % QUERY_COUNT;
+        long elapsed = nativeGetQueryResult(mQueries[oldest]);
+        if (elapsed < 0) {
+            return -1;
+        }
+        mPending--;
+        return nativeIsDisjoint() ? -1 : elapsed;
+    }
+
+    void release() {
+        if (mValid) {
+            nativeDeleteQueries(mQueries);
+        }
+    }
+
+    private static native boolean nativeGenQueries(int[] ids);
+
+    private static native void nativeDeleteQueries(int[] ids);
+
+    private static native void nativeBeginQuery(int id);
+
+    private static native void nativeEndQuery();
+
+    private static native long nativeGetQueryResult(int id);
+
+    private static native boolean nativeIsDisjoint();
+}
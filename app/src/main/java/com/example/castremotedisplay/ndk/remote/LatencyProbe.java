@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Diagnostic measuring the produce-to-present latency of remote frames. The native renderer
+ * stamps each remote frame with its ID (see {@link FrameWatermark}); the probe reads the ID back
+ * from what was actually drawn on the remote surface and matches it against the production time
+ * reported for that ID. Skipped and duplicated frames are detected from gaps and repeats in the
+ * decoded IDs.
+ * <p>
+ * Frames that are drawn again without a new frame being latched, e.g. when only a layer changed,
+ * are not read back: they are counted as re-presented rather than as duplicates.
+ * </p>
+ * <p>
+ * Only used from the RD thread. GL access is confined to the {@link WatermarkReadback}, so the
+ * probe runs unchanged against a software stand-in.
+ * </p>
+ */
+class LatencyProbe {
+
+    // Production times are kept for this many frame IDs. Must be a power of two.
+    private static final int HISTORY_SIZE = 64;
+    // Presentation times of readbacks that have been started but not polled yet.
+    private static final int PENDING_SIZE = 4;
+
+    private final WatermarkReadback mReadback;
+    private final FramePacer.Clock mClock;
+
+    private final int[] mProducedIds = new int[HISTORY_SIZE];
+    private final long[] mProducedTimes = new long[HISTORY_SIZE];
+
+    private final long[] mPendingPresentTimes = new long[PENDING_SIZE];
+    private int mPendingHead;
+    private int mPendingCount;
+
+    // ID of the last decoded frame, -1 if unknown, e.g. after a lost readback.
+    private int mLastPresentedId = -1;
+    // Whether the frame drawn last was read back.
+    private boolean mReadbackStarted;
+
+    // Statistics, reset by #resetStats().
+    private int mMatchedFrames;
+    private long mLatencySumNanos;
+    private long mMaxLatencyNanos;
+    private int mSkippedFrames;
+    private int mDuplicatedFrames;
+    private int mUnmatchedFrames;
+    private int mRepresentedFrames;
+    private int mLostReadbacks;
+
+    LatencyProbe(WatermarkReadback readback, FramePacer.Clock clock) {
+        mReadback = readback;
+        mClock = clock;
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            mProducedIds[i] = -1;
+        }
+    }
+
+    /**
+     * Records when the frame with the given ID was produced.
+     */
+    void onFrameProduced(int frameId, long frameTimeNanos) {
+        int id = frameId & FrameWatermark.ID_MASK;
+        int slot = id & (HISTORY_SIZE - 1);
+        mProducedIds[slot] = id;
+        mProducedTimes[slot] = frameTimeNanos;
+    }
+
+    /**
+     * Starts reading back the watermark of the frame just drawn. Call after the blit, before the
+     * layers are drawn above it.
+     *
+     * @param newFrame whether a new frame was latched for this draw. Re-presents of the previous
+     *         frame are only counted.
+     */
+    void onFrameDrawn(boolean newFrame) {
+        mReadbackStarted = newFrame;
+        if (!newFrame) {
+            mRepresentedFrames++;
+            return;
+        }
+        if (mPendingCount == PENDING_SIZE) {
+            // Should not happen with a well-behaved readback, forget the oldest frame.
+            dropOldestPending();
+        }
+        if (mReadback.start()) {
+            // The readback made room by discarding its oldest readback, forget its frame too.
+            dropOldestPending();
+        }
+    }
+
+    /**
+     * Records the presentation time of the frame drawn last, then decodes every readback that
+     * has completed. Call right after the swap.
+     */
+    void onFramePresented() {
+        if (mReadbackStarted) {
+            int tail = (mPendingHead + mPendingCount) % PENDING_SIZE;
+            mPendingPresentTimes[tail] = mClock.nanoTime();
+            mPendingCount++;
+            mReadbackStarted = false;
+        }
+
+        int status;
+        while (mPendingCount > 0
+                && (status = mReadback.poll()) != WatermarkReadback.PENDING) {
+            long presentTime = mPendingPresentTimes[mPendingHead];
+            mPendingHead = (mPendingHead + 1) % PENDING_SIZE;
+            mPendingCount--;
+            if (status == WatermarkReadback.READY) {
+                onWatermarkDecoded(FrameWatermark.decode(mReadback.getRow()), presentTime);
+            } else {
+                onReadbackLost();
+            }
+        }
+    }
+
+    private void dropOldestPending() {
+        if (mPendingCount > 0) {
+            mPendingHead = (mPendingHead + 1) % PENDING_SIZE;
+            mPendingCount--;
+        }
+        onReadbackLost();
+    }
+
+    private void onReadbackLost() {
+        mLostReadbacks++;
+        // The frame behind the lost readback is unknown: the next decoded ID can be neither a
+        // skip nor a duplicate.
+        mLastPresentedId = -1;
+    }
+
+    private void onWatermarkDecoded(int frameId, long presentTimeNanos) {
+        if (mLastPresentedId >= 0) {
+            int delta = (frameId - mLastPresentedId) & FrameWatermark.ID_MASK;
+            if (delta == 0) {
+                mDuplicatedFrames++;
+                return;
+            }
+            if (delta < FrameWatermark.ID_MASK / 2) {
+                mSkippedFrames += delta - 1;
+            }
+        }
+        mLastPresentedId = frameId;
+
+        int slot = frameId & (HISTORY_SIZE - 1);
+        if (mProducedIds[slot] != frameId) {
+            mUnmatchedFrames++;
+            return;
+        }
+        long latency = presentTimeNanos - mProducedTimes[slot];
+        mMatchedFrames++;
+        mLatencySumNanos += latency;
+        if (latency > mMaxLatencyNanos) {
+            mMaxLatencyNanos = latency;
+        }
+    }
+
+    int getMatchedFrames() {
+        return mMatchedFrames;
+    }
+
+    long getMeanLatencyNanos() {
+        return mMatchedFrames == 0 ? 0 : mLatencySumNanos / mMatchedFrames;
+    }
+
+    long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    int getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Number of newly latched frames that showed the same ID as the previous one.
+     */
+    int getDuplicatedFrames() {
+        return mDuplicatedFrames;
+    }
+
+    /**
+     * Number of draws that presented the previous frame again, without a new frame latched.
+     */
+    int getRepresentedFrames() {
+        return mRepresentedFrames;
+    }
+
+    /**
+     * Number of readbacks that were discarded or failed. Their frames are not in any other
+     * count.
+     */
+    int getLostReadbacks() {
+        return mLostReadbacks;
+    }
+
+    /**
+     * Number of decoded frames whose production time was no longer known, or whose watermark was
+     * unreadable.
+     */
+    int getUnmatchedFrames() {
+        return mUnmatchedFrames;
+    }
+
+    void resetStats() {
+        mMatchedFrames = 0;
+        mLatencySumNanos = 0;
+        mMaxLatencyNanos = 0;
+        mSkippedFrames = 0;
+        mDuplicatedFrames = 0;
+        mUnmatchedFrames = 0;
+        mRepresentedFrames = 0;
+        mLostReadbacks = 0;
+    }
+
+    void release() {
+        mReadback.release();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+/**
+ * Static or slowly changing UI shown on the remote display above the scene, such as scores,
+ * status or captions. The content is drawn with a {@link Canvas}, on any thread, between
+ * {@link #beginDraw()} and {@link #endDraw()}. It is kept in a texture of the RD thread, uploaded
+ * again only when a new version was drawn, and alpha-blended over the scene and the
+ * {@link ExternalLayer}s in the same pass. A layer that does not change costs one textured quad
+ * per present.
+ * <p>
+ * The content is double buffered: drawing the next version never waits for the upload of the
+ * current one.
+ * </p>
+ */
+public class OverlayLayer extends RemoteLayer {
+
+    private final Bitmap[] mBitmaps = new Bitmap[2];
+    private final Canvas mCanvas = new Canvas();
+
+    // Index of the bitmap holding the latest version, and that version. Guarded by mContentLock.
+    private final Object mContentLock = new Object();
+    private int mFront;
+    private int mVersion;
+
+    // Only used on the RD thread, while attached.
+    private int mTextureId;
+    // Version held by the texture, -1 if none.
+    private int mUploadedVersion;
+    private int mUploads;
+
+    /**
+     * @param width the width of the content, in pixels
+     * @param height the height of the content, in pixels
+     */
+    public OverlayLayer(int width, int height) {
+        mBitmaps[0] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mBitmaps[1] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Starts drawing a new version of the content. Versions are drawn from one thread at a time.
+     *
+     * @return a canvas on a transparent bitmap, valid until {@link #endDraw()}
+     */
+    public Canvas beginDraw() {
+        // Only the drawing thread changes mFront.
+        Bitmap back = mBitmaps[1 - mFront];
+        back.eraseColor(Color.TRANSPARENT);
+        mCanvas.setBitmap(back);
+        return mCanvas;
+    }
+
+    /**
+     * Publishes the version drawn since {@link #beginDraw()}. It is shown on the next present.
+     */
+    public void endDraw() {
+        mCanvas.setBitmap(null);
+        synchronized (mContentLock) {
+            mFront = 1 - mFront;
+            mVersion++;
+        }
+        notifyChanged();
+    }
+
+    /**
+     * Publishes a version made of a copy of bitmap, scaled to the size of the layer.
+     */
+    public void setContent(Bitmap bitmap) {
+        Canvas canvas = beginDraw();
+        canvas.drawBitmap(bitmap, null, canvas.getClipBounds(), null);
+        endDraw();
+    }
+
+    @Override
+    void onAttach() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mTextureId = textures[0];
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(
+                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        mUploadedVersion = -1;
+    }
+
+    @Override
+    void onDetach() {
+        GLES20.glDeleteTextures(1, new int[] {mTextureId}, 0);
+        mTextureId = 0;
+    }
+
+    @Override
+    boolean latchContent() {
+        synchronized (mContentLock) {
+            if (mVersion == mUploadedVersion || mVersion == 0) {
+                return false;
+            }
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+            // Bitmaps are premultiplied, the overlay is blended accordingly.
+            if (mUploadedVersion < 0) {
+                GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmaps[mFront], 0);
+            } else {
+                GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, mBitmaps[mFront]);
+            }
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            mUploadedVersion = mVersion;
+        }
+        mUploads++;
+        return true;
+    }
+
+    int getTextureId() {
+        return mTextureId;
+    }
+
+    /**
+     * Number of times the content was uploaded since the last call.
+     */
+    int takeUploadCount() {
+        int uploads = mUploads;
+        mUploads = 0;
+        return uploads;
+    }
+}
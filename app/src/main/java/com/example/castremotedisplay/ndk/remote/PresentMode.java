@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+/**
+ * How the RD thread presents frames to the remote display surface: the swap interval it sets
+ * with eglSwapInterval, and whether frames are tagged with a vsync-aligned presentation time.
+ * <p>
+ * Whatever the mode, the native renderer never waits for the RD thread: a frame produced while
+ * another one is waiting to be drawn replaces it, and the texture of the replaced frame is handed
+ * back at once. The texture on screen is handed back once the next frame is picked up, so with
+ * three targets the native renderer always finds a free one.
+ * </p>
+ */
+final class PresentMode {
+
+    /**
+     * One frame per vsync, the swap blocks once the compositor queue is full. Frames are paced
+     * with presentation times. The default.
+     */
+    static final PresentMode FIFO = new PresentMode("FIFO", 1, true);
+
+    /**
+     * The swap never waits for vsync and the latest frame is drawn, older ones are dropped.
+     * Lowest latency, frames are not paced: {@link FramePacer} only measures their jitter.
+     */
+    static final PresentMode MAILBOX = new PresentMode("mailbox", 0, false);
+
+    /**
+     * One frame every other vsync, for content that cannot keep up with the refresh rate.
+     * Frames are paced on the half-rate grid.
+     */
+    static final PresentMode HALF_RATE = new PresentMode("half rate", 2, true);
+
+    private final String mName;
+    private final int mSwapInterval;
+    private final boolean mPaced;
+
+    /**
+     * @param name shown in the reports
+     * @param swapInterval passed to eglSwapInterval, vsyncs per swap, 0 to not wait
+     * @param paced whether frames get a presentation time through eglPresentationTimeANDROID
+     */
+    PresentMode(String name, int swapInterval, boolean paced) {
+        mName = name;
+        mSwapInterval = swapInterval;
+        mPaced = paced;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int getSwapInterval() {
+        return mSwapInterval;
+    }
+
+    boolean isPaced() {
+        return mPaced;
+    }
+
+    /**
+     * Returns the rate frames are presented at on a display refreshing at refreshRate.
+     */
+    float getPresentRate(float refreshRate) {
+        return mSwapInterval > 1 ? refreshRate / mSwapInterval : refreshRate;
+    }
+}
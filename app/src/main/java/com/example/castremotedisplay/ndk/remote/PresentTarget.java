@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+/**
+ * The GL context and window surface the RD thread presents frames to, as seen by
+ * {@link FramePresenter} and {@link SurfaceDamage}: every GL and EGL call of a present goes
+ * through here. {@link GlesPresentTarget} forwards them to the current context, tests record
+ * them.
+ * <p>
+ * GL methods take the arguments of the GLES call of the same name. Rectangles are int[4] of x,
+ * y, width and height, with the origin at the bottom-left as in EGL.
+ * </p>
+ */
+interface PresentTarget {
+
+    void activeTexture(int texture);
+
+    void bindTexture(int target, int texture);
+
+    void texParameteri(int target, int pname, int param);
+
+    void uniform1i(int location, int x);
+
+    void enable(int cap);
+
+    void disable(int cap);
+
+    void scissor(int x, int y, int width, int height);
+
+    void clear(int mask);
+
+    void drawArrays(int mode, int first, int count);
+
+    /** glInvalidateFramebuffer, OpenGL ES 3 only. */
+    void invalidateFramebuffer(int target, int[] attachments);
+
+    /** glGetError. */
+    int getError();
+
+    int getSurfaceWidth();
+
+    int getSurfaceHeight();
+
+    /**
+     * Returns the SurfaceDamage.FEATURE_* bits the display supports.
+     */
+    int getDamageFeatures();
+
+    /**
+     * Returns the age of the back buffer (EGL_EXT_buffer_age), 0 if its content is unknown.
+     */
+    int getBufferAge();
+
+    /** eglSetDamageRegionKHR, with a single rectangle. */
+    boolean setDamageRegion(int[] rect);
+
+    /** eglPresentationTimeANDROID. */
+    boolean setPresentationTime(long presentationTimeNanos);
+
+    boolean swapBuffers();
+
+    /** eglSwapBuffersWithDamageKHR, with a single rectangle. */
+    boolean swapBuffersWithDamage(int[] rect);
+
+    /** eglGetError. */
+    int getEglError();
+}
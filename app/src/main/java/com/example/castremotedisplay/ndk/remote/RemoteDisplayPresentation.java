@@ -18,10 +18,14 @@ package com.example.castremotedisplay.ndk.remote;
 
 import android.content.Context;
 import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
 import android.view.Display;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.TextureView;
 import android.view.View;
 import android.widget.LinearLayout;
@@ -31,8 +35,7 @@ import com.example.castremotedisplay.ndk.R;
 import com.example.castremotedisplay.ndk.local.NativeRenderer;
 import com.google.android.gms.cast.CastPresentation;
 
-import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLContext;
+import java.util.ArrayList;
 
 /**
  * The presentation to show on the first screen (the TV).
@@ -41,13 +44,65 @@ import javax.microedition.khronos.egl.EGLContext;
  * which the main activity is showing so we must be careful to use the
  * presentation's own {@link Context} whenever we load resources.
  * </p>
+ * <p>
+ * Remote frames are presented through one of two backends, chosen when the presentation is
+ * created, i.e. at the start of the Cast session (see {@link RemoteDisplayService}):
+ * <ul>
+ * <li>{@link #BACKEND_TEXTURE_VIEW}: the RD thread renders into the SurfaceTexture of a
+ * TextureView, which the presentation window then composites again like any other view.</li>
+ * <li>{@link #BACKEND_SURFACE_VIEW}: the RD thread renders into the Surface of a SurfaceView,
+ * which the system compositor shows as its own layer, saving the copy into the window.</li>
+ * </ul>
+ * The error overlay is part of the window in both cases, above the remote frames. The reports of
+ * the RD thread, the latency probe among them, are tagged with the backend: compare two sessions,
+ * one with each backend. The swaps of the TextureView may block on the window consuming its
+ * frames, which shows up in the swap times and the produce-to-present latency.
+ * </p>
+ * <p>
+ * Remote frames are rendered at {@link #RENDER_SCALE} of the remote display resolution to save
+ * GPU time on the phone, and scaled up on the way to the surface.
+ * </p>
+ * <p>
+ * The RD thread presents with {@link #PRESENT_MODE}. By default frames are paced on the vsync of
+ * the remote display, see {@link FramePacer}. {@link PresentMode#MAILBOX} trades the pacing for
+ * latency, {@link PresentMode#HALF_RATE} suits receivers that can not keep up.
+ * </p>
+ * <p>
+ * Video and camera feeds ({@link ExternalLayer}) and UI ({@link OverlayLayer}) are shown above
+ * the scene as {@link RemoteLayer}s. They outlive the RD thread: every new thread attaches them
+ * again.
+ * </p>
  */
 public class RemoteDisplayPresentation extends CastPresentation {
 
     private static final String TAG = "RDPresentation";
 
-    private TextureView mTextureView;
-    private SurfaceTexture mSurfaceTexture;
+    public static final int BACKEND_TEXTURE_VIEW = 0;
+    public static final int BACKEND_SURFACE_VIEW = 1;
+
+    // Set to true to measure the GPU time of the RD thread blit, e.g. to compare upscale filters.
+    private static final boolean GPU_TIMING = false;
+
+    // Fraction of the remote display resolution remote frames are rendered at, and the filter
+    // scaling them up to it.
+    private static final float RENDER_SCALE = 0.75f;
+    private static final UpscaleFilter UPSCALE_FILTER = UpscaleFilter.CATMULL_ROM;
+    private static final PresentMode PRESENT_MODE = PresentMode.FIFO;
+
+    private final int mBackend;
+    // Whether remote frames are stamped with their ID to measure produce-to-present latency.
+    private final boolean mLatencyProbe;
+    // SurfaceTexture or Surface the RD thread renders to, null while there is none, and its size.
+    private Object mSurface;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+    // Size of the remote frames of the current session.
+    private int mFrameWidth;
+    private int mFrameHeight;
+    // Damage of the frame being handed over, reused to keep the frame loop from allocating.
+    private final int[] mFrameDamage = new int[4];
+    // Layers to show above the scene. Guarded by itself.
+    private final ArrayList<RemoteLayer> mLayers = new ArrayList<>();
     private LinearLayout mErrorContainerView;
     private TextView mErrorMessageView;
 
@@ -55,8 +110,16 @@ public class RemoteDisplayPresentation extends CastPresentation {
     private boolean mErrored = false;
     private Handler mHandler = new Handler();
 
-    public RemoteDisplayPresentation(Context serviceContext, Display display) {
+    /**
+     * @param backend {@link #BACKEND_TEXTURE_VIEW} or {@link #BACKEND_SURFACE_VIEW}
+     * @param latencyProbe whether to measure the produce-to-present latency of remote frames,
+     *         see {@link LatencyProbe}
+     */
+    public RemoteDisplayPresentation(Context serviceContext, Display display, int backend,
+                                     boolean latencyProbe) {
         super(serviceContext, display);
+        mBackend = backend;
+        mLatencyProbe = latencyProbe;
     }
 
     @Override
@@ -67,33 +130,40 @@ public class RemoteDisplayPresentation extends CastPresentation {
         mErrorContainerView = (LinearLayout) findViewById(R.id.errorContainerView);
         mErrorMessageView = (TextView) findViewById(R.id.errorMessageView);
 
-        mTextureView = (TextureView) findViewById(R.id.remoteTextureView);
-        mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
+        Log.d(TAG, "Presenting through " + getBackendName());
+        if (mBackend == BACKEND_SURFACE_VIEW) {
+            initSurfaceView();
+        } else {
+            initTextureView();
+        }
+    }
+
+    private String getBackendName() {
+        return mBackend == BACKEND_SURFACE_VIEW ? "SurfaceView" : "TextureView";
+    }
+
+    private void initTextureView() {
+        TextureView textureView = (TextureView) findViewById(R.id.remoteTextureView);
+        textureView.setVisibility(View.VISIBLE);
+        textureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
             @Override
             public void onSurfaceTextureAvailable(
                     SurfaceTexture surfaceTexture, int width, int height) {
                 Log.d(TAG, "onSurfaceTextureAvailable(" + width + "x" + height + ")");
-                mSurfaceTexture = surfaceTexture;
-
-                NativeRenderer.castSessionStarted(RemoteDisplayPresentation.this, width, height);
+                onSurfaceAvailable(surfaceTexture, width, height);
             }
 
             @Override
             public void onSurfaceTextureSizeChanged(
                     SurfaceTexture surfaceTexture, int width, int height) {
                 Log.d(TAG, "onSurfaceTextureSizeChanged(" + width + "x" + height + ")");
+                onSurfaceSizeChanged(surfaceTexture, width, height);
             }
 
             @Override
             public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
-                NativeRenderer.castSessionEnded(RemoteDisplayPresentation.this);
-
                 Log.d(TAG, "onSurfaceTextureDestroyed");
-                if (mRenderThread != null) {
-                    mRenderThread.finish();
-                    mRenderThread = null;
-                    Log.d(TAG, "RemoteDisplayTextureRenderThread destroyed...");
-                }
+                onSurfaceDestroyed(false);
                 return false;
             }
 
@@ -104,6 +174,82 @@ public class RemoteDisplayPresentation extends CastPresentation {
         });
     }
 
+    private void initSurfaceView() {
+        SurfaceView surfaceView = (SurfaceView) findViewById(R.id.remoteSurfaceView);
+        surfaceView.setVisibility(View.VISIBLE);
+        surfaceView.getHolder().addCallback(new SurfaceHolder.Callback() {
+            @Override
+            public void surfaceCreated(SurfaceHolder holder) {
+                // The session starts once the size is known, in surfaceChanged().
+            }
+
+            @Override
+            public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+                Log.d(TAG, "surfaceChanged(" + width + "x" + height + ")");
+                if (mSurface == null) {
+                    onSurfaceAvailable(holder.getSurface(), width, height);
+                } else {
+                    onSurfaceSizeChanged(holder.getSurface(), width, height);
+                }
+            }
+
+            @Override
+            public void surfaceDestroyed(SurfaceHolder holder) {
+                Log.d(TAG, "surfaceDestroyed");
+                // The surface must not be used anymore once this returns.
+                onSurfaceDestroyed(true);
+            }
+        });
+    }
+
+    private void onSurfaceAvailable(Object surface, int width, int height) {
+        mSurface = surface;
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        mFrameWidth = Math.max(1, Math.round(width * RENDER_SCALE));
+        mFrameHeight = Math.max(1, Math.round(height * RENDER_SCALE));
+
+        NativeRenderer.setLatencyProbeEnabled(mLatencyProbe);
+        NativeRenderer.castSessionStarted(
+                RemoteDisplayPresentation.this, mFrameWidth, mFrameHeight);
+    }
+
+    /**
+     * Starts the session over at the new size. The RD thread and the native renderer size their
+     * targets once per session. The surface stays the same: the RD thread is done with it once
+     * it finished, the next one creates its own EGL surface on it.
+     */
+    private void onSurfaceSizeChanged(Object surface, int width, int height) {
+        if (mSurface == null || (width == mSurfaceWidth && height == mSurfaceHeight)) {
+            return;
+        }
+        onSurfaceDestroyed(true);
+        onSurfaceAvailable(surface, width, height);
+    }
+
+    /**
+     * Ends the session and stops the render thread.
+     *
+     * @param wait whether to block until the render thread released the surface
+     */
+    private void onSurfaceDestroyed(boolean wait) {
+        NativeRenderer.castSessionEnded(RemoteDisplayPresentation.this);
+        mSurface = null;
+
+        if (mRenderThread != null) {
+            mRenderThread.finish();
+            if (wait) {
+                try {
+                    mRenderThread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mRenderThread = null;
+            Log.d(TAG, "RemoteDisplayTextureRenderThread destroyed...");
+        }
+    }
+
     /**
      * Updates the texture ID to be rendered by the render thread. Will create and initialize a
      * render thread if this is the first time this is called on this presentation. Since the
@@ -114,32 +260,79 @@ public class RemoteDisplayPresentation extends CastPresentation {
      */
     private void initRenderThread() {
         if (mRenderThread == null) {
-            if (mSurfaceTexture == null) {
-                Log.w(TAG, "Can't create render thread, no active surface texture to render "
-                        + "to.");
-                return;
-            }
-            EGL10 egl = (EGL10) EGLContext.getEGL();
-            if (egl == null) {
-                Log.w(TAG, "Can't create render thread, could not obtain the EGL object.");
+            if (mSurface == null) {
+                Log.w(TAG, "Can't create render thread, no active surface to render to.");
                 return;
             }
-            EGLContext eglContext = egl.eglGetCurrentContext();
-            if (eglContext == null || eglContext == EGL10.EGL_NO_CONTEXT) {
+            EGLContext eglContext = EGL14.eglGetCurrentContext();
+            if (eglContext == null || eglContext == EGL14.EGL_NO_CONTEXT) {
                 Log.w(TAG, "Can't create render thread, no active eglContext. This context "
                         + "must be the one Unity uses for rendering so we can share data.");
                 return;
             }
-            mRenderThread = new RemoteDisplayTextureRenderThread(this, eglContext, mSurfaceTexture);
+            RemoteDisplayTextureRenderThread renderThread = new RemoteDisplayTextureRenderThread(
+                    this, eglContext, mSurface, getBackendName(), mFrameWidth, mFrameHeight,
+                    UPSCALE_FILTER, PRESENT_MODE, getDisplay().getRefreshRate(),
+                    mLatencyProbe, GPU_TIMING);
+            synchronized (mLayers) {
+                for (int i = 0; i < mLayers.size(); i++) {
+                    renderThread.addLayer(mLayers.get(i));
+                }
+                mRenderThread = renderThread;
+            }
             mRenderThread.start();
         }
     }
 
-    public void renderFrameToTexture(int textureId) {
+    /**
+     * Called from the native renderer once a remote frame has been rendered to a texture.
+     *
+     * @param textureId the texture holding the frame
+     * @param frameId the ID of the frame, increasing by one for every remote frame
+     * @param frameTimeNanos the time the frame was produced at, in {@link System#nanoTime()}
+     *         time base
+     * @param damageX the left edge of the rectangle of the frame that changed since the previous
+     *         frame
+     * @param damageY the bottom edge of the changed rectangle, from the bottom of the frame
+     * @param damageWidth the width of the changed rectangle
+     * @param damageHeight the height of the changed rectangle
+     */
+    public void renderFrameToTexture(int textureId, int frameId, long frameTimeNanos,
+                                     int damageX, int damageY, int damageWidth, int damageHeight) {
         if (mRenderThread == null) {
             initRenderThread();
+            if (mRenderThread == null) {
+                // Nothing to present it with, the target is free again.
+                notifyRemoteFrameDone(textureId);
+                return;
+            }
+        }
+        SurfaceDamage.set(mFrameDamage, damageX, damageY, damageWidth, damageHeight);
+        mRenderThread.renderFrame(textureId, frameId, frameTimeNanos, mFrameDamage);
+    }
+
+    /**
+     * Shows a layer above the scene until it is removed. Layers are attached once the RD thread
+     * runs, see {@link ExternalLayer.Callback}.
+     */
+    public void addLayer(RemoteLayer layer) {
+        synchronized (mLayers) {
+            if (mLayers.contains(layer)) {
+                return;
+            }
+            mLayers.add(layer);
+            if (mRenderThread != null) {
+                mRenderThread.addLayer(layer);
+            }
+        }
+    }
+
+    public void removeLayer(RemoteLayer layer) {
+        synchronized (mLayers) {
+            if (mLayers.remove(layer) && mRenderThread != null) {
+                mRenderThread.removeLayer(layer);
+            }
         }
-        mRenderThread.renderFrame(textureId);
     }
 
     public void notifyRemoteFrameDone(int targetIndex) {
@@ -20,6 +20,7 @@ import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
+import com.example.castremotedisplay.ndk.utils.FlightRecorder;
 import com.google.android.gms.cast.CastRemoteDisplayLocalService;
 
 /**
@@ -28,11 +29,21 @@ import com.google.android.gms.cast.CastRemoteDisplayLocalService;
 public class RemoteDisplayService extends CastRemoteDisplayLocalService {
 
     private static final String TAG = "RDPresentation";
+
+    // How remote frames get to the display, see RemoteDisplayPresentation. The TextureView stays
+    // the default until measurements on receivers favour the SurfaceView.
+    private static volatile int sPresentationBackend =
+            RemoteDisplayPresentation.BACKEND_TEXTURE_VIEW;
+    private static volatile boolean sLatencyProbeEnabled;
+
     private RemoteDisplayPresentation mPresentation;
 
     @Override
     public void onCreatePresentation(Display display) {
-        mPresentation = new RemoteDisplayPresentation(this, display);
+        // Already open if the activity created this process.
+        FlightRecorder.open(this);
+        mPresentation = new RemoteDisplayPresentation(
+                this, display, sPresentationBackend, sLatencyProbeEnabled);
         try {
             mPresentation.show();
         } catch (WindowManager.InvalidDisplayException ex) {
@@ -42,6 +53,24 @@ public class RemoteDisplayService extends CastRemoteDisplayLocalService {
         }
     }
 
+    /**
+     * Selects how the remote frames of the sessions started from now on are presented.
+     *
+     * @param backend {@link RemoteDisplayPresentation#BACKEND_TEXTURE_VIEW} or
+     *         {@link RemoteDisplayPresentation#BACKEND_SURFACE_VIEW}
+     */
+    public static void setPresentationBackend(int backend) {
+        sPresentationBackend = backend;
+    }
+
+    /**
+     * Enables the latency probe for the sessions started from now on. Its reports are logged
+     * with the name of the backend.
+     */
+    public static void setLatencyProbeEnabled(boolean enabled) {
+        sLatencyProbeEnabled = enabled;
+    }
+
     private void dismissPresentation() {
         if (mPresentation != null) {
             mPresentation.dismiss();
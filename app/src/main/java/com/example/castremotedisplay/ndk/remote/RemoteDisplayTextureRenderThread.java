@@ -16,21 +16,25 @@
 
 package com.example.castremotedisplay.ndk.remote;
 
-import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.util.Log;
 
 import com.example.castremotedisplay.ndk.utils.EglConfigChooser;
+import com.example.castremotedisplay.ndk.utils.FlightRecorder;
+import com.example.castremotedisplay.ndk.utils.GlContextManager;
+import com.example.castremotedisplay.ndk.utils.RenderTrace;
+import com.example.castremotedisplay.ndk.utils.ShaderCompileService;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-
-import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
-import javax.microedition.khronos.egl.EGLSurface;
+import java.util.ArrayList;
 
 /**
  * Handles rendering to the passed surface. Renders a quad on the passed surface. This quad will
@@ -39,11 +43,19 @@ import javax.microedition.khronos.egl.EGLSurface;
 class RemoteDisplayTextureRenderThread extends Thread {
     private static final String TAG = "RDRenderThread";
 
-    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
-
     private static final String POSITION_ATTRIB_NAME = "position";
     private static final String TEXTURE_COORDS_ATTRIB_NAME = "texCoords";
-    private static final String TEXTURE_SAMPLER2D_NAME = "textureSampler";
+    // Every program gets the same attribute locations, indexed by ATTRIB_*_INDEX.
+    private static final String[] ATTRIB_NAMES = {
+            POSITION_ATTRIB_NAME, TEXTURE_COORDS_ATTRIB_NAME
+    };
+    private static final String TEXTURE_SAMPLER2D_NAME = UpscaleFilter.SAMPLER_NAME;
+    private static final String LAYER_RECT_NAME = "layerRect";
+    private static final String LAYER_TEX_MATRIX_NAME = "texMatrix";
+
+    // Both programs share the vertex buffer and its attribute setup.
+    private static final int ATTRIB_POSITION_INDEX = 0;
+    private static final int ATTRIB_TEX_COORDS_INDEX = 1;
 
     // Simple vertex shader. Does nothing special. Orthographic camera.
     private static final String VERTEX_SHADER =
@@ -55,19 +67,53 @@ class RemoteDisplayTextureRenderThread extends Thread {
                     + "    gl_Position = position;\n"
                     + "}\n";
 
-    // Simple fragment shader. Renders a texture while forcing its alpha to be 1.
-    private static final String FRAGMENT_SHADER =
+    // Draws the quad over layerRect, x, y, width and height in normalized device coordinates,
+    // with the texture coordinates transformed as SurfaceTexture requires.
+    private static final String LAYER_VERTEX_SHADER =
+            "  attribute vec4 position;\n"
+                    + "attribute vec2 texCoords;\n"
+                    + "uniform vec4 layerRect;\n"
+                    + "uniform mat4 texMatrix;\n"
+                    + "varying vec2 outTexCoords;\n"
+                    + "void main(void) {\n"
+                    + "    outTexCoords = (texMatrix * vec4(texCoords, 0.0, 1.0)).xy;\n"
+                    + "    gl_Position = vec4(layerRect.xy + (position.xy * 0.5 + 0.5)"
+                    + " * layerRect.zw, 0.0, 1.0);\n"
+                    + "}\n";
+
+    // Samples the external texture of a SurfaceTexture, opaque.
+    private static final String LAYER_FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+                    + "precision mediump float;\n\n"
+                    + "varying vec2 outTexCoords;\n"
+                    + "uniform samplerExternalOES textureSampler;\n"
+                    + "void main(void) {\n"
+                    + "    gl_FragColor = vec4(texture2D(textureSampler, outTexCoords).rgb, 1.0);\n"
+                    + "}\n";
+
+    // Samples the premultiplied texture of an overlay.
+    private static final String OVERLAY_FRAGMENT_SHADER =
             "  precision mediump float;\n\n"
                     + "varying vec2 outTexCoords;\n"
                     + "uniform sampler2D textureSampler;\n"
                     + "void main(void) {\n"
-                    + "    gl_FragColor = vec4(texture2D(textureSampler, outTexCoords).rgb, 1.0);\n"
+                    + "    gl_FragColor = texture2D(textureSampler, outTexCoords);\n"
                     + "}\n";
 
+    // Overlays are uploaded from bitmaps, top row first: flips the texture coordinates.
+    private static final float[] OVERLAY_TEX_MATRIX = {
+            1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, -1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 1.0f,
+    };
+
     private static final int BYTES_PER_FLOAT = 4;
     private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * BYTES_PER_FLOAT;
     private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
     private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
+    private static final int TRIANGLE_VERTICES_DATA_POS_SIZE = 3;
+    private static final int TRIANGLE_VERTICES_DATA_UV_SIZE = 2;
 
     // X, Y, Z, U, V for the 4 vertices of the quad.
     private static final float[] TRIANGLE_VERTICES_DATA = {
@@ -77,89 +123,253 @@ class RemoteDisplayTextureRenderThread extends Thread {
             1.0f,  1.0f, 0.0f, 1.0f, 1.0f,
     };
 
-    private static final int[] CONTEXT_ATTRIBS_OPEN_GL_ES_2 = new int[] {
-            EGL_CONTEXT_CLIENT_VERSION, 2,
-            EGL10.EGL_NONE
-    };
-
-    private static final int[] CONTEXT_ATTRIBS_OPEN_GL_ES_3 = new int[] {
-            EGL_CONTEXT_CLIENT_VERSION, 3,
-            EGL10.EGL_NONE
-    };
-
     private static final int[] SURFACE_ATTRIBS = new int[] {
-            EGL10.EGL_NONE
+            EGL14.EGL_NONE
     };
 
+    // Number of presented frames between two frame pacing reports.
+    private static final int PACING_REPORT_INTERVAL = 300;
+
     // Log strings. Cached here to avoid garbage collection problems.
-    private static final String LOG_CLEAR_COLOR = "clear color";
-    private static final String LOG_CLEAR_BUFFER = "clear color";
-    private static final String LOG_TRIANGLE_VERTICES_POS = "triangle vertices pos";
-    private static final String LOG_TRIANGLE_VERTICES_UV = "triangle vertices uv";
-    private static final String LOG_SWAP_BUFFERS = "swap buffers";
+    private static final String LOG_DRAW_LAYER = "draw external layer";
+    private static final String LOG_DRAW_OVERLAY = "draw overlay";
     private static final String LOG_SWAP_BUFFERS_ERROR = "unable to swap buffers";
+    private static final String LOG_SWAP_INTERVAL = "swap interval";
+
+    // Trace section names, the presenter traces the draw and the swap.
+    private static final String TRACE_WAIT = "RD wait";
+    private static final String TRACE_BIND = "RD bind";
 
     // Set to false to terminate the thread.
     private volatile boolean mFinished;
 
-    private final SurfaceTexture mSurface;
+    // SurfaceTexture of a TextureView or Surface of a SurfaceView.
+    private final Object mSurface;
+    private final String mBackendName;
     private final EGLContext mParentContext;
     private final RemoteDisplayPresentation mPresentation;
+    private final FramePacer mFramePacer;
+    private final PresentMode mPresentMode;
+    private final boolean mLatencyProbeEnabled;
+    private final boolean mGpuTimingEnabled;
+    // Only created when the latency probe is enabled, once the context is current.
+    private LatencyProbe mLatencyProbe;
+    // Only created when GPU timing is enabled and timer queries are available, once the context
+    // is current.
+    private GpuTimer mGpuTimer;
+    // Created once the context is current.
+    private FramePresenter mPresenter;
+    private SurfaceDamage mSurfaceDamage;
+    // Size of the frames rendered by the native renderer, damage is in these pixels.
+    private final int mFrameWidth;
+    private final int mFrameHeight;
+    private final UpscaleFilter mUpscaleFilter;
+    // Part of the surface the frames are drawn to.
+    private final int[] mViewport = new int[4];
+
+    // Time spent in eglSwapBuffers since the last pacing report.
+    private int mSwaps;
+    private long mSwapTimeSumNanos;
+    private long mMaxSwapTimeNanos;
+
+    // GPU time of the blits measured since the last pacing report.
+    private int mGpuTimedFrames;
+    private long mGpuTimeSumNanos;
+    private long mMaxGpuTimeNanos;
 
     private EGLDisplay mEglDisplay;
     private EGLConfig mEglConfig;
     private EGLContext mEglContext;
     private EGLSurface mEglSurface;
-    private EGL10 mEgl;
 
-    // The OpenGL handle of the texture we are currently displaying. Guarded by mTextureIdLock.
+    // The OpenGL handle of the texture of the latest frame. Guarded by mTextureIdLock.
     private int mTextureId = -1;
+    // The time the current texture content was produced at, in System#nanoTime() time base.
+    // Guarded by mTextureIdLock.
+    private long mFrameTimeNanos;
+    // The ID the native renderer gave to the current texture content. Guarded by mTextureIdLock.
+    private int mFrameId;
+    // The texture of the last frame picked up by the render loop, -1 if none. Handed back to the
+    // native renderer once the next frame is picked up. Guarded by mTextureIdLock.
+    private int mDisplayedTextureId = -1;
+    // Set once the render loop is done, textures are handed back as they come then. Guarded by
+    // mTextureIdLock.
+    private boolean mTexturesReleased = false;
     // Set to true if there is a new texture handle we should bind. Guarded by mTextureIdLock.
     private boolean mNewTextureId = false;
+    // Set to true until the frame mFrameId has been picked up by the render loop. Guarded by
+    // mTextureIdLock.
+    private boolean mFramePending = false;
+    // Union of the damage of the frames received since the render loop last picked one up.
+    // Guarded by mTextureIdLock.
+    private final int[] mPendingDamage = new int[4];
+    // Damage of the frame being drawn, only used by the render loop.
+    private final int[] mFrameDamage = new int[4];
 
     private final Object mTextureIdLock = new Object();
 
+    private final FramePresenter.ErrorListener mPresentErrorListener =
+            new FramePresenter.ErrorListener() {
+                @Override
+                public void onGlError(int error, String operation) {
+                    RemoteDisplayTextureRenderThread.this.onGlError(error, operation);
+                }
+
+                @Override
+                public void onEglError(int error, String operation) {
+                    RemoteDisplayTextureRenderThread.this.onEglError(error, operation);
+                }
+            };
+
+    // Layers drawn above the scene, only used by the render loop.
+    private final ArrayList<ExternalLayer> mLayers = new ArrayList<>();
+    private final ArrayList<OverlayLayer> mOverlays = new ArrayList<>();
+    // Layers to attach or detach on the next loop iteration. Guarded by mLayerLock.
+    private final ArrayList<RemoteLayer> mLayersToAdd = new ArrayList<>();
+    private final ArrayList<RemoteLayer> mLayersToRemove = new ArrayList<>();
+    private volatile boolean mLayersChanged;
+    private final Object mLayerLock = new Object();
+
     private volatile boolean mNewFrameAvailable = false;
 
 
-    private FloatBuffer mTriangleVertices;
-    private int mUniformTexture;
+    // Vertex buffer object holding TRIANGLE_VERTICES_DATA, uploaded once at initialization.
+    private int mTriangleVerticesBuffer;
     private int mAttribPosition;
     private int mAttribTexCoords;
     private int mProgram;
+    // 0 if the external layer program failed to build, the layers are not drawn then.
+    private int mLayerProgram;
+    private int mLayerUniformRect;
+    private int mLayerUniformTexMatrix;
+    // 0 if the overlay program failed to build, the overlays are not drawn then.
+    private int mOverlayProgram;
+    private int mOverlayUniformRect;
+    // Overlay uploads since the last pacing report.
+    private int mOverlayUploads;
+    // Programs building in the background, null once picked up or when built synchronously.
+    private ShaderCompileService.ProgramFuture mFilterProgramFuture;
+    private ShaderCompileService.ProgramFuture mLayerProgramFuture;
+    private ShaderCompileService.ProgramFuture mOverlayProgramFuture;
 
     /**
      * @param presentation
      * @param parentContext The context that will be passed to eglCreateContext as the share context
      *     parameter. Resources (such as textures ids) will be shared with this context.
-     * @param surface The surface where drawing will happen.
+     * @param surface The surface where drawing will happen, the SurfaceTexture of a TextureView
+     *     or the Surface of a SurfaceView.
+     * @param backendName The presentation backend the surface belongs to, to tag the reports.
+     * @param frameWidth The width of the frames rendered to the textures.
+     * @param frameHeight The height of the frames rendered to the textures.
+     * @param upscaleFilter The filter drawing the frames to the surface.
+     * @param presentMode How frames are swapped to the surface.
+     * @param refreshRate The refresh rate of the remote display, used to align presentation times.
+     * @param latencyProbeEnabled Whether to decode the frame ID watermark of presented frames to
+     *     measure their latency. The native renderer must be stamping the watermark.
+     * @param gpuTimingEnabled Whether to measure the GPU time of the blits, where timer queries
+     *     are available.
      */
     RemoteDisplayTextureRenderThread(RemoteDisplayPresentation presentation,
-                                     EGLContext parentContext, SurfaceTexture surface) {
+                                     EGLContext parentContext, Object surface,
+                                     String backendName, int frameWidth, int frameHeight,
+                                     UpscaleFilter upscaleFilter, PresentMode presentMode,
+                                     float refreshRate, boolean latencyProbeEnabled,
+                                     boolean gpuTimingEnabled) {
         mPresentation = presentation;
         mParentContext = parentContext;
         mSurface = surface;
+        mBackendName = backendName;
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+        mUpscaleFilter = upscaleFilter;
+        mPresentMode = presentMode;
+        mFramePacer = new FramePacer(FramePacer.SYSTEM_CLOCK,
+                presentMode.getPresentRate(refreshRate));
+        mLatencyProbeEnabled = latencyProbeEnabled;
+        mGpuTimingEnabled = gpuTimingEnabled;
     }
 
     /**
      * Updates the texture to be rendered to the quad.
      * @param textureId The id of the texture to be rendered. Must be a valid texture handler on the
      *         eglContext owned by this thread.
+     * @param frameId The ID of the frame held by the texture.
+     * @param frameTimeNanos The time the texture content was produced at.
+     * @param damage The rectangle of the frame that changed since the previous one.
      */
-    private void setTextureId(int textureId) {
+    private void setTextureId(int textureId, int frameId, long frameTimeNanos, int[] damage) {
         synchronized (mTextureIdLock) {
+            if (mTexturesReleased) {
+                mPresentation.notifyRemoteFrameDone(textureId);
+                return;
+            }
+            if (mFramePending) {
+                // The previous frame is never going to be shown, close its trace flow and let
+                // the native renderer reuse its texture right away.
+                RenderTrace.endAsync(RenderTrace.REMOTE_FRAME_FLOW, mFrameId);
+                if (mTextureId != textureId && mTextureId != mDisplayedTextureId) {
+                    mPresentation.notifyRemoteFrameDone(mTextureId);
+                }
+            }
             if (mTextureId != textureId) {
                 mTextureId = textureId;
                 mNewTextureId = true;
             }
+            mFrameId = frameId;
+            mFrameTimeNanos = frameTimeNanos;
+            // Superseded frames are never drawn, their damage carries over.
+            SurfaceDamage.union(mPendingDamage, damage);
+            mFramePending = true;
         }
     }
 
     /**
      * Wakes this thread up if it was asleep and notifies it there is a new frame to be rendered.
+     *
+     * @param textureId The id of the texture to be rendered.
+     * @param frameId The ID of the frame, increasing by one for every frame produced.
+     * @param frameTimeNanos The time the frame was produced at, in {@link System#nanoTime()} time
+     *         base.
+     * @param damage The rectangle of the frame that changed since the previous frame, x, y,
+     *         width and height from the bottom-left corner.
+     */
+    synchronized void renderFrame(int textureId, int frameId, long frameTimeNanos, int[] damage) {
+        setTextureId(textureId, frameId, frameTimeNanos, damage);
+        mNewFrameAvailable = true;
+        notify();
+    }
+
+    /**
+     * Adds a layer to draw above the scene. It is attached on the render thread.
+     */
+    void addLayer(RemoteLayer layer) {
+        synchronized (mLayerLock) {
+            if (!mLayersToRemove.remove(layer)) {
+                mLayersToAdd.add(layer);
+            }
+            mLayersChanged = true;
+        }
+        onLayerChanged();
+    }
+
+    /**
+     * Removes a layer. It is detached on the render thread.
+     */
+    void removeLayer(RemoteLayer layer) {
+        synchronized (mLayerLock) {
+            if (!mLayersToAdd.remove(layer)) {
+                mLayersToRemove.add(layer);
+            }
+            mLayersChanged = true;
+        }
+        onLayerChanged();
+    }
+
+    /**
+     * Wakes this thread up to present a change of a layer: new content, destination, or the
+     * layer coming or going.
      */
-    synchronized void renderFrame(int textureId) {
-        setTextureId(textureId);
+    synchronized void onLayerChanged() {
         mNewFrameAvailable = true;
         notify();
     }
@@ -177,6 +387,7 @@ class RemoteDisplayTextureRenderThread extends Thread {
     public void run() {
         synchronized (mTextureIdLock) {
             if (!initializeGL()) {
+                releaseTextures();
                 return;
             }
         }
@@ -186,44 +397,92 @@ class RemoteDisplayTextureRenderThread extends Thread {
         while (!mFinished) {
             // We are rendering the next frame.
             mNewFrameAvailable = false;
-            makeCurrent();
+            RenderTrace.refresh();
 
             // Lock needed to keep both variables in sync.
+            long frameTimeNanos;
+            int frameId;
+            int textureId;
+            boolean framePending;
+            // Texture to hand back to the native renderer, -1 if none.
+            int releasedTextureId = -1;
+            RenderTrace.begin(TRACE_BIND);
             synchronized (mTextureIdLock) {
                 if (mNewTextureId) {
-                    bindTexture(mTextureId);
+                    mPresenter.selectFrameTexture(mTextureId);
                     mNewTextureId = false;
                 }
+                frameTimeNanos = mFrameTimeNanos;
+                frameId = mFrameId;
+                textureId = mTextureId;
+                framePending = mFramePending;
+                mFramePending = false;
+                if (framePending && textureId != mDisplayedTextureId) {
+                    // The previous frame was swapped already, its texture is not drawn again.
+                    releasedTextureId = mDisplayedTextureId;
+                    mDisplayedTextureId = textureId;
+                }
+                System.arraycopy(mPendingDamage, 0, mFrameDamage, 0, 4);
+                SurfaceDamage.set(mPendingDamage, 0, 0, 0, 0);
             }
+            if (framePending) {
+                FlightRecorder.record(FlightRecorder.FRAME_LATCHED, frameId, textureId);
+            }
+            if (releasedTextureId != -1) {
+                mPresentation.notifyRemoteFrameDone(releasedTextureId);
+            }
+            updateLayers();
+            pollPrograms();
+            RenderTrace.end();
 
-            // Clear on black.
-            GLES20.glClearColor(0.0f, 0.0f, 1.0f, 0.0f);
-            checkError(LOG_CLEAR_COLOR);
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-            checkError(LOG_CLEAR_BUFFER);
-
-            // Draw the quad.
-            mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-            GLES20.glVertexAttribPointer(mAttribPosition, 3, GLES20.GL_FLOAT, false,
-                    TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
-            checkError(LOG_TRIANGLE_VERTICES_POS);
-
-            mTriangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-            GLES20.glVertexAttribPointer(mAttribTexCoords, 3, GLES20.GL_FLOAT, false,
-                    TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
-            checkError(LOG_TRIANGLE_VERTICES_UV);
-
-            // 4 vertices with no offset.
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-            checkError(LOG_SWAP_BUFFERS);
-
-            // Present it.
-            if (!mEgl.eglSwapBuffers(mEglDisplay, mEglSurface)) {
+            if (mLatencyProbe != null) {
+                mLatencyProbe.onFrameProduced(frameId, frameTimeNanos);
+            }
+            if (mGpuTimer != null) {
+                mGpuTimer.begin();
+            }
+            mPresenter.beginFrame(mFrameDamage);
+            if (mLatencyProbe != null) {
+                // Before the layers, which may cover the watermark.
+                mLatencyProbe.onFrameDrawn(framePending);
+            }
+            drawLayers();
+            if (mGpuTimer != null) {
+                mGpuTimer.end();
+            }
+            mPresenter.endFrame();
+
+            // Present it on the vsync following its production.
+            long presentationTime = mPresentMode.isPaced()
+                    ? mFramePacer.computePresentationTime(frameTimeNanos) : -1;
+            boolean swapped = mPresenter.swap(presentationTime, framePending, frameId);
+            long swapTime = mPresenter.getLastSwapTimeNanos();
+            if (!swapped) {
                 Log.w(TAG, LOG_SWAP_BUFFERS_ERROR);
             }
-            checkError(LOG_SWAP_BUFFERS);
+            onSwapTimeMeasured(swapTime);
+            FlightRecorder.record(FlightRecorder.SWAP, swapped ? 1 : 0,
+                    (int) Math.min(swapTime / 1000, Integer.MAX_VALUE));
+            if (framePending) {
+                FlightRecorder.record(FlightRecorder.FRAME_PRESENTED, frameId, textureId);
+            }
+            mFramePacer.onFramePresented();
+            if (mGpuTimer != null) {
+                long gpuTime = mGpuTimer.poll();
+                if (gpuTime >= 0) {
+                    onGpuTimeMeasured(gpuTime);
+                }
+            }
+            if (mFramePacer.getPresentedIntervals() >= PACING_REPORT_INTERVAL) {
+                reportPacing();
+            }
 
-            mPresentation.notifyRemoteFrameDone(mTextureId);
+            if (mLatencyProbe != null) {
+                mLatencyProbe.onFramePresented();
+                if (mLatencyProbe.getMatchedFrames() >= PACING_REPORT_INTERVAL) {
+                    reportLatency();
+                }
+            }
 
             // After this render pass, check if we are supposed to wait().
             synchronized (this) {
@@ -233,40 +492,235 @@ class RemoteDisplayTextureRenderThread extends Thread {
                     // After the next render pass the new texture will be presented and we can
                     // wait() then.
                     if (!mNewFrameAvailable && !mNewTextureId) {
-                        wait();
+                        RenderTrace.begin(TRACE_WAIT);
+                        try {
+                            wait();
+                        } finally {
+                            RenderTrace.end();
+                        }
                     }
                 } catch (InterruptedException ex) { /* Nothing to do. */}
             }
         }
         finishGL();
+        synchronized (mTextureIdLock) {
+            releaseTextures();
+        }
+    }
+
+    /**
+     * Hands the textures this thread holds back to the native renderer, and the ones of the
+     * frames to come. Must be called with mTextureIdLock held.
+     */
+    private void releaseTextures() {
+        if (mDisplayedTextureId != -1) {
+            mPresentation.notifyRemoteFrameDone(mDisplayedTextureId);
+        }
+        if (mFramePending && mTextureId != mDisplayedTextureId) {
+            mPresentation.notifyRemoteFrameDone(mTextureId);
+        }
+        mDisplayedTextureId = -1;
+        mFramePending = false;
+        mTexturesReleased = true;
+    }
+
+    /**
+     * Attaches and detaches the layers added and removed since the last frame, then latches the
+     * new content of the layers. What they change is added to the damage of the frame.
+     */
+    private void updateLayers() {
+        if (mLayersChanged) {
+            // Only allocates when layers come and go.
+            synchronized (mLayerLock) {
+                mLayersChanged = false;
+                for (int i = 0; i < mLayersToRemove.size(); i++) {
+                    RemoteLayer layer = mLayersToRemove.get(i);
+                    if (mLayers.remove(layer) || mOverlays.remove(layer)) {
+                        SurfaceDamage.union(mFrameDamage, layer.getDrawnRect());
+                        layer.detach();
+                    }
+                }
+                for (int i = 0; i < mLayersToAdd.size(); i++) {
+                    RemoteLayer layer = mLayersToAdd.get(i);
+                    layer.attach(this);
+                    if (layer instanceof OverlayLayer) {
+                        mOverlays.add((OverlayLayer) layer);
+                    } else {
+                        mLayers.add((ExternalLayer) layer);
+                    }
+                }
+                mLayersToRemove.clear();
+                mLayersToAdd.clear();
+            }
+        }
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).update(mFrameWidth, mFrameHeight, mFrameDamage);
+        }
+        for (int i = 0; i < mOverlays.size(); i++) {
+            OverlayLayer overlay = mOverlays.get(i);
+            overlay.update(mFrameWidth, mFrameHeight, mFrameDamage);
+            mOverlayUploads += overlay.takeUploadCount();
+        }
+    }
+
+    /**
+     * Switches to the programs the {@link ShaderCompileService} finished building. Does not
+     * allocate while they are pending.
+     */
+    private void pollPrograms() {
+        if (mFilterProgramFuture != null && mFilterProgramFuture.isDone()) {
+            int program = mFilterProgramFuture.getProgram();
+            mFilterProgramFuture = null;
+            if (program != 0) {
+                GLES20.glDeleteProgram(mProgram);
+                setFilterProgram(program);
+                // The whole frame looks different, the back buffers are all out of date.
+                SurfaceDamage.set(mFrameDamage, 0, 0, mFrameWidth, mFrameHeight);
+                Log.d(TAG, "Switched to the " + mUpscaleFilter.getName() + " filter");
+            } else {
+                Log.w(TAG, "Keeping the bilinear filter, " + mUpscaleFilter.getName()
+                        + " failed to build");
+            }
+        }
+        if (mLayerProgramFuture != null && mLayerProgramFuture.isDone()) {
+            setLayerProgram(mLayerProgramFuture.getProgram());
+            mLayerProgramFuture = null;
+            // Layers were skipped so far.
+            damageLayers(mLayers);
+        }
+        if (mOverlayProgramFuture != null && mOverlayProgramFuture.isDone()) {
+            setOverlayProgram(mOverlayProgramFuture.getProgram());
+            mOverlayProgramFuture = null;
+            damageLayers(mOverlays);
+        }
+    }
+
+    private void damageLayers(ArrayList<? extends RemoteLayer> layers) {
+        for (int i = 0; i < layers.size(); i++) {
+            SurfaceDamage.union(mFrameDamage, layers.get(i).getDrawnRect());
+        }
     }
 
     /**
-     * Binds a texture to the first texture unit (GL_TEXTURE_0) and updates the sampler2d named
-     * "texture" of the fragment shader with this texture. Uses linear sampling and no mipmaps.
-     * @param textureId The handler of the texture to bind. Must be accessible in the current
-     *         eglContext.
+     * Draws the external layers then the overlays above the scene, restoring the scene program
+     * and texture unit.
      */
-    private void bindTexture(int textureId) {
-        //Log.d(TAG, "Binding texture id: " + textureId);
+    private void drawLayers() {
+        boolean drawLayers = mLayerProgram != 0 && !mLayers.isEmpty();
+        boolean drawOverlays = mOverlayProgram != 0 && !mOverlays.isEmpty();
+        if (!drawLayers && !drawOverlays) {
+            return;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        if (drawLayers) {
+            GLES20.glUseProgram(mLayerProgram);
+            for (int i = 0; i < mLayers.size(); i++) {
+                ExternalLayer layer = mLayers.get(i);
+                if (!layer.hasContent()) {
+                    continue;
+                }
+                GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, layer.getTextureId());
+                GLES20.glUniformMatrix4fv(
+                        mLayerUniformTexMatrix, 1, false, layer.getTexMatrix(), 0);
+                GLES20.glUniform4fv(mLayerUniformRect, 1, layer.getDeviceRect(), 0);
+                GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+                checkError(LOG_DRAW_LAYER);
+            }
+        }
+        if (drawOverlays) {
+            GLES20.glUseProgram(mOverlayProgram);
+            GLES20.glEnable(GLES20.GL_BLEND);
+            for (int i = 0; i < mOverlays.size(); i++) {
+                OverlayLayer overlay = mOverlays.get(i);
+                if (!overlay.hasContent()) {
+                    continue;
+                }
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, overlay.getTextureId());
+                GLES20.glUniform4fv(mOverlayUniformRect, 1, overlay.getDeviceRect(), 0);
+                GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+                checkError(LOG_DRAW_OVERLAY);
+            }
+            GLES20.glDisable(GLES20.GL_BLEND);
+        }
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUseProgram(mProgram);
+    }
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-        checkError("bind texture");
+    /**
+     * Logs the presentation jitter measured since the last report. Runs once every
+     * PACING_REPORT_INTERVAL frames, so the allocation of the log string is acceptable.
+     */
+    private void reportPacing() {
+        Log.d(TAG, mBackendName + " frame pacing over " + mFramePacer.getPresentedIntervals()
+                + " frames: "
+                + "mean jitter " + mFramePacer.getMeanJitterNanos() / 1000 + "us, "
+                + "max jitter " + mFramePacer.getMaxJitterNanos() / 1000 + "us, "
+                + "skipped vsyncs " + mFramePacer.getSkippedVsyncs()
+                + " (refresh period " + mFramePacer.getRefreshPeriodNanos() / 1000 + "us)");
+        mFramePacer.resetStats();
+        if (mSwaps > 0) {
+            Log.d(TAG, mBackendName + " " + mPresentMode.getName() + " swap over " + mSwaps
+                    + " frames: "
+                    + "mean " + mSwapTimeSumNanos / mSwaps / 1000 + "us, "
+                    + "max " + mMaxSwapTimeNanos / 1000 + "us");
+            mSwaps = 0;
+            mSwapTimeSumNanos = 0;
+            mMaxSwapTimeNanos = 0;
+        }
+        if (mSurfaceDamage.getFrames() > 0) {
+            Log.d(TAG, mBackendName + " damage over " + mSurfaceDamage.getFrames() + " frames: "
+                    + "saved " + mSurfaceDamage.getSavedPixels() / mSurfaceDamage.getFrames()
+                    + " pixels per frame (partial update "
+                    + mSurfaceDamage.isPartialUpdateSupported() + ", swap with damage "
+                    + mSurfaceDamage.isSwapWithDamageSupported() + ")");
+            mSurfaceDamage.resetStats();
+        }
+        if (!mOverlays.isEmpty()) {
+            Log.d(TAG, mBackendName + " " + mOverlays.size() + " overlays, " + mOverlayUploads
+                    + " uploads");
+            mOverlayUploads = 0;
+        }
+        if (mGpuTimedFrames > 0) {
+            Log.d(TAG, mBackendName + " " + mUpscaleFilter.getName() + " blit GPU time over "
+                    + mGpuTimedFrames + " frames: "
+                    + "mean " + mGpuTimeSumNanos / mGpuTimedFrames / 1000 + "us, "
+                    + "max " + mMaxGpuTimeNanos / 1000 + "us");
+            mGpuTimedFrames = 0;
+            mGpuTimeSumNanos = 0;
+            mMaxGpuTimeNanos = 0;
+        }
+    }
 
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    private void onSwapTimeMeasured(long swapTimeNanos) {
+        mSwaps++;
+        mSwapTimeSumNanos += swapTimeNanos;
+        if (swapTimeNanos > mMaxSwapTimeNanos) {
+            mMaxSwapTimeNanos = swapTimeNanos;
+        }
+    }
 
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(
-                GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    private void onGpuTimeMeasured(long gpuTimeNanos) {
+        mGpuTimedFrames++;
+        mGpuTimeSumNanos += gpuTimeNanos;
+        if (gpuTimeNanos > mMaxGpuTimeNanos) {
+            mMaxGpuTimeNanos = gpuTimeNanos;
+        }
+    }
 
-        GLES20.glUniform1i(mUniformTexture, 0);
-        checkError("set texture uniform");
-        //Log.d(TAG, "Texture bound to GL_TEXTURE0");
+    /**
+     * Logs the produce-to-present latency measured by the latency probe since the last report.
+     */
+    private void reportLatency() {
+        Log.d(TAG, mBackendName + " latency over " + mLatencyProbe.getMatchedFrames()
+                + " frames: "
+                + "mean " + mLatencyProbe.getMeanLatencyNanos() / 1000 + "us, "
+                + "max " + mLatencyProbe.getMaxLatencyNanos() / 1000 + "us, "
+                + "skipped " + mLatencyProbe.getSkippedFrames() + ", "
+                + "duplicated " + mLatencyProbe.getDuplicatedFrames() + ", "
+                + "re-presented " + mLatencyProbe.getRepresentedFrames() + ", "
+                + "unmatched " + mLatencyProbe.getUnmatchedFrames() + ", "
+                + "lost readbacks " + mLatencyProbe.getLostReadbacks());
+        mLatencyProbe.resetStats();
     }
 
     private int buildProgram(String vertex, String fragment) {
@@ -281,6 +735,8 @@ class RemoteDisplayTextureRenderThread extends Thread {
         }
 
         int program = GLES20.glCreateProgram();
+        GLES20.glBindAttribLocation(program, ATTRIB_POSITION_INDEX, POSITION_ATTRIB_NAME);
+        GLES20.glBindAttribLocation(program, ATTRIB_TEX_COORDS_INDEX, TEXTURE_COORDS_ATTRIB_NAME);
         GLES20.glAttachShader(program, vertexShader);
         checkError("attach vertex shader");
 
@@ -328,28 +784,21 @@ class RemoteDisplayTextureRenderThread extends Thread {
      * Initializes OpenGL, compiles the shaders and creates an eglContext.
      */
     private boolean initializeGL() {
-        mEgl = (EGL10) EGLContext.getEGL();
-        if (mEgl == null) {
-            checkError("getEGL");
-            Log.e(TAG, "Initialization failed. Could not obtain the EGL object.");
-            return false;
-        }
-
-        mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-        if (mEglDisplay == EGL10.EGL_NO_DISPLAY) {
+        mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mEglDisplay == EGL14.EGL_NO_DISPLAY) {
             checkError("eglGetDisplay");
-            Log.e(TAG, "Initialization failed. eglGetDisplay failed: " + mEgl.eglGetError());
+            Log.e(TAG, "Initialization failed. eglGetDisplay failed: " + EGL14.eglGetError());
             return false;
         }
 
         int[] version = new int[2];
-        if (!mEgl.eglInitialize(mEglDisplay, version)) {
+        if (!EGL14.eglInitialize(mEglDisplay, version, 0, version, 1)) {
             checkError("eglInitialize");
-            Log.e(TAG, "Initialization failed. eglInitialize failed: " + mEgl.eglGetError());
+            Log.e(TAG, "Initialization failed. eglInitialize failed: " + EGL14.eglGetError());
             return false;
         }
 
-        mEglConfig = EglConfigChooser.chooseConfig(mEgl, mEglDisplay);
+        mEglConfig = EglConfigChooser.chooseConfig(mEglDisplay);
         if (mEglConfig == null) {
             checkError("chooseConfig");
             Log.e(TAG, "Initialization failed. eglConfig not initialized");
@@ -357,27 +806,60 @@ class RemoteDisplayTextureRenderThread extends Thread {
         }
 
         mEglContext = createContext(mEglDisplay, mEglConfig);
-        if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
+        if (mEglContext == null || mEglContext == EGL14.EGL_NO_CONTEXT) {
             checkError("createEglcontext");
             Log.e(TAG, "Initialization failed. Could not create EGL context.");
             return false;
         }
 
-        mEglSurface =
-                mEgl.eglCreateWindowSurface(mEglDisplay, mEglConfig, mSurface, SURFACE_ATTRIBS);
-        if (mEglSurface == null || mEglSurface == EGL10.EGL_NO_SURFACE) {
+        mEglSurface = EGL14.eglCreateWindowSurface(
+                mEglDisplay, mEglConfig, mSurface, SURFACE_ATTRIBS, 0);
+        if (mEglSurface == null || mEglSurface == EGL14.EGL_NO_SURFACE) {
             checkError("createWindowSurface");
-            Log.e(TAG, "createWindowSurface failed: " + mEgl.eglGetError());
+            Log.e(TAG, "createWindowSurface failed: " + EGL14.eglGetError());
             return false;
         }
 
-        makeCurrent();
-
-        mTriangleVertices = ByteBuffer.allocateDirect(TRIANGLE_VERTICES_DATA.length
-                * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mTriangleVertices.put(TRIANGLE_VERTICES_DATA).position(0);
+        // Nothing else makes a context current on this thread, it stays current from now on.
+        if (!makeCurrent()) {
+            return false;
+        }
 
-        mProgram = buildProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        // Applies to the surface current on this thread.
+        if (!EGL14.eglSwapInterval(mEglDisplay, mPresentMode.getSwapInterval())) {
+            Log.w(TAG, "eglSwapInterval(" + mPresentMode.getSwapInterval() + ") failed: "
+                    + EGL14.eglGetError());
+        }
+        checkError(LOG_SWAP_INTERVAL);
+
+        // The presenter comes first, the filter program reports its sampler to it.
+        PresentTarget target = new GlesPresentTarget(mEglDisplay, mEglSurface);
+        int surfaceWidth = target.getSurfaceWidth();
+        int surfaceHeight = target.getSurfaceHeight();
+        UpscaleFilter.computeViewport(
+                mFrameWidth, mFrameHeight, surfaceWidth, surfaceHeight, mViewport);
+        boolean letterboxed = mViewport[2] != surfaceWidth || mViewport[3] != surfaceHeight;
+        mSurfaceDamage = new SurfaceDamage(target, mFrameWidth, mFrameHeight, mViewport,
+                mUpscaleFilter.getRadius());
+        mPresenter = new FramePresenter(target, mSurfaceDamage,
+                GlContextManager.hasCapability(GlContextManager.CAPABILITY_INVALIDATE_FRAMEBUFFER),
+                letterboxed, FramePacer.SYSTEM_CLOCK, mPresentErrorListener);
+
+        ShaderCompileService compiler = ShaderCompileService.get();
+        if (compiler != null) {
+            // Only the cheapest program is built now, it stands in for the selected filter.
+            if (mUpscaleFilter != UpscaleFilter.BILINEAR) {
+                mFilterProgramFuture = compiler.compile(mUpscaleFilter.getName(), VERTEX_SHADER,
+                        mUpscaleFilter.getFragmentShader(), ATTRIB_NAMES);
+            }
+            mLayerProgramFuture = compiler.compile("external layer", LAYER_VERTEX_SHADER,
+                    LAYER_FRAGMENT_SHADER, ATTRIB_NAMES);
+            mOverlayProgramFuture = compiler.compile("overlay", LAYER_VERTEX_SHADER,
+                    OVERLAY_FRAGMENT_SHADER, ATTRIB_NAMES);
+        }
+        setFilterProgram(buildProgram(VERTEX_SHADER, mFilterProgramFuture != null
+                ? UpscaleFilter.BILINEAR.getFragmentShader()
+                : mUpscaleFilter.getFragmentShader()));
 
         mAttribPosition = GLES20.glGetAttribLocation(mProgram, POSITION_ATTRIB_NAME);
         checkError("initialize - position");
@@ -385,11 +867,46 @@ class RemoteDisplayTextureRenderThread extends Thread {
         mAttribTexCoords = GLES20.glGetAttribLocation(mProgram, TEXTURE_COORDS_ATTRIB_NAME);
         checkError("initialize - texCoords");
 
-        mUniformTexture = GLES20.glGetUniformLocation(mProgram, TEXTURE_SAMPLER2D_NAME);
-        checkError("initialize - texture");
+        if (compiler == null) {
+            setLayerProgram(buildProgram(LAYER_VERTEX_SHADER, LAYER_FRAGMENT_SHADER));
+            // Same vertex shader, with a fixed texture matrix.
+            setOverlayProgram(buildProgram(LAYER_VERTEX_SHADER, OVERLAY_FRAGMENT_SHADER));
+        }
+        // Overlays are the only blended draws.
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        // Letterbox bars, where the frame is cleared.
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
 
-        GLES20.glUseProgram(mProgram);
-        checkError("use program");
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        Log.d(TAG, "Drawing " + mFrameWidth + "x" + mFrameHeight + " frames to "
+                + mViewport[2] + "x" + mViewport[3] + " of a " + surfaceWidth + "x"
+                + surfaceHeight + " surface with the " + mUpscaleFilter.getName() + " filter");
+
+        FlightRecorder.record(FlightRecorder.RD_THREAD_STARTED, surfaceWidth, surfaceHeight);
+
+        // The quad never changes and this context only ever draws it: upload it once and leave
+        // the attribute setup in place for every frame.
+        FloatBuffer triangleVertices = ByteBuffer.allocateDirect(TRIANGLE_VERTICES_DATA.length
+                * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        triangleVertices.put(TRIANGLE_VERTICES_DATA).position(0);
+
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mTriangleVerticesBuffer = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mTriangleVerticesBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, TRIANGLE_VERTICES_DATA.length * BYTES_PER_FLOAT,
+                triangleVertices, GLES20.GL_STATIC_DRAW);
+        checkError("upload triangle vertices");
+
+        GLES20.glVertexAttribPointer(mAttribPosition, TRIANGLE_VERTICES_DATA_POS_SIZE,
+                GLES20.GL_FLOAT, false, TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_POS_OFFSET * BYTES_PER_FLOAT);
+        checkError("triangle vertices pos");
+
+        GLES20.glVertexAttribPointer(mAttribTexCoords, TRIANGLE_VERTICES_DATA_UV_SIZE,
+                GLES20.GL_FLOAT, false, TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_UV_OFFSET * BYTES_PER_FLOAT);
+        checkError("triangle vertices uv");
 
         GLES20.glEnableVertexAttribArray(mAttribPosition);
         checkError("enable vertex attrib array for position");
@@ -397,28 +914,96 @@ class RemoteDisplayTextureRenderThread extends Thread {
         GLES20.glEnableVertexAttribArray(mAttribTexCoords);
         checkError("enable vertex attrib array for tex coords");
 
+        if (mLatencyProbeEnabled) {
+            mLatencyProbe = new LatencyProbe(
+                    new GlesWatermarkReadback(GlContextManager.hasCapability(
+                            GlContextManager.CAPABILITY_PIXEL_BUFFER_OBJECT),
+                            mFrameWidth, mFrameHeight, mViewport),
+                    FramePacer.SYSTEM_CLOCK);
+        }
+        if (mGpuTimingEnabled
+                && GlContextManager.hasCapability(GlContextManager.CAPABILITY_TIMER_QUERY)) {
+            mGpuTimer = new GpuTimer();
+        }
+
         return (GLES20.glGetError() == GLES20.GL_NO_ERROR)
-                && (mEgl.eglGetError() == EGL10.EGL_SUCCESS);
+                && (EGL14.eglGetError() == EGL14.EGL_SUCCESS);
+    }
+
+    /**
+     * Makes the given program the one drawing the scene and sets its uniforms up.
+     */
+    private void setFilterProgram(int program) {
+        mProgram = program;
+        GLES20.glUseProgram(mProgram);
+        checkError("use program");
+
+        mPresenter.setSamplerLocation(
+                GLES20.glGetUniformLocation(mProgram, TEXTURE_SAMPLER2D_NAME));
+        checkError("initialize - texture");
+
+        // The frame size is fixed for the life of this thread.
+        int textureSize = GLES20.glGetUniformLocation(mProgram, UpscaleFilter.TEXTURE_SIZE_NAME);
+        if (textureSize >= 0) {
+            GLES20.glUniform2f(textureSize, mFrameWidth, mFrameHeight);
+        }
+        int texelSize = GLES20.glGetUniformLocation(mProgram, UpscaleFilter.TEXEL_SIZE_NAME);
+        if (texelSize >= 0) {
+            GLES20.glUniform2f(texelSize, 1.0f / mFrameWidth, 1.0f / mFrameHeight);
+        }
+        checkError("initialize - filter");
+    }
+
+    /**
+     * Sets the external layer program up, the scene program stays in use. The layers are not
+     * drawn if it is 0.
+     */
+    private void setLayerProgram(int program) {
+        mLayerProgram = program;
+        if (mLayerProgram == 0) {
+            Log.w(TAG, "External layers are not supported");
+            return;
+        }
+        mLayerUniformRect = GLES20.glGetUniformLocation(mLayerProgram, LAYER_RECT_NAME);
+        mLayerUniformTexMatrix = GLES20.glGetUniformLocation(mLayerProgram, LAYER_TEX_MATRIX_NAME);
+        GLES20.glUseProgram(mLayerProgram);
+        // Layers are bound to the second texture unit, the scene keeps the first.
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mLayerProgram, TEXTURE_SAMPLER2D_NAME), 1);
+        GLES20.glUseProgram(mProgram);
+        checkError("initialize - layer program");
+    }
+
+    /**
+     * Sets the overlay program up, the scene program stays in use. The overlays are not drawn if
+     * it is 0.
+     */
+    private void setOverlayProgram(int program) {
+        mOverlayProgram = program;
+        if (mOverlayProgram == 0) {
+            return;
+        }
+        mOverlayUniformRect = GLES20.glGetUniformLocation(mOverlayProgram, LAYER_RECT_NAME);
+        GLES20.glUseProgram(mOverlayProgram);
+        GLES20.glUniformMatrix4fv(
+                GLES20.glGetUniformLocation(mOverlayProgram, LAYER_TEX_MATRIX_NAME),
+                1, false, OVERLAY_TEX_MATRIX, 0);
+        GLES20.glUniform1i(
+                GLES20.glGetUniformLocation(mOverlayProgram, TEXTURE_SAMPLER2D_NAME), 1);
+        GLES20.glUseProgram(mProgram);
+        checkError("initialize - overlay program");
     }
 
     private EGLContext createContext(EGLDisplay eglDisplay, EGLConfig eglConfig) {
-        if (mParentContext == null || mParentContext == EGL10.EGL_NO_CONTEXT) {
+        if (mParentContext == null || mParentContext == EGL14.EGL_NO_CONTEXT) {
             Log.w(TAG, "mParentContext is null");
         } else {
             Log.w(TAG, "mParentContext is " + mParentContext.toString());
         }
 
-        Log.d(TAG, "Attempting creation of an OpenGLES3 context.");
-        EGLContext newContext = mEgl.eglCreateContext(
-                eglDisplay, eglConfig, mParentContext, CONTEXT_ATTRIBS_OPEN_GL_ES_3);
-        if (newContext == null || newContext == EGL10.EGL_NO_CONTEXT) {
-            Log.d(TAG, "OpenGLES3 context creation failed. Parent context might be OpenGLES2.");
-            Log.d(TAG, "Attempting creation of an OpenGLES2 context.");
-            newContext = mEgl.eglCreateContext(
-                    eglDisplay, eglConfig, mParentContext, CONTEXT_ATTRIBS_OPEN_GL_ES_2);
-        }
-
-        if (newContext == null || newContext == EGL10.EGL_NO_CONTEXT) {
+        // Same version as the parent context, whatever it is.
+        EGLContext newContext = GlContextManager.createContext(
+                eglDisplay, eglConfig, mParentContext);
+        if (newContext == EGL14.EGL_NO_CONTEXT) {
             Log.w(TAG, "Could not create context.");
             return newContext;
         }
@@ -426,23 +1011,68 @@ class RemoteDisplayTextureRenderThread extends Thread {
         return newContext;
     }
 
-    private void makeCurrent() {
-        if (!mEglContext.equals(mEgl.eglGetCurrentContext())
-                || !mEglSurface.equals(mEgl.eglGetCurrentSurface(EGL10.EGL_DRAW))) {
-            // Ok to leave this strings here since this should only happen once.
-            Log.d(TAG, "Making current: " + mEglContext.toString());
-            Log.d(TAG, "Old context:    " + mEgl.eglGetCurrentContext());
-            if (!mEgl.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
-                Log.w(TAG, "eglMakeCurrent failed: " + mEgl.eglGetError());
-            }
+    private boolean makeCurrent() {
+        Log.d(TAG, "Making current: " + mEglContext.toString());
+        Log.d(TAG, "Old context:    " + EGL14.eglGetCurrentContext());
+        if (!EGL14.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
+            Log.e(TAG, "Initialization failed. eglMakeCurrent failed: " + EGL14.eglGetError());
+            return false;
         }
+        return true;
     }
 
     private void finishGL() {
-        if (mEgl != null) {
-            mEgl.eglDestroyContext(mEglDisplay, mEglContext);
-            mEgl.eglDestroySurface(mEglDisplay, mEglSurface);
-            mEgl = null;
+        FlightRecorder.record(FlightRecorder.RD_THREAD_FINISHED);
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).detach();
+        }
+        mLayers.clear();
+        for (int i = 0; i < mOverlays.size(); i++) {
+            mOverlays.get(i).detach();
+        }
+        mOverlays.clear();
+        // Programs still building are deleted by the service.
+        if (mFilterProgramFuture != null) {
+            mFilterProgramFuture.release();
+            mFilterProgramFuture = null;
+        }
+        if (mLayerProgramFuture != null) {
+            mLayerProgramFuture.release();
+            mLayerProgramFuture = null;
+        }
+        if (mOverlayProgramFuture != null) {
+            mOverlayProgramFuture.release();
+            mOverlayProgramFuture = null;
+        }
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+        if (mLayerProgram != 0) {
+            GLES20.glDeleteProgram(mLayerProgram);
+            mLayerProgram = 0;
+        }
+        if (mOverlayProgram != 0) {
+            GLES20.glDeleteProgram(mOverlayProgram);
+            mOverlayProgram = 0;
+        }
+        if (mLatencyProbe != null) {
+            mLatencyProbe.release();
+            mLatencyProbe = null;
+        }
+        if (mGpuTimer != null) {
+            mGpuTimer.release();
+            mGpuTimer = null;
+        }
+        if (mTriangleVerticesBuffer != 0) {
+            GLES20.glDeleteBuffers(1, new int[] {mTriangleVerticesBuffer}, 0);
+            mTriangleVerticesBuffer = 0;
+        }
+        if (mEglDisplay != null) {
+            EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroyContext(mEglDisplay, mEglContext);
+            EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
         }
         mEglDisplay = null;
         mEglSurface = null;
@@ -457,16 +1087,26 @@ class RemoteDisplayTextureRenderThread extends Thread {
     private void checkError(String message) {
         int error = GLES20.glGetError();
         if (error != GLES20.GL_NO_ERROR) {
-            Log.w(TAG, "GL error 0x" + Integer.toHexString(error) + " while doing: " + message);
-            mPresentation.onGlError("RDTexture", error, message);
+            onGlError(error, message);
         }
-        if (mEgl == null) {
+        if (mEglDisplay == null) {
             return;
         }
-        error = mEgl.eglGetError();
-        if (error != EGL10.EGL_SUCCESS) {
-            Log.w(TAG, "EGL error 0x" + Integer.toHexString(error) +  " while doing: " + message);
-            mPresentation.onGlError("RDTexture", error, message);
+        error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            onEglError(error, message);
         }
     }
+
+    private void onGlError(int error, String message) {
+        Log.w(TAG, "GL error 0x" + Integer.toHexString(error) + " while doing: " + message);
+        FlightRecorder.record(FlightRecorder.GL_ERROR, error, FlightRecorder.SOURCE_RD_THREAD);
+        mPresentation.onGlError("RDTexture", error, message);
+    }
+
+    private void onEglError(int error, String message) {
+        Log.w(TAG, "EGL error 0x" + Integer.toHexString(error) +  " while doing: " + message);
+        FlightRecorder.record(FlightRecorder.EGL_ERROR, error, FlightRecorder.SOURCE_RD_THREAD);
+        mPresentation.onGlError("RDTexture", error, message);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+/**
+ * Content the RD thread draws above the scene, in the same pass. Add layers with
+ * {@link RemoteDisplayPresentation#addLayer(RemoteLayer)}. A layer owns GL resources of the RD
+ * thread between {@link #attach(RemoteDisplayTextureRenderThread)} and {@link #detach()}, i.e.
+ * for the Cast session, and is attached again for every session.
+ * <p>
+ * Layers only cause a present when their content or destination changes: what they change is
+ * added to the damage of the frame.
+ * </p>
+ */
+public abstract class RemoteLayer {
+
+    // Destination on the remote display, guarded by mRectLock. See #setDestination().
+    private final Object mRectLock = new Object();
+    private float mLeft;
+    private float mTop;
+    private float mWidth = 1.0f;
+    private float mHeight = 1.0f;
+    private boolean mRectChanged = true;
+
+    // Set while attached, to wake the RD thread up when the layer changes.
+    private volatile RemoteDisplayTextureRenderThread mRenderThread;
+
+    // Everything below is only used on the RD thread.
+    // Destination of the layer in normalized device coordinates: x, y, width and height.
+    private final float[] mDeviceRect = new float[4];
+    // Destination of the layer in remote frame pixels, as last drawn, and as to be drawn next.
+    private final int[] mDrawnRect = new int[4];
+    private final int[] mNextRect = new int[4];
+    private boolean mHasContent;
+
+    /**
+     * Sets where the layer is drawn, in fractions of the scene on the remote display from its
+     * top-left corner, letterbox bars excluded. Covers the whole scene by default. Can be called
+     * from any thread.
+     */
+    public void setDestination(float left, float top, float width, float height) {
+        synchronized (mRectLock) {
+            mLeft = left;
+            mTop = top;
+            mWidth = width;
+            mHeight = height;
+            mRectChanged = true;
+        }
+        notifyChanged();
+    }
+
+    /**
+     * Wakes the RD thread up to present the change, if the layer is attached.
+     */
+    void notifyChanged() {
+        RemoteDisplayTextureRenderThread renderThread = mRenderThread;
+        if (renderThread != null) {
+            renderThread.onLayerChanged();
+        }
+    }
+
+    /**
+     * Creates the GL resources of the layer. Called on the RD thread, with its context current.
+     */
+    void attach(RemoteDisplayTextureRenderThread renderThread) {
+        mHasContent = false;
+        SurfaceDamage.set(mDrawnRect, 0, 0, 0, 0);
+        synchronized (mRectLock) {
+            mRectChanged = true;
+        }
+        mRenderThread = renderThread;
+        onAttach();
+    }
+
+    /**
+     * Releases the GL resources of the layer. Called on the RD thread, with its context current.
+     */
+    void detach() {
+        mRenderThread = null;
+        onDetach();
+    }
+
+    /**
+     * Brings the content of the layer up to date and works out where it goes. Called on the RD
+     * thread once per present, before drawing.
+     *
+     * @param frameWidth the width of the remote frames, in pixels
+     * @param frameHeight the height of the remote frames, in pixels
+     * @param damage grown to cover what the layer changed on the remote frame
+     */
+    void update(int frameWidth, int frameHeight, int[] damage) {
+        boolean changed = false;
+        if (latchContent()) {
+            mHasContent = true;
+            changed = true;
+        }
+        synchronized (mRectLock) {
+            if (mRectChanged) {
+                mRectChanged = false;
+                mDeviceRect[0] = mLeft * 2.0f - 1.0f;
+                mDeviceRect[1] = 1.0f - (mTop + mHeight) * 2.0f;
+                mDeviceRect[2] = mWidth * 2.0f;
+                mDeviceRect[3] = mHeight * 2.0f;
+                int left = (int) Math.floor(mLeft * frameWidth);
+                int bottom = (int) Math.floor((1.0f - mTop - mHeight) * frameHeight);
+                int right = (int) Math.ceil((mLeft + mWidth) * frameWidth);
+                int top = (int) Math.ceil((1.0f - mTop) * frameHeight);
+                SurfaceDamage.set(mNextRect, left, bottom, right - left, top - bottom);
+                changed = true;
+            }
+        }
+        if (changed && mHasContent) {
+            SurfaceDamage.union(damage, mDrawnRect);
+            SurfaceDamage.union(damage, mNextRect);
+            System.arraycopy(mNextRect, 0, mDrawnRect, 0, 4);
+        }
+    }
+
+    /**
+     * Creates the GL resources of the layer, on the RD thread.
+     */
+    abstract void onAttach();
+
+    /**
+     * Releases the GL resources of the layer, on the RD thread.
+     */
+    abstract void onDetach();
+
+    /**
+     * Makes the latest content of the layer the one drawn, on the RD thread.
+     *
+     * @return whether the content changed
+     */
+    abstract boolean latchContent();
+
+    /**
+     * Whether the layer has something to draw.
+     */
+    boolean hasContent() {
+        return mHasContent;
+    }
+
+    float[] getDeviceRect() {
+        return mDeviceRect;
+    }
+
+    /**
+     * The part of the remote frame the layer was drawn to last, empty if never drawn.
+     */
+    int[] getDrawnRect() {
+        return mDrawnRect;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+/**
+ * Presents only the part of a window surface that changed. The native renderer reports which
+ * rectangle of each remote frame differs from the previous frame; from it and the age of the
+ * back buffer this works out what must be redrawn, and tells EGL what changed:
+ * <ul>
+ * <li>EGL_KHR_partial_update: the driver only loads and stores the redrawn region.</li>
+ * <li>EGL_KHR_swap_buffers_with_damage: the compositor only recomposites the damage.</li>
+ * </ul>
+ * Without buffer age the whole surface is redrawn. Without either extension the swap is a
+ * regular one. The RD thread reports the pixels it did not redraw along with the frame pacing.
+ * <p>
+ * Rectangles are int[4] of x, y, width and height, with the origin at the bottom-left as in EGL.
+ * EGL is reached through a {@link PresentTarget}. Must be used from the thread the surface is
+ * current on. Nothing is allocated per frame.
+ * </p>
+ */
+class SurfaceDamage {
+
+    // Bits of PresentTarget#getDamageFeatures().
+    static final int FEATURE_PARTIAL_UPDATE = 1;
+    static final int FEATURE_SWAP_WITH_DAMAGE = 2;
+    static final int FEATURE_BUFFER_AGE = 4;
+
+    // Number of presented frames whose damage is kept, older back buffers are redrawn in full.
+    private static final int HISTORY_SIZE = 4;
+
+    private final PresentTarget mTarget;
+    private final int mFeatures;
+    private final int mFrameWidth;
+    private final int mFrameHeight;
+    // Part of the surface the frame is drawn to, see UpscaleFilter#computeViewport().
+    private final int[] mViewport = new int[4];
+    private final int mFilterRadius;
+    private final int mSurfaceWidth;
+    private final int mSurfaceHeight;
+
+    // Damage of the latest presented frames, newest first.
+    private final int[][] mHistory = new int[HISTORY_SIZE][4];
+    private int mHistoryCount;
+
+    private final int[] mDamage = new int[4];
+    private final int[] mRedraw = new int[4];
+
+    // Statistics, reset by #resetStats().
+    private int mFrames;
+    private long mSavedPixels;
+
+    /**
+     * @param target the surface to present to
+     * @param frameWidth the width of the frames drawn to the surface, damage is reported in
+     *     frame pixels
+     * @param frameHeight the height of the frames drawn to the surface
+     * @param viewport the rectangle of the surface the frames are scaled to
+     * @param filterRadius how many texels around a pixel the filter drawing the frames reads
+     */
+    SurfaceDamage(PresentTarget target, int frameWidth, int frameHeight, int[] viewport,
+                  int filterRadius) {
+        mTarget = target;
+        mFeatures = target.getDamageFeatures();
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+        System.arraycopy(viewport, 0, mViewport, 0, 4);
+        mFilterRadius = filterRadius;
+        mSurfaceWidth = target.getSurfaceWidth();
+        mSurfaceHeight = target.getSurfaceHeight();
+    }
+
+    boolean isPartialUpdateSupported() {
+        return (mFeatures & FEATURE_PARTIAL_UPDATE) != 0;
+    }
+
+    boolean isSwapWithDamageSupported() {
+        return (mFeatures & FEATURE_SWAP_WITH_DAMAGE) != 0;
+    }
+
+    /**
+     * Starts a frame. Must be called before anything is drawn to the surface.
+     *
+     * @param frameDamage the rectangle of the frame that changed since the previous frame
+     * @return the rectangle of the surface to redraw, only valid until the next call. Pixels
+     *     outside of it must not be drawn.
+     */
+    int[] beginFrame(int[] frameDamage) {
+        toSurface(frameDamage, mDamage);
+
+        int age = (mFeatures & FEATURE_BUFFER_AGE) != 0 ? mTarget.getBufferAge() : 0;
+        if (age == 0 || age - 1 > mHistoryCount) {
+            // Unknown content, or older than the history.
+            set(mRedraw, 0, 0, mSurfaceWidth, mSurfaceHeight);
+        } else {
+            // The back buffer misses the damage of the age - 1 frames presented since it was.
+            set(mRedraw, mDamage[0], mDamage[1], mDamage[2], mDamage[3]);
+            for (int i = 0; i < age - 1; i++) {
+                union(mRedraw, mHistory[i]);
+            }
+        }
+        if ((mFeatures & FEATURE_PARTIAL_UPDATE) != 0) {
+            mTarget.setDamageRegion(mRedraw);
+        }
+
+        int[] oldest = mHistory[HISTORY_SIZE - 1];
+        System.arraycopy(mHistory, 0, mHistory, 1, HISTORY_SIZE - 1);
+        mHistory[0] = oldest;
+        set(oldest, mDamage[0], mDamage[1], mDamage[2], mDamage[3]);
+        mHistoryCount = Math.min(mHistoryCount + 1, HISTORY_SIZE);
+
+        mFrames++;
+        mSavedPixels += (long) mSurfaceWidth * mSurfaceHeight - (long) mRedraw[2] * mRedraw[3];
+        return mRedraw;
+    }
+
+    /**
+     * Whether the rectangle returned by the last {@link #beginFrame(int[])} covers the surface.
+     */
+    boolean isFullRedraw() {
+        return mRedraw[0] == 0 && mRedraw[1] == 0
+                && mRedraw[2] == mSurfaceWidth && mRedraw[3] == mSurfaceHeight;
+    }
+
+    /**
+     * Swaps the surface, with the damage of the frame if supported.
+     */
+    boolean swapBuffers() {
+        if ((mFeatures & FEATURE_SWAP_WITH_DAMAGE) != 0) {
+            return mTarget.swapBuffersWithDamage(mDamage);
+        }
+        return mTarget.swapBuffers();
+    }
+
+    int getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Number of surface pixels not redrawn since the last reset.
+     */
+    long getSavedPixels() {
+        return mSavedPixels;
+    }
+
+    void resetStats() {
+        mFrames = 0;
+        mSavedPixels = 0;
+    }
+
+    /**
+     * Scales a rectangle of the frame to the viewport, rounding outwards. A texel changes every
+     * pixel the filter reads it from, up to the filter radius away, unless the frame is copied
+     * one to one.
+     */
+    private void toSurface(int[] frameRect, int[] surfaceRect) {
+        int viewportWidth = mViewport[2];
+        int viewportHeight = mViewport[3];
+        if (mFrameWidth == viewportWidth && mFrameHeight == viewportHeight && mFilterRadius <= 1) {
+            set(surfaceRect, frameRect[0] + mViewport[0], frameRect[1] + mViewport[1],
+                    frameRect[2], frameRect[3]);
+            return;
+        }
+        if (frameRect[2] <= 0 || frameRect[3] <= 0) {
+            set(surfaceRect, 0, 0, 0, 0);
+            return;
+        }
+        int marginX = (mFilterRadius * viewportWidth + mFrameWidth - 1) / mFrameWidth;
+        int marginY = (mFilterRadius * viewportHeight + mFrameHeight - 1) / mFrameHeight;
+        int left = (int) ((long) frameRect[0] * viewportWidth / mFrameWidth) - marginX;
+        int bottom = (int) ((long) frameRect[1] * viewportHeight / mFrameHeight) - marginY;
+        int right = (int) (((long) (frameRect[0] + frameRect[2]) * viewportWidth
+                + mFrameWidth - 1) / mFrameWidth) + marginX;
+        int top = (int) (((long) (frameRect[1] + frameRect[3]) * viewportHeight
+                + mFrameHeight - 1) / mFrameHeight) + marginY;
+        left = Math.max(0, left) + mViewport[0];
+        bottom = Math.max(0, bottom) + mViewport[1];
+        right = Math.min(viewportWidth, right) + mViewport[0];
+        top = Math.min(viewportHeight, top) + mViewport[1];
+        set(surfaceRect, left, bottom, right - left, top - bottom);
+    }
+
+    static void set(int[] rect, int x, int y, int width, int height) {
+        rect[0] = x;
+        rect[1] = y;
+        rect[2] = width;
+        rect[3] = height;
+    }
+
+    /**
+     * Grows rect to also cover other. Empty rectangles are ignored.
+     */
+    static void union(int[] rect, int[] other) {
+        if (other[2] <= 0 || other[3] <= 0) {
+            return;
+        }
+        if (rect[2] <= 0 || rect[3] <= 0) {
+            set(rect, other[0], other[1], other[2], other[3]);
+            return;
+        }
+        int right = Math.max(rect[0] + rect[2], other[0] + other[2]);
+        int top = Math.max(rect[1] + rect[3], other[1] + other[3]);
+        rect[0] = Math.min(rect[0], other[0]);
+        rect[1] = Math.min(rect[1], other[1]);
+        rect[2] = right - rect[0];
+        rect[3] = top - rect[1];
+    }
+}
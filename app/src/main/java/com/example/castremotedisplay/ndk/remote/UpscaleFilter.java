@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+/**
+ * A filter the RD thread blits remote frames to the surface with, scaling them up when they are
+ * rendered below the resolution of the remote display. Every filter is a fragment shader
+ * sampling {@link #SAMPLER_NAME} at the interpolated {@code outTexCoords}, with the texture bound
+ * with GL_LINEAR filtering. It can use the size of the frame through {@link #TEXTURE_SIZE_NAME}
+ * and {@link #TEXEL_SIZE_NAME}.
+ * <p>
+ * Frames keep their aspect ratio: the rest of the surface is letterboxed. While the selected
+ * filter is built by a {@link com.example.castremotedisplay.ndk.utils.ShaderCompileService},
+ * frames are drawn with {@link #BILINEAR}.
+ * </p>
+ */
+final class UpscaleFilter {
+
+    static final String SAMPLER_NAME = "textureSampler";
+    // vec2, size of the remote frame in texels.
+    static final String TEXTURE_SIZE_NAME = "textureSize";
+    // vec2, size of a texel in texture coordinates.
+    static final String TEXEL_SIZE_NAME = "texelSize";
+
+    // Texture coordinates need more than mediump on large frames.
+    private static final String HEADER =
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n"
+                    + "precision highp float;\n"
+                    + "#else\n"
+                    + "precision mediump float;\n"
+                    + "#endif\n\n"
+                    + "varying vec2 outTexCoords;\n"
+                    + "uniform sampler2D textureSampler;\n"
+                    + "uniform vec2 textureSize;\n"
+                    + "uniform vec2 texelSize;\n";
+
+    /**
+     * Plain bilinear filtering, a single tap. Renders a texture while forcing its alpha to be 1.
+     */
+    static final UpscaleFilter BILINEAR = new UpscaleFilter("bilinear", 1,
+            "  precision mediump float;\n\n"
+                    + "varying vec2 outTexCoords;\n"
+                    + "uniform sampler2D textureSampler;\n"
+                    + "void main(void) {\n"
+                    + "    gl_FragColor = vec4(texture2D(textureSampler, outTexCoords).rgb, 1.0);\n"
+                    + "}\n");
+
+    /**
+     * Bicubic Catmull-Rom filtering. The 16 texels of the kernel are read with 9 bilinear taps:
+     * the two middle weights of each axis have the same sign and are merged into one tap.
+     */
+    static final UpscaleFilter CATMULL_ROM = new UpscaleFilter("Catmull-Rom", 2,
+            HEADER
+                    + "vec3 tap(float x, float y) {\n"
+                    + "    return texture2D(textureSampler, vec2(x, y)).rgb;\n"
+                    + "}\n"
+                    + "void main(void) {\n"
+                    + "    vec2 samplePos = outTexCoords * textureSize;\n"
+                    + "    vec2 texPos1 = floor(samplePos - 0.5) + 0.5;\n"
+                    + "    vec2 f = samplePos - texPos1;\n"
+                    + "    vec2 w0 = f * (-0.5 + f * (1.0 - 0.5 * f));\n"
+                    + "    vec2 w1 = 1.0 + f * f * (-2.5 + 1.5 * f);\n"
+                    + "    vec2 w2 = f * (0.5 + f * (2.0 - 1.5 * f));\n"
+                    + "    vec2 w3 = f * f * (-0.5 + 0.5 * f);\n"
+                    + "    vec2 w12 = w1 + w2;\n"
+                    + "    vec2 tc0 = (texPos1 - 1.0) * texelSize;\n"
+                    + "    vec2 tc12 = (texPos1 + w2 / w12) * texelSize;\n"
+                    + "    vec2 tc3 = (texPos1 + 2.0) * texelSize;\n"
+                    + "    vec3 color = (tap(tc0.x, tc0.y) * w0.x + tap(tc12.x, tc0.y) * w12.x\n"
+                    + "            + tap(tc3.x, tc0.y) * w3.x) * w0.y\n"
+                    + "        + (tap(tc0.x, tc12.y) * w0.x + tap(tc12.x, tc12.y) * w12.x\n"
+                    + "            + tap(tc3.x, tc12.y) * w3.x) * w12.y\n"
+                    + "        + (tap(tc0.x, tc3.y) * w0.x + tap(tc12.x, tc3.y) * w12.x\n"
+                    + "            + tap(tc3.x, tc3.y) * w3.x) * w3.y;\n"
+                    + "    gl_FragColor = vec4(clamp(color, 0.0, 1.0), 1.0);\n"
+                    + "}\n");
+
+    /**
+     * Bilinear filtering followed by a contrast-adaptive sharpen: the sharpening weight shrinks
+     * where the neighborhood already spans most of the range, so edges do not ring. 5 taps.
+     */
+    static final UpscaleFilter SHARPEN = new UpscaleFilter("sharpen", 2,
+            HEADER
+                    + "const float SHARPNESS = 0.5;\n"
+                    + "vec3 tap(vec2 offset) {\n"
+                    + "    return texture2D(textureSampler, outTexCoords + offset * texelSize).rgb;\n"
+                    + "}\n"
+                    + "void main(void) {\n"
+                    + "    vec3 c = tap(vec2(0.0, 0.0));\n"
+                    + "    vec3 n = tap(vec2(0.0, 1.0));\n"
+                    + "    vec3 s = tap(vec2(0.0, -1.0));\n"
+                    + "    vec3 e = tap(vec2(1.0, 0.0));\n"
+                    + "    vec3 w = tap(vec2(-1.0, 0.0));\n"
+                    + "    vec3 mn = min(c, min(min(n, s), min(e, w)));\n"
+                    + "    vec3 mx = max(c, max(max(n, s), max(e, w)));\n"
+                    + "    vec3 amp = sqrt(clamp(min(mn, 1.0 - mx) / max(mx, 0.0001), 0.0, 1.0));\n"
+                    + "    vec3 weight = -amp * mix(0.125, 0.2, SHARPNESS);\n"
+                    + "    vec3 color = (c + (n + s + e + w) * weight) / (1.0 + 4.0 * weight);\n"
+                    + "    gl_FragColor = vec4(clamp(color, 0.0, 1.0), 1.0);\n"
+                    + "}\n");
+
+    private final String mName;
+    private final int mRadius;
+    private final String mFragmentShader;
+
+    /**
+     * @param name shown in the reports
+     * @param radius how far from the sampled position the filter reads, in texels
+     * @param fragmentShader the source of the fragment shader
+     */
+    UpscaleFilter(String name, int radius, String fragmentShader) {
+        mName = name;
+        mRadius = radius;
+        mFragmentShader = fragmentShader;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int getRadius() {
+        return mRadius;
+    }
+
+    String getFragmentShader() {
+        return mFragmentShader;
+    }
+
+    /**
+     * Computes the largest rectangle of the surface with the aspect ratio of the frame, centered.
+     * The rest of the surface is letterboxed.
+     *
+     * @param viewport receives x, y, width and height
+     */
+    static void computeViewport(int frameWidth, int frameHeight, int surfaceWidth,
+                                int surfaceHeight, int[] viewport) {
+        long scaledWidth = (long) frameWidth * surfaceHeight;
+        long scaledHeight = (long) frameHeight * surfaceWidth;
+        int width = surfaceWidth;
+        int height = surfaceHeight;
+        if (frameWidth > 0 && frameHeight > 0) {
+            if (scaledWidth < scaledHeight) {
+                // Narrower than the surface, bars on the sides.
+                width = (int) ((scaledWidth + frameHeight / 2) / frameHeight);
+            } else if (scaledWidth > scaledHeight) {
+                // Wider than the surface, bars above and below.
+                height = (int) ((scaledHeight + frameWidth / 2) / frameWidth);
+            }
+        }
+        SurfaceDamage.set(viewport, (surfaceWidth - width) / 2, (surfaceHeight - height) / 2,
+                width, height);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads back the watermark row (see {@link FrameWatermark}) of the frames drawn on the remote
+ * surface. Readbacks may complete asynchronously, but always in the order they were started.
+ */
+interface WatermarkReadback {
+
+    /** {@link #poll()} result: the oldest started readback has not completed yet. */
+    int PENDING = 0;
+    /** {@link #poll()} result: the oldest started readback completed, see {@link #getRow()}. */
+    int READY = 1;
+    /** {@link #poll()} result: the oldest started readback failed and was discarded. */
+    int FAILED = 2;
+
+    /**
+     * Starts reading back the watermark row of the frame that was just drawn. Must be called
+     * before the frame is swapped.
+     *
+     * @return {@code true} if the oldest started readback had to be discarded to make room. It
+     *         is not reported by {@link #poll()}.
+     */
+    boolean start();
+
+    /**
+     * Checks on the oldest started readback. Every started readback that was not discarded by
+     * {@link #start()} is reported exactly once as either {@link #READY} or {@link #FAILED}.
+     *
+     * @return {@link #PENDING}, {@link #READY} or {@link #FAILED}
+     */
+    int poll();
+
+    /**
+     * Returns the row of the readback {@link #poll()} last reported as {@link #READY}. The
+     * buffer is only valid until the next call on this object.
+     */
+    ByteBuffer getRow();
+
+    /**
+     * Releases the resources of this readback.
+     */
+    void release();
+}
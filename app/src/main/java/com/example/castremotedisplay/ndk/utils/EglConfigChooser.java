@@ -16,6 +16,7 @@
 
 package com.example.castremotedisplay.ndk.utils;
 
+import android.opengl.EGL14;
 import android.util.Log;
 
 import javax.microedition.khronos.egl.EGL10;
@@ -31,7 +32,8 @@ public final class EglConfigChooser {
     private static final String TAG = "EglConfigChooser";
 
     // This constant is not defined in the Android package of OpenGL,
-    // but indicates we want OpenGL ES 2.
+    // but indicates we want OpenGL ES 2. Replaced by the renderable type of the contexts
+    // GlContextManager creates when choosing a config.
     // http://stackoverflow.com/questions/8090608/how-to-set-opengl-version-in-either-egl-or-glsurfaceview
     private static final int EGL_OPEN_GL_ES2_BIT = 4;
 
@@ -63,11 +65,41 @@ public final class EglConfigChooser {
             EGL10.EGL_ALPHA_SIZE, ALPHA_SIZE,
             EGL10.EGL_DEPTH_SIZE, DEPTH_SIZE,
             EGL10.EGL_STENCIL_SIZE, STENCIL_SIZE,
+            EGL10.EGL_RENDERABLE_TYPE, EGL_OPEN_GL_ES2_BIT,
             EGL10.EGL_NONE
     };
 
     private static final int[] sConfigAttributeValue = new int[1];
 
+    // DEFAULT_CONFIG_SPEC and SIMPLE_CONFIG_SPEC asking for the renderable type of the contexts
+    // we create.
+    private static int[] sDefaultConfigSpec;
+    private static int[] sSimpleConfigSpec;
+
+    private static synchronized int[] getDefaultConfigSpec() {
+        if (sDefaultConfigSpec == null) {
+            sDefaultConfigSpec = withRenderableType(DEFAULT_CONFIG_SPEC);
+        }
+        return sDefaultConfigSpec;
+    }
+
+    private static synchronized int[] getSimpleConfigSpec() {
+        if (sSimpleConfigSpec == null) {
+            sSimpleConfigSpec = withRenderableType(SIMPLE_CONFIG_SPEC);
+        }
+        return sSimpleConfigSpec;
+    }
+
+    private static int[] withRenderableType(int[] configSpec) {
+        int[] spec = configSpec.clone();
+        for (int i = 0; i < spec.length - 1; i += 2) {
+            if (spec[i] == EGL10.EGL_RENDERABLE_TYPE) {
+                spec[i + 1] = GlContextManager.getRenderableType();
+            }
+        }
+        return spec;
+    }
+
     /**
      * Chooses the best config for the available hardware.
      * See https://www.khronos.org/registry/egl/sdk/docs/man/html/eglChooseConfig.xhtml for more
@@ -77,7 +109,7 @@ public final class EglConfigChooser {
         int[] numConfigsArray = new int[1];
         int numConfigs;
 
-        int[] configSpec = DEFAULT_CONFIG_SPEC;
+        int[] configSpec = getDefaultConfigSpec();
 
         // Get the list of configs.
         if (!egl.eglChooseConfig(display, configSpec, null, 0, numConfigsArray)) {
@@ -88,7 +120,7 @@ public final class EglConfigChooser {
         numConfigs = numConfigsArray[0];
         if (numConfigs == 0) {
             // Switch to the simple config and try again.
-            configSpec = SIMPLE_CONFIG_SPEC;
+            configSpec = getSimpleConfigSpec();
             if (!egl.eglChooseConfig(display, configSpec, null, 0, numConfigsArray)) {
                 Log.e(TAG, "Could not fetch configs for simple spec.");
                 return null;
@@ -135,6 +167,83 @@ public final class EglConfigChooser {
         return null;
     }
 
+    /**
+     * Same as {@link #chooseConfig(EGL10, EGLDisplay)} for callers using the EGL14 bindings.
+     * The config specs are shared since the EGL10 and EGL14 attribute values are identical.
+     */
+    public static android.opengl.EGLConfig chooseConfig(android.opengl.EGLDisplay display) {
+        int[] numConfigsArray = new int[1];
+        int numConfigs;
+
+        int[] configSpec = getDefaultConfigSpec();
+
+        // Get the list of configs.
+        if (!EGL14.eglChooseConfig(display, configSpec, 0, null, 0, 0, numConfigsArray, 0)) {
+            Log.e(TAG, "Could not fetch configs for default spec.");
+            return null;
+        }
+
+        numConfigs = numConfigsArray[0];
+        if (numConfigs == 0) {
+            // Switch to the simple config and try again.
+            configSpec = getSimpleConfigSpec();
+            if (!EGL14.eglChooseConfig(display, configSpec, 0, null, 0, 0, numConfigsArray, 0)) {
+                Log.e(TAG, "Could not fetch configs for simple spec.");
+                return null;
+            }
+        }
+
+        numConfigs = numConfigsArray[0];
+        if (numConfigs <= 0) {
+            Log.e(TAG, "No compatible EGL configs found.");
+            return null;
+        }
+
+        // Get the actual configs in the array.
+        android.opengl.EGLConfig[] configs = new android.opengl.EGLConfig[numConfigs];
+        if (!EGL14.eglChooseConfig(
+                display, configSpec, 0, configs, 0, numConfigs, numConfigsArray, 0)) {
+            Log.e(TAG, "Failed to populate array of EGL configs.");
+            return null;
+        }
+        android.opengl.EGLConfig config = findBestConfig(display, configs);
+        if (config == null) {
+            Log.e(TAG, "Failed to find config.");
+            return null;
+        }
+        return config;
+    }
+
+    private static android.opengl.EGLConfig findBestConfig(
+            android.opengl.EGLDisplay display, android.opengl.EGLConfig[] configs) {
+        for (android.opengl.EGLConfig config : configs) {
+            int depthSize = findConfigAttribute(display, config, EGL14.EGL_DEPTH_SIZE, 0);
+            int stencilSize = findConfigAttribute(display, config, EGL14.EGL_STENCIL_SIZE, 0);
+            if ((depthSize >= DEPTH_SIZE) && (stencilSize >= STENCIL_SIZE)) {
+                int redSize = findConfigAttribute(display, config, EGL14.EGL_RED_SIZE, 0);
+                int greenSize = findConfigAttribute(display, config, EGL14.EGL_GREEN_SIZE, 0);
+                int blueSize = findConfigAttribute(display, config, EGL14.EGL_BLUE_SIZE, 0);
+                int alphaSize = findConfigAttribute(display, config, EGL14.EGL_ALPHA_SIZE, 0);
+                if ((redSize == RED_SIZE)
+                        && (greenSize == GREEN_SIZE)
+                        && (blueSize == BLUE_SIZE)
+                        && (alphaSize == ALPHA_SIZE)) {
+                    return config;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int findConfigAttribute(android.opengl.EGLDisplay display,
+                                           android.opengl.EGLConfig config,
+                                           int attribute, int defaultValue) {
+        if (EGL14.eglGetConfigAttrib(display, config, attribute, sConfigAttributeValue, 0)) {
+            return sConfigAttributeValue[0];
+        }
+        return defaultValue;
+    }
+
     private static int findConfigAttribute(EGL10 egl, EGLDisplay display, EGLConfig config,
                                            int attribute, int defaultValue) {
         if (egl.eglGetConfigAttrib(display, config, attribute, sConfigAttributeValue)) {
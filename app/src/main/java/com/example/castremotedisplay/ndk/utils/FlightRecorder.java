@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.utils;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Always-on flight recorder of the render path. Events of the Java side and of the native
+ * renderer go to the same ring of fixed-size binary events, in a memory-mapped file of the app
+ * (see FlightRecorder.h). The file survives the process: pull it after a stutter or a black
+ * screen report and turn it into a timeline with the decoder of app/src/host, e.g.
+ * {@code adb exec-out run-as <package> cat files/flight_recorder.bin > flight_recorder.bin}
+ * <p>
+ * {@link #record} never allocates nor makes a syscall and can be called from any thread. Events
+ * recorded before {@link #open(Context)} are dropped.
+ * </p>
+ */
+public final class FlightRecorder {
+
+    private static final String FILE_NAME = "flight_recorder.bin";
+
+    static {
+        System.loadLibrary("native");
+    }
+
+    // Event types recorded from Java, must be kept in sync with FlightRecorder.h. Arguments
+    // follow each type.
+    /** Frame ID, texture. */
+    public static final int FRAME_PRESENTED = 5;
+    /**
+     * 1 if the swap succeeded, else 0, microseconds blocked in the swap. The EGL error of a
+     * failed swap follows.
+     */
+    public static final int SWAP = 8;
+    /** GL error, {@link #SOURCE_RD_THREAD}. */
+    public static final int GL_ERROR = 9;
+    /** EGL error, {@link #SOURCE_RD_THREAD}. */
+    public static final int EGL_ERROR = 10;
+    /** Surface width, height. */
+    public static final int RD_THREAD_STARTED = 11;
+    public static final int RD_THREAD_FINISHED = 12;
+    /** Frame ID, texture. */
+    public static final int FRAME_LATCHED = 15;
+
+    public static final int SOURCE_RD_THREAD = 1;
+
+    private FlightRecorder() {
+    }
+
+    /**
+     * Starts recording to the file of the app. Events of previous processes are kept. Returns
+     * whether events are recorded, calling it again is harmless.
+     */
+    public static boolean open(Context context) {
+        return nativeOpen(new File(context.getFilesDir(), FILE_NAME).getPath());
+    }
+
+    public static void record(int type) {
+        nativeRecord(type, 0, 0, 0, 0);
+    }
+
+    public static void record(int type, int arg0, int arg1) {
+        nativeRecord(type, arg0, arg1, 0, 0);
+    }
+
+    private static native boolean nativeOpen(String path);
+
+    private static native void nativeRecord(int type, int arg0, int arg1, int arg2, int arg3);
+}
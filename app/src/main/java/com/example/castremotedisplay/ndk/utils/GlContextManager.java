@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.utils;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.util.Log;
+
+/**
+ * Single place deciding how the OpenGL ES contexts of the app are created, so that all the
+ * contexts of the share group (the view, the headless driver and the Remote Display render
+ * thread) use the same, highest available, OpenGL ES version.
+ * <p>
+ * Also exposes the capabilities of those contexts, detected once by the native renderer from the
+ * version and extension strings (see GLCapabilities.h), so fast paths can be enabled per device.
+ * </p>
+ */
+public final class GlContextManager {
+
+    private static final String TAG = "GlContextManager";
+
+    private static final String EGL_KHR_SURFACELESS_CONTEXT = "EGL_KHR_surfaceless_context";
+
+    static {
+        System.loadLibrary("native");
+    }
+
+    // Capability bits, must be kept in sync with GLCapabilities.h
+    public static final int CAPABILITY_ES3 = 1 << 0;
+    public static final int CAPABILITY_FENCE_SYNC = 1 << 1;
+    public static final int CAPABILITY_PIXEL_BUFFER_OBJECT = 1 << 2;
+    public static final int CAPABILITY_INSTANCING = 1 << 3;
+    public static final int CAPABILITY_VERTEX_ARRAY_OBJECT = 1 << 4;
+    public static final int CAPABILITY_INVALIDATE_FRAMEBUFFER = 1 << 5;
+    public static final int CAPABILITY_DISCARD_FRAMEBUFFER = 1 << 6;
+    public static final int CAPABILITY_PROGRAM_BINARY = 1 << 7;
+    public static final int CAPABILITY_DEBUG = 1 << 8;
+    public static final int CAPABILITY_TIMER_QUERY = 1 << 9;
+    public static final int CAPABILITY_PARALLEL_SHADER_COMPILE = 1 << 10;
+    public static final int CAPABILITY_PARTIAL_UPDATE = 1 << 11;
+    public static final int CAPABILITY_SWAP_WITH_DAMAGE = 1 << 12;
+    public static final int CAPABILITY_BUFFER_AGE = 1 << 13;
+
+    private static final int[] PROBE_CONFIG_SPEC = {
+            EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+            EGL14.EGL_NONE
+    };
+
+    private static final int[] OFFSCREEN_CONFIG_SPEC = {
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+            EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+            EGL14.EGL_NONE
+    };
+    // Index of the EGL_RENDERABLE_TYPE value in OFFSCREEN_CONFIG_SPEC.
+    private static final int OFFSCREEN_CONFIG_SPEC_RENDERABLE_TYPE = 9;
+
+    private static final int[] PBUFFER_ATTRIBS = new int[] {
+            EGL14.EGL_WIDTH, 1,
+            EGL14.EGL_HEIGHT, 1,
+            EGL14.EGL_NONE
+    };
+
+    private static final int[] CONTEXT_ATTRIBS_OPEN_GL_ES_2 = new int[] {
+            EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+            EGL14.EGL_NONE
+    };
+
+    private static final int[] CONTEXT_ATTRIBS_OPEN_GL_ES_3 = new int[] {
+            EGL14.EGL_CONTEXT_CLIENT_VERSION, 3,
+            EGL14.EGL_NONE
+    };
+
+    // 0 until probed.
+    private static int sGlesVersion;
+    // -1 until detected.
+    private static volatile int sCapabilities = -1;
+
+    /**
+     * A context of the share group for threads without a window, see
+     * {@link #createOffscreenContext(EGLContext)}. Only used from the thread that created it.
+     */
+    public static final class OffscreenContext {
+        private EGLDisplay mDisplay;
+        private EGLContext mContext;
+        private EGLSurface mSurface;
+
+        private OffscreenContext(EGLDisplay display, EGLContext context, EGLSurface surface) {
+            mDisplay = display;
+            mContext = context;
+            mSurface = surface;
+        }
+
+        /**
+         * Whether the context is made current without a surface, rather than on a pbuffer.
+         */
+        public boolean isSurfaceless() {
+            return mSurface == EGL14.EGL_NO_SURFACE;
+        }
+
+        /**
+         * Makes the context current on the calling thread.
+         *
+         * @return {@code false} if eglMakeCurrent failed, the error is logged.
+         */
+        public boolean makeCurrent() {
+            if (!EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+                Log.w(TAG, "eglMakeCurrent failed: " + EGL14.eglGetError());
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Releases the context from the calling thread and destroys it with its pbuffer. Does
+         * nothing once released.
+         */
+        public void release() {
+            if (mDisplay == null) {
+                return;
+            }
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            if (mSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(mDisplay, mSurface);
+                mSurface = EGL14.EGL_NO_SURFACE;
+            }
+            EGL14.eglDestroyContext(mDisplay, mContext);
+            mContext = null;
+            mDisplay = null;
+        }
+    }
+
+    private GlContextManager() {
+    }
+
+    /**
+     * Returns the major OpenGL ES version every context is created with: 3 if the device can
+     * create an OpenGL ES 3 context, 2 otherwise. Probed once with a throwaway context.
+     */
+    public static synchronized int getGlesVersion() {
+        if (sGlesVersion == 0) {
+            sGlesVersion = probeGlesVersion();
+            Log.d(TAG, "Contexts use OpenGL ES " + sGlesVersion);
+        }
+        return sGlesVersion;
+    }
+
+    /**
+     * Returns the EGL_RENDERABLE_TYPE bit configs must have for contexts of
+     * {@link #getGlesVersion()}.
+     */
+    public static int getRenderableType() {
+        return getGlesVersion() >= 3 ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT;
+    }
+
+    /**
+     * Returns the eglCreateContext attributes for contexts of {@link #getGlesVersion()}. The
+     * values are the same for EGL10, for callers stuck with it such as GLSurfaceView.
+     */
+    public static int[] getContextAttributes() {
+        return getGlesVersion() >= 3 ? CONTEXT_ATTRIBS_OPEN_GL_ES_3 : CONTEXT_ATTRIBS_OPEN_GL_ES_2;
+    }
+
+    /**
+     * Creates a context of the share group.
+     *
+     * @param shareContext The context to share objects with, or EGL_NO_CONTEXT for the first
+     *     context of the group.
+     * @return The new context, or EGL_NO_CONTEXT on failure.
+     */
+    public static EGLContext createContext(EGLDisplay display, EGLConfig config,
+                                           EGLContext shareContext) {
+        EGLContext context = EGL14.eglCreateContext(
+                display, config, shareContext, getContextAttributes(), 0);
+        if (context == null || context == EGL14.EGL_NO_CONTEXT) {
+            Log.e(TAG, "Could not create OpenGL ES " + getGlesVersion() + " context: 0x"
+                    + Integer.toHexString(EGL14.eglGetError()));
+            return EGL14.EGL_NO_CONTEXT;
+        }
+        return context;
+    }
+
+    /**
+     * Creates a context of the share group for a thread without a window. It has no surface if
+     * EGL_KHR_surfaceless_context is supported, a 1x1 pbuffer otherwise. It is not made current.
+     *
+     * @param shareContext The context to share objects with.
+     * @return The new context, or {@code null} on failure, the error is logged.
+     */
+    public static OffscreenContext createOffscreenContext(EGLContext shareContext) {
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (display == EGL14.EGL_NO_DISPLAY
+                || !EGL14.eglInitialize(display, version, 0, version, 1)) {
+            Log.e(TAG, "eglInitialize failed: " + EGL14.eglGetError());
+            return null;
+        }
+
+        int[] configSpec = OFFSCREEN_CONFIG_SPEC.clone();
+        configSpec[OFFSCREEN_CONFIG_SPEC_RENDERABLE_TYPE] = getRenderableType();
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(display, configSpec, 0, configs, 0, 1, numConfigs, 0)
+                || numConfigs[0] == 0) {
+            Log.e(TAG, "No pbuffer config: " + EGL14.eglGetError());
+            return null;
+        }
+
+        // Same OpenGL ES version as the view, the native renderer may use ES3.
+        EGLContext context = createContext(display, configs[0], shareContext);
+        if (context == EGL14.EGL_NO_CONTEXT) {
+            return null;
+        }
+
+        EGLSurface surface = EGL14.EGL_NO_SURFACE;
+        if (!hasExtension(EGL14.eglQueryString(display, EGL14.EGL_EXTENSIONS),
+                EGL_KHR_SURFACELESS_CONTEXT)) {
+            surface = EGL14.eglCreatePbufferSurface(display, configs[0], PBUFFER_ATTRIBS, 0);
+            if (surface == null || surface == EGL14.EGL_NO_SURFACE) {
+                Log.e(TAG, "Could not create pbuffer: " + EGL14.eglGetError());
+                EGL14.eglDestroyContext(display, context);
+                return null;
+            }
+        }
+        return new OffscreenContext(display, context, surface);
+    }
+
+    /**
+     * Tells whether an extension string, e.g. from eglQueryString, lists the given extension.
+     * Names are matched as whole tokens, one extension may be the prefix of another.
+     */
+    public static boolean hasExtension(String extensions, String name) {
+        if (extensions == null) {
+            return false;
+        }
+        int length = name.length();
+        for (int start = extensions.indexOf(name); start >= 0;
+                start = extensions.indexOf(name, start + length)) {
+            int end = start + length;
+            if ((start == 0 || extensions.charAt(start - 1) == ' ')
+                    && (end == extensions.length() || extensions.charAt(end) == ' ')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether all the given capabilities are available. The first call must happen on a
+     * thread with a current context, the native renderer does it when it initializes.
+     */
+    public static boolean hasCapability(int capability) {
+        int capabilities = sCapabilities;
+        if (capabilities == -1) {
+            capabilities = nativeGetCapabilities();
+            sCapabilities = capabilities;
+        }
+        return (capabilities & capability) == capability;
+    }
+
+    /**
+     * Sets how many threads the driver may use to compile the shaders of the current context,
+     * from KHR_parallel_shader_compile. Only valid with
+     * {@link #CAPABILITY_PARALLEL_SHADER_COMPILE}.
+     */
+    public static void setMaxShaderCompilerThreads(int count) {
+        nativeSetMaxShaderCompilerThreads(count);
+    }
+
+    private static int probeGlesVersion() {
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (display == EGL14.EGL_NO_DISPLAY
+                || !EGL14.eglInitialize(display, version, 0, version, 1)) {
+            Log.w(TAG, "eglInitialize failed: " + EGL14.eglGetError());
+            return 2;
+        }
+
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(display, PROBE_CONFIG_SPEC, 0, configs, 0, 1, numConfigs, 0)
+                || numConfigs[0] == 0) {
+            return 2;
+        }
+
+        EGLContext context = EGL14.eglCreateContext(
+                display, configs[0], EGL14.EGL_NO_CONTEXT, CONTEXT_ATTRIBS_OPEN_GL_ES_3, 0);
+        if (context == null || context == EGL14.EGL_NO_CONTEXT) {
+            return 2;
+        }
+        EGL14.eglDestroyContext(display, context);
+        return 3;
+    }
+
+    private static native int nativeGetCapabilities();
+    private static native void nativeSetMaxShaderCompilerThreads(int count);
+}
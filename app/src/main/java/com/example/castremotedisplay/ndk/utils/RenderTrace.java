@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.utils;
+
+import android.os.Trace;
+
+/**
+ * Tracing facade for the Java side of the render path. Sections show up in systrace and
+ * Perfetto through {@link Trace}. When tracing is off no sink is installed, and every call costs
+ * a single null check. Section names must be constants, so that tracing never allocates.
+ * <p>
+ * Async sections use the frame ID as cookie, and link a frame produced by the native renderer
+ * to its presentation on the Remote Display render thread: the section ends once the frame is
+ * swapped, or as soon as a newer frame replaces it. The SDK only exposes them from
+ * Android Q, so they go through the native ATrace wrapper (see RenderTrace.h). The native
+ * renderer checks whether the app is being traced on every frame, and tells the Java side when
+ * that changes.
+ * </p>
+ */
+public final class RenderTrace {
+
+    /** Name of the async section spanning a remote frame from production to presentation. */
+    public static final String REMOTE_FRAME_FLOW = "RemoteFrame";
+
+    /**
+     * Receives the trace events. Replaced by a fake in tests to check how sections nest.
+     */
+    public interface Sink {
+        void beginSection(String name);
+
+        void endSection();
+
+        void beginAsyncSection(String name, int cookie);
+
+        void endAsyncSection(String name, int cookie);
+    }
+
+    // Null while tracing is disabled.
+    private static Sink sSink;
+    // Set once a sink was installed with #setSink(Sink), #refresh() then leaves it alone.
+    private static boolean sSinkOverridden;
+    // Whether the app is being traced, as last told by the native renderer.
+    private static volatile boolean sTracingEnabled;
+
+    private RenderTrace() {
+    }
+
+    /**
+     * Installs a sink, or {@code null} to disable tracing until the next call.
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink;
+        sSinkOverridden = true;
+    }
+
+    /**
+     * Enables or disables the Android sink depending on whether the app is being traced, as last
+     * told by the native renderer. Only reads a field, call it once per frame. Before Android M
+     * the native renderer can not query the tracing state and always reports it enabled, the
+     * sink then stays installed and {@link Trace} does the check.
+     */
+    public static void refresh() {
+        if (sSinkOverridden) {
+            return;
+        }
+        sSink = sTracingEnabled ? AndroidSink.INSTANCE : null;
+    }
+
+    /**
+     * Called by the native renderer on the thread rendering frames, when the app starts or stops
+     * being traced.
+     */
+    public static void onTracingStateChanged(boolean enabled) {
+        sTracingEnabled = enabled;
+    }
+
+    public static void begin(String name) {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.beginSection(name);
+        }
+    }
+
+    public static void end() {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.endSection();
+        }
+    }
+
+    public static void beginAsync(String name, int cookie) {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.beginAsyncSection(name, cookie);
+        }
+    }
+
+    public static void endAsync(String name, int cookie) {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.endAsyncSection(name, cookie);
+        }
+    }
+
+    /**
+     * Sink writing to the platform trace. Kept in its own class so the native library is only
+     * loaded once it is used, and fakes can be installed without it.
+     */
+    private static final class AndroidSink implements Sink {
+
+        static {
+            System.loadLibrary("native");
+        }
+
+        static final AndroidSink INSTANCE = new AndroidSink();
+
+        @Override
+        public void beginSection(String name) {
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void endSection() {
+            Trace.endSection();
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+            nativeBeginAsyncSection(name, cookie);
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+            nativeEndAsyncSection(name, cookie);
+        }
+
+        static native void nativeBeginAsyncSection(String name, int cookie);
+
+        static native void nativeEndAsyncSection(String name, int cookie);
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.utils;
+
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compiles and links programs off the render threads, so new shaders do not stall the first
+ * frames that need them. Render loops submit the sources with {@link #compile} and poll the
+ * returned {@link ProgramFuture} every frame, drawing with a fallback program until it is done.
+ * <p>
+ * Each worker thread owns an EGL context of the share group of the view, made current without a
+ * surface if EGL_KHR_surfaceless_context is supported, on a 1x1 pbuffer otherwise. The programs
+ * it links can be used by every other context of the group. Where KHR_parallel_shader_compile is
+ * supported a single worker issues all the compiles and the driver runs them on its own threads:
+ * completion is then polled with GL_COMPLETION_STATUS_KHR, never blocking the worker. Otherwise
+ * the compiles are spread over a few workers, each blocking on its link status.
+ * </p>
+ * <p>
+ * There is one service per share group, started with the view context and released with it.
+ * Render threads get it through {@link #get()}, and compile synchronously when there is none.
+ * </p>
+ */
+public final class ShaderCompileService {
+    private static final String TAG = "ShaderCompileService";
+
+    // From KHR_parallel_shader_compile.
+    private static final int GL_COMPLETION_STATUS_KHR = 0x91B1;
+
+    // How often to check on the compiles issued to the driver, in milliseconds.
+    private static final long COMPLETION_POLL_INTERVAL_MS = 2;
+
+    // Workers without KHR_parallel_shader_compile, each compiles a program at a time.
+    private static final int MAX_BLOCKING_WORKERS = 2;
+
+    private static volatile ShaderCompileService sInstance;
+
+    /**
+     * A program being compiled. Render loops poll {@link #isDone()}, which never blocks.
+     */
+    public static final class ProgramFuture {
+        private final String mName;
+        private final String mVertexSource;
+        private final String mFragmentSource;
+        private final String[] mAttributes;
+        private final long mSubmitTimeMillis;
+
+        private volatile boolean mDone;
+        // 0 until done, and if the program failed to build. Guarded by this.
+        private int mProgram;
+        // Guarded by this.
+        private boolean mReleased;
+
+        // Only used by the worker.
+        private int mVertexShader;
+        private int mFragmentShader;
+        private int mPendingProgram;
+
+        private ProgramFuture(String name, String vertexSource, String fragmentSource,
+                              String[] attributes) {
+            mName = name;
+            mVertexSource = vertexSource;
+            mFragmentSource = fragmentSource;
+            mAttributes = attributes;
+            mSubmitTimeMillis = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Whether the program is done building, successfully or not.
+         */
+        public boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Returns the linked program, usable from every context of the share group, or 0 if it
+         * is not done or failed to build. The caller owns the program once it got it.
+         */
+        public synchronized int getProgram() {
+            return mProgram;
+        }
+
+        /**
+         * Gives up on the program. If it is done it is deleted, the current context must then
+         * belong to the share group. Otherwise the worker deletes it once linked.
+         */
+        public synchronized void release() {
+            mReleased = true;
+            if (mProgram != 0) {
+                GLES20.glDeleteProgram(mProgram);
+                mProgram = 0;
+            }
+        }
+
+        private synchronized boolean complete(int program) {
+            mDone = true;
+            if (mReleased) {
+                return false;
+            }
+            mProgram = program;
+            return true;
+        }
+
+        private synchronized boolean isReleased() {
+            return mReleased;
+        }
+    }
+
+    private final Worker[] mWorkers;
+    private final boolean mParallelCompile;
+    // Round robin over the workers. Guarded by this.
+    private int mNextWorker;
+
+    private ShaderCompileService(EGLContext shareContext) {
+        mParallelCompile = GlContextManager.hasCapability(
+                GlContextManager.CAPABILITY_PARALLEL_SHADER_COMPILE);
+        int workerCount = mParallelCompile ? 1 : Math.max(1, Math.min(MAX_BLOCKING_WORKERS,
+                Runtime.getRuntime().availableProcessors() / 2));
+        mWorkers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Worker(TAG + "-" + i, shareContext);
+        }
+    }
+
+    /**
+     * Starts the service of the share group of the given context, replacing the previous one.
+     * Blocks until the worker contexts exist, so the share context must stay alive until this
+     * returns. The capabilities must have been detected, see {@link GlContextManager}.
+     *
+     * @return {@code false} if no worker context could be created, {@link #get()} then returns
+     *     {@code null} and programs are compiled synchronously.
+     */
+    public static synchronized boolean start(EGLContext shareContext) {
+        release();
+        ShaderCompileService service = new ShaderCompileService(shareContext);
+        int started = 0;
+        for (Worker worker : service.mWorkers) {
+            if (worker.start()) {
+                started++;
+            }
+        }
+        if (started < service.mWorkers.length) {
+            service.shutdown();
+            return false;
+        }
+        Log.d(TAG, "Started " + started + " workers, parallel compile " + service.mParallelCompile);
+        sInstance = service;
+        return true;
+    }
+
+    /**
+     * Stops the workers and destroys their contexts. Programs still building are never done.
+     */
+    public static synchronized void release() {
+        ShaderCompileService service = sInstance;
+        if (service != null) {
+            sInstance = null;
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Returns the running service, or {@code null} if there is none.
+     */
+    public static ShaderCompileService get() {
+        return sInstance;
+    }
+
+    /**
+     * Queues a program for compilation.
+     *
+     * @param name Name of the program in the logs.
+     * @param attributes Attribute names bound to the location of their index before linking,
+     *     so the attribute setup does not depend on the program. May be {@code null}.
+     */
+    public ProgramFuture compile(String name, String vertexSource, String fragmentSource,
+                                 String[] attributes) {
+        ProgramFuture future = new ProgramFuture(name, vertexSource, fragmentSource, attributes);
+        Worker worker;
+        synchronized (this) {
+            worker = mWorkers[mNextWorker];
+            mNextWorker = (mNextWorker + 1) % mWorkers.length;
+        }
+        worker.submit(future);
+        return future;
+    }
+
+    private void shutdown() {
+        for (Worker worker : mWorkers) {
+            worker.release();
+        }
+    }
+
+    private final class Worker {
+        private final EGLContext mShareContext;
+        private final HandlerThread mThread;
+        private Handler mHandler;
+
+        private GlContextManager.OffscreenContext mContext;
+
+        // Programs issued to the driver and not complete yet, only accessed from the worker.
+        private final ArrayList<ProgramFuture> mInFlight = new ArrayList<>();
+
+        private final Runnable mPollCompletion = new Runnable() {
+            @Override
+            public void run() {
+                pollCompletion();
+            }
+        };
+
+        Worker(String name, EGLContext shareContext) {
+            mShareContext = shareContext;
+            mThread = new HandlerThread(name);
+        }
+
+        boolean start() {
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+            final boolean[] initialized = new boolean[1];
+            runAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    initialized[0] = initializeGL();
+                }
+            });
+            return initialized[0];
+        }
+
+        void release() {
+            if (mHandler == null) {
+                return;
+            }
+            runAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.removeCallbacks(mPollCompletion);
+                    for (int i = 0; i < mInFlight.size(); i++) {
+                        deleteObjects(mInFlight.get(i));
+                    }
+                    mInFlight.clear();
+                    finishGL();
+                }
+            });
+            mThread.quit();
+        }
+
+        void submit(final ProgramFuture future) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mContext == null || future.isReleased()) {
+                        return;
+                    }
+                    issue(future);
+                    if (mParallelCompile) {
+                        // The driver compiles in the background, take the next program.
+                        mInFlight.add(future);
+                        if (mInFlight.size() == 1) {
+                            mHandler.postDelayed(mPollCompletion, COMPLETION_POLL_INTERVAL_MS);
+                        }
+                    } else {
+                        // The status queries block until the driver is done.
+                        finish(future);
+                    }
+                }
+            });
+        }
+
+        private void issue(ProgramFuture future) {
+            future.mVertexShader = issueShader(GLES20.GL_VERTEX_SHADER, future.mVertexSource);
+            future.mFragmentShader =
+                    issueShader(GLES20.GL_FRAGMENT_SHADER, future.mFragmentSource);
+            int program = GLES20.glCreateProgram();
+            if (future.mAttributes != null) {
+                for (int i = 0; i < future.mAttributes.length; i++) {
+                    GLES20.glBindAttribLocation(program, i, future.mAttributes[i]);
+                }
+            }
+            GLES20.glAttachShader(program, future.mVertexShader);
+            GLES20.glAttachShader(program, future.mFragmentShader);
+            GLES20.glLinkProgram(program);
+            future.mPendingProgram = program;
+        }
+
+        private int issueShader(int type, String source) {
+            int shader = GLES20.glCreateShader(type);
+            GLES20.glShaderSource(shader, source);
+            GLES20.glCompileShader(shader);
+            return shader;
+        }
+
+        private void pollCompletion() {
+            int[] status = new int[1];
+            for (int i = mInFlight.size() - 1; i >= 0; i--) {
+                ProgramFuture future = mInFlight.get(i);
+                GLES20.glGetProgramiv(
+                        future.mPendingProgram, GL_COMPLETION_STATUS_KHR, status, 0);
+                if (status[0] == GLES20.GL_TRUE) {
+                    mInFlight.remove(i);
+                    finish(future);
+                }
+            }
+            if (!mInFlight.isEmpty()) {
+                mHandler.postDelayed(mPollCompletion, COMPLETION_POLL_INTERVAL_MS);
+            }
+        }
+
+        /**
+         * Checks the result of a program the driver is done with and hands it over.
+         */
+        private void finish(ProgramFuture future) {
+            int program = future.mPendingProgram;
+            int[] status = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+            boolean linked = status[0] == GLES20.GL_TRUE;
+            if (!linked) {
+                logShaderError(future, future.mVertexShader);
+                logShaderError(future, future.mFragmentShader);
+                Log.e(TAG, "Error while linking " + future.mName + ":\n"
+                        + GLES20.glGetProgramInfoLog(program));
+                deleteObjects(future);
+                future.complete(0);
+                return;
+            }
+
+            // The program keeps the compiled code, the shaders are not needed anymore.
+            GLES20.glDetachShader(program, future.mVertexShader);
+            GLES20.glDetachShader(program, future.mFragmentShader);
+            GLES20.glDeleteShader(future.mVertexShader);
+            GLES20.glDeleteShader(future.mFragmentShader);
+            future.mVertexShader = 0;
+            future.mFragmentShader = 0;
+            // Other contexts only see the linked program once the commands are complete.
+            GLES20.glFinish();
+            Log.d(TAG, future.mName + " ready after "
+                    + (SystemClock.uptimeMillis() - future.mSubmitTimeMillis) + "ms");
+            if (!future.complete(program)) {
+                GLES20.glDeleteProgram(program);
+            }
+            future.mPendingProgram = 0;
+        }
+
+        private void logShaderError(ProgramFuture future, int shader) {
+            int[] status = new int[1];
+            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+            if (status[0] != GLES20.GL_TRUE) {
+                Log.e(TAG, "Error while compiling a shader of " + future.mName + ":\n"
+                        + GLES20.glGetShaderInfoLog(shader));
+            }
+        }
+
+        private void deleteObjects(ProgramFuture future) {
+            GLES20.glDeleteShader(future.mVertexShader);
+            GLES20.glDeleteShader(future.mFragmentShader);
+            GLES20.glDeleteProgram(future.mPendingProgram);
+            future.mVertexShader = 0;
+            future.mFragmentShader = 0;
+            future.mPendingProgram = 0;
+        }
+
+        private void runAndWait(final Runnable runnable) {
+            final CountDownLatch done = new CountDownLatch(1);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    runnable.run();
+                    done.countDown();
+                }
+            });
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean initializeGL() {
+            mContext = GlContextManager.createOffscreenContext(mShareContext);
+            if (mContext == null) {
+                Log.e(TAG, "Initialization failed. Could not create EGL context.");
+                return false;
+            }
+            if (!mContext.makeCurrent()) {
+                Log.e(TAG, "Initialization failed. Could not make the context current.");
+                finishGL();
+                return false;
+            }
+            if (mParallelCompile) {
+                // Per context, let the driver use as many threads as it likes.
+                GlContextManager.setMaxShaderCompilerThreads(0xFFFFFFFF);
+            }
+            return true;
+        }
+
+        private void finishGL() {
+            if (mContext != null) {
+                mContext.release();
+                mContext = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "BenchmarkScene.h"
+
+#include <math.h>
+#include <string.h>
+
+#undef  LOG_TAG
+#define LOG_TAG "BenchmarkScene"
+
+//--------------------------------------------------------------------------------
+// BenchmarkScene.cpp
+// Renders a configurable number of animated cubes
+//--------------------------------------------------------------------------------
+
+// Cube geometry, defined in Cube.inl
+extern float VERTICES[];
+extern float COLORS1[];
+extern float COLORS2[];
+extern short INDICES[];
+
+// Batched vertex layout: world space position followed by color
+#define BATCH_FLOATS_PER_VERTEX (COORDS_PER_VERTEX + COORDS_PER_COLORS)
+#define BATCH_VERTEX_STRIDE (BATCH_FLOATS_PER_VERTEX * 4)
+
+// What a job of the batched path transforms: the cubes visible[0, count) of a batch
+struct batch_transform {
+    const float* transforms;
+    const int32_t* visible;
+    const float* colors;
+    float* vertices;
+};
+
+// What a job of the instanced path copies
+struct instance_copy {
+    const float* transforms;
+    const int32_t* visible;
+    float* instances;
+};
+
+// Deterministic pseudo random numbers in [0, 1), so runs are comparable
+static float NextRandom(uint32_t* seed) {
+    *seed = *seed * 1664525u + 1013904223u;
+    return (*seed >> 8) * (1.0f / 16777216.0f);
+}
+
+static bool CreateProgram(GLuint* out_program, const char* vertex_code,
+                          const char* fragment_code) {
+    GLuint program;
+    GLuint vert_shader, frag_shader;
+
+    program = glCreateProgram();
+
+    if( !ndk_helper::shader::CompileShader( &vert_shader, GL_VERTEX_SHADER,
+                                            vertex_code, strlen(vertex_code) ) )
+    {
+        LOGE( "Failed to compile vertex shader" );
+        glDeleteProgram( program );
+        return false;
+    }
+
+    if( !ndk_helper::shader::CompileShader( &frag_shader, GL_FRAGMENT_SHADER,
+                                            fragment_code, strlen(fragment_code) ) )
+    {
+        LOGE( "Failed to compile fragment shader" );
+        glDeleteShader( vert_shader );
+        glDeleteProgram( program );
+        return false;
+    }
+
+    glAttachShader( program, vert_shader );
+    glAttachShader( program, frag_shader );
+
+    bool linked = ndk_helper::shader::LinkProgram( program );
+
+    glDeleteShader( vert_shader );
+    glDeleteShader( frag_shader );
+
+    if( !linked )
+    {
+        LOGE( "Linking shader %d failed", program );
+        glDeleteProgram( program );
+        return false;
+    }
+
+    *out_program = program;
+    return true;
+}
+
+// Planes of the frustum of a column-major view projection, from its rows (Gribb and Hartmann)
+static void ExtractFrustum(const ndk_helper::Mat4& view_projection, float planes[6][4]) {
+    const float* m = const_cast<ndk_helper::Mat4&>(view_projection).Ptr();
+    for (int32_t row = 0; row < 3; row++) {
+        for (int32_t column = 0; column < 4; column++) {
+            planes[row * 2][column] = m[column * 4 + 3] + m[column * 4 + row];
+            planes[row * 2 + 1][column] = m[column * 4 + 3] - m[column * 4 + row];
+        }
+    }
+    for (int32_t i = 0; i < 6; i++) {
+        float length = sqrtf(planes[i][0] * planes[i][0] + planes[i][1] * planes[i][1]
+                             + planes[i][2] * planes[i][2]);
+        for (int32_t column = 0; column < 4; column++) {
+            planes[i][column] /= length;
+        }
+    }
+}
+
+static bool IsSphereVisible(const float planes[6][4], const float* center, float radius) {
+    for (int32_t i = 0; i < 6; i++) {
+        if (planes[i][0] * center[0] + planes[i][1] * center[1] + planes[i][2] * center[2]
+            + planes[i][3] < -radius) {
+            return false;
+        }
+    }
+    return true;
+}
+
+static void CopyInstances(void* context, int32_t begin, int32_t end) {
+    const instance_copy* copy = (const instance_copy*) context;
+    for (int32_t i = begin; i < end; i++) {
+        memcpy(&copy->instances[i * 16], &copy->transforms[copy->visible[i] * 16],
+               16 * sizeof(float));
+    }
+}
+
+// Pre-transforms cubes of a batch to world space
+static void TransformCubes(void* context, int32_t begin, int32_t end) {
+    const batch_transform* batch = (const batch_transform*) context;
+    float* out = &batch->vertices[begin * CUBE_VERTEX_COUNT * BATCH_FLOATS_PER_VERTEX];
+    for (int32_t cube = begin; cube < end; cube++) {
+        const float* m = &batch->transforms[batch->visible[cube] * 16];
+        for (int32_t v = 0; v < CUBE_VERTEX_COUNT; v++) {
+            const float* in = &VERTICES[v * COORDS_PER_VERTEX];
+            out[0] = m[0] * in[0] + m[4] * in[1] + m[8] * in[2] + m[12];
+            out[1] = m[1] * in[0] + m[5] * in[1] + m[9] * in[2] + m[13];
+            out[2] = m[2] * in[0] + m[6] * in[1] + m[10] * in[2] + m[14];
+            memcpy(&out[3], &batch->colors[v * COORDS_PER_COLORS], COLORS_STRIDE);
+            out += BATCH_FLOATS_PER_VERTEX;
+        }
+    }
+}
+
+//--------------------------------------------------------------------------------
+// Ctor
+//--------------------------------------------------------------------------------
+BenchmarkScene::BenchmarkScene() :
+        cube_scale_( 1.f ),
+        update_job_cubes_( BENCHMARK_MIN_UPDATE_JOB_CUBES ),
+        update_angle_( 0.f ),
+        instanced_( false ),
+        draw_calls_( 0 ),
+        program_( 0 ),
+        view_projection_( -1 ),
+        geometry_buffer_( 0 ),
+        index_buffer_( 0 ),
+        batch_vertex_buffer_( 0 ),
+        batch_index_buffer_( 0 )
+{
+    batch_shader_.program_ = 0;
+    for (int32_t i = 0; i < BENCHMARK_MAX_VIEWS; i++) {
+        views_[i].enabled_ = false;
+        views_[i].visible_count_ = 0;
+        views_[i].instance_buffer_ = 0;
+        views_[i].instances_dirty_ = false;
+    }
+}
+
+//--------------------------------------------------------------------------------
+// Dtor
+//--------------------------------------------------------------------------------
+BenchmarkScene::~BenchmarkScene()
+{
+
+}
+
+void BenchmarkScene::Init(int32_t cube_count) {
+    if (cube_count < BENCHMARK_MIN_CUBE_COUNT) {
+        cube_count = BENCHMARK_MIN_CUBE_COUNT;
+    } else if (cube_count > BENCHMARK_MAX_CUBE_COUNT) {
+        cube_count = BENCHMARK_MAX_CUBE_COUNT;
+    }
+
+    // Lay out the cubes on the smallest grid that holds them all
+    int32_t side = (int32_t) ceilf(cbrtf((float) cube_count));
+    float spacing = BENCHMARK_FIELD_SIZE / side;
+    float origin = -BENCHMARK_FIELD_SIZE / 2 + spacing / 2;
+
+    uint32_t seed = 1;
+    cubes_.resize(cube_count);
+    for (int32_t i = 0; i < cube_count; i++) {
+        BENCHMARK_CUBE& cube = cubes_[i];
+        cube.position_[0] = origin + (i % side) * spacing;
+        cube.position_[1] = origin + ((i / side) % side) * spacing;
+        cube.position_[2] = origin + (i / (side * side)) * spacing;
+
+        float x = NextRandom(&seed) - 0.5f;
+        float y = NextRandom(&seed) - 0.5f;
+        float z = NextRandom(&seed) - 0.5f;
+        float length = sqrtf(x * x + y * y + z * z);
+        if (length < 0.001f) {
+            x = 0.f; y = 1.f; z = 0.f; length = 1.f;
+        }
+        cube.axis_[0] = x / length;
+        cube.axis_[1] = y / length;
+        cube.axis_[2] = z / length;
+        cube.speed_ = 0.5f + 1.5f * NextRandom(&seed);
+        cube.phase_ = 360.f * NextRandom(&seed);
+    }
+    transforms_.resize(cube_count * 16);
+    // Cube.inl vertices span [-1, 1], keep a gap between neighbours
+    cube_scale_ = BENCHMARK_FIELD_SIZE / cbrtf((float) cube_count) * 0.35f;
+
+    // A few jobs per thread so the ones done first steal from the others
+    update_job_cubes_ = cube_count / (JobSystemGetThreadCount() * 4);
+    if (update_job_cubes_ < BENCHMARK_MIN_UPDATE_JOB_CUBES) {
+        update_job_cubes_ = BENCHMARK_MIN_UPDATE_JOB_CUBES;
+    }
+    int32_t update_jobs = (cube_count + update_job_cubes_ - 1) / update_job_cubes_;
+    for (int32_t i = 0; i < BENCHMARK_MAX_VIEWS; i++) {
+        views_[i].visible_.resize(cube_count);
+        views_[i].batch_visible_counts_.resize(update_jobs);
+        views_[i].visible_count_ = 0;
+    }
+
+    instanced_ = HasGLCapability(CAPABILITY_INSTANCING) && LoadInstancedProgram();
+    if (!instanced_) {
+        LoadBatchProgram();
+    }
+    LOGI("Benchmark scene with %d cubes, %s path, %d update jobs on %d threads", cube_count,
+         instanced_ ? "instanced" : "batched", update_jobs, JobSystemGetThreadCount());
+}
+
+bool BenchmarkScene::LoadInstancedProgram() {
+    if (!CreateProgram(&program_, BENCHMARK_INSTANCED_VERTEX_SHADER_CODE,
+                       BENCHMARK_INSTANCED_FRAGMENT_SHADER_CODE)) {
+        return false;
+    }
+    view_projection_ = glGetUniformLocation(program_, "uViewProjection");
+
+    // Same layout as the Cube vertex buffer, both color sets follow the positions
+    GLStateBindVertexArray(0);
+    glGenBuffers(1, &geometry_buffer_);
+    GLStateBindBuffer(GL_ARRAY_BUFFER, geometry_buffer_);
+    glBufferData(GL_ARRAY_BUFFER, CUBE_VERTEX_BUFFER_SIZE, NULL, GL_STATIC_DRAW);
+    glBufferSubData(GL_ARRAY_BUFFER, CUBE_VERTICES_OFFSET,
+                    CUBE_VERTEX_COUNT * VERTEX_STRIDE, VERTICES);
+    glBufferSubData(GL_ARRAY_BUFFER, CUBE_COLORS1_OFFSET,
+                    CUBE_VERTEX_COUNT * COLORS_STRIDE, COLORS1);
+    glBufferSubData(GL_ARRAY_BUFFER, CUBE_COLORS2_OFFSET,
+                    CUBE_VERTEX_COUNT * COLORS_STRIDE, COLORS2);
+
+    glGenBuffers(1, &index_buffer_);
+    GLStateBindBuffer(GL_ELEMENT_ARRAY_BUFFER, index_buffer_);
+    glBufferData(GL_ELEMENT_ARRAY_BUFFER, CUBE_INDEX_COUNT * sizeof(short), INDICES,
+                 GL_STATIC_DRAW);
+
+    for (int32_t i = 0; i < BENCHMARK_MAX_VIEWS; i++) {
+        glGenBuffers(1, &views_[i].instance_buffer_);
+        GLStateBindBuffer(GL_ARRAY_BUFFER, views_[i].instance_buffer_);
+        glBufferData(GL_ARRAY_BUFFER, transforms_.size() * sizeof(float), NULL, GL_STREAM_DRAW);
+    }
+    checkGlError("BenchmarkScene::LoadInstancedProgram");
+    return true;
+}
+
+bool BenchmarkScene::LoadBatchProgram() {
+    if (!CreateProgram(&batch_shader_.program_, VERTEX_SHADER_CODE, FRAGMENT_SHADER_CODE)) {
+        return false;
+    }
+    batch_shader_.position_ = glGetAttribLocation(batch_shader_.program_, "vPosition");
+    batch_shader_.color_ = glGetAttribLocation(batch_shader_.program_, "vColor");
+    batch_shader_.mvp_ = glGetUniformLocation(batch_shader_.program_, "uMVPMatrix");
+
+    // Same index pattern for every cube of a batch, offset by its first vertex
+    std::vector<GLushort> indices(BENCHMARK_BATCH_SIZE * CUBE_INDEX_COUNT);
+    for (int32_t cube = 0; cube < BENCHMARK_BATCH_SIZE; cube++) {
+        for (int32_t i = 0; i < CUBE_INDEX_COUNT; i++) {
+            indices[cube * CUBE_INDEX_COUNT + i] =
+                    (GLushort) (cube * CUBE_VERTEX_COUNT + INDICES[i]);
+        }
+    }
+    GLStateBindVertexArray(0);
+    glGenBuffers(1, &batch_index_buffer_);
+    GLStateBindBuffer(GL_ELEMENT_ARRAY_BUFFER, batch_index_buffer_);
+    glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices.size() * sizeof(GLushort), &indices[0],
+                 GL_STATIC_DRAW);
+
+    for (int32_t i = 0; i < 2; i++) {
+        batch_vertices_[i].resize(
+                BENCHMARK_BATCH_SIZE * CUBE_VERTEX_COUNT * BATCH_FLOATS_PER_VERTEX);
+    }
+    glGenBuffers(1, &batch_vertex_buffer_);
+    GLStateBindBuffer(GL_ARRAY_BUFFER, batch_vertex_buffer_);
+    glBufferData(GL_ARRAY_BUFFER, batch_vertices_[0].size() * sizeof(float), NULL,
+                 GL_STREAM_DRAW);
+    checkGlError("BenchmarkScene::LoadBatchProgram");
+    return true;
+}
+
+void BenchmarkScene::Unload() {
+    if (program_) {
+        glDeleteProgram(program_);
+        program_ = 0;
+    }
+    if (batch_shader_.program_) {
+        glDeleteProgram(batch_shader_.program_);
+        batch_shader_.program_ = 0;
+    }
+    GLuint buffers[] = { geometry_buffer_, index_buffer_, batch_vertex_buffer_,
+                         batch_index_buffer_ };
+    GLStateDeleteBuffers(sizeof(buffers) / sizeof(buffers[0]), buffers);
+    geometry_buffer_ = index_buffer_ = 0;
+    batch_vertex_buffer_ = batch_index_buffer_ = 0;
+    for (int32_t i = 0; i < BENCHMARK_MAX_VIEWS; i++) {
+        BENCHMARK_VIEW& view = views_[i];
+        GLStateDeleteBuffers(1, &view.instance_buffer_);
+        view.instance_buffer_ = 0;
+        view.visible_.clear();
+        view.batch_visible_counts_.clear();
+        view.visible_count_ = 0;
+        view.enabled_ = false;
+    }
+
+    cubes_.clear();
+    transforms_.clear();
+    batch_vertices_[0].clear();
+    batch_vertices_[1].clear();
+}
+
+// Animates and culls the cubes [begin, end), one update job
+void BenchmarkScene::UpdateCubes(void* context, int32_t begin, int32_t end) {
+    BenchmarkScene* scene = (BenchmarkScene*) context;
+    float scale = scene->cube_scale_;
+    // Bounding sphere of a cube, whatever its rotation
+    float radius = scale * sqrtf(3.f);
+    int32_t visible_counts[BENCHMARK_MAX_VIEWS] = { 0 };
+
+    float* transform = &scene->transforms_[begin * 16];
+    for (int32_t i = begin; i < end; i++, transform += 16) {
+        const BENCHMARK_CUBE& cube = scene->cubes_[i];
+
+        // Translation * Rotation * Scale, written directly into the column-major matrix
+        ndk_helper::Mat4 rotation = ndk_helper::Mat4::Rotation(
+                scene->update_angle_ * cube.speed_ + cube.phase_, cube.axis_[0], cube.axis_[1],
+                cube.axis_[2]);
+        const float* r = rotation.Ptr();
+        for (int32_t column = 0; column < 3; column++) {
+            transform[column * 4 + 0] = r[column * 4 + 0] * scale;
+            transform[column * 4 + 1] = r[column * 4 + 1] * scale;
+            transform[column * 4 + 2] = r[column * 4 + 2] * scale;
+            transform[column * 4 + 3] = 0.f;
+        }
+        transform[12] = cube.position_[0];
+        transform[13] = cube.position_[1];
+        transform[14] = cube.position_[2];
+        transform[15] = 1.f;
+
+        for (int32_t v = 0; v < BENCHMARK_MAX_VIEWS; v++) {
+            BENCHMARK_VIEW& view = scene->views_[v];
+            if (view.enabled_ && IsSphereVisible(view.planes_, cube.position_, radius)) {
+                view.visible_[begin + visible_counts[v]++] = i;
+            }
+        }
+    }
+
+    int32_t batch = begin / scene->update_job_cubes_;
+    for (int32_t v = 0; v < BENCHMARK_MAX_VIEWS; v++) {
+        scene->views_[v].batch_visible_counts_[batch] = visible_counts[v];
+    }
+}
+
+void BenchmarkScene::Update(float angle,
+                            const ndk_helper::Mat4* const view_projections[BENCHMARK_MAX_VIEWS]) {
+    update_angle_ = angle;
+    for (int32_t v = 0; v < BENCHMARK_MAX_VIEWS; v++) {
+        BENCHMARK_VIEW& view = views_[v];
+        view.enabled_ = view_projections[v] != NULL;
+        if (view.enabled_) {
+            ExtractFrustum(*view_projections[v], view.planes_);
+        }
+    }
+    JobWait(JobParallelFor(GetCubeCount(), update_job_cubes_, UpdateCubes, this));
+
+    // Pack the visible cubes of the batches behind each other
+    for (int32_t v = 0; v < BENCHMARK_MAX_VIEWS; v++) {
+        BENCHMARK_VIEW& view = views_[v];
+        int32_t visible_count = 0;
+        if (view.enabled_) {
+            for (size_t batch = 0; batch < view.batch_visible_counts_.size(); batch++) {
+                int32_t count = view.batch_visible_counts_[batch];
+                int32_t first = (int32_t) batch * update_job_cubes_;
+                if (count && first != visible_count) {
+                    memmove(&view.visible_[visible_count], &view.visible_[first],
+                            count * sizeof(int32_t));
+                }
+                visible_count += count;
+            }
+        }
+        view.visible_count_ = visible_count;
+        view.instances_dirty_ = true;
+    }
+}
+
+void BenchmarkScene::Render(int32_t view, const ndk_helper::Mat4& view_projection,
+                            bool changeColor) {
+    draw_calls_ = 0;
+    if (!views_[view].visible_count_) {
+        return;
+    }
+    if (instanced_) {
+        RenderInstanced(views_[view], view_projection, changeColor);
+    } else if (batch_shader_.program_) {
+        RenderBatched(views_[view], view_projection, changeColor);
+    }
+}
+
+void BenchmarkScene::RenderInstanced(BENCHMARK_VIEW& view,
+                                     const ndk_helper::Mat4& view_projection,
+                                     bool changeColor) {
+    GLStateUseProgram(program_);
+    glUniformMatrix4fv(view_projection_, 1, GL_FALSE,
+                       const_cast<ndk_helper::Mat4&>(view_projection).Ptr());
+
+    // Every view has the model matrices of its visible cubes uploaded once per Update(), jobs
+    // copy them straight into the mapped buffer
+    GLStateBindVertexArray(0);
+    GLStateBindBuffer(GL_ARRAY_BUFFER, view.instance_buffer_);
+    if (view.instances_dirty_) {
+        glBufferData(GL_ARRAY_BUFFER, transforms_.size() * sizeof(float), NULL, GL_STREAM_DRAW);
+        float* instances = (float*) glMapBufferRange(
+                GL_ARRAY_BUFFER, 0, view.visible_count_ * 16 * sizeof(float),
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (!instances) {
+            checkGlError("glMapBufferRange");
+            return;
+        }
+        instance_copy copy = { &transforms_[0], &view.visible_[0], instances };
+        JobWait(JobParallelFor(view.visible_count_, BENCHMARK_COPY_JOB_CUBES, CopyInstances,
+                               &copy));
+        glUnmapBuffer(GL_ARRAY_BUFFER);
+        view.instances_dirty_ = false;
+    }
+    for (int32_t column = 0; column < 4; column++) {
+        GLuint location = BENCHMARK_ATTRIB_MODEL + column;
+        glVertexAttribPointer(location, 4, GL_FLOAT, GL_FALSE, 16 * sizeof(float),
+                              (const GLvoid*) (column * 4 * sizeof(float)));
+        GLStateEnableVertexAttribArray(location);
+        glVertexAttribDivisor(location, 1);
+    }
+
+    GLStateBindBuffer(GL_ARRAY_BUFFER, geometry_buffer_);
+    glVertexAttribPointer(BENCHMARK_ATTRIB_POSITION, COORDS_PER_VERTEX, GL_FLOAT, GL_FALSE,
+                          VERTEX_STRIDE, (const GLvoid*) CUBE_VERTICES_OFFSET);
+    GLStateEnableVertexAttribArray(BENCHMARK_ATTRIB_POSITION);
+    glVertexAttribPointer(BENCHMARK_ATTRIB_COLOR, COORDS_PER_COLORS, GL_FLOAT, GL_FALSE,
+                          COLORS_STRIDE,
+                          (const GLvoid*) (uintptr_t) (changeColor ? CUBE_COLORS1_OFFSET
+                                                                   : CUBE_COLORS2_OFFSET));
+    GLStateEnableVertexAttribArray(BENCHMARK_ATTRIB_COLOR);
+
+    GLStateBindBuffer(GL_ELEMENT_ARRAY_BUFFER, index_buffer_);
+    glDrawElementsInstanced(GL_TRIANGLES, CUBE_INDEX_COUNT, GL_UNSIGNED_SHORT, 0,
+                            view.visible_count_);
+    draw_calls_++;
+    checkGlError("glDrawElementsInstanced");
+
+    // Other programs do not read the per instance attributes, do not leave them instanced.
+    // Position and color stay enabled, bindings are left in place.
+    for (int32_t column = 0; column < 4; column++) {
+        glVertexAttribDivisor(BENCHMARK_ATTRIB_MODEL + column, 0);
+        GLStateDisableVertexAttribArray(BENCHMARK_ATTRIB_MODEL + column);
+    }
+}
+
+// Starts the jobs transforming the visible cubes [first, first + count) of view into the given
+// vertex array, batch must be kept until they are done
+job* BenchmarkScene::TransformBatch(const BENCHMARK_VIEW& view, int32_t first, int32_t count,
+                                    bool changeColor, int32_t buffer, batch_transform* batch) {
+    batch->transforms = &transforms_[0];
+    batch->visible = &view.visible_[first];
+    batch->colors = changeColor ? COLORS1 : COLORS2;
+    batch->vertices = &batch_vertices_[buffer][0];
+    return JobParallelFor(count, BENCHMARK_TRANSFORM_JOB_CUBES, TransformCubes, batch);
+}
+
+void BenchmarkScene::RenderBatched(BENCHMARK_VIEW& view,
+                                   const ndk_helper::Mat4& view_projection,
+                                   bool changeColor) {
+    GLStateUseProgram(batch_shader_.program_);
+    glUniformMatrix4fv(batch_shader_.mvp_, 1, GL_FALSE,
+                       const_cast<ndk_helper::Mat4&>(view_projection).Ptr());
+
+    GLStateBindVertexArray(0);
+    GLStateBindBuffer(GL_ARRAY_BUFFER, batch_vertex_buffer_);
+    GLStateBindBuffer(GL_ELEMENT_ARRAY_BUFFER, batch_index_buffer_);
+    glVertexAttribPointer(batch_shader_.position_, COORDS_PER_VERTEX, GL_FLOAT, GL_FALSE,
+                          BATCH_VERTEX_STRIDE, (const GLvoid*) 0);
+    GLStateEnableVertexAttribArray(batch_shader_.position_);
+    glVertexAttribPointer(batch_shader_.color_, COORDS_PER_COLORS, GL_FLOAT, GL_FALSE,
+                          BATCH_VERTEX_STRIDE, (const GLvoid*) (COORDS_PER_VERTEX * 4));
+    GLStateEnableVertexAttribArray(batch_shader_.color_);
+
+    int32_t cube_count = view.visible_count_;
+    int32_t buffer = 0;
+    batch_transform batches[2];
+    job* transformed = TransformBatch(
+            view, 0, cube_count < BENCHMARK_BATCH_SIZE ? cube_count : BENCHMARK_BATCH_SIZE,
+            changeColor, buffer, &batches[buffer]);
+    for (int32_t first = 0; first < cube_count; first += BENCHMARK_BATCH_SIZE) {
+        int32_t batch_count = cube_count - first;
+        if (batch_count > BENCHMARK_BATCH_SIZE) {
+            batch_count = BENCHMARK_BATCH_SIZE;
+        }
+        JobWait(transformed);
+
+        // Jobs pre-transform the next batch while this one is submitted. glBufferSubData()
+        // is done with a vertex array when it returns.
+        int32_t next = first + BENCHMARK_BATCH_SIZE;
+        if (next < cube_count) {
+            transformed = TransformBatch(
+                    view, next, cube_count - next < BENCHMARK_BATCH_SIZE ? cube_count - next
+                                                                         : BENCHMARK_BATCH_SIZE,
+                    changeColor, buffer ^ 1, &batches[buffer ^ 1]);
+        }
+
+        // Orphan the previous batch so the driver does not have to wait for it
+        GLsizeiptr size = batch_count * CUBE_VERTEX_COUNT * BATCH_VERTEX_STRIDE;
+        glBufferData(GL_ARRAY_BUFFER, batch_vertices_[buffer].size() * sizeof(float), NULL,
+                     GL_STREAM_DRAW);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, size, &batch_vertices_[buffer][0]);
+        glDrawElements(GL_TRIANGLES, batch_count * CUBE_INDEX_COUNT, GL_UNSIGNED_SHORT, 0);
+        draw_calls_++;
+        buffer ^= 1;
+    }
+    checkGlError("BenchmarkScene::RenderBatched");
+}
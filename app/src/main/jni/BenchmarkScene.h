@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_BENCHMARKSCENE_H
+#define REMOTEDISPLAYNDK_ANDROID_BENCHMARKSCENE_H
+
+//--------------------------------------------------------------------------------
+// Include files
+//--------------------------------------------------------------------------------
+#include <vector>
+
+#include "Cube.h"
+#include "JobSystem.h"
+
+// Bounds of the configurable workload
+#define BENCHMARK_MIN_CUBE_COUNT 1
+#define BENCHMARK_MAX_CUBE_COUNT 100000
+
+// Cubes per draw call on the ES2 path, keeps the batch vertex indices within 16 bits
+#define BENCHMARK_BATCH_SIZE 1024
+
+// Side of the volume all the cubes are laid out in
+#define BENCHMARK_FIELD_SIZE 4.0f
+
+// Views the cubes are culled for, each is rendered on its own
+#define BENCHMARK_MAX_VIEWS 2
+
+// Fewest cubes per job animated and culled, copied to an instance buffer or pre-transformed
+#define BENCHMARK_MIN_UPDATE_JOB_CUBES 64
+#define BENCHMARK_COPY_JOB_CUBES 1024
+#define BENCHMARK_TRANSFORM_JOB_CUBES 128
+
+enum BENCHMARK_ATTRIBUTES
+{
+    BENCHMARK_ATTRIB_POSITION, BENCHMARK_ATTRIB_COLOR, BENCHMARK_ATTRIB_MODEL,
+};
+
+const char BENCHMARK_INSTANCED_VERTEX_SHADER_CODE[] =
+    "#version 300 es\n"
+    "uniform mat4 uViewProjection;\n"
+    "layout(location = 0) in vec4 vPosition;\n"
+    "layout(location = 1) in vec4 vColor;\n"
+    "// Per instance model matrix, uses locations 2 to 5\n"
+    "layout(location = 2) in mat4 aModel;\n"
+    "out vec4 aColor;\n"
+    "void main() {\n"
+    "  aColor = vColor;\n"
+    "  gl_Position = uViewProjection * aModel * vPosition;\n"
+    "}";
+
+const char BENCHMARK_INSTANCED_FRAGMENT_SHADER_CODE[] =
+    "#version 300 es\n"
+    "precision mediump float;\n"
+    "in vec4 aColor;\n"
+    "out vec4 fragColor;\n"
+    "void main() {\n"
+    "  fragColor = aColor;\n"
+    "}\n";
+
+struct BENCHMARK_CUBE
+{
+    float position_[3];
+    float axis_[3];
+    float speed_;
+    float phase_;
+};
+
+// Cubes one view draws, as culled by the last Update()
+struct BENCHMARK_VIEW
+{
+    bool enabled_;
+    // Frustum planes, normalized, positive inside
+    float planes_[6][4];
+    // Indices of the visible cubes, in cube order. Update jobs write them at the first cube of
+    // their batch, they are packed once all are done.
+    std::vector<int32_t> visible_;
+    std::vector<int32_t> batch_visible_counts_;
+    int32_t visible_count_;
+
+    // Instanced path, model matrices of the visible cubes
+    GLuint instance_buffer_;
+    bool instances_dirty_;
+};
+
+struct batch_transform;
+
+/******************************************************************
+ * Benchmark workload made of many independently animated cubes.
+ * Renders through instancing when running on an OpenGL ES 3 context, and falls back to
+ * batches of BENCHMARK_BATCH_SIZE pre-transformed cubes per draw call on OpenGL ES 2.
+ *
+ * The CPU work is spread over the job system: Update() animates the cubes and culls them for
+ * every view in parallel, Render() has the model matrices copied or the vertices transformed by
+ * jobs too and only submits them. Init(), Update(), Render() and Unload() must be called on the
+ * GL thread.
+ */
+class BenchmarkScene {
+    std::vector<BENCHMARK_CUBE> cubes_;
+    // Column-major model matrix of every cube, as computed by the last Update()
+    std::vector<float> transforms_;
+    float cube_scale_;
+    BENCHMARK_VIEW views_[BENCHMARK_MAX_VIEWS];
+
+    // Cubes per update job, and the angle it animates to
+    int32_t update_job_cubes_;
+    float update_angle_;
+
+    bool instanced_;
+    int32_t draw_calls_;
+
+    GLuint program_;
+    GLint view_projection_;
+
+    // Instanced path
+    GLuint geometry_buffer_;
+    GLuint index_buffer_;
+
+    // Batched path. Jobs fill one vertex array while the other is submitted.
+    SHADER_PARAMS batch_shader_;
+    GLuint batch_vertex_buffer_;
+    GLuint batch_index_buffer_;
+    std::vector<float> batch_vertices_[2];
+
+    bool LoadInstancedProgram();
+    bool LoadBatchProgram();
+    void RenderInstanced(BENCHMARK_VIEW& view, const ndk_helper::Mat4& view_projection,
+                         bool changeColor);
+    void RenderBatched(BENCHMARK_VIEW& view, const ndk_helper::Mat4& view_projection,
+                       bool changeColor);
+    job* TransformBatch(const BENCHMARK_VIEW& view, int32_t first, int32_t count,
+                        bool changeColor, int32_t buffer, batch_transform* batch);
+    static void UpdateCubes(void* context, int32_t begin, int32_t end);
+public:
+    BenchmarkScene();
+    virtual ~BenchmarkScene();
+
+    // Lays out cube_count cubes, clamped to the benchmark bounds, and uploads the static geometry.
+    // The job system must be started.
+    void Init(int32_t cube_count);
+    void Unload();
+
+    // Animates every cube to the given angle, in degrees, and culls them for the views of the
+    // given view projections. A NULL one disables its view until the next Update().
+    void Update(float angle, const ndk_helper::Mat4* const view_projections[BENCHMARK_MAX_VIEWS]);
+    // Draws the cubes visible in view, view_projection is the one it was culled with
+    void Render(int32_t view, const ndk_helper::Mat4& view_projection, bool changeColor);
+
+    int32_t GetCubeCount() const { return (int32_t) cubes_.size(); }
+    bool IsInstanced() const { return instanced_; }
+    // Number of draw calls issued by the last Render()
+    int32_t GetDrawCalls() const { return draw_calls_; }
+    int32_t GetVisibleCount(int32_t view) const { return views_[view].visible_count_; }
+};
+
+#endif //REMOTEDISPLAYNDK_ANDROID_BENCHMARKSCENE_H
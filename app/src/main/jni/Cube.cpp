@@ -26,9 +26,18 @@
 //--------------------------------------------------------------------------------
 // Ctor
 //--------------------------------------------------------------------------------
-Cube::Cube()
+Cube::Cube() :
+        vertex_buffer_( 0 ),
+        index_buffer_( 0 ),
+        use_vertex_arrays_( false ),
+        shared_context_( false )
 {
-
+    shader_param_.program_ = 0;
+    // Bound by every program of the cube
+    shader_param_.position_ = ATTRIB_VERTEX;
+    shader_param_.color_ = ATTRIB_COLOR;
+    shader_param_.mvp_ = 0;
+    vertex_arrays_[0] = vertex_arrays_[1] = 0;
 }
 
 //--------------------------------------------------------------------------------
@@ -39,26 +48,139 @@ Cube::~Cube()
 
 }
 
-void Cube::Init() {
-    if (!LoadShaders(&shader_param_)) {
+void Cube::Init(bool loadShaders) {
+    if (loadShaders && !LoadShaders(&shader_param_)) {
        LOGE("Loading shaders failed!");
         return;
     };
 
+    LoadGeometry();
+}
 
+void Cube::SetProgram(GLuint program) {
+    if (!program) {
+        // The program failed to build on the other context, build it on this one instead. A
+        // failure here is reported by LoadShaders and leaves the cube without a program.
+        if (!shader_param_.program_) {
+            LOGI( "Shader hand over failed, loading it on the rendering thread" );
+            LoadShaders(&shader_param_);
+        }
+        return;
+    }
+    if (shader_param_.program_) {
+        glDeleteProgram(shader_param_.program_);
+    }
+    shader_param_.program_ = program;
+    shader_param_.mvp_ = glGetUniformLocation(program, "uMVPMatrix");
+    checkGlError("glGetUniformLocation uMVPMatrix");
+    LOGI( "Shader %d handed over", program );
+}
+
+void Cube::LoadGeometry() {
+    // The element array binding below must not land in a vertex array object
+    GLStateBindVertexArray(0);
+
+    // Positions and both color sets in a single buffer
+    glGenBuffers(1, &vertex_buffer_);
+    GLStateBindBuffer(GL_ARRAY_BUFFER, vertex_buffer_);
+    glBufferData(GL_ARRAY_BUFFER, CUBE_VERTEX_BUFFER_SIZE, NULL, GL_STATIC_DRAW);
+    glBufferSubData(GL_ARRAY_BUFFER, CUBE_VERTICES_OFFSET,
+                    CUBE_VERTEX_COUNT * VERTEX_STRIDE, VERTICES);
+    glBufferSubData(GL_ARRAY_BUFFER, CUBE_COLORS1_OFFSET,
+                    CUBE_VERTEX_COUNT * COLORS_STRIDE, COLORS1);
+    glBufferSubData(GL_ARRAY_BUFFER, CUBE_COLORS2_OFFSET,
+                    CUBE_VERTEX_COUNT * COLORS_STRIDE, COLORS2);
+
+    glGenBuffers(1, &index_buffer_);
+    GLStateBindBuffer(GL_ELEMENT_ARRAY_BUFFER, index_buffer_);
+    glBufferData(GL_ELEMENT_ARRAY_BUFFER, sizeof(INDICES), INDICES, GL_STATIC_DRAW);
+    checkGlError("Cube::LoadGeometry");
+
+    // Where supported record the whole attribute setup of each color set once
+    use_vertex_arrays_ = HasGLCapability(CAPABILITY_VERTEX_ARRAY_OBJECT);
+    if (use_vertex_arrays_) {
+        glGenVertexArrays(2, vertex_arrays_);
+        for (int i = 0; i < 2; i++) {
+            GLStateBindVertexArray(vertex_arrays_[i]);
+            GLStateBindBuffer(GL_ELEMENT_ARRAY_BUFFER, index_buffer_);
+            SetupAttributes(i == 0);
+        }
+        GLStateBindVertexArray(0);
+        checkGlError("Cube::LoadGeometry vertex arrays");
+    }
+}
+
+void Cube::SetupAttributes(bool changeColor) {
+    GLStateBindBuffer(GL_ARRAY_BUFFER, vertex_buffer_);
+    glVertexAttribPointer( shader_param_.position_, COORDS_PER_VERTEX, GL_FLOAT, GL_FALSE,
+                           VERTEX_STRIDE, (const GLvoid*) CUBE_VERTICES_OFFSET );
+    GLStateEnableVertexAttribArray( shader_param_.position_ );
+
+    glVertexAttribPointer( shader_param_.color_, COORDS_PER_COLORS, GL_FLOAT, GL_FALSE,
+                           COLORS_STRIDE,
+                           (const GLvoid*) (uintptr_t) (changeColor ? CUBE_COLORS1_OFFSET
+                                                                    : CUBE_COLORS2_OFFSET) );
+    GLStateEnableVertexAttribArray( shader_param_.color_ );
+}
+
+void Cube::Unload() {
+    if (use_vertex_arrays_) {
+        GLStateDeleteVertexArrays(2, vertex_arrays_);
+        vertex_arrays_[0] = vertex_arrays_[1] = 0;
+    }
+    GLStateDeleteBuffers(1, &vertex_buffer_);
+    vertex_buffer_ = 0;
+    GLStateDeleteBuffers(1, &index_buffer_);
+    index_buffer_ = 0;
+    if (shader_param_.program_) {
+        glDeleteProgram(shader_param_.program_);
+        shader_param_.program_ = 0;
+    }
+}
+
+void Cube::SetSharedContext(bool shared) {
+    shared_context_ = shared;
 }
 
 void Cube::Render(GLfloat* mvpMatrix, bool changeColor) {
+    if (!shader_param_.program_) {
+        return;
+    }
+    GLStateUseProgram( shader_param_.program_ );
+
+    // Bindings are left in place after the draw, the next one only changes what differs
+    bool vertex_arrays = use_vertex_arrays_ && !shared_context_;
+    if (vertex_arrays) {
+        GLStateBindVertexArray( vertex_arrays_[changeColor ? 0 : 1] );
+    } else {
+        // Attribute arrays are left enabled between draws, only the pointers are re-specified
+        GLStateBindVertexArray( 0 );
+        GLStateBindBuffer( GL_ELEMENT_ARRAY_BUFFER, index_buffer_ );
+        SetupAttributes( changeColor );
+    }
+
+    glUniformMatrix4fv( shader_param_.mvp_, 1, false, mvpMatrix );
+
+    glDrawElements( GL_TRIANGLES, CUBE_INDEX_COUNT, GL_UNSIGNED_SHORT, 0 );
+    checkGlError("Cube::Render");
+}
+
+void Cube::RenderClientArrays(GLfloat* mvpMatrix, bool changeColor) {
     // Add program to OpenGL environment
-    glUseProgram( shader_param_.program_ );
+    GLStateUseProgram( shader_param_.program_ );
     checkGlError("glUseProgram");
 
+    // Client side arrays are only read with no buffer bound
+    GLStateBindVertexArray( 0 );
+    GLStateBindBuffer( GL_ARRAY_BUFFER, 0 );
+    GLStateBindBuffer( GL_ELEMENT_ARRAY_BUFFER, 0 );
+
     glVertexAttribPointer( shader_param_.position_, COORDS_PER_VERTEX, GL_FLOAT, GL_FALSE,
                            VERTEX_STRIDE, VERTICES );
     checkGlError("glVertexAttribPointer");
 
     // Enable a handle to the triangle vertices
-    glEnableVertexAttribArray( shader_param_.position_ );
+    GLStateEnableVertexAttribArray( shader_param_.position_ );
     checkGlError("glEnableVertexAttribArray");
 
     // Prepare the color data
@@ -77,7 +199,7 @@ void Cube::Render(GLfloat* mvpMatrix, bool changeColor) {
     }
 
     // Enable a handle to the color vertices
-    glEnableVertexAttribArray( shader_param_.color_ );
+    GLStateEnableVertexAttribArray( shader_param_.color_ );
     checkGlError("glEnableVertexAttribArray");
 
     // Get handle to shape's transformation matrix
@@ -89,11 +211,11 @@ void Cube::Render(GLfloat* mvpMatrix, bool changeColor) {
     checkGlError("glDrawElements");
 
     // Disable vertex array
-    glDisableVertexAttribArray( shader_param_.position_ );
+    GLStateDisableVertexAttribArray( shader_param_.position_ );
     checkGlError("glDisableVertexAttribArray");
 
     // Disable color array
-    glDisableVertexAttribArray( shader_param_.color_ );
+    GLStateDisableVertexAttribArray( shader_param_.color_ );
     checkGlError("glDisableVertexAttribArray");
 }
 
@@ -123,6 +245,10 @@ bool Cube::LoadShaders(SHADER_PARAMS* params) {
         return false;
     }
 
+    for (int i = 0; i < CUBE_ATTRIBUTE_COUNT; i++) {
+        glBindAttribLocation( program, i, CUBE_ATTRIBUTE_NAMES[i] );
+    }
+
     // Attach vertex shader to program
     glAttachShader( program, vert_shader );
 
@@ -159,10 +285,6 @@ bool Cube::LoadShaders(SHADER_PARAMS* params) {
         glDeleteShader( frag_shader );
 
     params->program_ = program;
-    params->position_ = glGetAttribLocation(program, "vPosition");
-    checkGlError("glGetUniformLocation vPosition");
-    params->color_ = glGetAttribLocation(program, "vColor");
-    checkGlError("glGetUniformLocation vColor");
     params->mvp_ = glGetUniformLocation(program, "uMVPMatrix");
     checkGlError("glGetUniformLocation uMVPMatrix");
 
@@ -22,18 +22,25 @@
 //--------------------------------------------------------------------------------
 #include <jni.h>
 #include <errno.h>
+#include <stdint.h>
+#include <string.h>
 
 #include <vector>
 
 #include <EGL/egl.h>
-#include <GLES/gl.h>
 #include <GLES2/gl2.h>
 
-#include <android/sensor.h>
 #include <android/log.h>
-#include <android/native_window_jni.h>
 
-#include "NDKHelper.h"
+// Only the parts of ndk_helper that do not depend on a window, the renderer also builds for
+// the host benchmark
+#include "gl3stub.h"
+#include "shader.h"
+#include "vecmath.h"
+#include "perfMonitor.h"
+#include "interpolator.h"
+#include "GLCapabilities.h"
+#include "GLStateCache.h"
 
 #define  LOG_TAG    "Cube"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
@@ -41,7 +48,7 @@
 
 enum SHADER_ATTRIBUTES
 {
-    ATTRIB_VERTEX, ATTRIB_NORMAL, ATTRIB_UV,
+    ATTRIB_VERTEX, ATTRIB_COLOR, ATTRIB_NORMAL, ATTRIB_UV,
 };
 
 // Number of coordinates per vertex in this array
@@ -51,6 +58,15 @@ enum SHADER_ATTRIBUTES
 #define COORDS_PER_COLORS 4
 #define COLORS_STRIDE COORDS_PER_COLORS * 4 // 4 bytes per vertex
 
+#define CUBE_VERTEX_COUNT 8
+#define CUBE_INDEX_COUNT 36
+
+// Byte offsets of the arrays in the cube vertex buffer, both color sets follow the positions
+#define CUBE_VERTICES_OFFSET 0
+#define CUBE_COLORS1_OFFSET (CUBE_VERTEX_COUNT * VERTEX_STRIDE)
+#define CUBE_COLORS2_OFFSET (CUBE_COLORS1_OFFSET + CUBE_VERTEX_COUNT * COLORS_STRIDE)
+#define CUBE_VERTEX_BUFFER_SIZE (CUBE_COLORS2_OFFSET + CUBE_VERTEX_COUNT * COLORS_STRIDE)
+
 
 struct SHADER_PARAMS
 {
@@ -88,15 +104,52 @@ const char FRAGMENT_SHADER_CODE[] =
     "  gl_FragColor = aColor;\n"
     "}\n";
 
+// Attributes of the cube program, bound to the location of their index before linking so the
+// attribute setup does not depend on the program
+const char* const CUBE_ATTRIBUTE_NAMES[] = { "vPosition", "vColor" };
+#define CUBE_ATTRIBUTE_COUNT 2
+
 class Cube {
     SHADER_PARAMS shader_param_;
 
+    // Static geometry, uploaded once by Init()
+    GLuint vertex_buffer_;
+    GLuint index_buffer_;
+    // One vertex array object per color set, only on OpenGL ES 3
+    GLuint vertex_arrays_[2];
+    bool use_vertex_arrays_;
+    // Set while drawing from another context of the share group, where the vertex array
+    // objects do not exist
+    bool shared_context_;
+
     bool LoadShaders(SHADER_PARAMS* params);
+    void LoadGeometry();
+    void SetupAttributes(bool changeColor);
 public:
     Cube();
     virtual ~Cube();
-    void Init();
+    // Loads the shaders then the geometry. Without loadShaders only the geometry is loaded, the
+    // cube is not drawn until SetProgram() hands over a program built from another context.
+    void Init(bool loadShaders);
+    void Unload();
+
+    // Takes ownership of a program linked from the cube shaders with the attribute locations of
+    // CUBE_ATTRIBUTE_NAMES, from any context sharing the objects of the one Init() was called on.
+    // With 0, the build failed there: the program is then built synchronously on the current
+    // context, if the cube has none yet.
+    void SetProgram(GLuint program);
+    bool HasProgram() const { return shader_param_.program_ != 0; }
     void Render(GLfloat* mvpMatrix, bool changeColor);
+
+    // Tells whether the following draws happen on a context sharing the objects of the one
+    // Init() was called on. Vertex array objects are not shared, the attributes then get set
+    // up on every draw instead.
+    void SetSharedContext(bool shared);
+
+    // Draws the cube from the client side arrays of Cube.inl, re-specifying every attribute
+    // like the renderer did before the geometry was moved to buffer objects. Only used to
+    // benchmark the overhead saved by Render().
+    void RenderClientArrays(GLfloat* mvpMatrix, bool changeColor);
 };
 
 
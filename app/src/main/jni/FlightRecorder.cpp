@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "FlightRecorder.h"
+
+#include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "FlightRecorder"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+//--------------------------------------------------------------------------------
+// FlightRecorder.cpp
+// The file is the header followed by the ring. Recording threads race on header->next only.
+//--------------------------------------------------------------------------------
+
+#define FLIGHT_RECORDER_FILE_SIZE \
+    (sizeof(flight_recorder_header) + FLIGHT_RECORDER_CAPACITY * sizeof(flight_event))
+
+// NULL until opened, published once the mapping is ready
+static flight_recorder_header* gHeader = NULL;
+static pthread_mutex_t gOpenLock = PTHREAD_MUTEX_INITIALIZER;
+
+static bool isCompatible(const flight_recorder_header* header) {
+    return header->magic == FLIGHT_RECORDER_MAGIC
+           && header->version == FLIGHT_RECORDER_VERSION
+           && header->eventSize == sizeof(flight_event)
+           && header->capacity == FLIGHT_RECORDER_CAPACITY;
+}
+
+static flight_recorder_header* mapFile(const char* path) {
+    int fd = open(path, O_RDWR | O_CREAT, 0600);
+    if (fd < 0) {
+        LOGE("Could not open %s: %s", path, strerror(errno));
+        return NULL;
+    }
+    // Grows a new file, leaves one of the right size alone
+    if (ftruncate(fd, FLIGHT_RECORDER_FILE_SIZE) != 0) {
+        LOGE("Could not size %s: %s", path, strerror(errno));
+        close(fd);
+        return NULL;
+    }
+    void* mapping = mmap(NULL, FLIGHT_RECORDER_FILE_SIZE, PROT_READ | PROT_WRITE, MAP_SHARED,
+                         fd, 0);
+    // The mapping keeps the file
+    close(fd);
+    if (mapping == MAP_FAILED) {
+        LOGE("Could not map %s: %s", path, strerror(errno));
+        return NULL;
+    }
+
+    flight_recorder_header* header = (flight_recorder_header*) mapping;
+    if (!isCompatible(header)) {
+        // New file, or written by another version: start over
+        memset(mapping, 0, FLIGHT_RECORDER_FILE_SIZE);
+        header->magic = FLIGHT_RECORDER_MAGIC;
+        header->version = FLIGHT_RECORDER_VERSION;
+        header->eventSize = sizeof(flight_event);
+        header->capacity = FLIGHT_RECORDER_CAPACITY;
+    }
+    return header;
+}
+
+bool FlightRecorderOpen(const char* path) {
+    pthread_mutex_lock(&gOpenLock);
+    bool opened = gHeader != NULL;
+    if (!opened) {
+        flight_recorder_header* header = mapFile(path);
+        if (header) {
+            __atomic_store_n(&gHeader, header, __ATOMIC_RELEASE);
+            opened = true;
+            LOGI("Recording to %s, event %u, previous process %d", path, header->next,
+                 header->pid);
+
+            // Marks where this process starts in the timeline, with the wall clock to place it
+            timespec now, monotonic;
+            clock_gettime(CLOCK_REALTIME, &now);
+            clock_gettime(CLOCK_MONOTONIC, &monotonic);
+            header->pid = getpid();
+            header->wallClockOffsetNanos =
+                    ((int64_t) now.tv_sec - monotonic.tv_sec) * 1000000000
+                    + now.tv_nsec - monotonic.tv_nsec;
+            FlightRecord(FLIGHT_RECORDER_OPENED, getpid(), (int32_t) now.tv_sec,
+                         (int32_t) now.tv_nsec);
+        }
+    }
+    pthread_mutex_unlock(&gOpenLock);
+    return opened;
+}
+
+void FlightRecord(uint16_t type, int32_t arg0, int32_t arg1, int32_t arg2, int32_t arg3) {
+    flight_recorder_header* header = __atomic_load_n(&gHeader, __ATOMIC_ACQUIRE);
+    if (!header) {
+        return;
+    }
+    uint32_t sequence = __atomic_fetch_add(&header->next, 1, __ATOMIC_RELAXED);
+    flight_event& event =
+            ((flight_event*) (header + 1))[sequence % FLIGHT_RECORDER_CAPACITY];
+
+    // A process dying in the middle leaves the event uncommitted, the decoder skips it
+    __atomic_store_n(&event.commit, 0, __ATOMIC_RELAXED);
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    event.type = type;
+    event.reserved = 0;
+    event.timeNanos = (int64_t) now.tv_sec * 1000000000 + now.tv_nsec;
+    event.args[0] = arg0;
+    event.args[1] = arg1;
+    event.args[2] = arg2;
+    event.args[3] = arg3;
+    __atomic_store_n(&event.commit, sequence + 1, __ATOMIC_RELEASE);
+}
+
+//--------------------------------------------------------------------------------
+// JNI backend of FlightRecorder.java
+//--------------------------------------------------------------------------------
+extern "C" {
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_utils_FlightRecorder_nativeOpen(
+        JNIEnv *env, jclass type, jstring path);
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_FlightRecorder_nativeRecord(
+        JNIEnv *env, jclass type, jint eventType, jint arg0, jint arg1, jint arg2, jint arg3);
+};
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_utils_FlightRecorder_nativeOpen(
+        JNIEnv *env, jclass type, jstring path) {
+    const char* chars = env->GetStringUTFChars(path, NULL);
+    bool opened = FlightRecorderOpen(chars);
+    env->ReleaseStringUTFChars(path, chars);
+    return (jboolean) opened;
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_FlightRecorder_nativeRecord(
+        JNIEnv *env, jclass type, jint eventType, jint arg0, jint arg1, jint arg2, jint arg3) {
+    FlightRecord((uint16_t) eventType, arg0, arg1, arg2, arg3);
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_FLIGHTRECORDER_H
+#define REMOTEDISPLAYNDK_ANDROID_FLIGHTRECORDER_H
+
+//--------------------------------------------------------------------------------
+// Always-on flight recorder of the render path, the counterpart of FlightRecorder.java.
+// Fixed-size binary events go to a ring in a memory-mapped file: at 60 fps the ring holds about
+// the last minute. The mapping is shared with the file, so the kernel writes the events back
+// even if the process dies, and a new process appends to the same ring.
+//
+// Recording never allocates nor makes a syscall: a slot is claimed with an atomic increment,
+// the clock is read through the vDSO. Any thread may record. Until FlightRecorderOpen()
+// succeeds events are dropped.
+//
+// The file layout is defined here for the offline decoder, app/src/host/FlightRecorderDecode.cpp
+//--------------------------------------------------------------------------------
+#include <stdint.h>
+
+#define FLIGHT_RECORDER_MAGIC 0x52464452 // "RDFR"
+#define FLIGHT_RECORDER_VERSION 1
+#define FLIGHT_RECORDER_CAPACITY 16384
+
+// Must be kept in sync with FlightRecorder.java. Arguments are listed after each type.
+enum FLIGHT_EVENT_TYPE
+{
+    // pid, wall clock seconds, wall clock nanoseconds: a process opened the recorder
+    FLIGHT_RECORDER_OPENED = 1,
+    // remote width, height
+    FLIGHT_SESSION_STARTED = 2,
+    FLIGHT_SESSION_ENDED = 3,
+    // frame ID, texture
+    FLIGHT_FRAME_PRODUCED = 4,
+    // frame ID, texture
+    FLIGHT_FRAME_PRESENTED = 5,
+    // slot, texture, frame ID
+    FLIGHT_SLOT_LOCKED = 6,
+    // slot, texture
+    FLIGHT_SLOT_UNLOCKED = 7,
+    // 1 if the swap succeeded, microseconds blocked in the swap. The EGL error of a failed swap
+    // follows.
+    FLIGHT_SWAP = 8,
+    // GL error, FLIGHT_SOURCE_*
+    FLIGHT_GL_ERROR = 9,
+    // EGL error, FLIGHT_SOURCE_*
+    FLIGHT_EGL_ERROR = 10,
+    // surface width, height
+    FLIGHT_RD_THREAD_STARTED = 11,
+    FLIGHT_RD_THREAD_FINISHED = 12,
+    FLIGHT_HEADLESS_ATTACHED = 13,
+    FLIGHT_HEADLESS_DETACHED = 14,
+    // RD thread picked up a frame: frame ID, texture
+    FLIGHT_FRAME_LATCHED = 15,
+    // No target was free for a remote frame
+    FLIGHT_NO_FREE_SLOT = 16,
+};
+
+// Where an error was seen
+enum FLIGHT_SOURCE
+{
+    FLIGHT_SOURCE_NATIVE = 0,
+    FLIGHT_SOURCE_RD_THREAD = 1,
+};
+
+struct flight_recorder_header {
+    uint32_t magic;
+    uint32_t version;
+    uint32_t eventSize;
+    uint32_t capacity;
+    // Sequence number of the next event, the event goes to slot next % capacity
+    uint32_t next;
+    // Process that opened the recorder last, and its CLOCK_REALTIME minus CLOCK_MONOTONIC. The
+    // offset holds for the events of earlier processes too, until the device reboots.
+    int32_t pid;
+    int64_t wallClockOffsetNanos;
+    uint32_t reserved[8];
+};
+
+struct flight_event {
+    // Sequence number + 1 once the event is written, 0 while it is being written
+    uint32_t commit;
+    uint16_t type;
+    uint16_t reserved;
+    // CLOCK_MONOTONIC
+    int64_t timeNanos;
+    int32_t args[4];
+};
+
+// Maps the ring file, creating it if needed. Events of previous processes are kept. Returns
+// whether events are recorded, true if it already was open.
+bool FlightRecorderOpen(const char* path);
+
+void FlightRecord(uint16_t type, int32_t arg0 = 0, int32_t arg1 = 0, int32_t arg2 = 0,
+                  int32_t arg3 = 0);
+
+#endif //REMOTEDISPLAYNDK_ANDROID_FLIGHTRECORDER_H
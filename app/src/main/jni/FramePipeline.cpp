@@ -0,0 +1,893 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "FramePipeline.h"
+
+#include <android/log.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <EGL/egl.h>
+
+#include <algorithm>
+#include <vector>
+
+#include "Cube.h"
+#include "BenchmarkScene.h"
+#include "FlightRecorder.h"
+#include "RenderTrace.h"
+#include "SimulationClock.h"
+#include "GLCapabilities.h"
+#include "GLStateCache.h"
+#include "JobSystem.h"
+
+#undef   LOG_TAG
+#undef   LOGI
+#undef   LOGE
+#define  LOG_TAG    "NativeRenderer"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+// One target shown by the RD thread, one waiting for it and one to render to: a newer frame
+// replaces the waiting one instead of waiting for a target to free up
+#define  RD_TARGET_COUNT 3
+// Damage of the latest remote frames, targets older than this are redrawn in full. Must be a
+// power of two.
+#define  DAMAGE_HISTORY_SIZE 8
+// Added around projected bounds, covers rasterization and filtering on the presenter
+#define  DAMAGE_MARGIN 2
+// Rotation of the scene per simulation step
+#define  ANGLE_INCREMENT 0.2f
+
+// Frame ID watermark layout, must be kept in sync with FrameWatermark.java
+#define  WATERMARK_BITS 16
+#define  WATERMARK_BLOCK_SIZE 8
+
+struct remote_display_target {
+    GLuint remoteDisplayTexture;
+    GLuint remoteDisplayDepthBuffer;
+    GLuint remoteDisplayFrameBuffer;
+    // Framebuffer objects are not shared between contexts, the headless driver renders through
+    // its own
+    GLuint headlessFrameBuffer;
+    // ID of the remote frame the target holds, 0 if none
+    int32_t frameId;
+    // Set from the time a frame is rendered to the target until the RD thread is done with it.
+    // Cleared from the RD thread.
+    bool locked;
+};
+
+// glInvalidateFramebuffer on ES3, glDiscardFramebufferEXT from EXT_discard_framebuffer
+// otherwise. Both take the same arguments and attachment names. NULL if neither is available.
+typedef void (*discard_framebuffer_func)(GLenum target, GLsizei numAttachments,
+                                         const GLenum* attachments);
+
+// The session is started and ended from the UI thread, see PipelineStartRemote(). The GL
+// thread picks it up at the start of every frame, and releases the targets of an ended session
+// at the start of the next frame. Guarded by gSessionLock.
+pthread_mutex_t gSessionLock = PTHREAD_MUTEX_INITIALIZER;
+FramePipelineListener* gListener = NULL;
+int32_t gRequestedRemoteWidth, gRequestedRemoteHeight;
+// Changes with every start and stop, frames of an ended session are not handed over
+int32_t gSessionId = 0;
+bool gReleaseRemoteTargets = false;
+
+remote_display_target remoteDisplayTargets[RD_TARGET_COUNT];
+// Framebuffers of released targets that belong to the view context, released while the headless
+// driver was rendering. Deleted once the view renders again.
+std::vector<GLuint> gReleasedViewFrameBuffers;
+
+// Size of the current targets, only used by the GL thread
+int gRemoteDisplayWidth, gRemoteDisplayHeight;
+int gLocalWidth, gLocalHeight;
+// Framebuffer of the local pass, 0 for the window surface of the view
+GLuint gLocalFrameBuffer = 0;
+
+Cube cube;
+
+// Number of cubes of the benchmark workload, 0 renders the regular single cube scene
+int gBenchmarkCubeCount = 0;
+BenchmarkScene benchmarkScene;
+
+// CPU time spent in each part of the frame, accumulated between two benchmark reports
+struct frame_timings {
+    double update;
+    double localPass;
+    double remotePass;
+    int64_t stateCallsIssued;
+    int64_t stateCallsFiltered;
+    int32_t frames;
+};
+
+frame_timings gFrameTimings;
+frame_stats gFrameStats;
+allocation_counter_func gAllocationCounter = NULL;
+ndk_helper::PerfMonitor gPerfMonitor;
+
+ndk_helper::Mat4 mat_model;
+ndk_helper::Mat4 mat_model_view;
+ndk_helper::Mat4 mat_model_view_projection;
+
+ndk_helper::Mat4 mat_projection;
+ndk_helper::Mat4 mat_view;
+ndk_helper::Mat4 mat_rotation;
+
+// Animation state. The simulation advances gSimulatedAngle in fixed steps, every pass of a
+// frame renders the same instant, angle, interpolated between the two latest steps.
+SimulationClock gSimulationClock(SIMULATION_STEP);
+float gSimulatedAngle = 0.f;
+ndk_helper::Interpolator gAngleInterpolator;
+float angle;
+
+// Set while frames are driven from the headless driver context instead of the view's
+bool gHeadless = false;
+
+bool gLatencyProbeEnabled = false;
+// ID of the last remote frame produced
+int32_t gRemoteFrameId = 0;
+
+// Bounds of the scene in the latest remote frame, and the damage of the latest remote frames,
+// by frame ID modulo DAMAGE_HISTORY_SIZE
+damage_rect gPreviousSceneBounds;
+bool gPreviousSceneBoundsValid = false;
+damage_rect gDamageHistory[DAMAGE_HISTORY_SIZE];
+
+// Corners of the cube, see Cube.inl
+extern float VERTICES[];
+
+discard_framebuffer_func gDiscardFramebuffer = NULL;
+// Depth attachments the local and remote passes no longer write back to memory, in bytes
+int64_t gLocalDiscardBytes = 0;
+int64_t gRemoteDiscardBytes = 0;
+
+static const GLenum DEFAULT_FRAMEBUFFER_DISCARD_ATTACHMENTS[] = { GL_DEPTH };
+static const GLenum FRAMEBUFFER_OBJECT_DISCARD_ATTACHMENTS[] = { GL_DEPTH_ATTACHMENT };
+// Attachment names differ between the default framebuffer and framebuffer objects
+const GLenum* gLocalDiscardAttachments = DEFAULT_FRAMEBUFFER_DISCARD_ATTACHMENTS;
+
+// Same time base as System.nanoTime() on the Java side.
+static int64_t getMonotonicTimeNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+static int64_t getAllocationCount() {
+    return gAllocationCounter ? gAllocationCounter() : 0;
+}
+
+// Sets the state call counts of a pass from the cache stats at its start and end
+static void setStateCalls(pass_stats &stats, const gl_state_stats &start,
+                          const gl_state_stats &end) {
+    stats.stateCallsIssued = (int32_t) (end.issued - start.issued);
+    stats.stateCallsFiltered = (int32_t) (end.filtered - start.filtered);
+}
+
+static void printGLString(const char *name, GLenum s) {
+    const char *v = (const char *) glGetString(s);
+    LOGI("GL %s = %s\n", name, v);
+}
+
+remote_display_target initRemoteDisplayTexture(int width, int height) {
+    LOGI("initRemoteDisplayTexture(), %d x %d", width, height);
+
+    remote_display_target target;
+    target.locked = false;
+    target.frameId = 0;
+
+    glGenTextures(1, &target.remoteDisplayTexture);
+    glBindTexture(GL_TEXTURE_2D, target.remoteDisplayTexture);
+
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, width, height,
+                 0, GL_RGB, GL_UNSIGNED_SHORT_5_6_5, NULL);
+
+    // Each target gets its own depth buffer so the remote pass depth tests against its own
+    // geometry only
+    glGenRenderbuffers(1, &target.remoteDisplayDepthBuffer);
+    glBindRenderbuffer(GL_RENDERBUFFER, target.remoteDisplayDepthBuffer);
+    glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT16, width, height);
+
+    glBindTexture(GL_TEXTURE_2D, 0);
+    glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+    // Framebuffers are created by the driver rendering to the target, see
+    // initRemoteDisplayFramebuffers()
+    target.remoteDisplayFrameBuffer = 0;
+    target.headlessFrameBuffer = 0;
+
+    gRemoteDiscardBytes = (int64_t) width * height * 2;
+
+    LOGI("initRemoteDisplayTexture(), textureId: %d", target.remoteDisplayTexture);
+
+    return target;
+}
+
+// Deletes the targets of the ended session. The textures and renderbuffers are shared, the
+// framebuffers belong to the context that created them.
+void releaseRemoteDisplayTargets() {
+    for(int i = 0; i < RD_TARGET_COUNT; i++) {
+        remote_display_target &target = remoteDisplayTargets[i];
+        if (gHeadless) {
+            GLStateDeleteFramebuffers(1, &target.headlessFrameBuffer);
+            if (target.remoteDisplayFrameBuffer) {
+                gReleasedViewFrameBuffers.push_back(target.remoteDisplayFrameBuffer);
+            }
+        } else {
+            // Those of the headless driver context went with PipelineHeadlessDetached()
+            GLStateDeleteFramebuffers(1, &target.remoteDisplayFrameBuffer);
+        }
+        glDeleteRenderbuffers(1, &target.remoteDisplayDepthBuffer);
+        glDeleteTextures(1, &target.remoteDisplayTexture);
+    }
+    memset(remoteDisplayTargets, 0, sizeof(remoteDisplayTargets));
+}
+
+// Hands the frame rendered to target over to the listener, unless the session it was rendered
+// for ended meanwhile. Returns whether it was handed over.
+bool handOverRemoteFrame(int32_t sessionId, remote_display_target &target,
+                         int64_t frameTimeNanos, const damage_rect &damage) {
+    // Held during the call, so the session can not end in the middle of it
+    pthread_mutex_lock(&gSessionLock);
+    bool current = sessionId == gSessionId;
+    if (current) {
+        gListener->OnRemoteFrame(target.remoteDisplayTexture, target.frameId, frameTimeNanos,
+                                 damage);
+    }
+    pthread_mutex_unlock(&gSessionLock);
+    if (!current) {
+        // Nobody is going to present it
+        TraceEndAsync(TRACE_REMOTE_FRAME_FLOW, target.frameId);
+        __atomic_store_n(&target.locked, false, __ATOMIC_RELEASE);
+    }
+    return current;
+}
+
+// Reports an error to the listener of the session, if it did not end meanwhile
+void reportRemoteGlError(int32_t sessionId, const char* op, GLenum error) {
+    pthread_mutex_lock(&gSessionLock);
+    if (sessionId == gSessionId && gListener) {
+        gListener->OnGlError(op, error);
+    }
+    pthread_mutex_unlock(&gSessionLock);
+}
+
+GLuint initRemoteDisplayFramebuffer(const remote_display_target &target, int32_t sessionId) {
+    GLuint frameBuffer;
+    glGenFramebuffers(1, &frameBuffer);
+    GLStateBindFramebuffer(frameBuffer);
+
+    glFramebufferTexture2D(
+            GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, target.remoteDisplayTexture, 0);
+    glFramebufferRenderbuffer(
+            GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, target.remoteDisplayDepthBuffer);
+
+    // Checked once here rather than every frame
+    GLenum status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+    if (status != GL_FRAMEBUFFER_COMPLETE) {
+        LOGE("initRemoteDisplayFramebuffer(), framebuffer incomplete: 0x%x", status);
+        reportRemoteGlError(sessionId, "glCheckFramebufferStatus", status);
+    }
+
+    GLStateBindFramebuffer(gLocalFrameBuffer);
+    return frameBuffer;
+}
+
+// Creates the framebuffers of the current driver for targets that do not have one yet
+void initRemoteDisplayFramebuffers(int32_t sessionId) {
+    for(int i = 0; i < RD_TARGET_COUNT; i++) {
+        remote_display_target &target = remoteDisplayTargets[i];
+        GLuint &frameBuffer = gHeadless ? target.headlessFrameBuffer
+                                        : target.remoteDisplayFrameBuffer;
+        if (target.remoteDisplayTexture && !frameBuffer) {
+            frameBuffer = initRemoteDisplayFramebuffer(target, sessionId);
+        }
+    }
+}
+
+// GL state is per context, set on every context frames get rendered from
+void initGLState() {
+    GLStateEnable(GL_DEPTH_TEST);
+    GLStateDepthFunc(GL_LEQUAL);
+
+    // Set anti-aliasing
+    GLStateEnable(GL_BLEND);
+    GLStateBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+}
+
+// Views of the benchmark scene, culled separately as the local and remote targets differ in
+// aspect ratio
+enum SCENE_VIEW
+{
+    VIEW_LOCAL, VIEW_REMOTE,
+};
+
+// Perspective with field of view for a target of the given size
+ndk_helper::Mat4 computeProjection(int width, int height) {
+    float ratio = (float) width / height;
+    float fov = 30.0f;
+    float near = 1.0f;
+    float far = 100.0f;
+    float top = (float) tanf(fov * M_PI / 360.0f) * near;
+    float bottom = -top;
+    float left = ratio * bottom;
+    float right = ratio * top;
+
+    return ndk_helper::Mat4::Perspective(left, right, bottom, top, near, far);
+}
+
+void setupViewport(int width, int height) {
+    GLStateViewport(0, 0, width, height);
+    checkGlError("glViewport");
+
+    mat_projection = computeProjection(width, height);
+
+    GLStateFrontFace(GL_CCW);
+    GLStateCullFace(GL_FRONT);
+    GLStateEnable(GL_CULL_FACE);
+}
+
+// Runs the simulation steps due since the previous frame and computes the state this frame
+// renders. Frames can be dropped or delayed without changing the speed of the animation.
+void updateSimulation() {
+    double now = getMonotonicTimeNanos() / 1e9;
+    int32_t steps = gSimulationClock.Advance(now);
+    if (steps) {
+        float previousAngle = gSimulatedAngle;
+        for (int32_t i = 0; i < steps; i++) {
+            previousAngle = gSimulatedAngle;
+            gSimulatedAngle += ANGLE_INCREMENT;
+        }
+        gAngleInterpolator.Set(previousAngle, gSimulatedAngle,
+                               ndk_helper::INTERPOLATOR_TYPE_LINEAR, gSimulationClock.GetStep(),
+                               gSimulationClock.GetStateStartTime());
+    } else if (!gSimulationClock.GetSteps()) {
+        // Nothing simulated yet, hold the initial state
+        gAngleInterpolator.Set(gSimulatedAngle, gSimulatedAngle,
+                               ndk_helper::INTERPOLATOR_TYPE_LINEAR, 0.0, now);
+    }
+    gAngleInterpolator.Update(now, angle);
+}
+
+// Both passes of a frame share the transforms, computed once after the simulation update
+void updateSceneTransforms() {
+    mat_view = ndk_helper::Mat4::LookAt(
+            ndk_helper::Vec3(0.0f, 0.0f, -10.0f),
+            ndk_helper::Vec3(0.0f, 0.0f, 0.0f),
+            ndk_helper::Vec3(0.0f, 1.0f, 0.0f)
+    );
+
+    mat_model = ndk_helper::Mat4::Identity();
+    mat_model = mat_model + ndk_helper::Mat4::Translation(0.0f, -0.5f, -1.5f);
+
+    mat_rotation = ndk_helper::Mat4::Rotation(2 * angle, 0.f, 1.f, 1.f);
+    mat_model *= mat_rotation;
+}
+
+// Returns the number of draw calls it took to render the scene
+int32_t renderLocalFrame(SCENE_VIEW view, bool colorChange) {
+
+    GLStateClearColor(0.5f, 0.5f, 0.5f, 1.f);
+    glClear( GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT );
+
+    if (gBenchmarkCubeCount) {
+        benchmarkScene.Render(view, mat_projection * mat_view, colorChange);
+        return benchmarkScene.GetDrawCalls();
+    } else {
+        mat_model_view = mat_view * mat_model;
+        mat_model_view_projection = mat_projection * mat_model_view;
+
+        cube.Render(mat_model_view_projection.Ptr(), colorChange);
+        return 1;
+    }
+
+}
+
+static bool isEmpty(const damage_rect &rect) {
+    return rect.width <= 0 || rect.height <= 0;
+}
+
+static void unionRect(damage_rect &rect, const damage_rect &other) {
+    if (isEmpty(other)) {
+        return;
+    }
+    if (isEmpty(rect)) {
+        rect = other;
+        return;
+    }
+    int32_t right = std::max(rect.x + rect.width, other.x + other.width);
+    int32_t top = std::max(rect.y + rect.height, other.y + other.height);
+    rect.x = std::min(rect.x, other.x);
+    rect.y = std::min(rect.y, other.y);
+    rect.width = right - rect.x;
+    rect.height = top - rect.y;
+}
+
+static damage_rect fullRect(int width, int height) {
+    damage_rect rect = { 0, 0, width, height };
+    return rect;
+}
+
+// Bounds of the scene in the remote target, from the corners of the cube projected with the
+// current transforms. The benchmark scene covers the whole target.
+damage_rect computeSceneBounds(int width, int height) {
+    if (gBenchmarkCubeCount) {
+        return fullRect(width, height);
+    }
+
+    ndk_helper::Mat4 mvp = mat_projection * mat_view * mat_model;
+    float minX = width, minY = height, maxX = 0.f, maxY = 0.f;
+    for (int i = 0; i < CUBE_VERTEX_COUNT; i++) {
+        float x, y, z, w;
+        (mvp * ndk_helper::Vec4(&VERTICES[i * COORDS_PER_VERTEX])).Value(x, y, z, w);
+        if (w <= 0.f) {
+            // Behind the eye, the projection is meaningless
+            return fullRect(width, height);
+        }
+        x = (x / w * 0.5f + 0.5f) * width;
+        y = (y / w * 0.5f + 0.5f) * height;
+        minX = std::min(minX, x);
+        minY = std::min(minY, y);
+        maxX = std::max(maxX, x);
+        maxY = std::max(maxY, y);
+    }
+
+    int32_t left = std::max(0, (int32_t) floorf(minX) - DAMAGE_MARGIN);
+    int32_t bottom = std::max(0, (int32_t) floorf(minY) - DAMAGE_MARGIN);
+    int32_t right = std::min(width, (int32_t) ceilf(maxX) + DAMAGE_MARGIN);
+    int32_t top = std::min(height, (int32_t) ceilf(maxY) + DAMAGE_MARGIN);
+    damage_rect bounds = { left, bottom, std::max(0, right - left), std::max(0, top - bottom) };
+    return bounds;
+}
+
+// Records what changes in the remote frame frameId compared to the previous one, and returns
+// the region of target to redraw to bring it from the frame it holds to frameId
+damage_rect updateRemoteDamage(const remote_display_target &target, int32_t frameId,
+                               damage_rect &frameDamage) {
+    damage_rect sceneBounds = computeSceneBounds(gRemoteDisplayWidth, gRemoteDisplayHeight);
+    if (gPreviousSceneBoundsValid) {
+        // Where the scene was is background now
+        frameDamage = sceneBounds;
+        unionRect(frameDamage, gPreviousSceneBounds);
+    } else {
+        frameDamage = fullRect(gRemoteDisplayWidth, gRemoteDisplayHeight);
+    }
+    if (gLatencyProbeEnabled) {
+        damage_rect watermark = { 0, 0, WATERMARK_BITS * WATERMARK_BLOCK_SIZE,
+                                  WATERMARK_BLOCK_SIZE };
+        unionRect(frameDamage, watermark);
+    }
+    gPreviousSceneBounds = sceneBounds;
+    gPreviousSceneBoundsValid = true;
+    gDamageHistory[frameId & (DAMAGE_HISTORY_SIZE - 1)] = frameDamage;
+
+    if (!target.frameId || frameId - target.frameId > DAMAGE_HISTORY_SIZE) {
+        return fullRect(gRemoteDisplayWidth, gRemoteDisplayHeight);
+    }
+    damage_rect redraw = frameDamage;
+    for (int32_t id = target.frameId + 1; id < frameId; id++) {
+        unionRect(redraw, gDamageHistory[id & (DAMAGE_HISTORY_SIZE - 1)]);
+    }
+    return redraw;
+}
+
+// Stamps the frame ID into the bottom-left corner of the bound framebuffer, one black or white
+// block per bit, so the RD thread can read back which frame actually got presented.
+void encodeFrameWatermark(int32_t frameId) {
+    GLStateEnable(GL_SCISSOR_TEST);
+    for (int bit = 0; bit < WATERMARK_BITS; bit++) {
+        float value = ((frameId >> bit) & 1) ? 1.f : 0.f;
+        GLStateScissor(bit * WATERMARK_BLOCK_SIZE, 0, WATERMARK_BLOCK_SIZE,
+                       WATERMARK_BLOCK_SIZE);
+        GLStateClearColor(value, value, value, 1.f);
+        glClear(GL_COLOR_BUFFER_BIT);
+    }
+    GLStateDisable(GL_SCISSOR_TEST);
+}
+
+// Tells tile based GPUs the depth of the pass just rendered is not needed anymore, so it does
+// not get written back to memory
+void discardDepth(const GLenum *attachments) {
+    if (gDiscardFramebuffer) {
+        gDiscardFramebuffer(GL_FRAMEBUFFER, 1, attachments);
+    }
+}
+
+void initFramebufferDiscard() {
+    gDiscardFramebuffer = NULL;
+    const char *method = "unsupported";
+    if (HasGLCapability(CAPABILITY_INVALIDATE_FRAMEBUFFER)) {
+        gDiscardFramebuffer = glInvalidateFramebuffer;
+        method = "glInvalidateFramebuffer";
+    } else if (HasGLCapability(CAPABILITY_DISCARD_FRAMEBUFFER)) {
+        gDiscardFramebuffer = (discard_framebuffer_func) eglGetProcAddress(
+                "glDiscardFramebufferEXT");
+        method = "glDiscardFramebufferEXT";
+    }
+    LOGI("Framebuffer discard: %s", method);
+}
+
+// The local surface may be multisampled, every sample has its own depth
+void measureLocalDiscard() {
+    GLint depthBits = 0, samples = 0;
+    glGetIntegerv(GL_DEPTH_BITS, &depthBits);
+    glGetIntegerv(GL_SAMPLES, &samples);
+    gLocalDiscardBytes = (int64_t) gLocalWidth * gLocalHeight * (depthBits / 8)
+                         * (samples > 1 ? samples : 1);
+}
+
+// Returns the number of draw calls of the pass. Only the part of the target that changed
+// since the frame it holds is redrawn, frameDamage is set to what changed since the previous
+// frame.
+int32_t renderRemoteDisplayFrame(remote_display_target &target, int32_t frameId,
+                                 damage_rect &frameDamage) {
+
+    GLStateBindFramebuffer(gHeadless ? target.headlessFrameBuffer
+                                     : target.remoteDisplayFrameBuffer);
+
+    setupViewport(gRemoteDisplayWidth, gRemoteDisplayHeight);
+
+    damage_rect redraw = updateRemoteDamage(target, frameId, frameDamage);
+    gFrameStats.remotePass.savedPixels = (int64_t) gRemoteDisplayWidth * gRemoteDisplayHeight
+                                         - (int64_t) redraw.width * redraw.height;
+
+    // The clear and the draw calls only touch the scissored region
+    GLStateEnable(GL_SCISSOR_TEST);
+    GLStateScissor(redraw.x, redraw.y, redraw.width, redraw.height);
+    int32_t drawCalls = renderLocalFrame(VIEW_REMOTE, false);
+    GLStateDisable(GL_SCISSOR_TEST);
+    target.frameId = frameId;
+
+    if (gLatencyProbeEnabled) {
+        encodeFrameWatermark(frameId);
+    }
+
+    // Only the color texture is consumed by the RD thread
+    discardDepth(FRAMEBUFFER_OBJECT_DISCARD_ATTACHMENTS);
+
+    GLStateBindFramebuffer(gLocalFrameBuffer);
+
+    return drawCalls;
+}
+
+// Compares the CPU cost of drawing the cube from client side arrays with drawing it from the
+// buffer objects it now keeps on the GPU. Both loops end with a glFinish() so queued work
+// does not leak from one measurement into the other.
+void benchmarkStaticGeometry() {
+    const int iterations = 1000;
+    ndk_helper::Mat4 mvp = ndk_helper::Mat4::Identity();
+
+    glFinish();
+    double start = ndk_helper::PerfMonitor::GetCurrentTime();
+    for (int i = 0; i < iterations; i++) {
+        cube.RenderClientArrays(mvp.Ptr(), i & 1);
+    }
+    glFinish();
+    double clientArrays = ndk_helper::PerfMonitor::GetCurrentTime() - start;
+
+    start = ndk_helper::PerfMonitor::GetCurrentTime();
+    for (int i = 0; i < iterations; i++) {
+        cube.Render(mvp.Ptr(), i & 1);
+    }
+    glFinish();
+    double bufferObjects = ndk_helper::PerfMonitor::GetCurrentTime() - start;
+
+    glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+    LOGI("Cube draw CPU cost: client arrays %.2f us, buffer objects %.2f us, saved %.2f us",
+         clientArrays * 1e6 / iterations, bufferObjects * 1e6 / iterations,
+         (clientArrays - bufferObjects) * 1e6 / iterations);
+}
+
+void reportFrameTimings(bool remote) {
+    float fps;
+    if (!gPerfMonitor.Update(fps) || !gFrameTimings.frames) {
+        return;
+    }
+
+    double toMs = 1000.0 / gFrameTimings.frames;
+    // Estimate of the depth write-back avoided by discarding, as the driver does not report it
+    double discardMBps = gDiscardFramebuffer ?
+            (gLocalDiscardBytes + (remote ? gRemoteDiscardBytes : 0)) * fps / (1024.0 * 1024.0)
+            : 0.0;
+    double perFrame = 1.0 / gFrameTimings.frames;
+    LOGI("Benchmark: %d cubes (%s, %d draw calls per pass, %d/%d visible local/remote, "
+         "%d job threads), %.1f fps, update %.2f ms, "
+         "local %.2f ms, remote %.2f ms, depth discard saves ~%.1f MB/s, "
+         "state calls %.1f issued %.1f filtered per frame%s",
+         benchmarkScene.GetCubeCount(), benchmarkScene.IsInstanced() ? "instanced" : "batched",
+         benchmarkScene.GetDrawCalls(), benchmarkScene.GetVisibleCount(VIEW_LOCAL),
+         benchmarkScene.GetVisibleCount(VIEW_REMOTE), JobSystemGetThreadCount(), fps,
+         gFrameTimings.update * toMs,
+         gFrameTimings.localPass * toMs, gFrameTimings.remotePass * toMs, discardMBps,
+         gFrameTimings.stateCallsIssued * perFrame, gFrameTimings.stateCallsFiltered * perFrame,
+         remote ? "" : " (not casting)");
+    memset(&gFrameTimings, 0, sizeof(gFrameTimings));
+}
+
+bool PipelineInitContext(bool deferShaders) {
+    LOGI("Initialize native renderer");
+
+    printGLString("Version", GL_VERSION);
+    printGLString("Vendor", GL_VENDOR);
+    printGLString("Renderer", GL_RENDERER);
+    printGLString("Extensions", GL_EXTENSIONS);
+
+    // Detected once here, every later context shares the same version
+    GetGLCapabilities();
+    GLStateReset();
+
+    // Initialize Cube Renderer ie. load Shaders and upload geometry. The benchmark measures
+    // draws right away, it needs the program now.
+    deferShaders = deferShaders && !gBenchmarkCubeCount;
+    cube.Unload();
+    cube.Init(!deferShaders);
+
+    if (gBenchmarkCubeCount) {
+        benchmarkStaticGeometry();
+        benchmarkScene.Unload();
+        JobSystemStart(JOB_DEFAULT_WORKERS);
+        benchmarkScene.Init(gBenchmarkCubeCount);
+        memset(&gFrameTimings, 0, sizeof(gFrameTimings));
+    }
+
+    // Targets of a previous context belong to another share group, start over
+    memset(remoteDisplayTargets, 0, sizeof(remoteDisplayTargets));
+    gReleasedViewFrameBuffers.clear();
+    pthread_mutex_lock(&gSessionLock);
+    gReleaseRemoteTargets = false;
+    pthread_mutex_unlock(&gSessionLock);
+    gPreviousSceneBoundsValid = false;
+
+    initFramebufferDiscard();
+    return deferShaders;
+}
+
+void PipelineSetCubeProgram(GLuint program) {
+    cube.SetProgram(program);
+    if (!cube.HasProgram()) {
+        LOGE("No cube program, the cube is not drawn");
+    }
+}
+
+const char* PipelineGetCubeShaderSource(bool fragment) {
+    return fragment ? FRAGMENT_SHADER_CODE : VERTEX_SHADER_CODE;
+}
+
+const char* PipelineGetCubeAttribute(int32_t index) {
+    return index >= 0 && index < CUBE_ATTRIBUTE_COUNT ? CUBE_ATTRIBUTE_NAMES[index] : NULL;
+}
+
+void PipelineInitSurface(int32_t width, int32_t height, GLuint framebuffer) {
+    gLocalWidth = width;
+    gLocalHeight = height;
+    gLocalFrameBuffer = framebuffer;
+    gLocalDiscardAttachments = framebuffer ? FRAMEBUFFER_OBJECT_DISCARD_ATTACHMENTS
+                                           : DEFAULT_FRAMEBUFFER_DISCARD_ATTACHMENTS;
+
+    GLStateBindFramebuffer(gLocalFrameBuffer);
+    initGLState();
+    measureLocalDiscard();
+}
+
+bool PipelineRenderFrame(bool renderLocal) {
+    // Production time of this frame, carried along to the RD thread for presentation pacing
+    int64_t frameTimeNanos = getMonotonicTimeNanos();
+    TraceRefresh();
+
+    pthread_mutex_lock(&gSessionLock);
+    bool releaseTargets = gReleaseRemoteTargets;
+    gReleaseRemoteTargets = false;
+    // Read once, the session may end while the frame renders
+    FramePipelineListener* listener = gListener;
+    int32_t sessionId = gSessionId;
+    int32_t remoteWidth = gRequestedRemoteWidth;
+    int32_t remoteHeight = gRequestedRemoteHeight;
+    pthread_mutex_unlock(&gSessionLock);
+
+    if (releaseTargets) {
+        releaseRemoteDisplayTargets();
+    }
+    if (!gHeadless && !gReleasedViewFrameBuffers.empty()) {
+        GLStateDeleteFramebuffers((GLsizei) gReleasedViewFrameBuffers.size(),
+                                  &gReleasedViewFrameBuffers[0]);
+        gReleasedViewFrameBuffers.clear();
+    }
+
+    if(!remoteDisplayTargets[0].remoteDisplayTexture && listener) {
+        // A new session
+        gRemoteDisplayWidth = remoteWidth;
+        gRemoteDisplayHeight = remoteHeight;
+        gPreviousSceneBoundsValid = false;
+        for(int i = 0; i < RD_TARGET_COUNT; i++) {
+            remoteDisplayTargets[i] =
+                    initRemoteDisplayTexture(gRemoteDisplayWidth, gRemoteDisplayHeight);
+        }
+    };
+    initRemoteDisplayFramebuffers(sessionId);
+
+    memset(&gFrameStats, 0, sizeof(gFrameStats));
+    int64_t frameAllocations = getAllocationCount();
+    double frameStart = ndk_helper::PerfMonitor::GetCurrentTime();
+    // Both passes below render this same simulated instant
+    updateSimulation();
+    updateSceneTransforms();
+    if (gBenchmarkCubeCount) {
+        // Cubes are culled for both passes by the same jobs, before any draw of the frame
+        ndk_helper::Mat4 localViewProjection =
+                computeProjection(gLocalWidth, gLocalHeight) * mat_view;
+        ndk_helper::Mat4 remoteViewProjection =
+                computeProjection(gRemoteDisplayWidth, gRemoteDisplayHeight) * mat_view;
+        const ndk_helper::Mat4* viewProjections[BENCHMARK_MAX_VIEWS];
+        viewProjections[VIEW_LOCAL] = renderLocal ? &localViewProjection : NULL;
+        viewProjections[VIEW_REMOTE] = remoteDisplayTargets[0].remoteDisplayTexture && listener
+                                       ? &remoteViewProjection : NULL;
+        benchmarkScene.Update(2 * angle, viewProjections);
+    }
+    int64_t localAllocations = getAllocationCount();
+    gl_state_stats localStateCalls = GLStateGetStats();
+    double localStart = ndk_helper::PerfMonitor::GetCurrentTime();
+
+    // Render local frame (ie. displayed on the device)
+    if (renderLocal) {
+        TraceBegin("local pass");
+        setupViewport(gLocalWidth, gLocalHeight);
+        gFrameStats.localPass.drawCalls = renderLocalFrame(VIEW_LOCAL, true);
+        // Nothing else gets drawn to the local surface this frame
+        discardDepth(gLocalDiscardAttachments);
+        TraceEnd();
+    }
+
+    int64_t remoteAllocations = getAllocationCount();
+    gl_state_stats remoteStateCalls = GLStateGetStats();
+    double remoteStart = ndk_helper::PerfMonitor::GetCurrentTime();
+    bool remote = false;
+
+    if(remoteDisplayTargets[0].remoteDisplayTexture && listener) {
+        int targetIndex = -1;
+        for(int i = 0; i < RD_TARGET_COUNT; i++) {
+            // Pairs with the release of PipelineRemoteFrameDone(), the RD thread is done
+            // sampling the target
+            if (!__atomic_load_n(&remoteDisplayTargets[i].locked, __ATOMIC_ACQUIRE)) {
+                targetIndex = i;
+                break;
+            }
+        }
+
+        if(targetIndex >= 0) {
+            remote_display_target &target = remoteDisplayTargets[targetIndex];
+            target.locked = true;
+
+            // Render remote frame (ie. to be displayed on the TV)
+            gRemoteFrameId++;
+            FlightRecord(FLIGHT_SLOT_LOCKED, targetIndex, target.remoteDisplayTexture,
+                         gRemoteFrameId);
+            // Ended by the RD thread once the frame is presented
+            TraceBeginAsync(TRACE_REMOTE_FRAME_FLOW, gRemoteFrameId);
+            TraceBegin("remote pass");
+            damage_rect damage;
+            gFrameStats.remotePass.drawCalls = renderRemoteDisplayFrame(target, gRemoteFrameId,
+                                                                        damage);
+            if (gHeadless) {
+                // Nothing swaps the headless context, make sure the frame reaches the GPU
+                // before the RD thread samples it
+                glFlush();
+            }
+            TraceEnd();
+            remote = handOverRemoteFrame(sessionId, target, frameTimeNanos, damage);
+        } else {
+            LOGE("No free texture...");
+            FlightRecord(FLIGHT_NO_FREE_SLOT);
+        }
+    }
+
+    double frameEnd = ndk_helper::PerfMonitor::GetCurrentTime();
+    int64_t frameEndAllocations = getAllocationCount();
+    gFrameStats.update.cpuTime = localStart - frameStart;
+    gFrameStats.update.allocations = localAllocations - frameAllocations;
+    gFrameStats.localPass.cpuTime = remoteStart - localStart;
+    gFrameStats.localPass.allocations = remoteAllocations - localAllocations;
+    gFrameStats.remotePass.cpuTime = frameEnd - remoteStart;
+    gFrameStats.remotePass.allocations = frameEndAllocations - remoteAllocations;
+    setStateCalls(gFrameStats.localPass, localStateCalls, remoteStateCalls);
+    setStateCalls(gFrameStats.remotePass, remoteStateCalls, GLStateGetStats());
+    gFrameStats.remote = remote;
+
+    if (gBenchmarkCubeCount) {
+        gFrameTimings.update += gFrameStats.update.cpuTime;
+        gFrameTimings.localPass += gFrameStats.localPass.cpuTime;
+        gFrameTimings.remotePass += gFrameStats.remotePass.cpuTime;
+        gFrameTimings.stateCallsIssued += gFrameStats.localPass.stateCallsIssued
+                                          + gFrameStats.remotePass.stateCallsIssued;
+        gFrameTimings.stateCallsFiltered += gFrameStats.localPass.stateCallsFiltered
+                                            + gFrameStats.remotePass.stateCallsFiltered;
+        gFrameTimings.frames++;
+        reportFrameTimings(remote);
+    }
+    return remote;
+}
+
+void PipelineStartRemote(FramePipelineListener* listener, int32_t width, int32_t height) {
+    pthread_mutex_lock(&gSessionLock);
+    gRequestedRemoteWidth = width;
+    gRequestedRemoteHeight = height;
+    gListener = listener;
+    gSessionId++;
+    pthread_mutex_unlock(&gSessionLock);
+}
+
+void PipelineStopRemote() {
+    // No GL call here: there is no current context on this thread, and the GL thread may be
+    // rendering to the targets. It releases them at the start of its next frame.
+    pthread_mutex_lock(&gSessionLock);
+    gListener = NULL;
+    gSessionId++;
+    gReleaseRemoteTargets = true;
+    pthread_mutex_unlock(&gSessionLock);
+}
+
+void PipelineRemoteFrameDone(GLuint texture) {
+    // Unlock target as RD thread has finished rendering to remote surface
+    for(int i = 0; i < RD_TARGET_COUNT; i++) {
+        if (remoteDisplayTargets[i].remoteDisplayTexture == texture) {
+            __atomic_store_n(&remoteDisplayTargets[i].locked, false, __ATOMIC_RELEASE);
+            FlightRecord(FLIGHT_SLOT_UNLOCKED, i, texture);
+        }
+    }
+}
+
+void PipelineHeadlessAttached() {
+    LOGI("Headless driver attached");
+    gHeadless = true;
+    cube.SetSharedContext(true);
+    // The cache holds the state of the view context
+    GLStateReset();
+    initGLState();
+}
+
+void PipelineHeadlessDetached() {
+    LOGI("Headless driver detached");
+    for(int i = 0; i < RD_TARGET_COUNT; i++) {
+        GLStateDeleteFramebuffers(1, &remoteDisplayTargets[i].headlessFrameBuffer);
+        remoteDisplayTargets[i].headlessFrameBuffer = 0;
+    }
+    gHeadless = false;
+    cube.SetSharedContext(false);
+    // The cache holds the state of the headless driver context
+    GLStateReset();
+}
+
+void PipelineSetLatencyProbeEnabled(bool enabled) {
+    LOGI("Latency probe %s", enabled ? "enabled" : "disabled");
+    gLatencyProbeEnabled = enabled;
+}
+
+void PipelineSetBenchmarkCubeCount(int32_t cubeCount) {
+    LOGI("Benchmark cube count set to %d", cubeCount);
+    gBenchmarkCubeCount = cubeCount > 0 ? cubeCount : 0;
+}
+
+void PipelineSetAllocationCounter(allocation_counter_func counter) {
+    gAllocationCounter = counter;
+}
+
+const frame_stats& PipelineGetFrameStats() {
+    return gFrameStats;
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_FRAMEPIPELINE_H
+#define REMOTEDISPLAYNDK_ANDROID_FRAMEPIPELINE_H
+
+//--------------------------------------------------------------------------------
+// Frame pipeline of the native renderer: simulation update, local pass and remote pass.
+// Platform neutral, all the functions must be called from the thread owning the current
+// context unless stated otherwise. On Android it is bound to Java in native.cpp, the host benchmark (app/src/host)
+// drives it directly.
+//--------------------------------------------------------------------------------
+#include <stdint.h>
+
+#include <GLES2/gl2.h>
+
+// Rectangle of a render target in pixels, origin at the bottom-left as in GL and EGL
+struct damage_rect {
+    int32_t x;
+    int32_t y;
+    int32_t width;
+    int32_t height;
+};
+
+//--------------------------------------------------------------------------------
+// Receives what the pipeline hands over to the platform
+//--------------------------------------------------------------------------------
+class FramePipelineListener {
+public:
+    virtual ~FramePipelineListener() {}
+
+    // A remote frame has been rendered to texture. The texture is not rendered to again until
+    // PipelineRemoteFrameDone() is called with it. Pixels outside of damage are the same as in
+    // the previous remote frame.
+    virtual void OnRemoteFrame(GLuint texture, int32_t frameId, int64_t frameTimeNanos,
+                               const damage_rect& damage) = 0;
+
+    virtual void OnGlError(const char* op, GLenum error) = 0;
+};
+
+// Cost of one part of the last frame
+struct pass_stats {
+    // CPU time, in seconds
+    double cpuTime;
+    int32_t drawCalls;
+    // Heap allocations, 0 without an allocation counter
+    int64_t allocations;
+    // Pixels of the target left untouched as they did not change
+    int64_t savedPixels;
+    // State changing GL calls made, and dropped as redundant, see GLStateCache.h
+    int32_t stateCallsIssued;
+    int32_t stateCallsFiltered;
+};
+
+struct frame_stats {
+    pass_stats update;
+    pass_stats localPass;
+    pass_stats remotePass;
+    bool remote;
+};
+
+// Returns the number of heap allocations made so far by the process
+typedef int64_t (*allocation_counter_func)();
+
+// Loads the resources of a new share group. Targets of the previous one are forgotten.
+// With deferShaders the cube program is left to PipelineSetCubeProgram(), the cube is not drawn
+// until then. Returns whether the program was deferred: the benchmark always builds it here.
+bool PipelineInitContext(bool deferShaders);
+// Hands over the cube program, linked from another context of the share group, see
+// Cube::SetProgram(). 0 if it failed to build, it is then built synchronously.
+void PipelineSetCubeProgram(GLuint program);
+// Sources of the cube program, and the name of the attribute to bind to location index, NULL
+// past the last one
+const char* PipelineGetCubeShaderSource(bool fragment);
+const char* PipelineGetCubeAttribute(int32_t index);
+// Sets the size of the local surface and the framebuffer the local pass renders to, 0 for the
+// default framebuffer of the current surface
+void PipelineInitSurface(int32_t width, int32_t height, GLuint framebuffer);
+
+// Renders the remote frame, preceded by the local one unless renderLocal is false.
+// Returns whether a remote frame was rendered.
+bool PipelineRenderFrame(bool renderLocal);
+
+// Starts rendering remote frames of the given size, reported to listener, from the next frame.
+// Once PipelineStopRemote() returns the listener is not called anymore, the targets are
+// released at the start of the next frame. Both can be called from any thread, the calls to
+// the listener are made with a lock held that they take.
+void PipelineStartRemote(FramePipelineListener* listener, int32_t width, int32_t height);
+void PipelineStopRemote();
+// Makes the target with the given texture available again. Can be called from any thread.
+void PipelineRemoteFrameDone(GLuint texture);
+
+// Frames are rendered from a context sharing objects with the one of PipelineInitContext()
+void PipelineHeadlessAttached();
+void PipelineHeadlessDetached();
+
+void PipelineSetLatencyProbeEnabled(bool enabled);
+// Number of cubes of the benchmark workload, 0 renders the regular single cube scene. Applied
+// by the next PipelineInitContext().
+void PipelineSetBenchmarkCubeCount(int32_t cubeCount);
+
+void PipelineSetAllocationCounter(allocation_counter_func counter);
+const frame_stats& PipelineGetFrameStats();
+
+#endif //REMOTEDISPLAYNDK_ANDROID_FRAMEPIPELINE_H
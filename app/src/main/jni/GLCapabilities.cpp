@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "GLCapabilities.h"
+
+#include <jni.h>
+#include <string.h>
+#include <android/log.h>
+#include <EGL/egl.h>
+#include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+
+#include "gl3stub.h"
+
+#define  LOG_TAG    "GLCapabilities"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+
+//--------------------------------------------------------------------------------
+// GLCapabilities.cpp
+// Parses the version and extension strings of the current context and display into the
+// capability bitset
+//--------------------------------------------------------------------------------
+
+static uint32_t gCapabilities = 0;
+static bool gCapabilitiesDetected = false;
+
+typedef void (*max_shader_compiler_threads_func)(GLuint count);
+static max_shader_compiler_threads_func MaxShaderCompilerThreads = NULL;
+
+typedef EGLBoolean (*set_damage_region_func)(EGLDisplay dpy, EGLSurface surface,
+                                             EGLint* rects, EGLint n_rects);
+typedef EGLBoolean (*swap_buffers_with_damage_func)(EGLDisplay dpy, EGLSurface surface,
+                                                    EGLint* rects, EGLint n_rects);
+static set_damage_region_func SetDamageRegionKHR = NULL;
+static swap_buffers_with_damage_func SwapBuffersWithDamageKHR = NULL;
+
+// Whether the space separated list of extensions holds the given one
+static bool HasExtension(const char* extensions, const char* name) {
+    size_t length = strlen(name);
+    for (const char* p = extensions; p && (p = strstr(p, name)); p += length) {
+        if ((p == extensions || p[-1] == ' ') && (p[length] == ' ' || p[length] == '\0')) {
+            return true;
+        }
+    }
+    return false;
+}
+
+bool HasGLExtension(const char* name) {
+    return HasExtension((const char*) glGetString(GL_EXTENSIONS), name);
+}
+
+static uint32_t DetectEGLCapabilities() {
+    uint32_t capabilities = 0;
+    const char* extensions = eglQueryString(eglGetCurrentDisplay(), EGL_EXTENSIONS);
+    if (HasExtension(extensions, "EGL_KHR_partial_update")) {
+        SetDamageRegionKHR = (set_damage_region_func) eglGetProcAddress("eglSetDamageRegionKHR");
+        if (SetDamageRegionKHR) {
+            // The extension defines the buffer age query as well
+            capabilities |= CAPABILITY_PARTIAL_UPDATE | CAPABILITY_BUFFER_AGE;
+        }
+    }
+    if (HasExtension(extensions, "EGL_KHR_swap_buffers_with_damage")) {
+        SwapBuffersWithDamageKHR = (swap_buffers_with_damage_func) eglGetProcAddress(
+                "eglSwapBuffersWithDamageKHR");
+    } else if (HasExtension(extensions, "EGL_EXT_swap_buffers_with_damage")) {
+        SwapBuffersWithDamageKHR = (swap_buffers_with_damage_func) eglGetProcAddress(
+                "eglSwapBuffersWithDamageEXT");
+    }
+    if (SwapBuffersWithDamageKHR) {
+        capabilities |= CAPABILITY_SWAP_WITH_DAMAGE;
+    }
+    if (HasExtension(extensions, "EGL_EXT_buffer_age")) {
+        capabilities |= CAPABILITY_BUFFER_AGE;
+    }
+    return capabilities;
+}
+
+static uint32_t DetectCapabilities() {
+    uint32_t capabilities = 0;
+
+    const char* version = (const char*) glGetString(GL_VERSION);
+    if (version && strncmp(version, "OpenGL ES 3", 11) == 0 && gl3stubInit()) {
+        capabilities |= CAPABILITY_ES3
+                        | CAPABILITY_FENCE_SYNC
+                        | CAPABILITY_PIXEL_BUFFER_OBJECT
+                        | CAPABILITY_INSTANCING
+                        | CAPABILITY_VERTEX_ARRAY_OBJECT
+                        | CAPABILITY_INVALIDATE_FRAMEBUFFER;
+    }
+    if (HasGLExtension("GL_EXT_discard_framebuffer")) {
+        capabilities |= CAPABILITY_DISCARD_FRAMEBUFFER;
+    }
+    if ((capabilities & CAPABILITY_ES3) || HasGLExtension("GL_OES_get_program_binary")) {
+        // Drivers may support the entry points without any binary format
+        GLint formats = 0;
+        glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS_OES, &formats);
+        if (formats > 0) {
+            capabilities |= CAPABILITY_PROGRAM_BINARY;
+        }
+    }
+    if (HasGLExtension("GL_KHR_debug")) {
+        capabilities |= CAPABILITY_DEBUG;
+    }
+    if (HasGLExtension("GL_EXT_disjoint_timer_query")) {
+        capabilities |= CAPABILITY_TIMER_QUERY;
+    }
+    if (HasGLExtension("GL_KHR_parallel_shader_compile")) {
+        MaxShaderCompilerThreads = (max_shader_compiler_threads_func) eglGetProcAddress(
+                "glMaxShaderCompilerThreadsKHR");
+        if (MaxShaderCompilerThreads) {
+            capabilities |= CAPABILITY_PARALLEL_SHADER_COMPILE;
+        }
+    }
+    return capabilities | DetectEGLCapabilities();
+}
+
+uint32_t GetGLCapabilities() {
+    if (!gCapabilitiesDetected) {
+        gCapabilities = DetectCapabilities();
+        gCapabilitiesDetected = true;
+        LOGI("Capabilities 0x%x: es3 %d, fence sync %d, pbo %d, instancing %d, vao %d, "
+             "invalidate %d, discard %d, program binary %d, debug %d, timer query %d, "
+             "parallel shader compile %d, partial update %d, swap with damage %d, buffer age %d",
+             gCapabilities,
+             (gCapabilities & CAPABILITY_ES3) != 0, (gCapabilities & CAPABILITY_FENCE_SYNC) != 0,
+             (gCapabilities & CAPABILITY_PIXEL_BUFFER_OBJECT) != 0,
+             (gCapabilities & CAPABILITY_INSTANCING) != 0,
+             (gCapabilities & CAPABILITY_VERTEX_ARRAY_OBJECT) != 0,
+             (gCapabilities & CAPABILITY_INVALIDATE_FRAMEBUFFER) != 0,
+             (gCapabilities & CAPABILITY_DISCARD_FRAMEBUFFER) != 0,
+             (gCapabilities & CAPABILITY_PROGRAM_BINARY) != 0,
+             (gCapabilities & CAPABILITY_DEBUG) != 0,
+             (gCapabilities & CAPABILITY_TIMER_QUERY) != 0,
+             (gCapabilities & CAPABILITY_PARALLEL_SHADER_COMPILE) != 0,
+             (gCapabilities & CAPABILITY_PARTIAL_UPDATE) != 0,
+             (gCapabilities & CAPABILITY_SWAP_WITH_DAMAGE) != 0,
+             (gCapabilities & CAPABILITY_BUFFER_AGE) != 0);
+    }
+    return gCapabilities;
+}
+
+void SetMaxShaderCompilerThreads(uint32_t count) {
+    if (HasGLCapability(CAPABILITY_PARALLEL_SHADER_COMPILE)) {
+        MaxShaderCompilerThreads(count);
+    }
+}
+
+EGLBoolean SetDamageRegion(EGLDisplay display, EGLSurface surface, EGLint* rects,
+                           EGLint rectCount) {
+    if (!HasGLCapability(CAPABILITY_PARTIAL_UPDATE)) {
+        return EGL_FALSE;
+    }
+    return SetDamageRegionKHR(display, surface, rects, rectCount);
+}
+
+EGLBoolean SwapBuffersWithDamage(EGLDisplay display, EGLSurface surface, EGLint* rects,
+                                 EGLint rectCount) {
+    if (!HasGLCapability(CAPABILITY_SWAP_WITH_DAMAGE)) {
+        return EGL_FALSE;
+    }
+    return SwapBuffersWithDamageKHR(display, surface, rects, rectCount);
+}
+
+extern "C" {
+JNIEXPORT jint JNICALL
+Java_com_example_castremotedisplay_ndk_utils_GlContextManager_nativeGetCapabilities(
+        JNIEnv *env, jclass type);
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_GlContextManager_nativeSetMaxShaderCompilerThreads(
+        JNIEnv *env, jclass type, jint count);
+};
+
+JNIEXPORT jint JNICALL
+Java_com_example_castremotedisplay_ndk_utils_GlContextManager_nativeGetCapabilities(
+        JNIEnv *env, jclass type) {
+    return (jint) GetGLCapabilities();
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_GlContextManager_nativeSetMaxShaderCompilerThreads(
+        JNIEnv *env, jclass type, jint count) {
+    SetMaxShaderCompilerThreads((uint32_t) count);
+}
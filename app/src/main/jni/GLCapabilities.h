@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_GLCAPABILITIES_H
+#define REMOTEDISPLAYNDK_ANDROID_GLCAPABILITIES_H
+
+//--------------------------------------------------------------------------------
+// Capabilities of the OpenGL ES contexts of the app, detected once from the version and
+// extension strings, and of the EGL display they are created on. Every context is created with
+// the same version by GlContextManager.java, so the result holds for all of them. A capability
+// is only reported when the renderer can use it through the entry points it loads, e.g. ES3
+// features need gl3stubInit() to succeed.
+//--------------------------------------------------------------------------------
+#include <stdint.h>
+#include <EGL/egl.h>
+
+// Must be kept in sync with GlContextManager.java
+enum GLES_CAPABILITY
+{
+    CAPABILITY_ES3 = 1 << 0,
+    CAPABILITY_FENCE_SYNC = 1 << 1,
+    CAPABILITY_PIXEL_BUFFER_OBJECT = 1 << 2,
+    CAPABILITY_INSTANCING = 1 << 3,
+    CAPABILITY_VERTEX_ARRAY_OBJECT = 1 << 4,
+    // glInvalidateFramebuffer
+    CAPABILITY_INVALIDATE_FRAMEBUFFER = 1 << 5,
+    // glDiscardFramebufferEXT from EXT_discard_framebuffer
+    CAPABILITY_DISCARD_FRAMEBUFFER = 1 << 6,
+    CAPABILITY_PROGRAM_BINARY = 1 << 7,
+    // KHR_debug
+    CAPABILITY_DEBUG = 1 << 8,
+    // GPU timer queries from EXT_disjoint_timer_query
+    CAPABILITY_TIMER_QUERY = 1 << 9,
+    // Shaders compiled in the background by the driver, from KHR_parallel_shader_compile
+    CAPABILITY_PARALLEL_SHADER_COMPILE = 1 << 10,
+    // eglSetDamageRegionKHR from EGL_KHR_partial_update
+    CAPABILITY_PARTIAL_UPDATE = 1 << 11,
+    // eglSwapBuffersWithDamage from EGL_KHR_swap_buffers_with_damage or its EXT version
+    CAPABILITY_SWAP_WITH_DAMAGE = 1 << 12,
+    // EGL_BUFFER_AGE from EGL_EXT_buffer_age, also defined by EGL_KHR_partial_update
+    CAPABILITY_BUFFER_AGE = 1 << 13,
+};
+
+// Returns the capability bitset. Detected by the first call, which needs a current context.
+uint32_t GetGLCapabilities();
+
+inline bool HasGLCapability(uint32_t capability) {
+    return (GetGLCapabilities() & capability) == capability;
+}
+
+// glMaxShaderCompilerThreadsKHR for the current context, needs
+// CAPABILITY_PARALLEL_SHADER_COMPILE
+void SetMaxShaderCompilerThreads(uint32_t count);
+
+// eglSetDamageRegionKHR, needs CAPABILITY_PARTIAL_UPDATE
+EGLBoolean SetDamageRegion(EGLDisplay display, EGLSurface surface, EGLint* rects,
+                           EGLint rectCount);
+
+// eglSwapBuffersWithDamage, needs CAPABILITY_SWAP_WITH_DAMAGE
+EGLBoolean SwapBuffersWithDamage(EGLDisplay display, EGLSurface surface, EGLint* rects,
+                                 EGLint rectCount);
+
+// Whether the current context exposes the given extension
+bool HasGLExtension(const char* name);
+
+#endif //REMOTEDISPLAYNDK_ANDROID_GLCAPABILITIES_H
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "GLStateCache.h"
+
+#include <assert.h>
+#include <pthread.h>
+#include <string.h>
+
+#include "gl3stub.h"
+#include "GLCapabilities.h"
+
+//--------------------------------------------------------------------------------
+// GLStateCache.cpp
+// Every piece of state has a bit in gl_shadow_state::known, set once the cache has set it
+//--------------------------------------------------------------------------------
+
+enum STATE_BIT
+{
+    STATE_PROGRAM = 1 << 0,
+    STATE_ARRAY_BUFFER = 1 << 1,
+    // Part of the bound vertex array object
+    STATE_ELEMENT_ARRAY_BUFFER = 1 << 2,
+    STATE_VERTEX_ARRAY = 1 << 3,
+    STATE_FRAMEBUFFER = 1 << 4,
+    STATE_VIEWPORT = 1 << 5,
+    STATE_SCISSOR = 1 << 6,
+    STATE_BLEND_FUNC = 1 << 7,
+    STATE_DEPTH_FUNC = 1 << 8,
+    STATE_FRONT_FACE = 1 << 9,
+    STATE_CULL_FACE = 1 << 10,
+    STATE_CLEAR_COLOR = 1 << 11,
+};
+
+enum CAPABILITY_BIT
+{
+    CAPABILITY_BIT_BLEND = 1 << 0,
+    CAPABILITY_BIT_CULL_FACE = 1 << 1,
+    CAPABILITY_BIT_DEPTH_TEST = 1 << 2,
+    CAPABILITY_BIT_SCISSOR_TEST = 1 << 3,
+};
+
+// Attribute arrays above are not cached, the renderer uses the first few only
+#define MAX_CACHED_ATTRIBS 32
+
+struct gl_shadow_state {
+    uint32_t known;
+
+    GLuint program;
+    GLuint arrayBuffer;
+    GLuint elementArrayBuffer;
+    GLuint vertexArray;
+    GLuint framebuffer;
+    GLint viewport[4];
+    GLint scissor[4];
+    GLenum blendSrc, blendDst;
+    GLenum depthFunc;
+    GLenum frontFace;
+    GLenum cullFace;
+    GLfloat clearColor[4];
+
+    // Enables, by CAPABILITY_BIT, and attribute array enables, by index. Part of the bound
+    // vertex array object.
+    uint32_t capabilitiesKnown, capabilities;
+    uint32_t attribsKnown, attribs;
+};
+
+static gl_shadow_state gState;
+static gl_state_stats gStats;
+
+// Thread the cached state belongs to, claimed by the first call after GLStateReset()
+static pthread_t gOwner;
+static bool gOwnerKnown = false;
+
+// Catches the cache being used from a thread without its context, debug builds only: the
+// cache would get out of sync with the context and filter calls that are needed
+static inline void checkOwner() {
+#ifndef NDEBUG
+    if (!gOwnerKnown) {
+        gOwner = pthread_self();
+        gOwnerKnown = true;
+    }
+    assert(pthread_equal(gOwner, pthread_self()) && "GL state cache used from another thread");
+#endif
+}
+
+// Counts the call, returns whether it must reach the driver
+static bool needsUpdate(uint32_t bit, bool unchanged) {
+    checkOwner();
+    if ((gState.known & bit) && unchanged) {
+        gStats.filtered++;
+        return false;
+    }
+    gState.known |= bit;
+    gStats.issued++;
+    return true;
+}
+
+// Same for a bit of a bitset
+static bool needsUpdate(uint32_t& known, uint32_t& values, uint32_t bit, bool value) {
+    checkOwner();
+    if ((known & bit) && ((values & bit) != 0) == value) {
+        gStats.filtered++;
+        return false;
+    }
+    known |= bit;
+    values = value ? values | bit : values & ~bit;
+    gStats.issued++;
+    return true;
+}
+
+static uint32_t getCapabilityBit(GLenum cap) {
+    switch (cap) {
+        case GL_BLEND:
+            return CAPABILITY_BIT_BLEND;
+        case GL_CULL_FACE:
+            return CAPABILITY_BIT_CULL_FACE;
+        case GL_DEPTH_TEST:
+            return CAPABILITY_BIT_DEPTH_TEST;
+        case GL_SCISSOR_TEST:
+            return CAPABILITY_BIT_SCISSOR_TEST;
+        default:
+            return 0;
+    }
+}
+
+// The element array buffer and the attribute array enables come with the vertex array object
+static void forgetVertexArrayState() {
+    gState.known &= ~STATE_ELEMENT_ARRAY_BUFFER;
+    gState.attribsKnown = 0;
+}
+
+void GLStateReset() {
+    memset(&gState, 0, sizeof(gState));
+    // The thread of the next context claims it
+    gOwnerKnown = false;
+}
+
+const gl_state_stats& GLStateGetStats() {
+    return gStats;
+}
+
+void GLStateUseProgram(GLuint program) {
+    if (needsUpdate(STATE_PROGRAM, gState.program == program)) {
+        gState.program = program;
+        glUseProgram(program);
+    }
+}
+
+void GLStateBindBuffer(GLenum target, GLuint buffer) {
+    if (target == GL_ARRAY_BUFFER) {
+        if (!needsUpdate(STATE_ARRAY_BUFFER, gState.arrayBuffer == buffer)) {
+            return;
+        }
+        gState.arrayBuffer = buffer;
+    } else if (target == GL_ELEMENT_ARRAY_BUFFER) {
+        if (!needsUpdate(STATE_ELEMENT_ARRAY_BUFFER, gState.elementArrayBuffer == buffer)) {
+            return;
+        }
+        gState.elementArrayBuffer = buffer;
+    } else {
+        gStats.issued++;
+    }
+    glBindBuffer(target, buffer);
+}
+
+void GLStateBindVertexArray(GLuint array) {
+    if (!array && !HasGLCapability(CAPABILITY_VERTEX_ARRAY_OBJECT)) {
+        return;
+    }
+    if (needsUpdate(STATE_VERTEX_ARRAY, gState.vertexArray == array)) {
+        gState.vertexArray = array;
+        forgetVertexArrayState();
+        glBindVertexArray(array);
+    }
+}
+
+void GLStateBindFramebuffer(GLuint framebuffer) {
+    if (needsUpdate(STATE_FRAMEBUFFER, gState.framebuffer == framebuffer)) {
+        gState.framebuffer = framebuffer;
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+    }
+}
+
+void GLStateViewport(GLint x, GLint y, GLsizei width, GLsizei height) {
+    GLint* viewport = gState.viewport;
+    if (needsUpdate(STATE_VIEWPORT, viewport[0] == x && viewport[1] == y
+                                    && viewport[2] == width && viewport[3] == height)) {
+        viewport[0] = x;
+        viewport[1] = y;
+        viewport[2] = width;
+        viewport[3] = height;
+        glViewport(x, y, width, height);
+    }
+}
+
+void GLStateScissor(GLint x, GLint y, GLsizei width, GLsizei height) {
+    GLint* scissor = gState.scissor;
+    if (needsUpdate(STATE_SCISSOR, scissor[0] == x && scissor[1] == y
+                                   && scissor[2] == width && scissor[3] == height)) {
+        scissor[0] = x;
+        scissor[1] = y;
+        scissor[2] = width;
+        scissor[3] = height;
+        glScissor(x, y, width, height);
+    }
+}
+
+void GLStateBlendFunc(GLenum sfactor, GLenum dfactor) {
+    if (needsUpdate(STATE_BLEND_FUNC,
+                    gState.blendSrc == sfactor && gState.blendDst == dfactor)) {
+        gState.blendSrc = sfactor;
+        gState.blendDst = dfactor;
+        glBlendFunc(sfactor, dfactor);
+    }
+}
+
+void GLStateDepthFunc(GLenum func) {
+    if (needsUpdate(STATE_DEPTH_FUNC, gState.depthFunc == func)) {
+        gState.depthFunc = func;
+        glDepthFunc(func);
+    }
+}
+
+void GLStateFrontFace(GLenum mode) {
+    if (needsUpdate(STATE_FRONT_FACE, gState.frontFace == mode)) {
+        gState.frontFace = mode;
+        glFrontFace(mode);
+    }
+}
+
+void GLStateCullFace(GLenum mode) {
+    if (needsUpdate(STATE_CULL_FACE, gState.cullFace == mode)) {
+        gState.cullFace = mode;
+        glCullFace(mode);
+    }
+}
+
+void GLStateClearColor(GLfloat red, GLfloat green, GLfloat blue, GLfloat alpha) {
+    GLfloat* color = gState.clearColor;
+    if (needsUpdate(STATE_CLEAR_COLOR, color[0] == red && color[1] == green
+                                       && color[2] == blue && color[3] == alpha)) {
+        color[0] = red;
+        color[1] = green;
+        color[2] = blue;
+        color[3] = alpha;
+        glClearColor(red, green, blue, alpha);
+    }
+}
+
+void GLStateEnable(GLenum cap) {
+    uint32_t bit = getCapabilityBit(cap);
+    if (!bit) {
+        gStats.issued++;
+        glEnable(cap);
+    } else if (needsUpdate(gState.capabilitiesKnown, gState.capabilities, bit, true)) {
+        glEnable(cap);
+    }
+}
+
+void GLStateDisable(GLenum cap) {
+    uint32_t bit = getCapabilityBit(cap);
+    if (!bit) {
+        gStats.issued++;
+        glDisable(cap);
+    } else if (needsUpdate(gState.capabilitiesKnown, gState.capabilities, bit, false)) {
+        glDisable(cap);
+    }
+}
+
+void GLStateEnableVertexAttribArray(GLuint index) {
+    if (index >= MAX_CACHED_ATTRIBS) {
+        gStats.issued++;
+        glEnableVertexAttribArray(index);
+    } else if (needsUpdate(gState.attribsKnown, gState.attribs, 1u << index, true)) {
+        glEnableVertexAttribArray(index);
+    }
+}
+
+void GLStateDisableVertexAttribArray(GLuint index) {
+    if (index >= MAX_CACHED_ATTRIBS) {
+        gStats.issued++;
+        glDisableVertexAttribArray(index);
+    } else if (needsUpdate(gState.attribsKnown, gState.attribs, 1u << index, false)) {
+        glDisableVertexAttribArray(index);
+    }
+}
+
+void GLStateDeleteBuffers(GLsizei n, const GLuint* buffers) {
+    checkOwner();
+    for (GLsizei i = 0; i < n; i++) {
+        if (!buffers[i]) {
+            continue;
+        }
+        // Bindings of the current context revert to 0
+        if (gState.arrayBuffer == buffers[i]) {
+            gState.arrayBuffer = 0;
+        }
+        if (gState.elementArrayBuffer == buffers[i]) {
+            gState.elementArrayBuffer = 0;
+        }
+    }
+    glDeleteBuffers(n, buffers);
+}
+
+void GLStateDeleteVertexArrays(GLsizei n, const GLuint* arrays) {
+    checkOwner();
+    for (GLsizei i = 0; i < n; i++) {
+        if (arrays[i] && gState.vertexArray == arrays[i]) {
+            // Back to the default vertex array object, whose state was not tracked
+            gState.vertexArray = 0;
+            forgetVertexArrayState();
+        }
+    }
+    glDeleteVertexArrays(n, arrays);
+}
+
+void GLStateDeleteFramebuffers(GLsizei n, const GLuint* framebuffers) {
+    checkOwner();
+    for (GLsizei i = 0; i < n; i++) {
+        if (framebuffers[i] && gState.framebuffer == framebuffers[i]) {
+            gState.framebuffer = 0;
+        }
+    }
+    glDeleteFramebuffers(n, framebuffers);
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_GLSTATECACHE_H
+#define REMOTEDISPLAYNDK_ANDROID_GLSTATECACHE_H
+
+//--------------------------------------------------------------------------------
+// Shadow of the GL state the native renderer sets, so calls setting a value that is already
+// current never reach the driver. Covers the program, the array and element array buffers, the
+// vertex array object, the framebuffer, the viewport and scissor box, the blend, depth and cull
+// state, the clear color, the GL_BLEND, GL_CULL_FACE, GL_DEPTH_TEST and GL_SCISSOR_TEST enables
+// and the vertex attribute array enables.
+//
+// The native renderer changes this state through the cache only. State is per context:
+// GLStateReset() forgets all of it, and must be called whenever frames start being rendered
+// from another context. Like the rest of the frame pipeline, only used from the thread owning
+// the current context: the first call after GLStateReset() ties the cache to its thread, and
+// debug builds assert every later call comes from it. Code running on other threads, such as
+// the end of a Cast session, leaves GL work to the next frame instead.
+//--------------------------------------------------------------------------------
+#include <stdint.h>
+
+#include <GLES2/gl2.h>
+
+// State changing calls made through the cache since the process started
+struct gl_state_stats {
+    // Calls that reached the driver
+    int64_t issued;
+    // Calls dropped as they would not have changed anything
+    int64_t filtered;
+};
+
+// Makes all of the state unknown, the next call setting any of it reaches the driver
+void GLStateReset();
+const gl_state_stats& GLStateGetStats();
+
+void GLStateUseProgram(GLuint program);
+// Only GL_ARRAY_BUFFER and GL_ELEMENT_ARRAY_BUFFER are cached, other targets go through
+void GLStateBindBuffer(GLenum target, GLuint buffer);
+// Binding 0 is a no-op without vertex array objects
+void GLStateBindVertexArray(GLuint array);
+void GLStateBindFramebuffer(GLuint framebuffer);
+
+void GLStateViewport(GLint x, GLint y, GLsizei width, GLsizei height);
+void GLStateScissor(GLint x, GLint y, GLsizei width, GLsizei height);
+void GLStateBlendFunc(GLenum sfactor, GLenum dfactor);
+void GLStateDepthFunc(GLenum func);
+void GLStateFrontFace(GLenum mode);
+void GLStateCullFace(GLenum mode);
+void GLStateClearColor(GLfloat red, GLfloat green, GLfloat blue, GLfloat alpha);
+
+// Capabilities other than the cached ones go through
+void GLStateEnable(GLenum cap);
+void GLStateDisable(GLenum cap);
+void GLStateEnableVertexAttribArray(GLuint index);
+void GLStateDisableVertexAttribArray(GLuint index);
+
+// Deleting bound objects unbinds them, these keep the cache in sync
+void GLStateDeleteBuffers(GLsizei n, const GLuint* buffers);
+void GLStateDeleteVertexArrays(GLsizei n, const GLuint* arrays);
+void GLStateDeleteFramebuffers(GLsizei n, const GLuint* framebuffers);
+
+#endif //REMOTEDISPLAYNDK_ANDROID_GLSTATECACHE_H
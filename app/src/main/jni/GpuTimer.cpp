@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <jni.h>
+#include <stdint.h>
+#include <EGL/egl.h>
+#include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+
+//--------------------------------------------------------------------------------
+// GpuTimer.cpp
+// JNI backend of GpuTimer.java. The SDK has no binding for EXT_disjoint_timer_query, its entry
+// points are loaded here. Callers check CAPABILITY_TIMER_QUERY first.
+//--------------------------------------------------------------------------------
+
+#ifndef GL_TIME_ELAPSED_EXT
+#define GL_TIME_ELAPSED_EXT 0x88BF
+#endif
+#ifndef GL_GPU_DISJOINT_EXT
+#define GL_GPU_DISJOINT_EXT 0x8FBB
+#endif
+#ifndef GL_QUERY_RESULT_EXT
+#define GL_QUERY_RESULT_EXT 0x8866
+#endif
+#ifndef GL_QUERY_RESULT_AVAILABLE_EXT
+#define GL_QUERY_RESULT_AVAILABLE_EXT 0x8867
+#endif
+
+typedef void (*gen_queries_func)(GLsizei n, GLuint* ids);
+typedef void (*delete_queries_func)(GLsizei n, const GLuint* ids);
+typedef void (*begin_query_func)(GLenum target, GLuint id);
+typedef void (*end_query_func)(GLenum target);
+typedef void (*get_query_objectuiv_func)(GLuint id, GLenum pname, GLuint* params);
+typedef void (*get_query_objectui64v_func)(GLuint id, GLenum pname, uint64_t* params);
+
+static gen_queries_func GenQueries = NULL;
+static delete_queries_func DeleteQueries = NULL;
+static begin_query_func BeginQuery = NULL;
+static end_query_func EndQuery = NULL;
+static get_query_objectuiv_func GetQueryObjectuiv = NULL;
+static get_query_objectui64v_func GetQueryObjectui64v = NULL;
+
+static bool LoadTimerQuery() {
+    if (!GenQueries) {
+        GenQueries = (gen_queries_func) eglGetProcAddress("glGenQueriesEXT");
+        DeleteQueries = (delete_queries_func) eglGetProcAddress("glDeleteQueriesEXT");
+        BeginQuery = (begin_query_func) eglGetProcAddress("glBeginQueryEXT");
+        EndQuery = (end_query_func) eglGetProcAddress("glEndQueryEXT");
+        GetQueryObjectuiv =
+                (get_query_objectuiv_func) eglGetProcAddress("glGetQueryObjectuivEXT");
+        GetQueryObjectui64v =
+                (get_query_objectui64v_func) eglGetProcAddress("glGetQueryObjectui64vEXT");
+    }
+    return GenQueries && DeleteQueries && BeginQuery && EndQuery && GetQueryObjectuiv
+           && GetQueryObjectui64v;
+}
+
+extern "C" {
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeGenQueries(
+        JNIEnv *env, jclass type, jintArray ids);
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeDeleteQueries(
+        JNIEnv *env, jclass type, jintArray ids);
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeBeginQuery(
+        JNIEnv *env, jclass type, jint id);
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeEndQuery(
+        JNIEnv *env, jclass type);
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeGetQueryResult(
+        JNIEnv *env, jclass type, jint id);
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeIsDisjoint(
+        JNIEnv *env, jclass type);
+};
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeGenQueries(
+        JNIEnv *env, jclass type, jintArray ids) {
+    if (!LoadTimerQuery()) {
+        return JNI_FALSE;
+    }
+    jint* elements = env->GetIntArrayElements(ids, NULL);
+    GenQueries(env->GetArrayLength(ids), (GLuint*) elements);
+    env->ReleaseIntArrayElements(ids, elements, 0);
+    return JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeDeleteQueries(
+        JNIEnv *env, jclass type, jintArray ids) {
+    jint* elements = env->GetIntArrayElements(ids, NULL);
+    DeleteQueries(env->GetArrayLength(ids), (const GLuint*) elements);
+    env->ReleaseIntArrayElements(ids, elements, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeBeginQuery(
+        JNIEnv *env, jclass type, jint id) {
+    BeginQuery(GL_TIME_ELAPSED_EXT, (GLuint) id);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeEndQuery(
+        JNIEnv *env, jclass type) {
+    EndQuery(GL_TIME_ELAPSED_EXT);
+}
+
+// Elapsed GPU time in nanoseconds, -1 while the result is not available yet
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeGetQueryResult(
+        JNIEnv *env, jclass type, jint id) {
+    GLuint available = 0;
+    GetQueryObjectuiv((GLuint) id, GL_QUERY_RESULT_AVAILABLE_EXT, &available);
+    if (!available) {
+        return -1;
+    }
+    uint64_t elapsed = 0;
+    GetQueryObjectui64v((GLuint) id, GL_QUERY_RESULT_EXT, &elapsed);
+    return (jlong) elapsed;
+}
+
+// Whether timer results since the last call are unreliable, e.g. the GPU changed frequency.
+// Reading the flag clears it.
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GpuTimer_nativeIsDisjoint(
+        JNIEnv *env, jclass type) {
+    GLint disjoint = 0;
+    glGetIntegerv(GL_GPU_DISJOINT_EXT, &disjoint);
+    return disjoint ? JNI_TRUE : JNI_FALSE;
+}
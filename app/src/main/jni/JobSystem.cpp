@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "JobSystem.h"
+
+#include <pthread.h>
+#include <sched.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/prctl.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "JobSystem"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+//--------------------------------------------------------------------------------
+// JobSystem.cpp
+// Deques follow Chase and Lev, "Dynamic Circular Work-Stealing Deque", with a fixed size and
+// the memory orders of Le et al., "Correct and Efficient Work-Stealing for Weak Memory Models".
+// Indices are free running 32-bit counters compared by difference, 64-bit atomics are not
+// lock-free on every ABI.
+//--------------------------------------------------------------------------------
+
+// Rounds of sched_yield() an idle worker makes before going to sleep
+#define IDLE_SPIN_ROUNDS 64
+#define CACHE_LINE_SIZE 64
+
+struct job {
+    job_func function;
+    job* parent;
+    // The job itself and its unfinished children
+    int32_t unfinishedJobs;
+    int64_t data[JOB_DATA_SIZE / sizeof(int64_t)];
+} __attribute__((aligned(CACHE_LINE_SIZE)));
+
+struct job_queue {
+    job* jobs[JOB_QUEUE_SIZE];
+    // Thieves take from the top, the owner pushes and pops at the bottom
+    uint32_t top __attribute__((aligned(CACHE_LINE_SIZE)));
+    uint32_t bottom __attribute__((aligned(CACHE_LINE_SIZE)));
+};
+
+struct job_thread {
+    job_queue queue;
+    job pool[JOB_POOL_SIZE];
+    uint32_t allocated;
+    // State of the choice of the first thread to steal from
+    uint32_t random;
+};
+
+// Index 0 is shared by the threads outside of the pool
+static job_thread gThreads[JOB_MAX_WORKERS + 1];
+static int32_t gWorkerCount = 0;
+static bool gStarted = false;
+static pthread_key_t gThreadKey;
+
+// Jobs pushed and not taken yet, workers sleep while there are none
+static int32_t gQueuedJobs = 0;
+static int32_t gSleepingWorkers = 0;
+static pthread_mutex_t gSleepLock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t gWakeUp = PTHREAD_COND_INITIALIZER;
+
+static job_thread* currentThread() {
+    if (!__atomic_load_n(&gWorkerCount, __ATOMIC_ACQUIRE)) {
+        return &gThreads[0];
+    }
+    job_thread* thread = (job_thread*) pthread_getspecific(gThreadKey);
+    return thread ? thread : &gThreads[0];
+}
+
+//--------------------------------------------------------------------------------
+// Work-stealing deque
+//--------------------------------------------------------------------------------
+static bool push(job_queue* queue, job* task) {
+    uint32_t bottom = __atomic_load_n(&queue->bottom, __ATOMIC_RELAXED);
+    uint32_t top = __atomic_load_n(&queue->top, __ATOMIC_ACQUIRE);
+    if ((int32_t) (bottom - top) >= JOB_QUEUE_SIZE) {
+        return false;
+    }
+    __atomic_store_n(&queue->jobs[bottom & (JOB_QUEUE_SIZE - 1)], task, __ATOMIC_RELAXED);
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+    __atomic_store_n(&queue->bottom, bottom + 1, __ATOMIC_RELAXED);
+    return true;
+}
+
+static job* pop(job_queue* queue) {
+    uint32_t bottom = __atomic_load_n(&queue->bottom, __ATOMIC_RELAXED) - 1;
+    __atomic_store_n(&queue->bottom, bottom, __ATOMIC_RELAXED);
+    __atomic_thread_fence(__ATOMIC_SEQ_CST);
+    uint32_t top = __atomic_load_n(&queue->top, __ATOMIC_RELAXED);
+
+    if ((int32_t) (bottom - top) < 0) {
+        // Empty
+        __atomic_store_n(&queue->bottom, bottom + 1, __ATOMIC_RELAXED);
+        return NULL;
+    }
+    job* task = __atomic_load_n(&queue->jobs[bottom & (JOB_QUEUE_SIZE - 1)], __ATOMIC_RELAXED);
+    if (bottom == top) {
+        // Last job, thieves may be after it too
+        if (!__atomic_compare_exchange_n(&queue->top, &top, top + 1, false, __ATOMIC_SEQ_CST,
+                                         __ATOMIC_RELAXED)) {
+            task = NULL;
+        }
+        __atomic_store_n(&queue->bottom, bottom + 1, __ATOMIC_RELAXED);
+    }
+    return task;
+}
+
+static job* steal(job_queue* queue) {
+    uint32_t top = __atomic_load_n(&queue->top, __ATOMIC_ACQUIRE);
+    __atomic_thread_fence(__ATOMIC_SEQ_CST);
+    uint32_t bottom = __atomic_load_n(&queue->bottom, __ATOMIC_ACQUIRE);
+    if ((int32_t) (bottom - top) <= 0) {
+        return NULL;
+    }
+    job* task = __atomic_load_n(&queue->jobs[top & (JOB_QUEUE_SIZE - 1)], __ATOMIC_RELAXED);
+    if (!__atomic_compare_exchange_n(&queue->top, &top, top + 1, false, __ATOMIC_SEQ_CST,
+                                     __ATOMIC_RELAXED)) {
+        // Lost to the owner or another thief
+        return NULL;
+    }
+    return task;
+}
+
+//--------------------------------------------------------------------------------
+// Scheduling
+//--------------------------------------------------------------------------------
+static job* getJob(job_thread* self) {
+    job* task = pop(&self->queue);
+    if (!task) {
+        int32_t threadCount = __atomic_load_n(&gWorkerCount, __ATOMIC_ACQUIRE) + 1;
+        self->random = self->random * 1664525u + 1013904223u;
+        uint32_t first = (self->random >> 8) % threadCount;
+        for (int32_t i = 0; i < threadCount && !task; i++) {
+            job_thread* victim = &gThreads[(first + i) % threadCount];
+            if (victim != self) {
+                task = steal(&victim->queue);
+            }
+        }
+    }
+    if (task) {
+        __atomic_sub_fetch(&gQueuedJobs, 1, __ATOMIC_SEQ_CST);
+    }
+    return task;
+}
+
+static void finish(job* task) {
+    if (!__atomic_sub_fetch(&task->unfinishedJobs, 1, __ATOMIC_ACQ_REL) && task->parent) {
+        finish(task->parent);
+    }
+}
+
+static void execute(job* task) {
+    task->function(task, task->data);
+    finish(task);
+}
+
+static void* workerMain(void* arg) {
+    job_thread* self = (job_thread*) arg;
+    pthread_setspecific(gThreadKey, self);
+    char name[16];
+    snprintf(name, sizeof(name), "RenderJob%d", (int32_t) (self - gThreads));
+    prctl(PR_SET_NAME, name, 0, 0, 0);
+
+    int32_t idleRounds = 0;
+    for (;;) {
+        job* task = getJob(self);
+        if (task) {
+            execute(task);
+            idleRounds = 0;
+        } else if (++idleRounds < IDLE_SPIN_ROUNDS) {
+            sched_yield();
+        } else {
+            // JobRun() checks for sleeping workers after queuing, one of the two sees the other
+            pthread_mutex_lock(&gSleepLock);
+            __atomic_add_fetch(&gSleepingWorkers, 1, __ATOMIC_SEQ_CST);
+            while (__atomic_load_n(&gQueuedJobs, __ATOMIC_SEQ_CST) <= 0) {
+                pthread_cond_wait(&gWakeUp, &gSleepLock);
+            }
+            __atomic_sub_fetch(&gSleepingWorkers, 1, __ATOMIC_SEQ_CST);
+            pthread_mutex_unlock(&gSleepLock);
+            idleRounds = 0;
+        }
+    }
+    return NULL;
+}
+
+void JobSystemStart(int32_t workerCount) {
+    pthread_mutex_lock(&gSleepLock);
+    if (!gStarted) {
+        gStarted = true;
+        if (workerCount < 0) {
+            // Cores may be offline while the device is idle, count them all
+            long cores = sysconf(_SC_NPROCESSORS_CONF);
+            workerCount = cores > 1 ? (int32_t) cores - 1 : 0;
+        }
+        if (workerCount > JOB_MAX_WORKERS) {
+            workerCount = JOB_MAX_WORKERS;
+        }
+
+        pthread_key_create(&gThreadKey, NULL);
+        for (int32_t i = 1; i <= workerCount; i++) {
+            gThreads[i].random = (uint32_t) i;
+            pthread_t thread;
+            if (pthread_create(&thread, NULL, workerMain, &gThreads[i])) {
+                LOGE("Could not start job worker %d", i);
+                break;
+            }
+            pthread_detach(thread);
+            // Stealing only looks at started workers
+            __atomic_store_n(&gWorkerCount, i, __ATOMIC_RELEASE);
+        }
+        LOGI("%d job workers", gWorkerCount);
+    }
+    pthread_mutex_unlock(&gSleepLock);
+}
+
+int32_t JobSystemGetThreadCount() {
+    return __atomic_load_n(&gWorkerCount, __ATOMIC_ACQUIRE) + 1;
+}
+
+job* JobCreate(job_func function, const void* data, size_t size) {
+    if (size > JOB_DATA_SIZE) {
+        LOGE("Job data of %zu bytes, at most %d fit", size, JOB_DATA_SIZE);
+        abort();
+    }
+    job_thread* self = currentThread();
+    job* task = &self->pool[self->allocated++ & (JOB_POOL_SIZE - 1)];
+    task->function = function;
+    task->parent = NULL;
+    task->unfinishedJobs = 1;
+    if (size) {
+        memcpy(task->data, data, size);
+    }
+    return task;
+}
+
+job* JobCreateChild(job* parent, job_func function, const void* data, size_t size) {
+    __atomic_add_fetch(&parent->unfinishedJobs, 1, __ATOMIC_ACQ_REL);
+    job* task = JobCreate(function, data, size);
+    task->parent = parent;
+    return task;
+}
+
+void JobRun(job* task) {
+    if (!push(&currentThread()->queue, task)) {
+        // Queue full, no point in waiting for a slot
+        execute(task);
+        return;
+    }
+    __atomic_add_fetch(&gQueuedJobs, 1, __ATOMIC_SEQ_CST);
+    if (__atomic_load_n(&gSleepingWorkers, __ATOMIC_SEQ_CST)) {
+        pthread_mutex_lock(&gSleepLock);
+        pthread_cond_signal(&gWakeUp);
+        pthread_mutex_unlock(&gSleepLock);
+    }
+}
+
+void JobWait(const job* task) {
+    job_thread* self = currentThread();
+    while (__atomic_load_n(&task->unfinishedJobs, __ATOMIC_ACQUIRE) > 0) {
+        job* next = getJob(self);
+        if (next) {
+            execute(next);
+        } else {
+            sched_yield();
+        }
+    }
+}
+
+//--------------------------------------------------------------------------------
+// Parallel for
+//--------------------------------------------------------------------------------
+struct parallel_for_batch {
+    job_range_func function;
+    void* context;
+    int32_t begin;
+    int32_t end;
+};
+
+static void runBatch(job* task, const void* data) {
+    const parallel_for_batch* batch = (const parallel_for_batch*) data;
+    batch->function(batch->context, batch->begin, batch->end);
+}
+
+static void runNothing(job* task, const void* data) {
+}
+
+job* JobParallelFor(int32_t count, int32_t batchSize, job_range_func function, void* context) {
+    job* parent = JobCreate(runNothing, NULL, 0);
+    for (int32_t begin = 0; begin < count; begin += batchSize) {
+        parallel_for_batch batch = { function, context, begin,
+                                     count - begin > batchSize ? begin + batchSize : count };
+        JobRun(JobCreateChild(parent, runBatch, &batch, sizeof(batch)));
+    }
+    // The parent itself has nothing to do, it is left waiting for the batches
+    finish(parent);
+    return parent;
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_JOBSYSTEM_H
+#define REMOTEDISPLAYNDK_ANDROID_JOBSYSTEM_H
+
+//--------------------------------------------------------------------------------
+// Job system of the native renderer, spreads the CPU work of a frame over the cores while the
+// GL thread keeps draw submission to itself.
+//
+// A fixed pool of worker threads, each with a lock-free work-stealing deque: a thread pushes
+// and pops jobs at the bottom of its own deque, idle threads steal from the top of the others.
+// Threads outside the pool (the GL thread, whichever drives frames) share one more deque, only
+// one of them may create jobs at a time. JobWait() runs queued jobs instead of blocking, so
+// the waiting thread works too, and everything still runs with no worker at all.
+//
+// Jobs form a graph per frame: a job is finished once it and all its children have run.
+// Jobs come from a per-thread ring recycled without bookkeeping, a thread must not have more
+// than JOB_POOL_SIZE jobs in flight. Job functions must not make GL calls.
+//--------------------------------------------------------------------------------
+#include <stddef.h>
+#include <stdint.h>
+
+// Jobs a thread can have in flight, and queued. Powers of two.
+#define JOB_POOL_SIZE 4096
+#define JOB_QUEUE_SIZE 4096
+
+// Bytes of data a job holds
+#define JOB_DATA_SIZE 32
+
+#define JOB_MAX_WORKERS 8
+// Passed to JobSystemStart(), one worker per core besides the calling thread
+#define JOB_DEFAULT_WORKERS -1
+
+struct job;
+
+// Runs the job, data is the copy made by JobCreate()
+typedef void (*job_func)(job* task, const void* data);
+// Runs the items [begin, end) of a JobParallelFor()
+typedef void (*job_range_func)(void* context, int32_t begin, int32_t end);
+
+// Starts the worker pool, workerCount clamped to JOB_MAX_WORKERS. Workers live as long as the
+// process and sleep while there is nothing to do. Does nothing if already started.
+void JobSystemStart(int32_t workerCount);
+// Threads running jobs, the workers and the caller of JobWait()
+int32_t JobSystemGetThreadCount();
+
+// Creates a job, size bytes of data are copied into it. The job does not run until JobRun().
+job* JobCreate(job_func function, const void* data, size_t size);
+// Same, parent is not finished before the child is
+job* JobCreateChild(job* parent, job_func function, const void* data, size_t size);
+void JobRun(job* task);
+// Runs queued jobs until task and its children are finished
+void JobWait(const job* task);
+
+// Runs function over [0, count) in ranges of at most batchSize items, batches start at multiples
+// of batchSize. Returns the running parent job of the batches, to pass to JobWait().
+job* JobParallelFor(int32_t count, int32_t batchSize, job_range_func function, void* context);
+
+#endif //REMOTEDISPLAYNDK_ANDROID_JOBSYSTEM_H
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "RenderTrace.h"
+
+#include <dlfcn.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "RenderTrace"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+
+//--------------------------------------------------------------------------------
+// RenderTrace.cpp
+// ATrace backed implementation of the tracing facade
+//--------------------------------------------------------------------------------
+
+typedef void (*atrace_begin_section_func)(const char* name);
+typedef void (*atrace_end_section_func)();
+typedef bool (*atrace_is_enabled_func)();
+typedef void (*atrace_async_section_func)(const char* name, int32_t cookie);
+
+static atrace_begin_section_func ATraceBeginSection = NULL;
+static atrace_end_section_func ATraceEndSection = NULL;
+static atrace_is_enabled_func ATraceIsEnabled = NULL;
+static atrace_async_section_func ATraceBeginAsyncSection = NULL;
+static atrace_async_section_func ATraceEndAsyncSection = NULL;
+static bool gATraceLoaded = false;
+
+const trace_sink* gTraceSink = NULL;
+static bool gTraceSinkOverridden = false;
+
+// Whether RenderTrace.java should trace, and what it was last told. Only used by the thread
+// rendering frames.
+static bool gJavaTraceEnabled = false;
+static bool gJavaTraceReported = false;
+static jclass gRenderTraceClass = NULL;
+static jmethodID gTracingStateChangedMethod = NULL;
+
+static void LoadATrace() {
+    if (gATraceLoaded) {
+        return;
+    }
+    gATraceLoaded = true;
+
+    void* lib = dlopen("libandroid.so", RTLD_NOW | RTLD_LOCAL);
+    if (!lib) {
+        return;
+    }
+    ATraceBeginSection = (atrace_begin_section_func) dlsym(lib, "ATrace_beginSection");
+    ATraceEndSection = (atrace_end_section_func) dlsym(lib, "ATrace_endSection");
+    ATraceIsEnabled = (atrace_is_enabled_func) dlsym(lib, "ATrace_isEnabled");
+    ATraceBeginAsyncSection =
+            (atrace_async_section_func) dlsym(lib, "ATrace_beginAsyncSection");
+    ATraceEndAsyncSection = (atrace_async_section_func) dlsym(lib, "ATrace_endAsyncSection");
+    LOGI("ATrace %s, async sections %s", ATraceBeginSection ? "available" : "unavailable",
+         ATraceBeginAsyncSection ? "available" : "unavailable");
+}
+
+static void ATraceSinkBeginAsync(const char* name, int32_t cookie) {
+    if (ATraceBeginAsyncSection) ATraceBeginAsyncSection(name, cookie);
+}
+
+static void ATraceSinkEndAsync(const char* name, int32_t cookie) {
+    if (ATraceEndAsyncSection) ATraceEndAsyncSection(name, cookie);
+}
+
+static trace_sink gATraceSink;
+
+void TraceRefresh() {
+    if (gTraceSinkOverridden) {
+        return;
+    }
+    LoadATrace();
+    if (!ATraceIsEnabled) {
+        // Before API 23 tracing state can not be queried: let android.os.Trace do the check
+        gJavaTraceEnabled = true;
+        gTraceSink = NULL;
+        return;
+    }
+    bool enabled = ATraceIsEnabled();
+    gJavaTraceEnabled = enabled;
+    if (!enabled || !ATraceBeginSection || !ATraceEndSection) {
+        gTraceSink = NULL;
+        return;
+    }
+    gATraceSink.beginSection = ATraceBeginSection;
+    gATraceSink.endSection = ATraceEndSection;
+    gATraceSink.beginAsyncSection = ATraceSinkBeginAsync;
+    gATraceSink.endAsyncSection = ATraceSinkEndAsync;
+    gTraceSink = &gATraceSink;
+}
+
+void TraceSyncJava(JNIEnv* env) {
+    if (gJavaTraceEnabled == gJavaTraceReported) {
+        return;
+    }
+    if (!gTracingStateChangedMethod) {
+        jclass cls = env->FindClass("com/example/castremotedisplay/ndk/utils/RenderTrace");
+        if (!cls) {
+            // Not loaded by this VM, there is nobody to tell
+            env->ExceptionClear();
+            gJavaTraceReported = gJavaTraceEnabled;
+            return;
+        }
+        gRenderTraceClass = (jclass) env->NewGlobalRef(cls);
+        env->DeleteLocalRef(cls);
+        gTracingStateChangedMethod =
+                env->GetStaticMethodID(gRenderTraceClass, "onTracingStateChanged", "(Z)V");
+    }
+    env->CallStaticVoidMethod(gRenderTraceClass, gTracingStateChangedMethod,
+                              (jboolean) gJavaTraceEnabled);
+    gJavaTraceReported = gJavaTraceEnabled;
+}
+
+void TraceSetSink(const trace_sink* sink) {
+    gTraceSink = sink;
+    gTraceSinkOverridden = true;
+}
+
+//--------------------------------------------------------------------------------
+// JNI backend of RenderTrace.AndroidSink, for what the SDK does not expose
+//--------------------------------------------------------------------------------
+extern "C" {
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_RenderTrace_00024AndroidSink_nativeBeginAsyncSection(
+        JNIEnv *env, jclass type, jstring name, jint cookie);
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_RenderTrace_00024AndroidSink_nativeEndAsyncSection(
+        JNIEnv *env, jclass type, jstring name, jint cookie);
+};
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_RenderTrace_00024AndroidSink_nativeBeginAsyncSection(
+        JNIEnv *env, jclass type, jstring name, jint cookie) {
+    if (!ATraceBeginAsyncSection) {
+        return;
+    }
+    const char* chars = env->GetStringUTFChars(name, NULL);
+    ATraceBeginAsyncSection(chars, cookie);
+    env->ReleaseStringUTFChars(name, chars);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_utils_RenderTrace_00024AndroidSink_nativeEndAsyncSection(
+        JNIEnv *env, jclass type, jstring name, jint cookie) {
+    if (!ATraceEndAsyncSection) {
+        return;
+    }
+    const char* chars = env->GetStringUTFChars(name, NULL);
+    ATraceEndAsyncSection(chars, cookie);
+    env->ReleaseStringUTFChars(name, chars);
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_RENDERTRACE_H
+#define REMOTEDISPLAYNDK_ANDROID_RENDERTRACE_H
+
+//--------------------------------------------------------------------------------
+// Tracing facade for the native render path, the counterpart of RenderTrace.java.
+// Sections go to systrace / Perfetto through the NDK ATrace API, resolved with dlsym since it
+// only exists from API 23 (async sections from API 29). While tracing is off no sink is
+// installed and every call costs a single branch. Section names must be string literals.
+//--------------------------------------------------------------------------------
+#include <jni.h>
+#include <stdint.h>
+
+// Name of the async section linking a remote frame to its presentation, see RenderTrace.java
+#define TRACE_REMOTE_FRAME_FLOW "RemoteFrame"
+
+struct trace_sink {
+    void (*beginSection)(const char* name);
+    void (*endSection)();
+    void (*beginAsyncSection)(const char* name, int32_t cookie);
+    void (*endAsyncSection)(const char* name, int32_t cookie);
+};
+
+// Current sink, NULL while tracing is disabled
+extern const trace_sink* gTraceSink;
+
+// Installs the ATrace sink if the app is being traced, removes it otherwise. Meant to be called
+// once per frame, before any section is opened.
+void TraceRefresh();
+
+// Tells RenderTrace.java whether the app is being traced, if that changed since it was last
+// told, so the Java side never has to ask. Called from the JNI calls rendering frames, after
+// TraceRefresh().
+void TraceSyncJava(JNIEnv* env);
+
+// Installs a sink, e.g. a fake recording the sections in tests. TraceRefresh() then leaves it
+// in place. NULL disables tracing.
+void TraceSetSink(const trace_sink* sink);
+
+inline void TraceBegin(const char* name) {
+    if (gTraceSink) gTraceSink->beginSection(name);
+}
+
+inline void TraceEnd() {
+    if (gTraceSink) gTraceSink->endSection();
+}
+
+inline void TraceBeginAsync(const char* name, int32_t cookie) {
+    if (gTraceSink) gTraceSink->beginAsyncSection(name, cookie);
+}
+
+inline void TraceEndAsync(const char* name, int32_t cookie) {
+    if (gTraceSink) gTraceSink->endAsyncSection(name, cookie);
+}
+
+// Traces the enclosing scope
+class ScopedTrace {
+public:
+    ScopedTrace(const char* name) { TraceBegin(name); }
+    ~ScopedTrace() { TraceEnd(); }
+};
+
+#define TRACE_SCOPE(name) ScopedTrace trace_scope(name)
+
+#endif //REMOTEDISPLAYNDK_ANDROID_RENDERTRACE_H
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "SimulationClock.h"
+
+//--------------------------------------------------------------------------------
+// SimulationClock.cpp
+// Fixed timestep clock driving the animation
+//--------------------------------------------------------------------------------
+
+SimulationClock::SimulationClock(double step) :
+        step_( step ),
+        time_( -1.0 ),
+        accumulator_( 0.0 ),
+        steps_( 0 )
+{
+}
+
+void SimulationClock::Reset() {
+    time_ = -1.0;
+    accumulator_ = 0.0;
+}
+
+int32_t SimulationClock::Advance(double time) {
+    if (time_ < 0.0) {
+        time_ = time;
+        return 0;
+    }
+
+    if (time > time_) {
+        accumulator_ += time - time_;
+        time_ = time;
+    }
+
+    int32_t steps = (int32_t) (accumulator_ / step_);
+    if (steps > SIMULATION_MAX_STEPS_PER_FRAME) {
+        steps = SIMULATION_MAX_STEPS_PER_FRAME;
+        // Drop what can not be caught up with, keeping the fraction of a step
+        accumulator_ = accumulator_ - (int64_t) (accumulator_ / step_) * step_;
+    } else {
+        accumulator_ -= steps * step_;
+    }
+    steps_ += steps;
+    return steps;
+}
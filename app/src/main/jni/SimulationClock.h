@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef REMOTEDISPLAYNDK_ANDROID_SIMULATIONCLOCK_H
+#define REMOTEDISPLAYNDK_ANDROID_SIMULATIONCLOCK_H
+
+//--------------------------------------------------------------------------------
+// Include files
+//--------------------------------------------------------------------------------
+#include <stdint.h>
+
+// Fixed simulation timestep, in seconds
+#define SIMULATION_STEP (1.0 / 60.0)
+
+// Upper bound of steps run to catch up in a single frame. Time beyond it, e.g. while nothing
+// was rendering, is dropped instead of being simulated all at once.
+#define SIMULATION_MAX_STEPS_PER_FRAME 8
+
+//--------------------------------------------------------------------------------
+// Fixed timestep clock. Real time is accumulated on a monotonic clock and consumed in fixed
+// steps, so the simulation advances at the same pace whatever the frame rate. Rendering
+// interpolates between the two latest simulated states, and lags the simulation by up to one
+// step.
+//--------------------------------------------------------------------------------
+class SimulationClock {
+    double step_;
+    // Real time the simulation has been advanced to, negative before the first Advance()
+    double time_;
+    // Real time not consumed by a step yet, less than one step
+    double accumulator_;
+    int64_t steps_;
+
+public:
+    SimulationClock(double step);
+
+    // Restarts the clock, the next Advance() starts counting from there
+    void Reset();
+
+    // Moves the clock forward to the given time, in seconds, and returns how many simulation
+    // steps to run to catch up with it
+    int32_t Advance(double time);
+
+    // Time, in the time base passed to Advance(), at which the latest simulated state starts
+    // being rendered: interpolation from the previous state reaches it one step later
+    double GetStateStartTime() const { return time_ - accumulator_; }
+
+    double GetStep() const { return step_; }
+
+    // Number of steps simulated since the clock was created
+    int64_t GetSteps() const { return steps_; }
+};
+
+#endif //REMOTEDISPLAYNDK_ANDROID_SIMULATIONCLOCK_H
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <jni.h>
+#include <stdint.h>
+#include <EGL/egl.h>
+
+#include "GLCapabilities.h"
+
+//--------------------------------------------------------------------------------
+// SurfaceDamage.cpp
+// JNI backend of the damage calls of GlesPresentTarget.java, used by SurfaceDamage.java. The
+// SDK has no binding for EGL_KHR_partial_update and EGL_KHR_swap_buffers_with_damage, their
+// entry points are loaded with the capabilities (see GLCapabilities.h). The display and surface
+// are looked up once, when the surface is made current, and passed back on every call.
+//--------------------------------------------------------------------------------
+
+extern "C" {
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeGetCurrentDisplay(
+        JNIEnv *env, jclass type);
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeGetCurrentSurface(
+        JNIEnv *env, jclass type);
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeSetDamageRegion(
+        JNIEnv *env, jclass type, jlong display, jlong surface, jintArray rect);
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeSwapBuffersWithDamage(
+        JNIEnv *env, jclass type, jlong display, jlong surface, jintArray rect);
+};
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeGetCurrentDisplay(
+        JNIEnv *env, jclass type) {
+    return (jlong) (intptr_t) eglGetCurrentDisplay();
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeGetCurrentSurface(
+        JNIEnv *env, jclass type) {
+    return (jlong) (intptr_t) eglGetCurrentSurface(EGL_DRAW);
+}
+
+// rect holds x, y, width and height with the origin at the bottom-left of the surface
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeSetDamageRegion(
+        JNIEnv *env, jclass type, jlong display, jlong surface, jintArray rect) {
+    EGLint region[4];
+    env->GetIntArrayRegion(rect, 0, 4, region);
+    return SetDamageRegion((EGLDisplay) (intptr_t) display, (EGLSurface) (intptr_t) surface,
+                           region, 1);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_remote_GlesPresentTarget_nativeSwapBuffersWithDamage(
+        JNIEnv *env, jclass type, jlong display, jlong surface, jintArray rect) {
+    EGLint region[4];
+    env->GetIntArrayRegion(rect, 0, 4, region);
+    return SwapBuffersWithDamage((EGLDisplay) (intptr_t) display,
+                                 (EGLSurface) (intptr_t) surface, region, 1);
+}
@@ -16,247 +16,186 @@
 
 #include <jni.h>
 #include <android/log.h>
-#include <stdio.h>
-#include <stdlib.h>
 #include <GLES2/gl2.h>
 
-#include "Cube.h"
+#include "FlightRecorder.h"
+#include "FramePipeline.h"
+#include "RenderTrace.h"
 
 #define  LOG_TAG    "NativeRenderer"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
-#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
-#define  RD_TARGET_COUNT 2
-#define  ANGLE_INCREMENT 0.2f
-
-struct remote_display_target {
-    GLuint remoteDisplayTexture;
-    GLuint remoteDisplayFrameBuffer;
-    bool locked;
-};
-
-jobject gPresentation = NULL;
-jmethodID gRemoteRenderMethod = NULL;
-jmethodID gShowGlErrorMethod = NULL;
-
-remote_display_target remoteDisplayTargets[RD_TARGET_COUNT];
-
-int gRemoteDisplayWidth, gRemoteDisplayHeight;
-int gLocalWidth, gLocalHeight;
-
-Cube cube;
+//--------------------------------------------------------------------------------
+// JNI binding of the frame pipeline to NativeRenderer and the RemoteDisplayPresentation
+//--------------------------------------------------------------------------------
+
+// Forwards the pipeline events to the presentation of the Cast session. Only called from the
+// thread rendering frames, which is attached to the VM.
+class PresentationListener : public FramePipelineListener {
+    JNIEnv* env_;
+    jobject presentation_;
+    jmethodID remote_render_method_;
+    jmethodID show_gl_error_method_;
+
+public:
+    PresentationListener() : env_(NULL), presentation_(NULL) {}
+
+    void Attach(JNIEnv* env, jobject presentation) {
+        presentation_ = env->NewGlobalRef(presentation);
+        jclass cls = env->GetObjectClass(presentation);
+        remote_render_method_ = env->GetMethodID(cls, "renderFrameToTexture", "(IIJIIII)V");
+        show_gl_error_method_ = env->GetMethodID(
+                cls, "onGlError", "(Ljava/lang/String;ILjava/lang/String;)V");
+    }
 
-ndk_helper::Mat4 mat_model;
-ndk_helper::Mat4 mat_model_view;
-ndk_helper::Mat4 mat_model_view_projection;
+    void Detach(JNIEnv* env) {
+        env->DeleteGlobalRef(presentation_);
+        presentation_ = NULL;
+    }
 
-ndk_helper::Mat4 mat_projection;
-ndk_helper::Mat4 mat_view;
-ndk_helper::Mat4 mat_rotation;
+    bool IsAttached() const { return presentation_ != NULL; }
 
-float angle;
+    // The env of the JNI call currently rendering a frame
+    void SetEnv(JNIEnv* env) { env_ = env; }
 
-static void printGLString(const char *name, GLenum s) {
-    const char *v = (const char *) glGetString(s);
-    LOGI("GL %s = %s\n", name, v);
-}
+    virtual void OnRemoteFrame(GLuint texture, int32_t frameId, int64_t frameTimeNanos,
+                               const damage_rect& damage) {
+        TRACE_SCOPE("JNI notify");
+        FlightRecord(FLIGHT_FRAME_PRODUCED, frameId, texture);
+        env_->CallVoidMethod(presentation_, remote_render_method_, (jint) texture,
+                             (jint) frameId, (jlong) frameTimeNanos, (jint) damage.x,
+                             (jint) damage.y, (jint) damage.width, (jint) damage.height);
+    }
 
-static void checkGlError(JNIEnv *env, const char* op) {
-    for (GLint error = glGetError(); error; error = glGetError()) {
+    virtual void OnGlError(const char* op, GLenum error) {
         LOGI("after %s() glError (0x%x)\n", op, error);
+        FlightRecord(FLIGHT_GL_ERROR, error, FLIGHT_SOURCE_NATIVE);
 
-        jstring jop = env->NewStringUTF(op);
-        jstring source = env->NewStringUTF("Native");
-
-        if (gPresentation) {
-            env->CallVoidMethod(gPresentation, gShowGlErrorMethod, source, error, jop);
-        }
+        jstring jop = env_->NewStringUTF(op);
+        jstring source = env_->NewStringUTF("Native");
+        env_->CallVoidMethod(presentation_, show_gl_error_method_, source, (jint) error, jop);
+        env_->DeleteLocalRef(source);
+        env_->DeleteLocalRef(jop);
     }
-}
-
-remote_display_target initRemoteDisplayTexture(JNIEnv *env, int width, int height) {
-    LOGI("initRemoteDisplayTexture(), %d x %d", width, height);
-
-    remote_display_target target;
-    target.locked = false;
-
-    glGenTextures(1, &target.remoteDisplayTexture);
-    glBindTexture(GL_TEXTURE_2D, target.remoteDisplayTexture);
-
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, width, height,
-                 0, GL_RGB, GL_UNSIGNED_SHORT_5_6_5, NULL);
-
-    glGenFramebuffers(1, &target.remoteDisplayFrameBuffer);
-    glBindFramebuffer(GL_FRAMEBUFFER, target.remoteDisplayFrameBuffer);
-
-    glFramebufferTexture2D(
-            GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, target.remoteDisplayTexture, 0);
-
-    glBindTexture(GL_TEXTURE_2D, 0);
-    glBindFramebuffer(GL_FRAMEBUFFER, 0);
-
-    LOGI("initRemoteDisplayTexture(), textureId: %d", target.remoteDisplayTexture);
-
-    return target;
-}
-
-void setupViewport(int width, int height) {
-    glViewport( 0, 0, width, height);
-    checkGlError("glViewport");
-
-    // Configure perspective with field of view
-    float ratio = (float) width / height;
-    float fov = 30.0f;
-    float near = 1.0f;
-    float far = 100.0f;
-    float top = (float) tanf(fov * M_PI / 360.0f) * near;
-    float bottom = -top;
-    float left = ratio * bottom;
-    float right = ratio * top;
-
-    mat_projection = ndk_helper::Mat4::Perspective(left, right, bottom, top, near, far);
-
-    glFrontFace( GL_CCW );
-    glCullFace(GL_FRONT);
-    glEnable(GL_CULL_FACE);
-}
-
-void renderLocalFrame(JNIEnv *env, bool colorChange) {
-
-    glClearColor( 0.5f, 0.5f, 0.5f, 1.f );
-    glClear( GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT );
-
-    mat_view = ndk_helper::Mat4::LookAt(
-            ndk_helper::Vec3(0.0f, 0.0f, -10.0f),
-            ndk_helper::Vec3(0.0f, 0.0f, 0.0f),
-            ndk_helper::Vec3(0.0f, 1.0f, 0.0f)
-    );
-
-    mat_model = ndk_helper::Mat4::Identity();
-    mat_model = mat_model + ndk_helper::Mat4::Translation(0.0f, -0.5f, -1.5f);
-
-    mat_rotation = ndk_helper::Mat4::Rotation(2 * angle, 0.f, 1.f, 1.f);
-    mat_model *= mat_rotation;
-
-    mat_model_view = mat_view * mat_model;
-    mat_model_view_projection = mat_projection * mat_model_view;
-
-    cube.Render(mat_model_view_projection.Ptr(), colorChange);
-
-    angle += ANGLE_INCREMENT;
-}
-
-void renderRemoteDisplayFrame(JNIEnv *env, remote_display_target target) {
-
-    glViewport( 0, 0, gRemoteDisplayWidth, gRemoteDisplayHeight);
-
-    if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE)
-        return;
-
-    glBindFramebuffer(GL_FRAMEBUFFER, target.remoteDisplayFrameBuffer);
-
-    setupViewport(gRemoteDisplayWidth, gRemoteDisplayHeight);
-
-    renderLocalFrame(env, false);
-
-    glBindFramebuffer(GL_FRAMEBUFFER,0);
-
-}
+};
 
-void notifyRemoteDisplayRenderThread(JNIEnv *env, remote_display_target target) {
-    env->CallVoidMethod(gPresentation, gRemoteRenderMethod, target.remoteDisplayTexture);
-}
+PresentationListener gPresentationListener;
 
 extern "C" {
+JNIEXPORT jboolean JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_initContext
+        (JNIEnv * env, jclass type, jboolean deferShaders);
+JNIEXPORT jstring JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_getCubeShaderSource
+        (JNIEnv * env, jclass type, jboolean fragment);
+JNIEXPORT jobjectArray JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_getCubeAttributes
+        (JNIEnv * env, jclass type);
+JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_setCubeProgram
+        (JNIEnv * env, jclass type, jint program);
 JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_init
         (JNIEnv * env, jclass type, jint width, jint height);
 JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_renderFrame
         (JNIEnv * env, jclass type);
+JNIEXPORT jboolean JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_renderRemoteFrame
+        (JNIEnv * env, jclass type);
+JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_headlessAttached
+        (JNIEnv * env, jclass type);
+JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_headlessDetached
+        (JNIEnv * env, jclass type);
 JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_castSessionStarted
         (JNIEnv *env, jclass type, jobject presentation, jint width, jint height);
 JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_castSessionEnded
         (JNIEnv *env, jclass type, jobject presentation);
 JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_notifyRemoteFrameDone
         (JNIEnv *env, jclass type, jint textureId);
+JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_setLatencyProbeEnabled
+        (JNIEnv *env, jclass type, jboolean enabled);
+JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_readPixelsToPackBuffer
+        (JNIEnv *env, jclass type, jint x, jint y, jint width, jint height);
+JNIEXPORT void JNICALL Java_com_example_castremotedisplay_ndk_local_NativeRenderer_setBenchmarkCubeCount
+        (JNIEnv *env, jclass type, jint cubeCount);
 };
 
-JNIEXPORT void JNICALL
-Java_com_example_castremotedisplay_ndk_local_NativeRenderer_init(JNIEnv *env, jclass type,
-                                                                 jint width, jint height) {
-    LOGI("Initialize native renderer");
-
-    printGLString("Version", GL_VERSION);
-    printGLString("Vendor", GL_VENDOR);
-    printGLString("Renderer", GL_RENDERER);
-    printGLString("Extensions", GL_EXTENSIONS);
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_initContext(JNIEnv *env,
+                                                                        jclass type,
+                                                                        jboolean deferShaders) {
+    return (jboolean) PipelineInitContext(deferShaders);
+}
 
-    // Initialize Cube Renderer ie. load Shaders
-    cube.Init();
+JNIEXPORT jstring JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_getCubeShaderSource(JNIEnv *env,
+                                                                                jclass type,
+                                                                                jboolean fragment) {
+    return env->NewStringUTF(PipelineGetCubeShaderSource(fragment));
+}
 
-    // Initialize GL state.
-    glEnable( GL_DEPTH_TEST );
-    glDepthFunc( GL_LEQUAL );
+JNIEXPORT jobjectArray JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_getCubeAttributes(JNIEnv *env,
+                                                                              jclass type) {
+    int32_t count = 0;
+    while (PipelineGetCubeAttribute(count)) {
+        count++;
+    }
+    jobjectArray names = env->NewObjectArray(count, env->FindClass("java/lang/String"), NULL);
+    for (int32_t i = 0; i < count; i++) {
+        jstring name = env->NewStringUTF(PipelineGetCubeAttribute(i));
+        env->SetObjectArrayElement(names, i, name);
+        env->DeleteLocalRef(name);
+    }
+    return names;
+}
 
-    // Set anti-aliasing
-    glEnable(GL_BLEND);
-    glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_setCubeProgram(JNIEnv *env,
+                                                                           jclass type,
+                                                                           jint program) {
+    PipelineSetCubeProgram((GLuint) program);
+}
 
-    gLocalWidth = width;
-    gLocalHeight = height;
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_init(JNIEnv *env, jclass type,
+                                                                 jint width, jint height) {
+    PipelineInitSurface(width, height, 0);
 }
 
 JNIEXPORT void JNICALL
 Java_com_example_castremotedisplay_ndk_local_NativeRenderer_renderFrame(JNIEnv *env, jclass type) {
+    gPresentationListener.SetEnv(env);
+    PipelineRenderFrame(true);
+    TraceSyncJava(env);
+}
 
-    if(!remoteDisplayTargets[0].remoteDisplayTexture && gPresentation) {
-        for(int i = 0; i < RD_TARGET_COUNT; i++) {
-            remoteDisplayTargets[i] =
-                    initRemoteDisplayTexture(env, gRemoteDisplayWidth, gRemoteDisplayHeight);
-        }
-    };
-
-    // Render local frame (ie. displayed on the device)
-    setupViewport(gLocalWidth, gLocalHeight);
-    renderLocalFrame(env, true);
-
-    if(remoteDisplayTargets[0].remoteDisplayTexture && gRemoteRenderMethod) {
-        remote_display_target target;
-        for(int i = 0; i < RD_TARGET_COUNT; i++) {
-            if (!remoteDisplayTargets[i].locked) {
-                target = remoteDisplayTargets[i];
-            }
-        }
+JNIEXPORT jboolean JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_renderRemoteFrame(JNIEnv *env,
+                                                                             jclass type) {
+    gPresentationListener.SetEnv(env);
+    PipelineRenderFrame(false);
+    TraceSyncJava(env);
+    return gPresentationListener.IsAttached();
+}
 
-        if(target.remoteDisplayTexture) {
-            target.locked = true;
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_headlessAttached(JNIEnv *env,
+                                                                            jclass type) {
+    FlightRecord(FLIGHT_HEADLESS_ATTACHED);
+    PipelineHeadlessAttached();
+}
 
-            // Render remote frame (ie. to be displayed on the TV)
-            renderRemoteDisplayFrame(env, target);
-            notifyRemoteDisplayRenderThread(env, target);
-        } else {
-            LOGE("No free texture...");
-        }
-    }
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_headlessDetached(JNIEnv *env,
+                                                                            jclass type) {
+    FlightRecord(FLIGHT_HEADLESS_DETACHED);
+    PipelineHeadlessDetached();
 }
 
 JNIEXPORT void JNICALL
 Java_com_example_castremotedisplay_ndk_local_NativeRenderer_castSessionStarted(
         JNIEnv *env, jclass type, jobject presentation, jint width, jint height) {
     LOGI("Got notified that Cast session started. Init.");
-
-    gRemoteDisplayWidth = width;
-    gRemoteDisplayHeight = height;
+    FlightRecord(FLIGHT_SESSION_STARTED, width, height);
 
     // Acquire refs to Java methods
-    gPresentation = env->NewGlobalRef(presentation);
-    jclass cls = env->GetObjectClass(presentation);
-    gRemoteRenderMethod = env->GetMethodID(cls, "renderFrameToTexture", "(I)V");
-    gShowGlErrorMethod = env->GetMethodID(cls,
-                                          "onGlError", "(Ljava/lang/String;ILjava/lang/String;)V");
+    gPresentationListener.Attach(env, presentation);
+    PipelineStartRemote(&gPresentationListener, width, height);
 }
 
 JNIEXPORT void JNICALL
@@ -264,26 +203,38 @@ Java_com_example_castremotedisplay_ndk_local_NativeRenderer_castSessionEnded(JNI
                                                                              jclass type,
                                                                              jobject presentation) {
     LOGI("Got notified that Cast session ended");
-    env->DeleteGlobalRef(gPresentation);
-    gPresentation = NULL;
-    gRemoteRenderMethod = NULL;
-
-    for(int i = 0; i < RD_TARGET_COUNT; i++) {
-        glDeleteFramebuffers(1, &remoteDisplayTargets[i].remoteDisplayFrameBuffer);
-        remoteDisplayTargets[i].remoteDisplayFrameBuffer = 0;
-        glDeleteTextures(1, &remoteDisplayTargets[i].remoteDisplayTexture);
-        remoteDisplayTargets[i].remoteDisplayTexture = 0;
-    }
+    FlightRecord(FLIGHT_SESSION_ENDED);
+    PipelineStopRemote();
+    gPresentationListener.Detach(env);
 }
 
 JNIEXPORT void JNICALL
 Java_com_example_castremotedisplay_ndk_local_NativeRenderer_notifyRemoteFrameDone(JNIEnv *env,
                                                                              jclass type,
                                                                              jint textureId) {
-    // Unlock target as RD thread has finished rendering to remote surface
-    for(int i = 0; i < RD_TARGET_COUNT; i++) {
-        if (!remoteDisplayTargets[i].remoteDisplayTexture == textureId) {
-            remoteDisplayTargets[i].locked = false;
-        }
-    }
+    PipelineRemoteFrameDone(textureId);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_setLatencyProbeEnabled(JNIEnv *env,
+                                                                              jclass type,
+                                                                              jboolean enabled) {
+    PipelineSetLatencyProbeEnabled(enabled);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_readPixelsToPackBuffer(JNIEnv *env,
+                                                                             jclass type,
+                                                                             jint x, jint y,
+                                                                             jint width,
+                                                                             jint height) {
+    // With a pack buffer bound the pointer argument is an offset into it
+    glReadPixels(x, y, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_castremotedisplay_ndk_local_NativeRenderer_setBenchmarkCubeCount(JNIEnv *env,
+                                                                             jclass type,
+                                                                             jint cubeCount) {
+    PipelineSetBenchmarkCubeCount(cubeCount);
 }
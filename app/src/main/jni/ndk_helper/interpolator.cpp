@@ -46,9 +46,18 @@ Interpolator& Interpolator::Set( const float start,
         const float dest,
         const INTERPOLATOR_TYPE type,
         const double duration )
+{
+    return Set( start, dest, type, duration, PerfMonitor::GetCurrentTime() );
+}
+
+Interpolator& Interpolator::Set( const float start,
+        const float dest,
+        const INTERPOLATOR_TYPE type,
+        const double duration,
+        const double start_time )
 {
     //init the parameters for the interpolation process
-    start_time_ = PerfMonitor::GetCurrentTime();
+    start_time_ = start_time;
     dest_time_ = start_time_ + duration;
     type_ = type;
 
@@ -78,7 +87,8 @@ bool Interpolator::Update( const double current_time, float& p )
         if( list_params_.size() )
         {
             InterpolatorParams& item = list_params_.front();
-            Set( dest_value_, item.dest_value_, item.type_, item.duration_ );
+            // Chain from the end of the previous segment, in the caller's time base
+            Set( dest_value_, item.dest_value_, item.type_, item.duration_, dest_time_ );
             list_params_.pop_front();
 
             bContinue = true;
@@ -75,6 +75,14 @@ public:
             const INTERPOLATOR_TYPE type,
             double duration );
 
+    // Same as above, starting at start_time instead of the current time. For callers driving
+    // Update() from their own time base.
+    Interpolator& Set( const float start,
+            const float dest,
+            const INTERPOLATOR_TYPE type,
+            double duration,
+            double start_time );
+
     Interpolator& Add( const float dest,
             const INTERPOLATOR_TYPE type,
             const double duration );
@@ -20,6 +20,8 @@
 #include <jni.h>
 #include <errno.h>
 #include <time.h>
+#include <stdint.h>
+#include <sys/time.h>
 
 namespace ndk_helper
 {
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the vsync-aligned presentation times computed by {@link FramePacer} against a fake
+ * clock.
+ */
+public class FramePacerTest {
+
+    // 50Hz gives a refresh period that is a whole number of nanoseconds.
+    private static final float REFRESH_RATE = 50.0f;
+    private static final long PERIOD = 20000000L;
+    private static final long START = 1000000000L;
+
+    private FakeClock mClock;
+    private FramePacer mPacer;
+
+    private static class FakeClock implements FramePacer.Clock {
+        long mNow;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mClock.mNow = START;
+        mPacer = new FramePacer(mClock, REFRESH_RATE);
+    }
+
+    @Test
+    public void refreshPeriodFallsBackTo60Hz() {
+        assertEquals(PERIOD, mPacer.getRefreshPeriodNanos());
+        assertEquals(new FramePacer(mClock, 60.0f).getRefreshPeriodNanos(),
+                new FramePacer(mClock, 0.0f).getRefreshPeriodNanos());
+    }
+
+    @Test
+    public void firstFrameAnchorsTheGrid() {
+        // The first frame is shown right away, whatever its production time.
+        assertEquals(START, mPacer.computePresentationTime(START - 3000000L));
+
+        // Later frames land on the grid started by the first one.
+        mClock.mNow = START + 5000000L;
+        assertEquals(START + PERIOD, mPacer.computePresentationTime(START + 4000000L));
+        mClock.mNow = START + PERIOD + 1;
+        assertEquals(START + 2 * PERIOD, mPacer.computePresentationTime(START + PERIOD));
+    }
+
+    @Test
+    public void framesNeverShareAVsync() {
+        mPacer.computePresentationTime(START);
+
+        // Two frames produced within the same period go to consecutive vsyncs.
+        mClock.mNow = START + 1000000L;
+        assertEquals(START + PERIOD, mPacer.computePresentationTime(START + 1000000L));
+        mClock.mNow = START + 2000000L;
+        assertEquals(START + 2 * PERIOD, mPacer.computePresentationTime(START + 2000000L));
+    }
+
+    @Test
+    public void catchesUpAfterMissedVsyncs() {
+        mPacer.computePresentationTime(START);
+        mClock.mNow = START + 1000000L;
+        assertEquals(START + PERIOD, mPacer.computePresentationTime(START + 1000000L));
+
+        // The next frame comes three and a half periods late: it goes to the first vsync after
+        // now rather than queueing up behind the vsyncs that were missed.
+        mClock.mNow = START + 4 * PERIOD + PERIOD / 2;
+        assertEquals(START + 5 * PERIOD, mPacer.computePresentationTime(START + 4 * PERIOD));
+
+        // And pacing carries on from there.
+        mClock.mNow = START + 5 * PERIOD + 1;
+        assertEquals(START + 6 * PERIOD, mPacer.computePresentationTime(START + 5 * PERIOD));
+    }
+
+    @Test
+    public void frameFromTheFutureWaitsForItsVsync() {
+        mPacer.computePresentationTime(START);
+
+        // A frame time-stamped later than now is not shown before its time.
+        mClock.mNow = START + 1000000L;
+        assertEquals(START + 3 * PERIOD,
+                mPacer.computePresentationTime(START + 2 * PERIOD + 1000000L));
+    }
+
+    @Test
+    public void gridDoesNotDriftWithLateFrames() {
+        // 60Hz: the refresh period is not a whole number of nanoseconds.
+        FramePacer pacer = new FramePacer(mClock, 60.0f);
+        long period = pacer.getRefreshPeriodNanos();
+        pacer.computePresentationTime(START);
+
+        // Every frame arrives a little later into its period; the presentation times stay on
+        // the grid anchored at the first frame instead of following the arrival times.
+        long presentationTime = 0;
+        for (int i = 1; i <= 600; i++) {
+            long frameTime = START + (i - 1) * period + (i % 10) * 1000000L;
+            mClock.mNow = frameTime;
+            presentationTime = pacer.computePresentationTime(frameTime);
+            assertEquals("frame " + i, START + i * period, presentationTime);
+        }
+        assertEquals(START + 600 * period, presentationTime);
+    }
+
+    @Test
+    public void presentStatisticsCountJitterAndSkippedVsyncs() {
+        mPacer.onFramePresented();
+
+        mClock.mNow += PERIOD + 1000000L;
+        mPacer.onFramePresented();
+        mClock.mNow += PERIOD - 1000000L;
+        mPacer.onFramePresented();
+        // Three periods: two vsyncs skipped.
+        mClock.mNow += 3 * PERIOD;
+        mPacer.onFramePresented();
+
+        assertEquals(3, mPacer.getPresentedIntervals());
+        assertEquals(1000000L, mPacer.getMaxJitterNanos());
+        assertEquals(2000000L / 3, mPacer.getMeanJitterNanos());
+        assertEquals(2, mPacer.getSkippedVsyncs());
+
+        mPacer.resetStats();
+        assertEquals(0, mPacer.getPresentedIntervals());
+        assertEquals(0, mPacer.getSkippedVsyncs());
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.example.castremotedisplay.ndk.utils.RenderTrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.example.castremotedisplay.ndk.remote.RecordingPresentTarget.call;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the GL and EGL calls {@link FramePresenter} makes for each present, against a
+ * {@link RecordingPresentTarget}.
+ */
+public class FramePresenterTest {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int[] VIEWPORT = {0, 0, WIDTH, HEIGHT};
+    private static final int[] FULL_DAMAGE = {0, 0, WIDTH, HEIGHT};
+    private static final int SAMPLER_LOCATION = 7;
+    private static final long PRESENTATION_TIME = 123456789L;
+    private static final int FIRST_UNIT = FramePresenter.FIRST_SLOT_TEXTURE_UNIT;
+
+    private static final String INVALIDATE_BEFORE = call("invalidateFramebuffer",
+            GLES20.GL_FRAMEBUFFER, new int[] {GLES30.GL_COLOR, GLES30.GL_DEPTH});
+    private static final String INVALIDATE_AFTER = call("invalidateFramebuffer",
+            GLES20.GL_FRAMEBUFFER, new int[] {GLES30.GL_DEPTH});
+    private static final String DRAW = call("drawArrays", GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    private static final String CLEAR = call("clear", GLES20.GL_COLOR_BUFFER_BIT);
+    private static final String SET_PRESENTATION_TIME =
+            call("setPresentationTime", PRESENTATION_TIME);
+    private static final String SWAP = call("swapBuffers");
+    private static final String GET_ERROR = call("getError");
+
+    private final List<String> mGlErrors = new ArrayList<String>();
+    private final List<String> mEglErrors = new ArrayList<String>();
+    private final FramePresenter.ErrorListener mErrorListener =
+            new FramePresenter.ErrorListener() {
+                @Override
+                public void onGlError(int error, String operation) {
+                    mGlErrors.add(error + " " + operation);
+                }
+
+                @Override
+                public void onEglError(int error, String operation) {
+                    mEglErrors.add(error + " " + operation);
+                }
+            };
+
+    private long mNow;
+    private final FramePacer.Clock mClock = new FramePacer.Clock() {
+        @Override
+        public long nanoTime() {
+            // Every read is a millisecond later.
+            mNow += 1000000L;
+            return mNow;
+        }
+    };
+
+    private final RecordingTraceSink mTrace = new RecordingTraceSink();
+    private RecordingPresentTarget mTarget;
+    private FramePresenter mPresenter;
+    private int mFrameId;
+
+    @Before
+    public void setUp() {
+        mTarget = new RecordingPresentTarget();
+        mPresenter = createPresenter(true, false);
+        RenderTrace.setSink(mTrace);
+    }
+
+    @After
+    public void tearDown() {
+        RenderTrace.setSink(null);
+    }
+
+    private FramePresenter createPresenter(boolean invalidateFramebuffer, boolean letterboxed) {
+        FramePresenter presenter = new FramePresenter(mTarget,
+                new SurfaceDamage(mTarget, WIDTH, HEIGHT, VIEWPORT, 1), invalidateFramebuffer,
+                letterboxed, mClock, mErrorListener);
+        presenter.setSamplerLocation(SAMPLER_LOCATION);
+        mTarget.takeCalls();
+        return presenter;
+    }
+
+    // Presents a frame like the RD thread loop, without layers. A negative textureId presents
+    // the previous frame again.
+    private List<String> present(int textureId, int[] damage, long presentationTime) {
+        if (textureId >= 0) {
+            mPresenter.selectFrameTexture(textureId);
+        }
+        mPresenter.beginFrame(damage);
+        mPresenter.endFrame();
+        mPresenter.swap(presentationTime, textureId >= 0, ++mFrameId);
+        return mTarget.takeCalls();
+    }
+
+    private List<String> present(int textureId) {
+        return present(textureId, FULL_DAMAGE, PRESENTATION_TIME);
+    }
+
+    private static String sampleUnit(int unit) {
+        return call("uniform1i", SAMPLER_LOCATION, unit);
+    }
+
+    private static List<String> prepareSlot(int unit, int textureId) {
+        return Arrays.asList(
+                call("activeTexture", GLES20.GL_TEXTURE0 + unit),
+                call("bindTexture", GLES20.GL_TEXTURE_2D, textureId),
+                call("texParameteri", GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                        GLES20.GL_LINEAR),
+                call("texParameteri", GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                        GLES20.GL_LINEAR),
+                call("texParameteri", GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                        GLES20.GL_CLAMP_TO_EDGE),
+                call("texParameteri", GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                        GLES20.GL_CLAMP_TO_EDGE),
+                call("activeTexture", GLES20.GL_TEXTURE0));
+    }
+
+    @Test
+    public void steadyStatePresentIsTheSlotTheDrawTheInvalidationsAndTheSwap() {
+        present(10);
+        present(11);
+        present(12);
+
+        // The native renderer cycles through its three targets.
+        for (int i = 0; i < 30; i++) {
+            int slot = i % 3;
+            assertEquals(Arrays.asList(
+                    sampleUnit(FIRST_UNIT + slot),
+                    INVALIDATE_BEFORE,
+                    DRAW,
+                    INVALIDATE_AFTER,
+                    SET_PRESENTATION_TIME,
+                    SWAP,
+                    GET_ERROR), present(10 + slot));
+        }
+        assertTrue(mGlErrors.isEmpty());
+        assertTrue(mEglErrors.isEmpty());
+    }
+
+    @Test
+    public void unpacedPresentHasNoPresentationTime() {
+        present(10);
+        assertEquals(Arrays.asList(INVALIDATE_BEFORE, DRAW, INVALIDATE_AFTER, SWAP, GET_ERROR),
+                present(10, FULL_DAMAGE, -1));
+    }
+
+    @Test
+    public void presentOfTheSameFrameDoesNotTouchTheSampler() {
+        present(10);
+        List<String> expected = Arrays.asList(
+                INVALIDATE_BEFORE, DRAW, INVALIDATE_AFTER, SET_PRESENTATION_TIME, SWAP, GET_ERROR);
+        // A layer-only wake draws the previous frame again.
+        assertEquals(expected, present(-1));
+        // The native renderer handed over the texture drawn last.
+        assertEquals(expected, present(10));
+    }
+
+    @Test
+    public void textureTakesASlotTheFirstTimeItShowsUp() {
+        // The sampler starts on the first slot.
+        List<String> expected = new ArrayList<String>(prepareSlot(FIRST_UNIT, 10));
+        mPresenter.selectFrameTexture(10);
+        assertEquals(expected, mTarget.takeCalls());
+
+        expected = new ArrayList<String>(prepareSlot(FIRST_UNIT + 1, 11));
+        expected.add(sampleUnit(FIRST_UNIT + 1));
+        mPresenter.selectFrameTexture(11);
+        assertEquals(expected, mTarget.takeCalls());
+
+        mPresenter.selectFrameTexture(12);
+        mTarget.takeCalls();
+        mPresenter.selectFrameTexture(10);
+        assertEquals(Arrays.asList(sampleUnit(FIRST_UNIT)), mTarget.takeCalls());
+
+        // A fourth texture replaces the oldest.
+        expected = new ArrayList<String>(prepareSlot(FIRST_UNIT, 13));
+        mPresenter.selectFrameTexture(13);
+        assertEquals(expected, mTarget.takeCalls());
+        mPresenter.selectFrameTexture(11);
+        assertEquals(Arrays.asList(sampleUnit(FIRST_UNIT + 1)), mTarget.takeCalls());
+    }
+
+    @Test
+    public void newFilterProgramSamplesTheCurrentSlot() {
+        present(10);
+        present(11);
+        mPresenter.setSamplerLocation(9);
+        assertEquals(Arrays.asList(call("uniform1i", 9, FIRST_UNIT + 1)), mTarget.takeCalls());
+    }
+
+    @Test
+    public void partialUpdateOnlyRedrawsTheDamage() {
+        mTarget.mDamageFeatures = SurfaceDamage.FEATURE_PARTIAL_UPDATE
+                | SurfaceDamage.FEATURE_SWAP_WITH_DAMAGE | SurfaceDamage.FEATURE_BUFFER_AGE;
+        mPresenter = createPresenter(true, false);
+        present(10);
+
+        // The back buffer holds the previous frame.
+        mTarget.mBufferAge = 1;
+        int[] damage = {100, 200, 30, 40};
+        assertEquals(Arrays.asList(
+                call("getBufferAge"),
+                call("setDamageRegion", damage),
+                call("enable", GLES20.GL_SCISSOR_TEST),
+                call("scissor", 100, 200, 30, 40),
+                DRAW,
+                call("disable", GLES20.GL_SCISSOR_TEST),
+                INVALIDATE_AFTER,
+                SET_PRESENTATION_TIME,
+                call("swapBuffersWithDamage", damage),
+                GET_ERROR), present(-1, damage, PRESENTATION_TIME));
+    }
+
+    @Test
+    public void nothingIsDrawnBeforeTheFirstFrame() {
+        // A layer showing up before the first frame.
+        assertEquals(Arrays.asList(
+                CLEAR, INVALIDATE_AFTER, SET_PRESENTATION_TIME, SWAP, GET_ERROR), present(-1));
+    }
+
+    @Test
+    public void letterboxedFrameClearsTheBars() {
+        mPresenter = createPresenter(true, true);
+        present(10);
+        assertEquals(Arrays.asList(
+                CLEAR, DRAW, INVALIDATE_AFTER, SET_PRESENTATION_TIME, SWAP, GET_ERROR),
+                present(10));
+    }
+
+    @Test
+    public void clearWithoutInvalidation() {
+        mPresenter = createPresenter(false, false);
+        present(10);
+        assertEquals(Arrays.asList(CLEAR, DRAW, SET_PRESENTATION_TIME, SWAP, GET_ERROR),
+                present(10));
+    }
+
+    @Test
+    public void errorsAreReadOncePerPresent() {
+        present(10);
+        mTarget.mError = GLES20.GL_INVALID_OPERATION;
+        mTarget.mPresentationTimeResult = false;
+        mTarget.mSwapResult = false;
+        mTarget.mEglError = EGL14.EGL_BAD_SURFACE;
+
+        mPresenter.beginFrame(FULL_DAMAGE);
+        mPresenter.endFrame();
+        assertFalse(mPresenter.swap(PRESENTATION_TIME, true, 2));
+
+        assertEquals(Arrays.asList(
+                INVALIDATE_BEFORE, DRAW, INVALIDATE_AFTER,
+                SET_PRESENTATION_TIME, call("getEglError"),
+                SWAP, call("getEglError"),
+                GET_ERROR), mTarget.takeCalls());
+        assertEquals(Arrays.asList(GLES20.GL_INVALID_OPERATION + " present"), mGlErrors);
+        assertEquals(Arrays.asList(EGL14.EGL_BAD_SURFACE + " presentation time",
+                EGL14.EGL_BAD_SURFACE + " swap buffers"), mEglErrors);
+    }
+
+    @Test
+    public void swapIsTimed() {
+        present(10);
+        // The clock moves by a millisecond every time it is read.
+        assertEquals(1000000L, mPresenter.getLastSwapTimeNanos());
+    }
+
+    @Test
+    public void traceSectionsBalanceWithoutAFrame() {
+        present(-1);
+        assertEquals(Arrays.asList("begin RD draw", "end", "begin RD swap", "end"),
+                mTrace.takeEvents());
+        assertEquals(0, mTrace.getDepth());
+        assertEquals(0, mTrace.getUnbalancedEnds());
+    }
+
+    @Test
+    public void traceSectionsBalanceOnAFailedSwap() {
+        mTarget.mSwapResult = false;
+        present(10);
+        // The flow of the frame ends even though it never made it to the screen.
+        assertEquals(Arrays.asList("begin RD draw", "end", "begin RD swap", "end",
+                "endAsync " + RenderTrace.REMOTE_FRAME_FLOW + " 1"), mTrace.takeEvents());
+        assertEquals(0, mTrace.getDepth());
+        assertEquals(0, mTrace.getUnbalancedEnds());
+    }
+
+    @Test
+    public void presentOfTheSameFrameKeepsTheFlowEnded() {
+        present(10);
+        mTrace.takeEvents();
+        present(-1);
+        assertEquals(Arrays.asList("begin RD draw", "end", "begin RD swap", "end"),
+                mTrace.takeEvents());
+    }
+}
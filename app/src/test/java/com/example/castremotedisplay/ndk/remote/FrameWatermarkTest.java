@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.castremotedisplay.ndk.remote;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link FrameWatermark} finds the readback row of frames drawn scaled and
+ * letterboxed on the surface.
+ */
+public class FrameWatermarkTest {
+
+    @Test
+    public void mapsRowOfUnscaledFrames() {
+        int[] rect = new int[3];
+        FrameWatermark.mapReadbackRow(1280, 720, new int[] {0, 0, 1280, 720}, rect);
+        assertArrayEquals(new int[] {0, FrameWatermark.READBACK_Y,
+                FrameWatermark.READBACK_WIDTH}, rect);
+    }
+
+    @Test
+    public void mapsRowOfScaledLetterboxedFrames() {
+        // 0.75 of a 1280x720 display, on a 1280x800 surface.
+        int[] viewport = new int[] {0, 40, 1280, 720};
+        int[] rect = new int[3];
+        FrameWatermark.mapReadbackRow(960, 540, viewport, rect);
+        // Frame row 4 is surface rows 5 to 6 above the bar, its center falls on row 6.
+        assertArrayEquals(new int[] {0, 46, 171}, rect);
+        assertEquals(0, FrameWatermark.mapColumn(0, 960, viewport));
+        assertEquals(170, FrameWatermark.mapColumn(FrameWatermark.READBACK_WIDTH - 1, 960,
+                viewport));
+    }
+
+    @Test
+    public void decodesScaledFrames() {
+        int frameId = 0xa5c3;
+        int frameWidth = 960;
+        int[] viewport = new int[] {16, 0, 1248, 702};
+        ByteBuffer frameRow = ByteBuffer.allocate(FrameWatermark.READBACK_BYTES);
+        FrameWatermark.encode(frameId, frameRow);
+
+        int[] rect = new int[3];
+        FrameWatermark.mapReadbackRow(frameWidth, 540, viewport, rect);
+        // The surface row as a nearest filter would draw it.
+        ByteBuffer surfaceRow = ByteBuffer.allocate(rect[2] * 4).order(ByteOrder.nativeOrder());
+        for (int x = 0; x < rect[2]; x++) {
+            int frameX = (int) ((long) x * frameWidth / viewport[2]);
+            surfaceRow.putInt(x * 4, frameRow.getInt(frameX * 4));
+        }
+        ByteBuffer sampled = ByteBuffer.allocate(FrameWatermark.READBACK_BYTES);
+        for (int x = 0; x < FrameWatermark.READBACK_WIDTH; x++) {
+            int column = FrameWatermark.mapColumn(x, frameWidth, viewport);
+            sampled.putInt(x * 4, surfaceRow.getInt(column * 4));
+        }
+        assertEquals(frameId, FrameWatermark.decode(sampled));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds known frame IDs and present times through {@link LatencyProbe}, reading the watermarks
+ * back with {@link SoftwareWatermarkReadback}.
+ */
+public class LatencyProbeTest {
+
+    private static final long PERIOD = 16000000L;
+    // Every frame is presented this long after it was produced. Pairing a readback with the
+    // present time of another frame shows up as a multiple of PERIOD in the latencies.
+    private static final long LATENCY = 5000000L;
+
+    private long mNow;
+    private SoftwareWatermarkReadback mReadback;
+    private LatencyProbe mProbe;
+
+    @Before
+    public void setUp() {
+        // Two readbacks in flight, each one completing a frame later, like the PBO path.
+        mReadback = new SoftwareWatermarkReadback(2, 1);
+        mProbe = new LatencyProbe(mReadback, new FramePacer.Clock() {
+            @Override
+            public long nanoTime() {
+                return mNow;
+            }
+        });
+    }
+
+    // One pass of the RD thread loop drawing the frame with the given ID.
+    private void present(int frameId, boolean newFrame) {
+        long produced = frameId * PERIOD;
+        mProbe.onFrameProduced(frameId, produced);
+        mReadback.setDrawnFrameId(frameId);
+        mProbe.onFrameDrawn(newFrame);
+        mNow = produced + LATENCY;
+        mProbe.onFramePresented();
+    }
+
+    private void present(int frameId) {
+        present(frameId, true);
+    }
+
+    @Test
+    public void latencyIsProduceToPresent() {
+        for (int id = 1; id <= 10; id++) {
+            present(id);
+        }
+        // The last readback completes with the next frame.
+        assertEquals(9, mProbe.getMatchedFrames());
+        assertEquals(LATENCY, mProbe.getMeanLatencyNanos());
+        assertEquals(LATENCY, mProbe.getMaxLatencyNanos());
+        assertEquals(0, mProbe.getSkippedFrames());
+        assertEquals(0, mProbe.getDuplicatedFrames());
+        assertEquals(0, mProbe.getUnmatchedFrames());
+        assertEquals(0, mProbe.getLostReadbacks());
+    }
+
+    @Test
+    public void gapsInIdsAreSkippedFrames() {
+        present(1);
+        present(2);
+        present(5);
+        present(6);
+        present(9);
+        present(10);
+        assertEquals(4, mProbe.getSkippedFrames());
+        assertEquals(LATENCY, mProbe.getMeanLatencyNanos());
+    }
+
+    @Test
+    public void newFrameWithTheSameIdIsDuplicated() {
+        present(1);
+        present(2);
+        present(2);
+        present(3);
+        present(4);
+        assertEquals(1, mProbe.getDuplicatedFrames());
+        assertEquals(0, mProbe.getSkippedFrames());
+        assertEquals(0, mProbe.getRepresentedFrames());
+    }
+
+    @Test
+    public void layerOnlyRepresentsAreNotDuplicates() {
+        present(1);
+        present(2);
+        present(2, false);
+        present(2, false);
+        present(2, false);
+        present(3);
+        present(4);
+        assertEquals(0, mProbe.getDuplicatedFrames());
+        assertEquals(3, mProbe.getRepresentedFrames());
+        assertEquals(0, mProbe.getSkippedFrames());
+        assertEquals(3, mProbe.getMatchedFrames());
+        assertEquals(LATENCY, mProbe.getMeanLatencyNanos());
+        assertEquals(LATENCY, mProbe.getMaxLatencyNanos());
+    }
+
+    @Test
+    public void failedReadbackKeepsPresentTimesPaired() {
+        present(1);
+        present(2);
+        mReadback.failNext(1);
+        for (int id = 3; id <= 8; id++) {
+            present(id);
+        }
+        assertEquals(1, mProbe.getLostReadbacks());
+        assertEquals(6, mProbe.getMatchedFrames());
+        assertEquals(LATENCY, mProbe.getMeanLatencyNanos());
+        assertEquals(LATENCY, mProbe.getMaxLatencyNanos());
+        // Frame 2 was presented, it just could not be read back.
+        assertEquals(0, mProbe.getSkippedFrames());
+    }
+
+    @Test
+    public void discardedReadbackKeepsPresentTimesPaired() {
+        present(1);
+        present(2);
+        // The readbacks stop completing: starting 4, 5 and 6 discards 2, 3 and 4.
+        mReadback.setStalled(true);
+        present(3);
+        present(4);
+        present(5);
+        mReadback.setStalled(false);
+        present(6);
+        present(7);
+        assertEquals(3, mProbe.getLostReadbacks());
+        // Frames 1, 5 and 6.
+        assertEquals(3, mProbe.getMatchedFrames());
+        assertEquals(LATENCY, mProbe.getMeanLatencyNanos());
+        assertEquals(LATENCY, mProbe.getMaxLatencyNanos());
+        assertEquals(0, mProbe.getSkippedFrames());
+    }
+
+    @Test
+    public void unknownProductionTimeIsUnmatched() {
+        present(1);
+        mReadback.setDrawnFrameId(7);
+        mProbe.onFrameDrawn(true);
+        mProbe.onFramePresented();
+        present(8);
+        assertEquals(1, mProbe.getUnmatchedFrames());
+        assertEquals(1, mProbe.getMatchedFrames());
+        assertEquals(5, mProbe.getSkippedFrames());
+    }
+
+    @Test
+    public void releaseReleasesTheReadback() {
+        mProbe.release();
+        assertTrue(mReadback.isReleased());
+    }
+}
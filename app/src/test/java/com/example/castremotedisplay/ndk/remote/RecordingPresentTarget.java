@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link PresentTarget} recording the calls made to it, one string per call: the method name
+ * followed by its arguments.
+ */
+class RecordingPresentTarget implements PresentTarget {
+
+    final List<String> mCalls = new ArrayList<String>();
+
+    int mSurfaceWidth = 1280;
+    int mSurfaceHeight = 720;
+    int mDamageFeatures;
+    int mBufferAge;
+    int mError;
+    int mEglError = 0x3000;
+    boolean mSwapResult = true;
+    boolean mPresentationTimeResult = true;
+
+    /** Returns the calls recorded so far and forgets them. */
+    List<String> takeCalls() {
+        List<String> calls = new ArrayList<String>(mCalls);
+        mCalls.clear();
+        return calls;
+    }
+
+    /** Formats a call the way it is recorded. */
+    static String call(String name, Object... args) {
+        StringBuilder call = new StringBuilder(name);
+        for (Object arg : args) {
+            call.append(' ').append(arg instanceof int[] ? Arrays.toString((int[]) arg) : arg);
+        }
+        return call.toString();
+    }
+
+    private void record(String name, Object... args) {
+        mCalls.add(call(name, args));
+    }
+
+    @Override
+    public void activeTexture(int texture) {
+        record("activeTexture", texture);
+    }
+
+    @Override
+    public void bindTexture(int target, int texture) {
+        record("bindTexture", target, texture);
+    }
+
+    @Override
+    public void texParameteri(int target, int pname, int param) {
+        record("texParameteri", target, pname, param);
+    }
+
+    @Override
+    public void uniform1i(int location, int x) {
+        record("uniform1i", location, x);
+    }
+
+    @Override
+    public void enable(int cap) {
+        record("enable", cap);
+    }
+
+    @Override
+    public void disable(int cap) {
+        record("disable", cap);
+    }
+
+    @Override
+    public void scissor(int x, int y, int width, int height) {
+        record("scissor", x, y, width, height);
+    }
+
+    @Override
+    public void clear(int mask) {
+        record("clear", mask);
+    }
+
+    @Override
+    public void drawArrays(int mode, int first, int count) {
+        record("drawArrays", mode, first, count);
+    }
+
+    @Override
+    public void invalidateFramebuffer(int target, int[] attachments) {
+        record("invalidateFramebuffer", target, attachments);
+    }
+
+    @Override
+    public int getError() {
+        record("getError");
+        return mError;
+    }
+
+    @Override
+    public int getSurfaceWidth() {
+        record("getSurfaceWidth");
+        return mSurfaceWidth;
+    }
+
+    @Override
+    public int getSurfaceHeight() {
+        record("getSurfaceHeight");
+        return mSurfaceHeight;
+    }
+
+    @Override
+    public int getDamageFeatures() {
+        record("getDamageFeatures");
+        return mDamageFeatures;
+    }
+
+    @Override
+    public int getBufferAge() {
+        record("getBufferAge");
+        return mBufferAge;
+    }
+
+    @Override
+    public boolean setDamageRegion(int[] rect) {
+        record("setDamageRegion", rect);
+        return true;
+    }
+
+    @Override
+    public boolean setPresentationTime(long presentationTimeNanos) {
+        record("setPresentationTime", presentationTimeNanos);
+        return mPresentationTimeResult;
+    }
+
+    @Override
+    public boolean swapBuffers() {
+        record("swapBuffers");
+        return mSwapResult;
+    }
+
+    @Override
+    public boolean swapBuffersWithDamage(int[] rect) {
+        record("swapBuffersWithDamage", rect);
+        return mSwapResult;
+    }
+
+    @Override
+    public int getEglError() {
+        record("getEglError");
+        return mEglError;
+    }
+}
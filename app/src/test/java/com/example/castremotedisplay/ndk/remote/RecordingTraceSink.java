@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+import com.example.castremotedisplay.ndk.utils.RenderTrace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link RenderTrace.Sink} recording the events it receives, to check how sections nest.
+ */
+class RecordingTraceSink implements RenderTrace.Sink {
+
+    private final List<String> mEvents = new ArrayList<String>();
+    private int mDepth;
+    private int mUnbalancedEnds;
+
+    @Override
+    public void beginSection(String name) {
+        mEvents.add("begin " + name);
+        mDepth++;
+    }
+
+    @Override
+    public void endSection() {
+        mEvents.add("end");
+        if (mDepth == 0) {
+            mUnbalancedEnds++;
+        } else {
+            mDepth--;
+        }
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        mEvents.add("beginAsync " + name + " " + cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        mEvents.add("endAsync " + name + " " + cookie);
+    }
+
+    /**
+     * Returns the events received since the last call.
+     */
+    List<String> takeEvents() {
+        List<String> events = new ArrayList<String>(mEvents);
+        mEvents.clear();
+        return events;
+    }
+
+    /**
+     * Number of sections begun and not ended yet.
+     */
+    int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Number of sections ended while none was open.
+     */
+    int getUnbalancedEnds() {
+        return mUnbalancedEnds;
+    }
+}
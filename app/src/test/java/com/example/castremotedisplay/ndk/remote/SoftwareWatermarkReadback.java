@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.castremotedisplay.ndk.remote;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Software stand-in for {@link GlesWatermarkReadback}. The "surface" is a frame ID set with
+ * {@link #setDrawnFrameId(int)}; each readback encodes it with {@link FrameWatermark#encode}.
+ * Like the PBO path, a readback completes once a given number of newer ones were started behind
+ * it and at most a given number are in flight.
+ */
+class SoftwareWatermarkReadback implements WatermarkReadback {
+
+    private final int mCapacity;
+    private final int mDelay;
+    private final ArrayDeque<Integer> mInFlight = new ArrayDeque<Integer>();
+    private final ByteBuffer mRow = ByteBuffer.allocate(FrameWatermark.READBACK_BYTES)
+            .order(ByteOrder.nativeOrder());
+
+    private int mDrawnFrameId;
+    private int mFailures;
+    private boolean mStalled;
+    private boolean mReleased;
+
+    /**
+     * @param capacity maximum number of readbacks in flight
+     * @param delay number of readbacks started behind one before it completes
+     */
+    SoftwareWatermarkReadback(int capacity, int delay) {
+        mCapacity = capacity;
+        mDelay = delay;
+    }
+
+    void setDrawnFrameId(int frameId) {
+        mDrawnFrameId = frameId;
+    }
+
+    /** Makes the next {@code count} completed readbacks fail. */
+    void failNext(int count) {
+        mFailures = count;
+    }
+
+    /** While stalled, no readback completes. */
+    void setStalled(boolean stalled) {
+        mStalled = stalled;
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    @Override
+    public boolean start() {
+        boolean discarded = mInFlight.size() == mCapacity;
+        if (discarded) {
+            mInFlight.removeFirst();
+        }
+        mInFlight.addLast(mDrawnFrameId);
+        return discarded;
+    }
+
+    @Override
+    public int poll() {
+        if (mStalled || mInFlight.size() <= mDelay) {
+            return PENDING;
+        }
+        int frameId = mInFlight.removeFirst();
+        if (mFailures > 0) {
+            mFailures--;
+            return FAILED;
+        }
+        mRow.clear();
+        FrameWatermark.encode(frameId, mRow);
+        return READY;
+    }
+
+    @Override
+    public ByteBuffer getRow() {
+        mRow.position(0);
+        return mRow;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+}